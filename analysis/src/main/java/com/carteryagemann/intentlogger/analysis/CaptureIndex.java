@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.analysis;
+
+import com.carteryagemann.intentlogger.storage.CaptureIndexWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A parsed index sidecar, see {@link CaptureIndexWriter} for the layout. Posting lists are kept
+ * in flat arrays and looked up by binary search, so a lookup costs about as much as the list it
+ * returns.
+ */
+public class CaptureIndex {
+
+    private final long[] mOffsets;
+    private final long[] mTimes;
+    private final long[] mSortedTimes;
+    private final int[] mTimeOrder;
+    private final String[] mStrings;
+    private final int[][] mKeys = new int[CaptureIndexWriter.SECTION_COUNT][];
+    private final int[][] mListStarts = new int[CaptureIndexWriter.SECTION_COUNT][];
+    private final int[][] mPostings = new int[CaptureIndexWriter.SECTION_COUNT][];
+
+    public static CaptureIndex read(File file) throws IOException, ParseException {
+        return new CaptureIndex(ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+    }
+
+    public CaptureIndex(ByteBuffer in) throws ParseException {
+        try {
+            if (in.getInt() != CaptureIndexWriter.MAGIC) {
+                throw new ParseException("Not an index sidecar.", 0);
+            }
+            short version = in.getShort();
+            if (version != CaptureIndexWriter.VERSION) {
+                throw new ParseException("Index version " + version + " is not supported.", 4);
+            }
+            in.getShort();
+            int count = checkCount(in, in.getInt());
+            mOffsets = new long[count];
+            for (int i = 0; i < count; i++) mOffsets[i] = in.getLong();
+            mTimes = new long[count];
+            mSortedTimes = new long[count];
+            mTimeOrder = new int[count];
+            for (int i = 0; i < count; i++) {
+                mSortedTimes[i] = in.getLong();
+                mTimeOrder[i] = checkRecord(in, in.getInt(), count);
+                mTimes[mTimeOrder[i]] = mSortedTimes[i];
+            }
+            mStrings = new String[checkCount(in, in.getInt())];
+            for (int i = 0; i < mStrings.length; i++) {
+                byte[] bytes = new byte[checkCount(in, in.getInt())];
+                in.get(bytes);
+                mStrings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            for (int section = 0; section < CaptureIndexWriter.SECTION_COUNT; section++) {
+                int keyCount = checkCount(in, in.getInt());
+                int[] keys = new int[keyCount];
+                int[] starts = new int[keyCount + 1];
+                int[] postings = new int[count];
+                int total = 0;
+                for (int k = 0; k < keyCount; k++) {
+                    keys[k] = in.getInt();
+                    int size = checkCount(in, in.getInt());
+                    if (total + size > count) {
+                        throw new ParseException("Posting lists hold more records than the "
+                                + "index.", in.position());
+                    }
+                    starts[k] = total;
+                    for (int i = 0; i < size; i++) {
+                        postings[total++] = checkRecord(in, in.getInt(), count);
+                    }
+                }
+                starts[keyCount] = total;
+                mKeys[section] = keys;
+                mListStarts[section] = starts;
+                mPostings[section] = postings;
+            }
+        } catch (BufferUnderflowException e) {
+            throw new ParseException("Index is truncated.", in.position());
+        }
+    }
+
+    private static int checkCount(ByteBuffer in, int count) throws ParseException {
+        if (count < 0 || count > in.remaining()) {
+            throw new ParseException("Corrupt count " + count, in.position());
+        }
+        return count;
+    }
+
+    private static int checkRecord(ByteBuffer in, int record, int count) throws ParseException {
+        if (record < 0 || record >= count) {
+            throw new ParseException("Record " + record + " out of range.", in.position());
+        }
+        return record;
+    }
+
+    /** Number of indexed records. */
+    public int size() {
+        return mOffsets.length;
+    }
+
+    /** File offset of a record in its segment. */
+    public long offset(int record) {
+        return mOffsets[record];
+    }
+
+    /** Capture time of a record in epoch millis. */
+    public long time(int record) {
+        return mTimes[record];
+    }
+
+    /** Records captured between two times, inclusive, in ascending record order. */
+    public int[] between(long fromMillis, long toMillis) {
+        int from = lowerBound(mSortedTimes, fromMillis);
+        int to = endOfRange(toMillis);
+        if (from >= to) return new int[0];
+        int[] records = Arrays.copyOfRange(mTimeOrder, from, to);
+        Arrays.sort(records);
+        return records;
+    }
+
+    /** Number of records captured between two times, inclusive, without listing them. */
+    public int countBetween(long fromMillis, long toMillis) {
+        return Math.max(0, endOfRange(toMillis) - lowerBound(mSortedTimes, fromMillis));
+    }
+
+    /**
+     * Records whose key in a section matches, in ascending order.
+     *
+     * @param section One of the {@code SECTION_*} constants of {@link CaptureIndexWriter}.
+     */
+    public int[] postings(int section, int key) {
+        int k = Arrays.binarySearch(mKeys[section], key);
+        if (k < 0) return new int[0];
+        return Arrays.copyOfRange(mPostings[section], mListStarts[section][k],
+                mListStarts[section][k + 1]);
+    }
+
+    /** Records with this action or receiver component, in ascending order. */
+    public int[] postings(int section, String value) {
+        int id = Arrays.binarySearch(mStrings, value);
+        return id < 0 ? new int[0] : postings(section, id);
+    }
+
+    /**
+     * Records whose action or receiver component starts with a prefix, in ascending order.
+     */
+    public int[] postingsWithPrefix(int section, String prefix) {
+        int[] starts = mListStarts[section];
+        // Gathered first and sorted once, merging the lists one by one would be quadratic
+        List<Integer> keys = new ArrayList<>();
+        int total = 0;
+        for (int id = lowerBound(mStrings, prefix);
+             id < mStrings.length && mStrings[id].startsWith(prefix); id++) {
+            int k = Arrays.binarySearch(mKeys[section], id);
+            if (k < 0) continue;
+            keys.add(k);
+            total += starts[k + 1] - starts[k];
+        }
+        int[] result = new int[total];
+        int n = 0;
+        for (int k : keys) {
+            System.arraycopy(mPostings[section], starts[k], result, n, starts[k + 1] - starts[k]);
+            n += starts[k + 1] - starts[k];
+        }
+        Arrays.sort(result);
+        return distinct(result);
+    }
+
+    /** The distinct actions or receiver components in the index, sorted. */
+    public String[] getStrings() {
+        return mStrings.clone();
+    }
+
+    private static int lowerBound(long[] values, long value) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /** Position in the sorted times after the last record captured at or before a time. */
+    private int endOfRange(long toMillis) {
+        if (toMillis == Long.MAX_VALUE) return mSortedTimes.length;
+        return lowerBound(mSortedTimes, toMillis + 1);
+    }
+
+    private static int lowerBound(String[] values, String value) {
+        int index = Arrays.binarySearch(values, value);
+        return index < 0 ? -index - 1 : index;
+    }
+
+    /** Drops the duplicates of a sorted list. */
+    private static int[] distinct(int[] sorted) {
+        int n = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (n == 0 || sorted[i] != sorted[n - 1]) sorted[n++] = sorted[i];
+        }
+        return n == sorted.length ? sorted : Arrays.copyOf(sorted, n);
+    }
+}
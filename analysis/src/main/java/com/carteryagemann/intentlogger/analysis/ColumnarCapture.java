@@ -0,0 +1,284 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.intentlogger.analysis;
+
+import com.carteryagemann.intentlogger.analysis.ColumnarFormat.Column;
+import com.carteryagemann.intentlogger.analysis.ColumnarFormat.Kind;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads a {@link ColumnarFormat} file one column at a time. Opening it reads only the column
+ * table. A column is mapped when it is first asked for, so a scan touches nothing but the
+ * columns it uses, and fixed width columns are handed out as buffers over the mapping without
+ * decoding them:
+ *
+ * <pre>
+ *     IntBuffer uids = capture.intColumn(Column.RECEIVER_UID);
+ *     ColumnarCapture.StringColumn actions = capture.stringColumn(Column.ACTION);
+ *     int view = actions.codeOf("android.intent.action.VIEW");
+ *     for (int row = 0; row < capture.size(); row++) {
+ *         if (uids.get(row) == 10050 &amp;&amp; actions.code(row) == view) matches++;
+ *     }
+ * </pre>
+ *
+ * Captures are safe to share between threads once opened, the buffers they hand out are not.
+ * Use {@code duplicate()} on a buffer to give each thread its own.
+ */
+public class ColumnarCapture implements Closeable {
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    /** A dictionary encoded string column. */
+    public final static class StringColumn {
+
+        /** Code of null values. */
+        public final static int NULL = -1;
+        /** Returned by {@link #codeOf(String)} for strings that never occur. */
+        public final static int ABSENT = -2;
+
+        private final String[] mEntries;
+        private final IntBuffer mCodes;
+        private Map<String, Integer> mLookup = null;
+
+        StringColumn(String[] entries, IntBuffer codes) {
+            mEntries = entries;
+            mCodes = codes;
+        }
+
+        /** The entry of a row, or {@link #NULL}. */
+        public int code(int row) {
+            return mCodes.get(row);
+        }
+
+        public String get(int row) {
+            int code = mCodes.get(row);
+            return code == NULL ? null : mEntries[code];
+        }
+
+        /** The string an entry stands for. */
+        public String value(int code) {
+            return mEntries[code];
+        }
+
+        /** Distinct strings in the column. */
+        public int entryCount() {
+            return mEntries.length;
+        }
+
+        /** The code rows holding a string have, so filters can compare ints. */
+        public int codeOf(String value) {
+            if (value == null) return NULL;
+            if (mLookup == null) {
+                mLookup = new HashMap<>(mEntries.length * 2);
+                for (int i = 0; i < mEntries.length; i++) mLookup.put(mEntries[i], i);
+            }
+            Integer code = mLookup.get(value);
+            return code == null ? ABSENT : code;
+        }
+
+        /** The codes of every row as a buffer over the mapping. */
+        public IntBuffer codes() {
+            return mCodes.duplicate();
+        }
+    }
+
+    /** A column of byte arrays. */
+    public final static class BlobColumn {
+
+        private final LongBuffer mOffsets;
+        private final ByteBuffer mBytes;
+
+        BlobColumn(LongBuffer offsets, ByteBuffer bytes) {
+            mOffsets = offsets;
+            mBytes = bytes;
+        }
+
+        public int length(int row) {
+            return (int) (mOffsets.get(row + 1) - mOffsets.get(row));
+        }
+
+        public byte[] get(int row) {
+            byte[] bytes = new byte[length(row)];
+            ByteBuffer source = mBytes.duplicate();
+            source.position((int) mOffsets.get(row));
+            source.get(bytes);
+            return bytes;
+        }
+    }
+
+    private final RandomAccessFile mFile;
+    private final ByteBuffer mBuffer;
+    private final int mRows;
+    private final long[] mOffsets = new long[Column.values().length];
+    private final long[] mLengths = new long[Column.values().length];
+    private final ByteBuffer[] mColumns = new ByteBuffer[Column.values().length];
+
+    /** Maps a columnar file. Columns are mapped as they are asked for. */
+    public static ColumnarCapture open(File file) throws IOException, ParseException {
+        RandomAccessFile access = new RandomAccessFile(file, "r");
+        try {
+            return new ColumnarCapture(access, null);
+        } catch (ParseException | RuntimeException e) {
+            access.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a columnar file that is already in memory.
+     *
+     * @param buffer Buffer positioned at the start of the file.
+     */
+    public ColumnarCapture(ByteBuffer buffer) throws ParseException {
+        this(null, buffer.slice());
+    }
+
+    private ColumnarCapture(RandomAccessFile file, ByteBuffer buffer) throws ParseException {
+        mFile = file;
+        mBuffer = buffer;
+        try {
+            ByteBuffer header = read(0, ColumnarFormat.HEADER_SIZE);
+            if (header.getInt() != ColumnarFormat.MAGIC) {
+                throw new ParseException("Not a columnar capture.", 0);
+            }
+            short version = header.getShort();
+            if (version != ColumnarFormat.VERSION) {
+                throw new ParseException("Columnar version " + version + " is not supported.", 4);
+            }
+            int columns = header.getShort();
+            mRows = header.getInt();
+            if (mRows < 0) throw new ParseException("Negative row count.", 8);
+            for (int i = 0; i < mOffsets.length; i++) mOffsets[i] = -1;
+            ByteBuffer table = read(ColumnarFormat.HEADER_SIZE,
+                    columns * ColumnarFormat.COLUMN_ENTRY_SIZE);
+            for (int i = 0; i < columns; i++) {
+                int id = table.getShort();
+                long offset = table.getLong();
+                long length = table.getLong();
+                // Columns added by later versions are skipped
+                if (id < 0 || id >= mOffsets.length) continue;
+                mOffsets[id] = offset;
+                mLengths[id] = length;
+            }
+        } catch (IOException | BufferUnderflowException e) {
+            throw new ParseException("Columnar header is truncated.", 0);
+        }
+    }
+
+    /** Number of rows, one per record. */
+    public int size() {
+        return mRows;
+    }
+
+    public boolean hasColumn(Column column) {
+        return mOffsets[column.ordinal()] >= 0;
+    }
+
+    public IntBuffer intColumn(Column column) throws IOException {
+        return column(column, Kind.INT).asIntBuffer();
+    }
+
+    public ShortBuffer shortColumn(Column column) throws IOException {
+        return column(column, Kind.SHORT).asShortBuffer();
+    }
+
+    /** Decodes the column's dictionary. The codes are read from the mapping as needed. */
+    public StringColumn stringColumn(Column column) throws IOException {
+        ByteBuffer buffer = column(column, Kind.STRING);
+        String[] entries = new String[buffer.getInt()];
+        for (int i = 0; i < entries.length; i++) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            entries[i] = new String(bytes, UTF8);
+        }
+        buffer.position((buffer.position() + 3) & ~3);
+        IntBuffer codes = buffer.slice().asIntBuffer();
+        if (codes.remaining() < mRows) throw new IOException(column + " column is truncated.");
+        return new StringColumn(entries, codes);
+    }
+
+    public BlobColumn blobColumn(Column column) throws IOException {
+        ByteBuffer buffer = column(column, Kind.BLOB);
+        int offsetBytes = (mRows + 1) * 8;
+        if (buffer.remaining() < offsetBytes) {
+            throw new IOException(column + " column is truncated.");
+        }
+        ByteBuffer offsets = buffer.duplicate();
+        offsets.limit(offsetBytes);
+        buffer.position(offsetBytes);
+        return new BlobColumn(offsets.slice().asLongBuffer(), buffer.slice());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mFile != null) mFile.close();
+    }
+
+    private ByteBuffer column(Column column, Kind kind) throws IOException {
+        if (column.kind != kind) {
+            throw new IllegalArgumentException(column + " is a " + column.kind + " column.");
+        }
+        synchronized (mColumns) {
+            ByteBuffer mapped = mColumns[column.ordinal()];
+            if (mapped == null) {
+                mapped = map(column, kind);
+                mColumns[column.ordinal()] = mapped;
+            }
+            return mapped.duplicate();
+        }
+    }
+
+    private ByteBuffer map(Column column, Kind kind) throws IOException {
+        long offset = mOffsets[column.ordinal()];
+        if (offset < 0) throw new IOException("Capture has no " + column + " column.");
+        long length = mLengths[column.ordinal()];
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException(column + " column is too large to map.");
+        }
+        ByteBuffer buffer = read(offset, (int) length);
+        int width = kind == Kind.INT ? 4 : kind == Kind.SHORT ? 2 : 0;
+        if (buffer.remaining() < (long) width * mRows) {
+            throw new IOException(column + " column is truncated.");
+        }
+        return buffer;
+    }
+
+    private ByteBuffer read(long offset, int length) throws IOException {
+        if (mBuffer != null) {
+            if (offset + length > mBuffer.capacity()) throw new IOException("File is truncated.");
+            ByteBuffer slice = mBuffer.duplicate();
+            slice.position((int) offset).limit((int) offset + length);
+            return slice.slice();
+        }
+        FileChannel channel = mFile.getChannel();
+        if (offset + length > channel.size()) throw new IOException("File is truncated.");
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.intentlogger.analysis;
+
+/**
+ * Layout of columnar capture files, {@code .aicc}, written by {@link ColumnarWriter} and read by
+ * {@link ColumnarCapture}. Each field of every record is stored in a column of its own so a
+ * query reads only the fields it looks at. The file is big endian:
+ * <pre>
+ *   int    {@link #MAGIC}
+ *   short  {@link #VERSION}
+ *   short  column count c
+ *   int    row count n
+ *   c x (short column ID, long offset, long length)
+ *   column data, each starting at a multiple of eight bytes
+ * </pre>
+ * Columns are encoded by their {@link Kind}:
+ * <ul>
+ *     <li>{@code INT}, {@code SHORT}: n values.</li>
+ *     <li>{@code STRING}: an int entry count, for each entry an int length and UTF-8 bytes,
+ *     padding to four bytes, then n int codes indexing the entries, -1 for null.</li>
+ *     <li>{@code BLOB}: n + 1 long offsets into the bytes that follow them, row i spans
+ *     offsets i to i + 1.</li>
+ * </ul>
+ */
+public final class ColumnarFormat {
+
+    public final static String EXTENSION = ".aicc";
+    public final static int MAGIC = 0x41494343;
+    public final static short VERSION = 1;
+
+    /** Size of the fixed part of the file header. */
+    final static int HEADER_SIZE = 12;
+    /** Size of one entry of the column table. */
+    final static int COLUMN_ENTRY_SIZE = 18;
+
+    public enum Kind {
+        INT, SHORT, STRING, BLOB
+    }
+
+    /**
+     * The columns of a capture. Header fields that differ by intent type share a column, e.g.
+     * {@link #FLAGS} holds the start flags of activities and the flags of broadcasts and
+     * services. Fields a type doesn't have are 0, null or empty.
+     */
+    public enum Column {
+        TIMESTAMP(Kind.INT),
+        OFFSET(Kind.SHORT),
+        INTENT_TYPE(Kind.SHORT),
+        CALLER_UID(Kind.INT),
+        CALLER_PID(Kind.INT),
+        RECEIVER_UID(Kind.INT),
+        RECEIVER_PID(Kind.INT),
+        USER_ID(Kind.INT),
+        REQUEST_CODE(Kind.INT),
+        FLAGS(Kind.INT),
+        RECEIVER(Kind.STRING),
+        CALLER(Kind.STRING),
+        REQUIRED_PERMISSION(Kind.STRING),
+        SERVICE_ACTION(Kind.STRING),
+        OPTIONS(Kind.BLOB),
+        INTENT_FLAGS(Kind.INT),
+        ACTION(Kind.STRING),
+        DATA(Kind.STRING),
+        CATEGORY(Kind.STRING),
+        TYPE(Kind.STRING),
+        CLIP_DATA(Kind.BLOB),
+        EXTRAS(Kind.BLOB);
+
+        public final Kind kind;
+
+        Column(Kind kind) {
+            this.kind = kind;
+        }
+    }
+
+    private ColumnarFormat() {}
+
+    /** Rounds a position up to the next multiple of eight. */
+    static long align(long position) {
+        return (position + 7) & ~7L;
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.intentlogger.analysis;
+
+import com.carteryagemann.AICS.ActivityIntentHeader;
+import com.carteryagemann.AICS.BroadcastIntentHeader;
+import com.carteryagemann.AICS.IntentData;
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.AICS.ServiceIntentHeader;
+import com.carteryagemann.intentlogger.analysis.ColumnarFormat.Column;
+import com.carteryagemann.intentlogger.storage.AICSFormat;
+import com.carteryagemann.intentlogger.storage.CompactAICSReader;
+import com.carteryagemann.intentlogger.storage.CompressedAICSReader;
+import com.carteryagemann.intentlogger.storage.DictionaryAICSReader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts records into a {@link ColumnarFormat} file. Every column is spilled to a temporary
+ * file next to the output while records are appended and the columns are joined when the
+ * writer is closed, so only the string dictionaries are held in memory and captures of any
+ * length can be converted.
+ *
+ * Writers are not thread safe.
+ */
+public class ColumnarWriter {
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static int SPILL_BUFFER = 64 * 1024;
+    private final static Column[] COLUMNS = Column.values();
+
+    private final static class Spill {
+        final File file;
+        final DataOutputStream out;
+
+        Spill(File directory) throws IOException {
+            file = File.createTempFile("column", ".tmp", directory);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                    SPILL_BUFFER));
+        }
+
+        void delete() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Only a temporary file
+            }
+            file.delete();
+        }
+    }
+
+    private final File mFile;
+    private final Spill[] mValues = new Spill[COLUMNS.length];
+    // Blob columns also spill their bytes
+    private final Spill[] mBytes = new Spill[COLUMNS.length];
+    private final long[] mBlobOffsets = new long[COLUMNS.length];
+    private final List<Map<String, Integer>> mCodes = new ArrayList<>(COLUMNS.length);
+    private final List<List<String>> mEntries = new ArrayList<>(COLUMNS.length);
+    private int mRows = 0;
+    private boolean mClosed = false;
+
+    public ColumnarWriter(File file) throws IOException {
+        mFile = file;
+        File directory = file.getAbsoluteFile().getParentFile();
+        try {
+            for (Column column : COLUMNS) {
+                mValues[column.ordinal()] = new Spill(directory);
+                if (column.kind == ColumnarFormat.Kind.BLOB) {
+                    mBytes[column.ordinal()] = new Spill(directory);
+                    mValues[column.ordinal()].out.writeLong(0);
+                }
+                mCodes.add(column.kind == ColumnarFormat.Kind.STRING
+                        ? new HashMap<String, Integer>() : null);
+                mEntries.add(column.kind == ColumnarFormat.Kind.STRING
+                        ? new ArrayList<String>() : null);
+            }
+        } catch (IOException e) {
+            deleteSpills();
+            throw e;
+        }
+    }
+
+    /**
+     * Converts AICS files of any format into one columnar file, in the order given.
+     *
+     * @return The number of records converted.
+     * @throws ParseException If an input isn't an AICS file or is corrupt. A standard file that
+     *                        ends inside a record is converted up to its last complete record.
+     */
+    public static int convert(List<File> inputs, File output) throws IOException, ParseException {
+        ColumnarWriter writer = new ColumnarWriter(output);
+        try {
+            for (File input : inputs) writer.appendFile(input);
+            writer.close();
+            return writer.getRowCount();
+        } finally {
+            writer.abort();
+        }
+    }
+
+    /** Appends every record of an AICS file of any format. */
+    public void appendFile(File input) throws IOException, ParseException {
+        try (RandomAccessFile file = new RandomAccessFile(input, "r")) {
+            FileChannel channel = file.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            short minor = AICSFormat.readFileHeader(buffer.duplicate()).formatMinor;
+            switch (minor) {
+                case AICSFormat.FORMAT_MINOR_VERSION:
+                    buffer.position(AICSFormat.FILE_HEADER_SIZE);
+                    while (buffer.hasRemaining()) {
+                        IntentHeader head;
+                        try {
+                            head = AICSFormat.readRecord(buffer);
+                        } catch (AICSFormat.TruncatedRecordException e) {
+                            // A torn tail, e.g. from a device that died while logging
+                            break;
+                        }
+                        append(head);
+                    }
+                    break;
+                case AICSFormat.FORMAT_MINOR_COMPRESSED:
+                    CompressedAICSReader reader = new CompressedAICSReader(buffer);
+                    try {
+                        for (CompressedAICSReader.Block block : reader.getBlocks()) {
+                            for (IntentHeader head : reader.readBlock(block)) append(head);
+                        }
+                    } finally {
+                        reader.close();
+                    }
+                    break;
+                case AICSFormat.FORMAT_MINOR_DICTIONARY:
+                    // Dictionary records can only be decoded from the start of the file
+                    DictionaryAICSReader dictionary = new DictionaryAICSReader(buffer);
+                    IntentHeader head;
+                    while ((head = dictionary.next()) != null) append(head);
+                    break;
+                case AICSFormat.FORMAT_MINOR_COMPACT:
+                    CompactAICSReader compact = new CompactAICSReader(buffer);
+                    IntentHeader next;
+                    while ((next = compact.next()) != null) append(next);
+                    break;
+                default:
+                    throw new ParseException("Unknown AICS format version " + minor + ".", 0);
+            }
+        }
+    }
+
+    public void append(IntentHeader head) throws IOException {
+        if (mClosed) throw new IOException("Writer is closed.");
+        IntentData data = head.getIntentData();
+        if (data == null) throw new IllegalArgumentException("Header has no intent data!");
+        int requestCode = 0;
+        int flags = 0;
+        String receiver = null;
+        String caller = null;
+        String permission = null;
+        String serviceAction = null;
+        byte[] options = null;
+        switch (head.getIntentType()) {
+            case IntentHeader.TYPE_ACTIVITY:
+                ActivityIntentHeader activity = (ActivityIntentHeader) head;
+                requestCode = activity.getRequestCode();
+                flags = activity.getStartFlags();
+                receiver = activity.getReceiverComponent();
+                caller = activity.getCallerComponent();
+                options = activity.getOptions();
+                break;
+            case IntentHeader.TYPE_BROADCAST:
+                BroadcastIntentHeader broadcast = (BroadcastIntentHeader) head;
+                requestCode = broadcast.getRequestCode();
+                flags = broadcast.getFlags();
+                receiver = broadcast.getReceiverComponent();
+                caller = broadcast.getCallerComponent();
+                permission = broadcast.getRequiredPermission();
+                break;
+            case IntentHeader.TYPE_SERVICE:
+                ServiceIntentHeader service = (ServiceIntentHeader) head;
+                flags = service.getFlags();
+                receiver = service.getReceiverComponent();
+                caller = service.getCallerComponent();
+                serviceAction = service.getAction();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown intent type " + head.getIntentType());
+        }
+        writeInt(Column.TIMESTAMP, head.getTimestamp());
+        writeShort(Column.OFFSET, head.getOffset());
+        writeShort(Column.INTENT_TYPE, head.getIntentType());
+        writeInt(Column.CALLER_UID, head.getCallerUID());
+        writeInt(Column.CALLER_PID, head.getCallerPID());
+        writeInt(Column.RECEIVER_UID, head.getReceiverUID());
+        writeInt(Column.RECEIVER_PID, head.getReceiverPID());
+        writeInt(Column.USER_ID, head.getUserID());
+        writeInt(Column.REQUEST_CODE, requestCode);
+        writeInt(Column.FLAGS, flags);
+        writeString(Column.RECEIVER, receiver);
+        writeString(Column.CALLER, caller);
+        writeString(Column.REQUIRED_PERMISSION, permission);
+        writeString(Column.SERVICE_ACTION, serviceAction);
+        writeBlob(Column.OPTIONS, options);
+        writeInt(Column.INTENT_FLAGS, data.getFlags());
+        writeString(Column.ACTION, data.getAction());
+        writeString(Column.DATA, data.getData());
+        writeString(Column.CATEGORY, data.getCategory());
+        writeString(Column.TYPE, data.getType());
+        writeBlob(Column.CLIP_DATA, data.getClipData());
+        writeBlob(Column.EXTRAS, data.getExtras());
+        mRows++;
+    }
+
+    public int getRowCount() {
+        return mRows;
+    }
+
+    /** Joins the columns into the output file and deletes the temporary files. */
+    public void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        try {
+            for (Spill spill : mValues) spill.out.close();
+            for (Spill spill : mBytes) if (spill != null) spill.out.close();
+            byte[][] dictionaries = new byte[COLUMNS.length][];
+            long[] lengths = new long[COLUMNS.length];
+            for (Column column : COLUMNS) {
+                int i = column.ordinal();
+                long length = mValues[i].file.length();
+                if (column.kind == ColumnarFormat.Kind.STRING) {
+                    dictionaries[i] = dictionary(mEntries.get(i));
+                    length += dictionaries[i].length;
+                } else if (column.kind == ColumnarFormat.Kind.BLOB) {
+                    length += mBytes[i].file.length();
+                }
+                lengths[i] = length;
+            }
+            try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+                file.setLength(0);
+                FileChannel channel = file.getChannel();
+                ByteBuffer header = ByteBuffer.allocate(ColumnarFormat.HEADER_SIZE
+                        + COLUMNS.length * ColumnarFormat.COLUMN_ENTRY_SIZE);
+                header.putInt(ColumnarFormat.MAGIC)
+                        .putShort(ColumnarFormat.VERSION)
+                        .putShort((short) COLUMNS.length)
+                        .putInt(mRows);
+                long[] offsets = new long[COLUMNS.length];
+                long position = ColumnarFormat.align(header.capacity());
+                for (Column column : COLUMNS) {
+                    offsets[column.ordinal()] = position;
+                    header.putShort((short) column.ordinal())
+                            .putLong(position)
+                            .putLong(lengths[column.ordinal()]);
+                    position = ColumnarFormat.align(position + lengths[column.ordinal()]);
+                }
+                header.flip();
+                write(channel, header, 0);
+                for (Column column : COLUMNS) {
+                    int i = column.ordinal();
+                    position = offsets[i];
+                    if (dictionaries[i] != null) {
+                        position = write(channel, ByteBuffer.wrap(dictionaries[i]), position);
+                    }
+                    position = copy(mValues[i].file, channel, position);
+                    if (mBytes[i] != null) copy(mBytes[i].file, channel, position);
+                }
+                channel.force(true);
+            }
+        } finally {
+            deleteSpills();
+        }
+    }
+
+    /** Drops the temporary files without writing the output. Closed writers ignore this. */
+    public void abort() {
+        if (mClosed) return;
+        mClosed = true;
+        deleteSpills();
+    }
+
+    private void deleteSpills() {
+        for (Spill spill : mValues) if (spill != null) spill.delete();
+        for (Spill spill : mBytes) if (spill != null) spill.delete();
+    }
+
+    private void writeInt(Column column, int value) throws IOException {
+        mValues[column.ordinal()].out.writeInt(value);
+    }
+
+    private void writeShort(Column column, short value) throws IOException {
+        mValues[column.ordinal()].out.writeShort(value);
+    }
+
+    private void writeString(Column column, String value) throws IOException {
+        int code = -1;
+        if (value != null) {
+            Map<String, Integer> codes = mCodes.get(column.ordinal());
+            Integer known = codes.get(value);
+            if (known == null) {
+                List<String> entries = mEntries.get(column.ordinal());
+                known = entries.size();
+                codes.put(value, known);
+                entries.add(value);
+            }
+            code = known;
+        }
+        mValues[column.ordinal()].out.writeInt(code);
+    }
+
+    private void writeBlob(Column column, byte[] value) throws IOException {
+        int i = column.ordinal();
+        if (value != null) {
+            mBytes[i].out.write(value);
+            mBlobOffsets[i] += value.length;
+        }
+        mValues[i].out.writeLong(mBlobOffsets[i]);
+    }
+
+    /** The entry table of a string column, padded to four bytes. */
+    private static byte[] dictionary(List<String> entries) {
+        List<byte[]> encoded = new ArrayList<>(entries.size());
+        int size = 4;
+        for (String entry : entries) {
+            byte[] bytes = entry.getBytes(UTF8);
+            encoded.add(bytes);
+            size += 4 + bytes.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((size + 3) & ~3);
+        buffer.putInt(entries.size());
+        for (byte[] bytes : encoded) buffer.putInt(bytes.length).put(bytes);
+        return buffer.array();
+    }
+
+    /** @return The position after the copied bytes. */
+    private static long copy(File from, FileChannel to, long position) throws IOException {
+        try (FileInputStream in = new FileInputStream(from)) {
+            FileChannel source = in.getChannel();
+            long size = source.size();
+            // transferFrom can't write past the end of the target, padding may leave a gap
+            to.position(position);
+            for (long done = 0; done < size; ) {
+                long copied = source.transferTo(done, size - done, to);
+                if (copied <= 0) throw new IOException("Column file shrank while copying.");
+                done += copied;
+            }
+            return position + size;
+        }
+    }
+
+    /** @return The position after the written bytes. */
+    private static long write(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) position += channel.write(buffer, position);
+        return position;
+    }
+}
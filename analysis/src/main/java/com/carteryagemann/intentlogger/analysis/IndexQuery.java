@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.analysis;
+
+import com.carteryagemann.intentlogger.storage.CaptureIndexWriter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A conjunction of conditions answered from a {@link CaptureIndex}. The shortest posting list of
+ * the query, or the records of its time range if there are fewer of those, drives the evaluation
+ * and the others are only probed, so a query costs about as much as its most selective condition:
+ * <pre>
+ *     new IndexQuery().type(IntentHeader.TYPE_BROADCAST)
+ *             .receiverPackage("com.example")
+ *             .between(start, start + 10 * 60 * 1000)
+ * </pre>
+ */
+public class IndexQuery {
+
+    private Integer mType = null;
+    private Integer mCallerUid = null;
+    private Integer mReceiverUid = null;
+    private String mAction = null;
+    private String mComponent = null;
+    private String mPackage = null;
+    private long mFromMillis = Long.MIN_VALUE;
+    private long mToMillis = Long.MAX_VALUE;
+
+    public IndexQuery type(int intentType) {
+        mType = intentType;
+        return this;
+    }
+
+    public IndexQuery callerUid(int uid) {
+        mCallerUid = uid;
+        return this;
+    }
+
+    public IndexQuery receiverUid(int uid) {
+        mReceiverUid = uid;
+        return this;
+    }
+
+    public IndexQuery action(String action) {
+        mAction = action;
+        return this;
+    }
+
+    /** Receiver component in its short form, e.g. {@code {com.example/.Main}}. */
+    public IndexQuery receiverComponent(String component) {
+        mComponent = component;
+        return this;
+    }
+
+    /** Any receiver component of a package. */
+    public IndexQuery receiverPackage(String packageName) {
+        mPackage = packageName;
+        return this;
+    }
+
+    /** Capture time between two epoch millis, inclusive. */
+    public IndexQuery between(long fromMillis, long toMillis) {
+        mFromMillis = fromMillis;
+        mToMillis = toMillis;
+        return this;
+    }
+
+    /** Matching records in ascending order. */
+    public int[] run(CaptureIndex index) {
+        List<int[]> lists = new ArrayList<>();
+        if (mType != null) lists.add(index.postings(CaptureIndexWriter.SECTION_TYPE, mType));
+        if (mCallerUid != null) {
+            lists.add(index.postings(CaptureIndexWriter.SECTION_CALLER_UID, mCallerUid));
+        }
+        if (mReceiverUid != null) {
+            lists.add(index.postings(CaptureIndexWriter.SECTION_RECEIVER_UID, mReceiverUid));
+        }
+        if (mAction != null) lists.add(index.postings(CaptureIndexWriter.SECTION_ACTION, mAction));
+        if (mComponent != null) {
+            lists.add(index.postings(CaptureIndexWriter.SECTION_COMPONENT, mComponent));
+        }
+        if (mPackage != null) {
+            lists.add(index.postingsWithPrefix(CaptureIndexWriter.SECTION_COMPONENT,
+                    "{" + mPackage + "/"));
+        }
+        boolean timed = mFromMillis != Long.MIN_VALUE || mToMillis != Long.MAX_VALUE;
+        if (lists.isEmpty()) return index.between(mFromMillis, mToMillis);
+
+        lists.sort(new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return Integer.compare(a.length, b.length);
+            }
+        });
+        // Listing the time range is only worth it if it is the most selective condition
+        if (timed && index.countBetween(mFromMillis, mToMillis) < lists.get(0).length) {
+            lists.add(0, index.between(mFromMillis, mToMillis));
+            timed = false;
+        }
+        int[] driver = lists.get(0);
+        int[] result = new int[driver.length];
+        int count = 0;
+        candidates:
+        for (int record : driver) {
+            for (int i = 1; i < lists.size(); i++) {
+                if (Arrays.binarySearch(lists.get(i), record) < 0) continue candidates;
+            }
+            if (timed) {
+                long time = index.time(record);
+                if (time < mFromMillis || time > mToMillis) continue;
+            }
+            result[count++] = record;
+        }
+        return Arrays.copyOf(result, count);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.analysis;
+
+import com.carteryagemann.intentlogger.storage.AICSFormat;
+import com.carteryagemann.intentlogger.storage.CaptureIndexWriter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A standard AICS segment opened together with its index sidecar. Records are reached through
+ * the offsets in the index, so unlike {@link MappedAICSReader} nothing is scanned up front.
+ */
+public class IndexedCapture implements Closeable {
+
+    /** Enough for the fixed part of any record. */
+    private final static int RECORD_PREFIX = 64;
+
+    private final FileChannel mChannel;
+    private final CaptureIndex mIndex;
+    private final MappedByteBuffer mMapping;
+
+    /**
+     * Opens a segment and the {@code .aidx} sidecar next to it.
+     *
+     * @throws ParseException If the segment isn't a standard AICS file or the sidecar is corrupt.
+     */
+    public static IndexedCapture open(File segment) throws IOException, ParseException {
+        return new IndexedCapture(segment,
+                CaptureIndex.read(CaptureIndexWriter.sidecarFor(segment)));
+    }
+
+    public IndexedCapture(File segment, CaptureIndex index) throws IOException, ParseException {
+        mChannel = FileChannel.open(segment.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(AICSFormat.FILE_HEADER_SIZE);
+            while (header.hasRemaining() && mChannel.read(header, header.position()) > 0) {}
+            header.flip();
+            AICSFormat.FileHeader fileHeader = AICSFormat.readFileHeader(header);
+            if (fileHeader.formatMinor != AICSFormat.FORMAT_MINOR_VERSION) {
+                throw new ParseException("Only standard AICS segments are indexed.", 0);
+            }
+            long size = mChannel.size();
+            // Segments are normally far below 2 GiB, larger ones map each record on demand
+            mMapping = size <= Integer.MAX_VALUE
+                    ? mChannel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+        } catch (IOException | ParseException | RuntimeException e) {
+            mChannel.close();
+            throw e;
+        }
+        mIndex = index;
+    }
+
+    public CaptureIndex getIndex() {
+        return mIndex;
+    }
+
+    /** A view of a record by its number. */
+    public RecordView get(int record) throws IOException {
+        long offset = mIndex.offset(record);
+        if (mMapping != null) return new RecordView(mMapping, (int) offset, record);
+        long remaining = mChannel.size() - offset;
+        MappedByteBuffer prefix = mChannel.map(FileChannel.MapMode.READ_ONLY, offset,
+                Math.min(RECORD_PREFIX, remaining));
+        long size = RecordView.sizeAt(prefix, 0);
+        if (size < 0 || size > remaining) throw new IOException("Record " + record + " is corrupt.");
+        return new RecordView(mChannel.map(FileChannel.MapMode.READ_ONLY, offset, size), 0,
+                record);
+    }
+
+    /** Views of the records matching a query, in record order. */
+    public List<RecordView> query(IndexQuery query) throws IOException {
+        int[] records = query.run(mIndex);
+        List<RecordView> views = new ArrayList<>(records.length);
+        for (int record : records) views.add(get(record));
+        return views;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
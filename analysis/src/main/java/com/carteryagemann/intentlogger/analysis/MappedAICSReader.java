@@ -0,0 +1,308 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.analysis;
+
+import com.carteryagemann.intentlogger.storage.AICSFormat;
+import com.carteryagemann.intentlogger.storage.PayloadEncoding;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads a standard AICS file through memory mappings instead of decoding it onto the heap.
+ *
+ * Opening the file makes one pass over the record headers to find where each record starts.
+ * The index costs four bytes per record. The file is mapped in regions of at most
+ * {@link #DEFAULT_REGION_SIZE} bytes that always start and end on record boundaries, so files
+ * larger than a single mapping can be read. Records are returned as {@link RecordView}s that
+ * decode a field only when it is read.
+ *
+ * A file that ends in the middle of a record, e.g. because the device died while logging, is
+ * read up to its last complete record and reported as {@link #isTruncated() truncated}.
+ *
+ * Readers are safe to share between threads once opened, but the views they hand out are not.
+ */
+public class MappedAICSReader implements Iterable<RecordView>, Closeable {
+
+    public final static long DEFAULT_REGION_SIZE = 1L << 30;
+
+    /** Large enough for the fixed part of any record. */
+    private final static long MIN_REGION_SIZE = 64;
+
+    private final static int INITIAL_INDEX_SIZE = 1024;
+
+    /** One mapping and the records that lie in it. */
+    private final static class Region {
+        final MappedByteBuffer buffer;
+        final long firstRecord;
+        final int[] offsets;
+
+        Region(MappedByteBuffer buffer, long firstRecord, int[] offsets) {
+            this.buffer = buffer;
+            this.firstRecord = firstRecord;
+            this.offsets = offsets;
+        }
+    }
+
+    private final FileChannel mChannel;
+    private final AICSFormat.FileHeader mHeader;
+    private final List<Region> mRegions = new ArrayList<>();
+    private final long[] mRegionStarts;
+    private final long mRecordCount;
+    private final boolean mTruncated;
+
+    public static MappedAICSReader open(File file) throws IOException, ParseException {
+        return new MappedAICSReader(file, DEFAULT_REGION_SIZE);
+    }
+
+    /**
+     * @param regionSize Largest mapping to create, at least 64 bytes. A single record larger
+     *                   than this still gets a mapping of its own.
+     * @throws ParseException If the file isn't a standard AICS file or a record is malformed.
+     */
+    public MappedAICSReader(File file, long regionSize) throws IOException, ParseException {
+        mChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long fileSize = mChannel.size();
+            ByteBuffer header = ByteBuffer.allocate(AICSFormat.FILE_HEADER_SIZE);
+            while (header.hasRemaining() && mChannel.read(header, header.position()) > 0) {}
+            header.flip();
+            mHeader = AICSFormat.readFileHeader(header);
+            if (mHeader.formatMinor != AICSFormat.FORMAT_MINOR_VERSION) {
+                throw new ParseException("Only standard AICS files can be mapped (format "
+                        + "version " + AICSFormat.FORMAT_MAJOR_VERSION + "."
+                        + mHeader.formatMinor + ").", 0);
+            }
+            long position = AICSFormat.FILE_HEADER_SIZE;
+            long records = 0;
+            boolean truncated = false;
+            while (position < fileSize) {
+                long available = fileSize - position;
+                long size = Math.min(Math.min(Math.max(regionSize, MIN_REGION_SIZE), available),
+                        Integer.MAX_VALUE);
+                MappedByteBuffer buffer = mChannel.map(FileChannel.MapMode.READ_ONLY, position,
+                        size);
+                int[] offsets = new int[INITIAL_INDEX_SIZE];
+                int count = 0;
+                int offset = 0;
+                while (offset < size) {
+                    long recordSize = recordSize(buffer, offset, position);
+                    if (recordSize < 0 || offset + recordSize > size) break;
+                    if (count == offsets.length) offsets = Arrays.copyOf(offsets, count * 2);
+                    offsets[count++] = offset;
+                    offset += (int) recordSize;
+                }
+                if (count == 0) {
+                    // The next record doesn't fit this mapping
+                    long recordSize = size == available ? -1 : recordSize(buffer, 0, position);
+                    if (recordSize < 0 || recordSize > available) {
+                        truncated = true;
+                        break;
+                    }
+                    buffer = mChannel.map(FileChannel.MapMode.READ_ONLY, position, recordSize);
+                    offsets[count++] = 0;
+                    offset = (int) recordSize;
+                }
+                mRegions.add(new Region(buffer, records, Arrays.copyOf(offsets, count)));
+                records += count;
+                position += offset;
+            }
+            mRecordCount = records;
+            mTruncated = truncated;
+            mRegionStarts = new long[mRegions.size()];
+            for (int i = 0; i < mRegionStarts.length; i++) {
+                mRegionStarts[i] = mRegions.get(i).firstRecord;
+            }
+        } catch (IOException | ParseException | RuntimeException e) {
+            mChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Size of the record at an offset, or -1 if not even its fixed part is in the mapping.
+     *
+     * @throws ParseException If the record is malformed.
+     */
+    private static long recordSize(ByteBuffer buffer, int offset, long position)
+            throws ParseException {
+        if (buffer.limit() - offset < AICSFormat.headerFixedSize(0)) return -1;
+        try {
+            long size = RecordView.sizeAt(buffer, offset);
+            if (size < 0) {
+                throw new ParseException("Malformed record at byte " + (position + offset),
+                        (int) Math.min(position + offset, Integer.MAX_VALUE));
+            }
+            return size;
+        } catch (IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    public AICSFormat.FileHeader getFileHeader() {
+        return mHeader;
+    }
+
+    public long size() {
+        return mRecordCount;
+    }
+
+    /** True if the file ends with an incomplete record, which is skipped. */
+    public boolean isTruncated() {
+        return mTruncated;
+    }
+
+    /** A new view of the record at an index. */
+    public RecordView get(long index) {
+        return position(new RecordView(), index);
+    }
+
+    RecordView position(RecordView view, long index) {
+        if (index < 0 || index >= mRecordCount) throw new IndexOutOfBoundsException();
+        int region = Arrays.binarySearch(mRegionStarts, index);
+        if (region < 0) region = -region - 2;
+        Region r = mRegions.get(region);
+        return view.set(r.buffer, r.offsets[(int) (index - r.firstRecord)], index);
+    }
+
+    /**
+     * The extras of a record as they were stored, following a deduplicated reference to the
+     * record holding them. Truncated and hashed extras are returned as their
+     * {@link PayloadEncoding} stand-ins.
+     */
+    public byte[] resolveExtras(long index) {
+        byte[] stored = get(index).getExtras();
+        if (PayloadEncoding.kind(stored) != PayloadEncoding.KIND_REFERENCE) return stored;
+        return get(PayloadEncoding.referencedRecord(stored)).getExtras();
+    }
+
+    /** Same as {@link #resolveExtras(long)} for clip data. */
+    public byte[] resolveClipData(long index) {
+        byte[] stored = get(index).getClipData();
+        if (PayloadEncoding.kind(stored) != PayloadEncoding.KIND_REFERENCE) return stored;
+        return get(PayloadEncoding.referencedRecord(stored)).getClipData();
+    }
+
+    /**
+     * Hands the records from one index up to another, exclusive, to an action with a single,
+     * reused view. Several threads may walk different ranges of the same reader at once.
+     */
+    public void forEach(long from, long to, Consumer<? super RecordView> action) {
+        if (from < 0 || to > mRecordCount || from > to) throw new IndexOutOfBoundsException();
+        RecordView view = new RecordView();
+        for (long index = from; index < to; index++) action.accept(position(view, index));
+    }
+
+    /** Iterates every record with a single, reused view. */
+    @Override
+    public Iterator<RecordView> iterator() {
+        return new Iterator<RecordView>() {
+            private final RecordView mView = new RecordView();
+            private long mNext = 0;
+
+            @Override
+            public boolean hasNext() {
+                return mNext < mRecordCount;
+            }
+
+            @Override
+            public RecordView next() {
+                if (mNext >= mRecordCount) throw new NoSuchElementException();
+                return position(mView, mNext++);
+            }
+        };
+    }
+
+    @Override
+    public Spliterator<RecordView> spliterator() {
+        return new RecordSpliterator(0, mRecordCount);
+    }
+
+    /** Streams every record. Each thread of a parallel stream reuses its own view. */
+    public Stream<RecordView> stream(boolean parallel) {
+        return StreamSupport.stream(spliterator(), parallel);
+    }
+
+    /**
+     * Unmapping is left to the garbage collector, Java has no portable way to release a
+     * mapping early.
+     */
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    private final class RecordSpliterator implements Spliterator<RecordView> {
+
+        private final RecordView mView = new RecordView();
+        private long mNext;
+        private final long mEnd;
+
+        RecordSpliterator(long start, long end) {
+            mNext = start;
+            mEnd = end;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super RecordView> action) {
+            if (mNext >= mEnd) return false;
+            action.accept(position(mView, mNext++));
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super RecordView> action) {
+            while (mNext < mEnd) action.accept(position(mView, mNext++));
+        }
+
+        @Override
+        public Spliterator<RecordView> trySplit() {
+            long remaining = mEnd - mNext;
+            if (remaining < 2) return null;
+            long middle = mNext + remaining / 2;
+            RecordSpliterator prefix = new RecordSpliterator(mNext, middle);
+            mNext = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return mEnd - mNext;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+        }
+    }
+}
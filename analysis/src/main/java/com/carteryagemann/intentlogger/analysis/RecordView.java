@@ -0,0 +1,309 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.analysis;
+
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.intentlogger.storage.AICSFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+/**
+ * A flyweight over one standard AICS record in a mapped file. Nothing is decoded until a getter
+ * is called, and every getter reads straight from the mapping, so looking only at timestamps or
+ * UIDs never touches the strings and payloads of a record.
+ *
+ * Views handed out by iterators and spliterators are repositioned for every record. Copy what
+ * you need before advancing, or call {@link #copy()}.
+ */
+public final class RecordView {
+
+    // Offsets within a record, see AICSFormat for the layout
+    private final static int TIMESTAMP = 0;
+    private final static int MILLI_OFFSET = 4;
+    private final static int INTENT_TYPE = 6;
+    private final static int CALLER_UID = 8;
+    private final static int CALLER_PID = 12;
+    private final static int RECEIVER_UID = 16;
+    private final static int RECEIVER_PID = 20;
+    private final static int USER_ID = 24;
+    private final static int TYPE_FIELDS = 28;
+
+    // Offsets within the intent data
+    private final static int DATA_FLAGS = 0;
+    private final static int DATA_SIZES = 4;
+    private final static int DATA_ACTION = 0;
+    private final static int DATA_DATA = 1;
+    private final static int DATA_CATEGORY = 2;
+    private final static int DATA_TYPE = 3;
+    private final static int DATA_CLIP = 4;
+    private final static int DATA_EXTRAS = 5;
+
+    private ByteBuffer mBuffer;
+    private int mBase;
+    private long mIndex;
+
+    RecordView() {}
+
+    RecordView(ByteBuffer buffer, int base, long index) {
+        set(buffer, base, index);
+    }
+
+    RecordView set(ByteBuffer buffer, int base, long index) {
+        mBuffer = buffer;
+        mBase = base;
+        mIndex = index;
+        return this;
+    }
+
+    /**
+     * Size of the record starting at an offset, computed from its size fields alone.
+     *
+     * @return The size, or -1 if the record is malformed.
+     */
+    static long sizeAt(ByteBuffer buffer, int base) {
+        short type = buffer.getShort(base + INTENT_TYPE);
+        if (type < IntentHeader.TYPE_ACTIVITY || type > IntentHeader.TYPE_SERVICE) return -1;
+        int fixed = AICSFormat.headerFixedSize(type);
+        int sizes = base + TYPE_FIELDS + (type == IntentHeader.TYPE_SERVICE ? 4 : 8);
+        long strings = 0;
+        for (int i = 0; i < 3; i++) {
+            int size = buffer.getInt(sizes + 4 * i);
+            if (size < 0) return -1;
+            strings += size;
+        }
+        int dataSize = buffer.getInt(sizes + 12);
+        if (dataSize < AICSFormat.INTENT_DATA_FIXED_SIZE) return -1;
+        return fixed + strings + dataSize;
+    }
+
+    /** Position of the record in its file, counting from 0. */
+    public long getIndex() {
+        return mIndex;
+    }
+
+    public int getTimestamp() {
+        return mBuffer.getInt(mBase + TIMESTAMP);
+    }
+
+    public short getOffset() {
+        return mBuffer.getShort(mBase + MILLI_OFFSET);
+    }
+
+    /** The capture time in epoch milliseconds. */
+    public long getTimeMillis() {
+        return getTimestamp() * 1000L + getOffset();
+    }
+
+    public short getIntentType() {
+        return mBuffer.getShort(mBase + INTENT_TYPE);
+    }
+
+    public int getCallerUid() {
+        return mBuffer.getInt(mBase + CALLER_UID);
+    }
+
+    public int getCallerPid() {
+        return mBuffer.getInt(mBase + CALLER_PID);
+    }
+
+    public int getReceiverUid() {
+        return mBuffer.getInt(mBase + RECEIVER_UID);
+    }
+
+    public int getReceiverPid() {
+        return mBuffer.getInt(mBase + RECEIVER_PID);
+    }
+
+    public int getUserId() {
+        return mBuffer.getInt(mBase + USER_ID);
+    }
+
+    /** Request code of activities and broadcasts, 0 for services. */
+    public int getRequestCode() {
+        return isService() ? 0 : mBuffer.getInt(mBase + TYPE_FIELDS);
+    }
+
+    /** Start flags of activities, flags of broadcasts and services. */
+    public int getFlags() {
+        return mBuffer.getInt(mBase + TYPE_FIELDS + (isService() ? 0 : 4));
+    }
+
+    public String getReceiverComponent() {
+        return string(headerStringOffset(0), headerStringSize(0));
+    }
+
+    public String getCallerComponent() {
+        return string(headerStringOffset(1), headerStringSize(1));
+    }
+
+    /** Required permission of broadcasts, null for other types. */
+    public String getRequiredPermission() {
+        if (getIntentType() != IntentHeader.TYPE_BROADCAST) return null;
+        return string(headerStringOffset(2), headerStringSize(2));
+    }
+
+    /** The service action, {@code bind} or {@code start}, null for other types. */
+    public String getServiceAction() {
+        if (!isService()) return null;
+        return string(headerStringOffset(2), headerStringSize(2));
+    }
+
+    /** Activity options, null for other types. */
+    public byte[] getOptions() {
+        if (getIntentType() != IntentHeader.TYPE_ACTIVITY) return null;
+        return bytes(headerStringOffset(2), headerStringSize(2));
+    }
+
+    public int getIntentFlags() {
+        return mBuffer.getInt(dataBase() + DATA_FLAGS);
+    }
+
+    public String getAction() {
+        return dataString(DATA_ACTION);
+    }
+
+    public String getData() {
+        return dataString(DATA_DATA);
+    }
+
+    public String getCategory() {
+        return dataString(DATA_CATEGORY);
+    }
+
+    public String getType() {
+        return dataString(DATA_TYPE);
+    }
+
+    public byte[] getClipData() {
+        return bytes(dataFieldOffset(DATA_CLIP), dataFieldSize(DATA_CLIP));
+    }
+
+    public byte[] getExtras() {
+        return bytes(dataFieldOffset(DATA_EXTRAS), dataFieldSize(DATA_EXTRAS));
+    }
+
+    /** The marshalled extras as a read-only view of the mapping, without copying them. */
+    public ByteBuffer extrasBuffer() {
+        return slice(dataFieldOffset(DATA_EXTRAS), dataFieldSize(DATA_EXTRAS));
+    }
+
+    public int getExtrasSize() {
+        return dataFieldSize(DATA_EXTRAS);
+    }
+
+    /** Compares the action with a string without decoding it. */
+    public boolean actionEquals(String action) {
+        return contentEquals(dataFieldOffset(DATA_ACTION), dataFieldSize(DATA_ACTION), action);
+    }
+
+    /** Compares the receiver component with a string without decoding it. */
+    public boolean receiverEquals(String component) {
+        return contentEquals(headerStringOffset(0), headerStringSize(0), component);
+    }
+
+    /** Size of the whole record in bytes. */
+    public int getSize() {
+        return (int) sizeAt(mBuffer, mBase);
+    }
+
+    /** A view of the same record that stays put while this one moves on. */
+    public RecordView copy() {
+        return new RecordView(mBuffer, mBase, mIndex);
+    }
+
+    /** Fully decodes the record with the AICS library. */
+    public IntentHeader toIntentHeader() throws ParseException {
+        ByteBuffer record = mBuffer.duplicate();
+        record.position(mBase);
+        return AICSFormat.readRecord(record);
+    }
+
+    private boolean isService() {
+        return getIntentType() == IntentHeader.TYPE_SERVICE;
+    }
+
+    /** Position of the size fields of the header's three variable length fields. */
+    private int headerSizes() {
+        return mBase + TYPE_FIELDS + (isService() ? 4 : 8);
+    }
+
+    private int headerStringSize(int field) {
+        return mBuffer.getInt(headerSizes() + 4 * field);
+    }
+
+    private int headerStringOffset(int field) {
+        int offset = mBase + AICSFormat.headerFixedSize(getIntentType());
+        for (int i = 0; i < field; i++) offset += headerStringSize(i);
+        return offset;
+    }
+
+    private int dataBase() {
+        return headerStringOffset(3);
+    }
+
+    private int dataFieldSize(int field) {
+        return mBuffer.getInt(dataBase() + DATA_SIZES + 4 * field);
+    }
+
+    private int dataFieldOffset(int field) {
+        int base = dataBase();
+        int offset = base + AICSFormat.INTENT_DATA_FIXED_SIZE;
+        for (int i = 0; i < field; i++) offset += mBuffer.getInt(base + DATA_SIZES + 4 * i);
+        return offset;
+    }
+
+    private String dataString(int field) {
+        return string(dataFieldOffset(field), dataFieldSize(field));
+    }
+
+    /** AICS can't tell an empty string from a missing one, both come back as null. */
+    private String string(int offset, int size) {
+        if (size == 0) return null;
+        byte[] bytes = new byte[size];
+        ByteBuffer source = mBuffer.duplicate();
+        source.position(offset);
+        source.get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    /** Empty payloads come back as null, the same as from the AICS library. */
+    private byte[] bytes(int offset, int size) {
+        if (size == 0) return null;
+        byte[] bytes = new byte[size];
+        ByteBuffer source = mBuffer.duplicate();
+        source.position(offset);
+        source.get(bytes);
+        return bytes;
+    }
+
+    private ByteBuffer slice(int offset, int size) {
+        ByteBuffer source = mBuffer.duplicate();
+        source.position(offset).limit(offset + size);
+        return source.slice().asReadOnlyBuffer();
+    }
+
+    private boolean contentEquals(int offset, int size, String value) {
+        if (value == null || value.isEmpty()) return size == 0;
+        if (value.length() != size) return false;
+        for (int i = 0; i < size; i++) {
+            if (mBuffer.get(offset + i) != value.charAt(i)) return false;
+        }
+        return true;
+    }
+}
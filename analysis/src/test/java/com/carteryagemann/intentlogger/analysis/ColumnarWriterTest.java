@@ -0,0 +1,184 @@
+package com.carteryagemann.intentlogger.analysis;
+
+import com.carteryagemann.AICS.ActivityIntentHeader;
+import com.carteryagemann.AICS.BroadcastIntentHeader;
+import com.carteryagemann.AICS.IntentData;
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.AICS.ServiceIntentHeader;
+import com.carteryagemann.intentlogger.analysis.ColumnarFormat.Column;
+import com.carteryagemann.intentlogger.storage.LogFormat;
+import com.carteryagemann.intentlogger.storage.RecordSink;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ColumnarWriterTest {
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = Files.createTempDirectory("columnar").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        mDirectory.delete();
+    }
+
+    private File write(String name, LogFormat format, List<IntentHeader> records)
+            throws Exception {
+        File file = new File(mDirectory, name);
+        RecordSink sink = format.create(file, (short) 6, (byte) 0, (byte) 1);
+        for (IntentHeader head : records) sink.append(head);
+        sink.close();
+        return file;
+    }
+
+    @Test
+    public void convert_keepsEveryFieldOfEveryFormat() throws Exception {
+        List<IntentHeader> records = MappedAICSReaderTest.sampleRecords(90);
+        File standard = write("0.aics", LogFormat.STANDARD, records.subList(0, 30));
+        File compressed = write("1.aics", LogFormat.COMPRESSED, records.subList(30, 60));
+        File dictionary = write("2.aics", LogFormat.DICTIONARY, records.subList(60, 90));
+        File output = new File(mDirectory, "all" + ColumnarFormat.EXTENSION);
+        assertEquals(90, ColumnarWriter.convert(Arrays.asList(standard, compressed, dictionary),
+                output));
+        // Only the inputs and the output are left
+        assertEquals(4, mDirectory.listFiles().length);
+
+        try (ColumnarCapture capture = ColumnarCapture.open(output)) {
+            assertEquals(90, capture.size());
+            IntBuffer timestamps = capture.intColumn(Column.TIMESTAMP);
+            ShortBuffer offsets = capture.shortColumn(Column.OFFSET);
+            ShortBuffer types = capture.shortColumn(Column.INTENT_TYPE);
+            IntBuffer callerUids = capture.intColumn(Column.CALLER_UID);
+            IntBuffer receiverPids = capture.intColumn(Column.RECEIVER_PID);
+            IntBuffer userIds = capture.intColumn(Column.USER_ID);
+            IntBuffer requestCodes = capture.intColumn(Column.REQUEST_CODE);
+            IntBuffer flags = capture.intColumn(Column.FLAGS);
+            IntBuffer intentFlags = capture.intColumn(Column.INTENT_FLAGS);
+            ColumnarCapture.StringColumn receivers = capture.stringColumn(Column.RECEIVER);
+            ColumnarCapture.StringColumn callers = capture.stringColumn(Column.CALLER);
+            ColumnarCapture.StringColumn permissions =
+                    capture.stringColumn(Column.REQUIRED_PERMISSION);
+            ColumnarCapture.StringColumn serviceActions =
+                    capture.stringColumn(Column.SERVICE_ACTION);
+            ColumnarCapture.StringColumn actions = capture.stringColumn(Column.ACTION);
+            ColumnarCapture.StringColumn data = capture.stringColumn(Column.DATA);
+            ColumnarCapture.StringColumn categories = capture.stringColumn(Column.CATEGORY);
+            ColumnarCapture.StringColumn mimeTypes = capture.stringColumn(Column.TYPE);
+            ColumnarCapture.BlobColumn options = capture.blobColumn(Column.OPTIONS);
+            ColumnarCapture.BlobColumn clipData = capture.blobColumn(Column.CLIP_DATA);
+            ColumnarCapture.BlobColumn extras = capture.blobColumn(Column.EXTRAS);
+            for (int row = 0; row < 90; row++) {
+                IntentHeader head = records.get(row);
+                IntentData intent = head.getIntentData();
+                assertEquals(head.getTimestamp(), timestamps.get(row));
+                assertEquals(head.getOffset(), offsets.get(row));
+                assertEquals(head.getIntentType(), types.get(row));
+                assertEquals(head.getCallerUID(), callerUids.get(row));
+                assertEquals(head.getReceiverPID(), receiverPids.get(row));
+                assertEquals(head.getUserID(), userIds.get(row));
+                assertEquals(intent.getFlags(), intentFlags.get(row));
+                assertEquals(intent.getAction(), actions.get(row));
+                assertEquals(intent.getData(), data.get(row));
+                assertEquals(intent.getCategory(), categories.get(row));
+                assertEquals(intent.getType(), mimeTypes.get(row));
+                assertArrayEquals(intent.getClipData(), clipData.get(row));
+                assertArrayEquals(intent.getExtras(), extras.get(row));
+                switch (head.getIntentType()) {
+                    case IntentHeader.TYPE_ACTIVITY:
+                        ActivityIntentHeader activity = (ActivityIntentHeader) head;
+                        assertEquals(activity.getRequestCode(), requestCodes.get(row));
+                        assertEquals(activity.getStartFlags(), flags.get(row));
+                        assertEquals(activity.getReceiverComponent(), receivers.get(row));
+                        assertEquals(activity.getCallerComponent(), callers.get(row));
+                        assertArrayEquals(activity.getOptions(), options.get(row));
+                        break;
+                    case IntentHeader.TYPE_BROADCAST:
+                        BroadcastIntentHeader broadcast = (BroadcastIntentHeader) head;
+                        assertEquals(broadcast.getFlags(), flags.get(row));
+                        assertEquals(broadcast.getReceiverComponent(), receivers.get(row));
+                        assertEquals(broadcast.getRequiredPermission(), permissions.get(row));
+                        break;
+                    default:
+                        ServiceIntentHeader service = (ServiceIntentHeader) head;
+                        assertEquals(0, requestCodes.get(row));
+                        assertEquals(service.getAction(), serviceActions.get(row));
+                        assertNull(permissions.get(row));
+                        break;
+                }
+            }
+            // Strings that repeat are stored once
+            assertEquals(7, actions.entryCount());
+            int code = actions.codeOf("android.intent.action.ACTION_3");
+            assertEquals("android.intent.action.ACTION_3", actions.value(code));
+            assertEquals(ColumnarCapture.StringColumn.ABSENT, actions.codeOf("nope"));
+            assertEquals(ColumnarCapture.StringColumn.NULL, data.code(0));
+        }
+    }
+
+    @Test
+    public void convert_dropsTornTailOfStandardFile() throws Exception {
+        List<IntentHeader> records = MappedAICSReaderTest.sampleRecords(3);
+        File standard = write("0.aics", LogFormat.STANDARD, records);
+        try (RandomAccessFile file = new RandomAccessFile(standard, "rw")) {
+            file.setLength(file.length() - 5);
+        }
+        File output = new File(mDirectory, "torn" + ColumnarFormat.EXTENSION);
+        assertEquals(2, ColumnarWriter.convert(Arrays.asList(standard), output));
+        try (ColumnarCapture capture = ColumnarCapture.open(output)) {
+            assertEquals(2, capture.size());
+            assertEquals(records.get(1).getTimestamp(),
+                    capture.intColumn(Column.TIMESTAMP).get(1));
+        }
+    }
+
+    @Test
+    public void inMemoryCapture_readsRequestedColumnsOnly() throws Exception {
+        List<IntentHeader> records = MappedAICSReaderTest.sampleRecords(20);
+        File output = new File(mDirectory, "part.aicc");
+        ColumnarWriter writer = new ColumnarWriter(output);
+        for (IntentHeader head : records) writer.append(head);
+        writer.close();
+
+        // Wreck the extras, which a scan of the UIDs never looks at
+        try (RandomAccessFile file = new RandomAccessFile(output, "rw")) {
+            file.setLength(file.length() - 100);
+        }
+        ColumnarCapture capture = new ColumnarCapture(
+                ByteBuffer.wrap(Files.readAllBytes(output.toPath())));
+        assertEquals(20, capture.size());
+        IntBuffer uids = capture.intColumn(Column.RECEIVER_UID);
+        for (int row = 0; row < 20; row++) {
+            assertEquals(records.get(row).getReceiverUID(), uids.get(row));
+        }
+        try {
+            capture.blobColumn(Column.EXTRAS);
+            fail("Read a truncated column");
+        } catch (java.io.IOException expected) {
+            // Expected
+        }
+        try {
+            capture.intColumn(Column.ACTION);
+            fail("Read a string column as ints");
+        } catch (IllegalArgumentException expected) {
+            // Expected
+        }
+    }
+}
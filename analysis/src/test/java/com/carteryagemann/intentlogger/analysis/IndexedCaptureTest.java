@@ -0,0 +1,151 @@
+package com.carteryagemann.intentlogger.analysis;
+
+import com.carteryagemann.AICS.ActivityIntentHeader;
+import com.carteryagemann.AICS.BroadcastIntentHeader;
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.AICS.ServiceIntentHeader;
+import com.carteryagemann.intentlogger.storage.CaptureIndexWriter;
+import com.carteryagemann.intentlogger.storage.LogFormat;
+import com.carteryagemann.intentlogger.storage.RotationPolicy;
+import com.carteryagemann.intentlogger.storage.SegmentedLogWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class IndexedCaptureTest {
+
+    private final static int COUNT = 500;
+
+    private File mDirectory;
+    private File mSegment;
+    private List<IntentHeader> mRecords;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = Files.createTempDirectory("indexed").toFile();
+        mRecords = MappedAICSReaderTest.sampleRecords(COUNT);
+        SegmentedLogWriter writer = new SegmentedLogWriter(mDirectory, "1", (short) 6,
+                (byte) 0, (byte) 1, LogFormat.STANDARD, new RotationPolicy(), true);
+        for (IntentHeader head : mRecords) writer.append(head);
+        writer.close();
+        mSegment = new File(mDirectory, "1-0000.aics");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        mDirectory.delete();
+    }
+
+    private static String receiver(IntentHeader head) {
+        switch (head.getIntentType()) {
+            case IntentHeader.TYPE_ACTIVITY:
+                return ((ActivityIntentHeader) head).getReceiverComponent();
+            case IntentHeader.TYPE_BROADCAST:
+                return ((BroadcastIntentHeader) head).getReceiverComponent();
+            default:
+                return ((ServiceIntentHeader) head).getReceiverComponent();
+        }
+    }
+
+    private static long millis(IntentHeader head) {
+        return head.getTimestamp() * 1000L + head.getOffset();
+    }
+
+    @Test
+    public void queries_matchFullScan() throws Exception {
+        long from = millis(mRecords.get(100));
+        long to = millis(mRecords.get(400));
+        try (IndexedCapture capture = IndexedCapture.open(mSegment)) {
+            assertEquals(COUNT, capture.getIndex().size());
+
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < COUNT; i++) {
+                IntentHeader head = mRecords.get(i);
+                if (head.getIntentType() == IntentHeader.TYPE_BROADCAST
+                        && "{com.example/.Receiver}".equals(receiver(head))
+                        && head.getCallerUID() == 10003
+                        && millis(head) >= from && millis(head) <= to) {
+                    expected.add(i);
+                }
+            }
+            List<RecordView> views = capture.query(new IndexQuery()
+                    .type(IntentHeader.TYPE_BROADCAST)
+                    .receiverPackage("com.example")
+                    .callerUid(10003)
+                    .between(from, to));
+            assertFalse(expected.isEmpty());
+            assertEquals(expected.size(), views.size());
+            for (int i = 0; i < views.size(); i++) {
+                RecordView view = views.get(i);
+                IntentHeader head = mRecords.get(expected.get(i));
+                assertEquals(expected.get(i).longValue(), view.getIndex());
+                assertEquals(head.getCallerPID(), view.getCallerPid());
+                assertEquals(head.getIntentData().getAction(), view.getAction());
+                assertTrue(view.receiverEquals("{com.example/.Receiver}"));
+            }
+        }
+    }
+
+    @Test
+    public void narrowTimeRange_drivesQuery() throws Exception {
+        long from = millis(mRecords.get(250));
+        long to = millis(mRecords.get(260));
+        try (IndexedCapture capture = IndexedCapture.open(mSegment)) {
+            CaptureIndex index = capture.getIndex();
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < COUNT; i++) {
+                IntentHeader head = mRecords.get(i);
+                if (head.getIntentType() == IntentHeader.TYPE_BROADCAST
+                        && millis(head) >= from && millis(head) <= to) {
+                    expected.add(i);
+                }
+            }
+            assertTrue(index.countBetween(from, to) < index.postings(
+                    CaptureIndexWriter.SECTION_TYPE, IntentHeader.TYPE_BROADCAST).length);
+            int[] records = new IndexQuery().type(IntentHeader.TYPE_BROADCAST)
+                    .between(from, to).run(index);
+            assertFalse(expected.isEmpty());
+            assertEquals(expected.size(), records.length);
+            for (int i = 0; i < records.length; i++) {
+                assertEquals(expected.get(i).intValue(), records[i]);
+            }
+            assertEquals(0, index.countBetween(to, from));
+        }
+    }
+
+    @Test
+    public void singleConditions_matchFullScan() throws Exception {
+        try (IndexedCapture capture = IndexedCapture.open(mSegment)) {
+            CaptureIndex index = capture.getIndex();
+            String action = "android.intent.action.ACTION_3";
+            String component = "{com.example/com.example.Main42}";
+            int actions = 0, components = 0, timed = 0;
+            long from = millis(mRecords.get(250));
+            long to = millis(mRecords.get(260));
+            for (int i = 0; i < COUNT; i++) {
+                IntentHeader head = mRecords.get(i);
+                if (action.equals(head.getIntentData().getAction())) actions++;
+                if (component.equals(receiver(head))) components++;
+                if (millis(head) >= from && millis(head) <= to) timed++;
+            }
+            assertEquals(actions, new IndexQuery().action(action).run(index).length);
+            assertArrayEquals(new int[]{42},
+                    new IndexQuery().receiverComponent(component).run(index));
+            assertEquals(1, components);
+            assertEquals(timed, new IndexQuery().between(from, to).run(index).length);
+            assertEquals(COUNT, new IndexQuery().run(index).length);
+            assertEquals(0, new IndexQuery().receiverPackage("org.other").run(index).length);
+            assertEquals(0, new IndexQuery().action("missing").type(0).run(index).length);
+        }
+    }
+}
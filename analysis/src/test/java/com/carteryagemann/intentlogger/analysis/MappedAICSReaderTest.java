@@ -0,0 +1,220 @@
+package com.carteryagemann.intentlogger.analysis;
+
+import com.carteryagemann.AICS.AICSFile;
+import com.carteryagemann.AICS.ActivityIntentHeader;
+import com.carteryagemann.AICS.BroadcastIntentHeader;
+import com.carteryagemann.AICS.IntentData;
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.AICS.ServiceIntentHeader;
+import com.carteryagemann.intentlogger.storage.AICSFormat;
+import com.carteryagemann.intentlogger.storage.PayloadDeduplicator;
+import com.carteryagemann.intentlogger.storage.PayloadEncoding;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MappedAICSReaderTest {
+
+    private File mFile;
+
+    static List<IntentHeader> sampleRecords(int count) {
+        List<IntentHeader> records = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            IntentData data = new IntentData()
+                    .setAction("android.intent.action.ACTION_" + (i % 7))
+                    .setData(i % 3 == 0 ? null : "content://contacts/" + i)
+                    .setFlags(i)
+                    .setType(i % 2 == 0 ? "text/plain" : null)
+                    .setCategory("android.intent.category.DEFAULT;")
+                    .setClipData(new byte[i % 5])
+                    .setExtras(new byte[(i * 31) % 200]);
+            IntentHeader head;
+            switch (i % 3) {
+                case 0:
+                    head = new ActivityIntentHeader()
+                            .setCallerComponent("com.example.caller")
+                            .setReceiverComponent("{com.example/com.example.Main" + i + "}")
+                            .setRequestCode(i)
+                            .setStartFlags(1)
+                            .setOptions(new byte[i % 4]);
+                    break;
+                case 1:
+                    head = new BroadcastIntentHeader()
+                            .setReceiverComponent(i % 2 == 0 ? null : "{com.example/.Receiver}")
+                            .setRequiredPermission("android.permission.INTERNET")
+                            .setRequestCode(i)
+                            .setFlags(7);
+                    break;
+                default:
+                    head = new ServiceIntentHeader()
+                            .setAction("bind")
+                            .setCallerComponent("com.example.caller")
+                            .setReceiverComponent("{com.example/.Service}")
+                            .setFlags(3);
+                    break;
+            }
+            head.setTimestamp(1455000000 + i)
+                    .setOffset((short) (i % 1000))
+                    .setCallerUID(10000 + i % 11)
+                    .setCallerPID(400 + i)
+                    .setReceiverUID(10050)
+                    .setReceiverPID(500 + i)
+                    .setUserID(i % 2)
+                    .setIntentData(data);
+            records.add(head);
+        }
+        return records;
+    }
+
+    static void write(File file, List<IntentHeader> records) throws Exception {
+        AICSFile aics = new AICSFile((short) 6, (byte) 0, (byte) 1);
+        for (IntentHeader head : records) aics.appendIntent(head);
+        ByteBuffer buffer = aics.toByteBuffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        Files.write(file.toPath(), bytes);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("mapped", ".aics");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void views_matchLibraryDecoding() throws Exception {
+        List<IntentHeader> records = sampleRecords(300);
+        write(mFile, records);
+        // Small regions force many mappings
+        try (MappedAICSReader reader = new MappedAICSReader(mFile, 1024)) {
+            assertEquals(300, reader.size());
+            assertFalse(reader.isTruncated());
+            int i = 0;
+            for (RecordView view : reader) {
+                IntentHeader head = records.get(i);
+                IntentData data = head.getIntentData();
+                assertEquals(i, view.getIndex());
+                assertEquals(head.getTimestamp(), view.getTimestamp());
+                assertEquals(head.getOffset(), view.getOffset());
+                assertEquals(head.getIntentType(), view.getIntentType());
+                assertEquals(head.getCallerUID(), view.getCallerUid());
+                assertEquals(head.getCallerPID(), view.getCallerPid());
+                assertEquals(head.getReceiverUID(), view.getReceiverUid());
+                assertEquals(head.getReceiverPID(), view.getReceiverPid());
+                assertEquals(head.getUserID(), view.getUserId());
+                assertEquals(data.getFlags(), view.getIntentFlags());
+                assertEquals(data.getAction(), view.getAction());
+                assertTrue(view.actionEquals(data.getAction()));
+                assertEquals(data.getData(), view.getData());
+                assertEquals(data.getCategory(), view.getCategory());
+                assertEquals(data.getType(), view.getType());
+                assertEquals(data.getExtras().length, view.getExtrasSize());
+                assertEquals(data.getExtras().length, view.extrasBuffer().remaining());
+                switch (head.getIntentType()) {
+                    case IntentHeader.TYPE_ACTIVITY:
+                        ActivityIntentHeader activity = (ActivityIntentHeader) head;
+                        assertEquals(activity.getReceiverComponent(),
+                                view.getReceiverComponent());
+                        assertTrue(view.receiverEquals(activity.getReceiverComponent()));
+                        assertEquals(activity.getCallerComponent(), view.getCallerComponent());
+                        assertEquals(activity.getRequestCode(), view.getRequestCode());
+                        assertEquals(activity.getStartFlags(), view.getFlags());
+                        break;
+                    case IntentHeader.TYPE_BROADCAST:
+                        BroadcastIntentHeader broadcast = (BroadcastIntentHeader) head;
+                        assertEquals(broadcast.getReceiverComponent(),
+                                view.getReceiverComponent());
+                        assertEquals(broadcast.getRequiredPermission(),
+                                view.getRequiredPermission());
+                        assertEquals(broadcast.getRequestCode(), view.getRequestCode());
+                        assertEquals(broadcast.getFlags(), view.getFlags());
+                        break;
+                    default:
+                        ServiceIntentHeader service = (ServiceIntentHeader) head;
+                        assertEquals(service.getAction(), view.getServiceAction());
+                        assertEquals(service.getFlags(), view.getFlags());
+                        assertNull(view.getRequiredPermission());
+                        break;
+                }
+                assertEquals(AICSFormat.recordSize(head), view.getSize());
+                assertEquals(head.getTimestamp(), view.toIntentHeader().getTimestamp());
+                i++;
+            }
+            assertEquals(300, i);
+            assertEquals(records.get(123).getCallerPID(), reader.get(123).getCallerPid());
+        }
+    }
+
+    @Test
+    public void parallelStream_seesEveryRecordOnce() throws Exception {
+        write(mFile, sampleRecords(1000));
+        try (MappedAICSReader reader = new MappedAICSReader(mFile, 4096)) {
+            long sum = reader.stream(true).mapToLong(RecordView::getIndex).sum();
+            assertEquals(999L * 1000 / 2, sum);
+            assertEquals(1000, reader.stream(true)
+                    .filter(view -> view.getCallerPid() >= 400).count());
+        }
+    }
+
+    @Test
+    public void resolveExtras_followsReferences() throws Exception {
+        List<IntentHeader> records = sampleRecords(3);
+        byte[] extras = new byte[200];
+        extras[7] = 42;
+        PayloadDeduplicator deduplicator = new PayloadDeduplicator();
+        for (int i = 0; i < records.size(); i++) {
+            IntentHeader head = records.get(i);
+            head.setIntentData(head.getIntentData().setExtras(extras.clone()));
+            deduplicator.apply(head, i);
+            deduplicator.commit();
+        }
+        write(mFile, records);
+        try (MappedAICSReader reader = MappedAICSReader.open(mFile)) {
+            assertEquals(PayloadEncoding.KIND_REFERENCE,
+                    PayloadEncoding.kind(reader.get(2).getExtras()));
+            assertArrayEquals(extras, reader.resolveExtras(2));
+            assertArrayEquals(extras, reader.resolveExtras(0));
+            assertArrayEquals(reader.get(1).getClipData(), reader.resolveClipData(1));
+        }
+    }
+
+    @Test
+    public void truncatedFile_readsCompleteRecords() throws Exception {
+        write(mFile, sampleRecords(10));
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.setLength(file.length() - 5);
+        }
+        try (MappedAICSReader reader = MappedAICSReader.open(mFile)) {
+            assertTrue(reader.isTruncated());
+            assertEquals(9, reader.size());
+        }
+    }
+
+    @Test
+    public void recordLargerThanRegion_getsItsOwnMapping() throws Exception {
+        List<IntentHeader> records = sampleRecords(3);
+        IntentHeader large = records.get(1);
+        // Headers cache the data size, so the data has to be set again
+        large.setIntentData(large.getIntentData().setExtras(new byte[10000]));
+        write(mFile, records);
+        try (MappedAICSReader reader = new MappedAICSReader(mFile, 512)) {
+            assertEquals(3, reader.size());
+            assertEquals(10000, reader.get(1).getExtras().length);
+            assertEquals(records.get(2).getTimestamp(), reader.get(2).getTimestamp());
+        }
+    }
+}
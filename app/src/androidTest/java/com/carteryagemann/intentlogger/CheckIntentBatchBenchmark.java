@@ -0,0 +1,111 @@
+package com.carteryagemann.intentlogger;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Messenger;
+import android.test.ServiceTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Intents answered per second by the service with one CHECK_INTENT per intent and with
+ * CHECK_INTENT_BATCH at several batch sizes. Logging stays off, so this measures what the
+ * protocol costs: message dispatch and replies. Results are logged under the service's tag.
+ */
+public class CheckIntentBatchBenchmark extends ServiceTestCase<LoggingService> {
+
+    private final static int INTENTS = 20000;
+    private final static int[] BATCH_SIZES = {1, 8, 32, 128};
+
+    private final Semaphore mAnswered = new Semaphore(0);
+    private HandlerThread mReplyThread;
+    private Messenger mReplies;
+    private Messenger mService;
+    private volatile int mCapabilities = 0;
+
+    public CheckIntentBatchBenchmark() {
+        super(LoggingService.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mReplyThread = new HandlerThread("replies");
+        mReplyThread.start();
+        mReplies = new Messenger(new Handler(mReplyThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case LoggingService.CHECK_INTENT:
+                        mAnswered.release();
+                        break;
+                    case LoggingService.CHECK_INTENT_BATCH:
+                        mAnswered.release(msg.arg1);
+                        break;
+                    case LoggingService.GET_CAPABILITIES:
+                        mCapabilities = msg.arg1;
+                        mAnswered.release();
+                        break;
+                }
+            }
+        });
+        mService = new Messenger(bindService(new Intent(getContext(), LoggingService.class)));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mReplyThread.quit();
+        super.tearDown();
+    }
+
+    private static Bundle intentData(int i) {
+        Bundle data = new Bundle();
+        data.putParcelable("intent", new Intent("com.carteryagemann.intentlogger.BENCHMARK_" + i));
+        data.putInt("intentType", 1);
+        data.putInt("callerUid", 10000);
+        return data;
+    }
+
+    private void send(int what, Bundle data, int arg2) throws Exception {
+        Message msg = Message.obtain(null, what);
+        msg.arg2 = arg2;
+        msg.replyTo = mReplies;
+        msg.setData(data);
+        mService.send(msg);
+    }
+
+    public void testCapabilities() throws Exception {
+        send(LoggingService.GET_CAPABILITIES, null, 0);
+        assertTrue(mAnswered.tryAcquire(5, TimeUnit.SECONDS));
+        assertTrue((mCapabilities & LoggingService.CAPABILITY_BATCH) != 0);
+    }
+
+    public void testThroughputByBatchSize() throws Exception {
+        for (int batchSize : BATCH_SIZES) {
+            long start = System.nanoTime();
+            for (int sent = 0; sent < INTENTS; sent += batchSize) {
+                if (batchSize == 1) {
+                    send(LoggingService.CHECK_INTENT, intentData(sent), 0);
+                    continue;
+                }
+                ArrayList<Bundle> intents = new ArrayList<>(batchSize);
+                for (int i = sent; i < sent + batchSize && i < INTENTS; i++) {
+                    intents.add(intentData(i));
+                }
+                Bundle batch = new Bundle();
+                batch.putParcelableArrayList(LoggingService.BATCH_INTENTS, intents);
+                send(LoggingService.CHECK_INTENT_BATCH, batch, sent / batchSize);
+            }
+            assertTrue(mAnswered.tryAcquire(INTENTS, 60, TimeUnit.SECONDS));
+            long nanos = System.nanoTime() - start;
+            Log.i(LoggingService.TAG, "Batch size " + batchSize + ": "
+                    + (INTENTS * 1000000000L / nanos) + " intents/s");
+        }
+    }
+}
@@ -32,11 +32,12 @@ import android.view.View;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.util.Locale;
+
 public class ControlPanel extends AppCompatActivity {
 
-    private static final int SERVICE_POLLING_RATE = 2000;
+    private static final int STATS_INTERVAL = 1000;
 
-    Handler mInternalHandler;
     Messenger mMessenger = new Messenger(new StatusHandler());
     Messenger mLoggerService;
     LoggerConnection mLoggerConnection;
@@ -50,19 +51,18 @@ public class ControlPanel extends AppCompatActivity {
         bindService(new Intent(this, LoggingService.class),
                 mLoggerConnection,
                 Service.BIND_AUTO_CREATE);
-        mInternalHandler = new InternalHandler();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        if (mInternalHandler != null) mInternalHandler.removeMessages(LoggingService.GET_COUNT);
+        sendStatsRequest(LoggingService.UNSUBSCRIBE_STATS);
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        if (mInternalHandler != null) mInternalHandler.sendEmptyMessage(LoggingService.GET_COUNT);
+        sendStatsRequest(LoggingService.SUBSCRIBE_STATS);
     }
 
     @Override
@@ -71,6 +71,19 @@ public class ControlPanel extends AppCompatActivity {
         unbindService(mLoggerConnection);
     }
 
+    /** Starts or stops the stats updates the logging service pushes to this activity. */
+    private void sendStatsRequest(int what) {
+        if (mLoggerService == null) return;
+        try {
+            Message request = Message.obtain(null, what);
+            request.arg1 = STATS_INTERVAL;
+            request.replyTo = mMessenger;
+            mLoggerService.send(request);
+        } catch (RemoteException e) {
+            Log.w(LoggingService.TAG, "Failed to send message to logging service.");
+        }
+    }
+
     public void startLogging(View view) {
         if (mLoggerService == null) return;
         try {
@@ -95,8 +108,8 @@ public class ControlPanel extends AppCompatActivity {
         if (mLoggerService == null) return;
         try {
             Message request = Message.obtain(null, LoggingService.SAVE_LOG);
+            request.replyTo = mMessenger;
             mLoggerService.send(request);
-            Toast.makeText(this, "Log saved.", Toast.LENGTH_SHORT).show();
         } catch (RemoteException e) {
             Log.w(LoggingService.TAG, "Failed to send message to logging service.");
         }
@@ -106,40 +119,42 @@ public class ControlPanel extends AppCompatActivity {
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
-                case LoggingService.GET_COUNT:
+                case LoggingService.STATS:
                     TextView count = (TextView) findViewById(R.id.text_count);
                     if (count != null) count.setText(Integer.toString(msg.arg1));
                     break;
+                case LoggingService.SAVE_LOG:
+                    showSaveResult(msg);
+                    break;
             }
         }
     }
 
-    private class InternalHandler extends Handler {
-        @Override
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case LoggingService.GET_COUNT:
-                    if (mLoggerService == null) break;
-                    try {
-                        Message request = Message.obtain(null, LoggingService.GET_COUNT);
-                        request.replyTo = mMessenger;
-                        mLoggerService.send(request);
-                        mInternalHandler.sendEmptyMessageDelayed(LoggingService.GET_COUNT,
-                                SERVICE_POLLING_RATE);
-                    } catch (RemoteException e) {
-                        Log.w(LoggingService.TAG, "Failed to send message to logging service.");
-                    }
-                    break;
-            }
+    /** Tells the user how the save they asked for went. */
+    private void showSaveResult(Message msg) {
+        Bundle data = msg.getData();
+        String text;
+        switch (msg.arg1) {
+            case LoggingService.SAVE_OK:
+                text = String.format(Locale.US, "Log saved, %d KiB in %d ms.",
+                        data.getLong(LoggingService.SAVE_BYTES) / 1024,
+                        data.getLong(LoggingService.SAVE_MILLIS));
+                break;
+            case LoggingService.SAVE_NOT_LOGGING:
+                text = "Nothing to save, logging is off.";
+                break;
+            default:
+                text = "Failed to save log: " + data.getString(LoggingService.SAVE_ERROR);
+                break;
         }
+        Toast.makeText(this, text, Toast.LENGTH_SHORT).show();
     }
 
     private class LoggerConnection implements ServiceConnection {
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
             mLoggerService = new Messenger(iBinder);
-            // Periodically get stats from logging service
-            mInternalHandler.sendEmptyMessageDelayed(LoggingService.GET_COUNT, SERVICE_POLLING_RATE);
+            sendStatsRequest(LoggingService.SUBSCRIBE_STATS);
         }
 
         @Override
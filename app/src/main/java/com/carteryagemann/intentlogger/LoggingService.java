@@ -17,8 +17,8 @@
 package com.carteryagemann.intentlogger;
 
 import android.app.Service;
+import android.content.ComponentName;
 import android.content.Intent;
-import android.content.pm.PackageManager;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.Environment;
@@ -27,334 +27,574 @@ import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.Parcel;
+import android.os.Parcelable;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.carteryagemann.AICS.AICSFile;
-import com.carteryagemann.AICS.ActivityIntentHeader;
-import com.carteryagemann.AICS.BroadcastIntentHeader;
-import com.carteryagemann.AICS.IntentData;
-import com.carteryagemann.AICS.ServiceIntentHeader;
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.intentlogger.capture.CaptureClock;
+import com.carteryagemann.intentlogger.capture.CaptureFilter;
+import com.carteryagemann.intentlogger.capture.CaptureQueue;
+import com.carteryagemann.intentlogger.capture.CaptureRecordBuilder;
+import com.carteryagemann.intentlogger.capture.IntentFields;
+import com.carteryagemann.intentlogger.capture.LatencyHistogram;
+import com.carteryagemann.intentlogger.capture.OverflowPolicy;
+import com.carteryagemann.intentlogger.capture.PayloadPolicy;
+import com.carteryagemann.intentlogger.capture.StripedCaptureBuffer;
+import com.carteryagemann.intentlogger.capture.StripedCounter;
+import com.carteryagemann.intentlogger.storage.FileSync;
+import com.carteryagemann.intentlogger.storage.JournalPolicy;
+import com.carteryagemann.intentlogger.storage.LogFormat;
+import com.carteryagemann.intentlogger.storage.PayloadDeduplicator;
+import com.carteryagemann.intentlogger.storage.RotationPolicy;
+import com.carteryagemann.intentlogger.storage.SegmentJournal;
+import com.carteryagemann.intentlogger.storage.SegmentedLogWriter;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.nio.ByteBuffer;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 public class LoggingService extends Service {
 
     public final static String TAG = "IntentLogger";
 
-    private final Messenger mMessenger = new Messenger(new ServiceHandler());
+    private final ServiceHandler mHandler = new ServiceHandler();
+    private final Messenger mMessenger = new Messenger(mHandler);
 
-    private final static int CHECK_INTENT = 1;
+    public final static int CHECK_INTENT  = 1;
     public final static int START_LOGGING = 2;
     public final static int STOP_LOGGING  = 3;
     public final static int GET_COUNT     = 4;
     public final static int SAVE_LOG      = 5;
 
+    /**
+     * A SAVE_LOG message returns at once and capture goes on while the log is synced. If it has
+     * a replyTo, that gets a SAVE_LOG reply once the save is done, with one of these results in
+     * arg1 and the request's arg2. Its data bundle has the bytes in the session's segments under
+     * {@link #SAVE_BYTES}, the time the save took under {@link #SAVE_MILLIS} and, if it failed,
+     * the reason under {@link #SAVE_ERROR}.
+     */
+    public final static int SAVE_OK          = 0;
+    public final static int SAVE_FAILED      = 1;
+    public final static int SAVE_NOT_LOGGING = 2;
+    public final static String SAVE_BYTES  = "bytes";
+    public final static String SAVE_MILLIS = "millis";
+    public final static String SAVE_ERROR  = "error";
+
+    /**
+     * Pushes {@link #STATS} messages to replyTo every arg1 milliseconds until it unsubscribes.
+     * Subscribing again changes the interval.
+     */
+    public final static int SUBSCRIBE_STATS   = 6;
+    public final static int UNSUBSCRIBE_STATS = 7;
+    public final static int STATS             = 8;
+    private final static int PUBLISH_STATS    = 9;
+
+    /**
+     * Several CHECK_INTENT data bundles in the {@link #BATCH_INTENTS} list of one message. They
+     * are all answered by a single reply with the number of intents in arg1 and the request's
+     * arg2, so callers can match replies to batches. A batch larger than {@link #MAX_BATCH_SIZE}
+     * is still answered at once, but captured in parts of that size with other messages handled
+     * in between.
+     */
+    public final static int CHECK_INTENT_BATCH = 10;
+    /**
+     * Replies with the {@code CAPABILITY_*} bits the service supports in arg1 and the largest
+     * batch it wants in arg2. Services that predate batching don't answer, callers should then
+     * keep sending CHECK_INTENT.
+     */
+    public final static int GET_CAPABILITIES   = 11;
+
+    public final static int CAPABILITY_BATCH = 1;
+    public final static int MAX_BATCH_SIZE = 256;
+    public final static String BATCH_INTENTS = "intents";
+
+    private final static long DEFAULT_STATS_INTERVAL_MILLIS = 1000;
+    private final static long MIN_STATS_INTERVAL_MILLIS = 100;
+
     private final static int TYPE_ACTIVITY  = 0;
     private final static int TYPE_BROADCAST = 1;
     private final static int TYPE_SERVICE   = 2;
+    private final static String[] TYPE_NAMES = {"activity", "broadcast", "service"};
+
+    /** Keys accepted in the data bundle of a START_LOGGING message. */
+    public final static String CONFIG_QUEUE_CAPACITY   = "queueCapacity";
+    public final static String CONFIG_OVERFLOW_POLICY  = "overflowPolicy";
+    public final static String CONFIG_MAX_BLOCK_MILLIS = "maxBlockMillis";
+    public final static String CONFIG_ROTATE_BYTES     = "rotateBytes";
+    public final static String CONFIG_ROTATE_RECORDS   = "rotateRecords";
+    public final static String CONFIG_ROTATE_MILLIS    = "rotateMillis";
+    public final static String CONFIG_MAX_SEGMENTS     = "maxSegments";
+    public final static String CONFIG_MAX_TOTAL_BYTES  = "maxTotalBytes";
+    public final static String CONFIG_FORMAT           = "format";
+    public final static String CONFIG_INDEX            = "index";
+    public final static String CONFIG_FILTERS          = "filters";
+    public final static String CONFIG_JOURNAL          = "journal";
+    public final static String CONFIG_JOURNAL_BATCH    = "journalBatch";
+    public final static String CONFIG_JOURNAL_MILLIS   = "journalMillis";
+    public final static String CONFIG_CAPTURE_THREADS  = "captureThreads";
+    public final static String CONFIG_PAYLOAD          = "payload";
+    public final static String CONFIG_DEDUP_PAYLOADS   = "dedupPayloads";
+
+    private final static int DEFAULT_QUEUE_CAPACITY = 1024;
+    private final static OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.DROP_OLDEST;
+    private final static int DEFAULT_MAX_BLOCK_MILLIS = 5;
+    private final static long DEFAULT_ROTATE_BYTES = 32 * 1024 * 1024;
+    private final static long DEFAULT_ROTATE_MILLIS = 60 * 60 * 1000;
+    private final static LogFormat DEFAULT_FORMAT = LogFormat.STANDARD;
+    private final static int DEFAULT_JOURNAL_BATCH = 64;
+    private final static long DEFAULT_JOURNAL_MILLIS = 20;
+    private final static int MAX_CAPTURE_THREADS = 8;
+
+    private final static int UID_CACHE_SIZE = 512;
 
     private int UID;
-    private static PackageManager PM;
+    private static UidCache UID_CACHE;
 
-    private static boolean LOGGING = false;
-    private static AICSFile LOG = null;
-    private static int LOG_COUNT = 0;
+    private static volatile boolean LOGGING = false;
+
+    // Carries the session's stats, so a new session swaps them all at once
+    private static volatile CaptureWorker WORKER = null;
+    private static volatile CaptureFilter FILTER = null;
+    private static volatile PayloadPolicy PAYLOAD = null;
 
     @Override
     public void onCreate() {
         super.onCreate();
         UID = getApplicationInfo().uid;
-        PM = getPackageManager();
+        UID_CACHE = new UidCache(getPackageManager(), UID_CACHE_SIZE);
+        UID_CACHE.register(this);
+        mHandler.recoverSessions();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        LOGGING = false;
+        if (WORKER != null) WORKER.finish();
+        UID_CACHE.unregister(this);
     }
 
     /**
      * The main handler for the logging service. IEM will deliver messages to here.
      */
     private final static class ServiceHandler extends Handler {
+
+        private final IntentFields mFilterFields = new IntentFields();
+        private final List<StatsSubscriber> mSubscribers = new ArrayList<>();
+
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case CHECK_INTENT:
                     logIntent(msg);
                     break;
+                case CHECK_INTENT_BATCH:
+                    logIntentBatch(msg);
+                    break;
+                case GET_CAPABILITIES:
+                    sendCapabilities(msg);
+                    break;
                 case START_LOGGING:
-                    enableLogging();
+                    enableLogging(msg.getData());
                     break;
                 case STOP_LOGGING:
                     Log.v(TAG, "Disabling logging.");
                     LOGGING = false;
+                    if (WORKER != null) WORKER.finish();
                     break;
                 case GET_COUNT:
                     sendCount(msg);
                     break;
                 case SAVE_LOG:
-                    saveLog();
+                    saveLog(msg);
+                    break;
+                case SUBSCRIBE_STATS:
+                    subscribe(msg);
+                    break;
+                case UNSUBSCRIBE_STATS:
+                    unsubscribe(msg.replyTo);
+                    break;
+                case PUBLISH_STATS:
+                    publishStats();
                     break;
             }
         }
 
-        private void enableLogging() {
+        private void enableLogging(Bundle config) {
             Log.v(TAG, "Enabling logging.");
+            LOGGING = false;
+            if (WORKER != null) WORKER.finish();
+            CaptureFilter filter;
+            PayloadPolicy payload;
+            try {
+                filter = compileFilter(config);
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Invalid capture filter! " + e.getMessage());
+                return;
+            }
+            try {
+                payload = compilePayloadPolicy(config);
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Invalid payload policy! " + e.getMessage());
+                return;
+            }
+            SegmentedLogWriter log;
+            try {
+                log = createLog(config, null);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to create log! " + e.toString());
+                return;
+            }
+            startSession(config, log, filter, payload);
+        }
+
+        /**
+         * Finishes the sessions whose journal outlived the process that wrote them. The newest
+         * one keeps logging with its original configuration. Reading and resuming a journal can
+         * take a while, so it is done by a thread of its own and only the new session is started
+         * on the handler.
+         */
+        void recoverSessions() {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    recoverJournals();
+                }
+            }, "IntentLogger-recovery").start();
+        }
+
+        private void recoverJournals() {
+            File[] journals = logDirectory().listFiles();
+            if (journals == null) return;
+            Arrays.sort(journals);
+            File newest = null;
+            for (File journal : journals) {
+                if (journal.getName().endsWith(SegmentJournal.EXTENSION)) newest = journal;
+            }
+            for (File journal : journals) {
+                if (!journal.getName().endsWith(SegmentJournal.EXTENSION)) continue;
+                try {
+                    SegmentJournal.Recovery recovery = SegmentJournal.recover(journal);
+                    final Bundle config = unmarshallConfig(recovery.meta);
+                    final CaptureFilter filter = compileFilter(config);
+                    final PayloadPolicy payload = compilePayloadPolicy(config);
+                    final SegmentedLogWriter log = createLog(config, recovery);
+                    Log.i(TAG, "Recovered " + recovery.records.size() + " intents of session "
+                            + recovery.session + ", discarded " + recovery.discardedBytes
+                            + " bytes.");
+                    if (journal != newest) {
+                        log.close();
+                        continue;
+                    }
+                    boolean posted = post(new Runnable() {
+                        @Override
+                        public void run() {
+                            resumeSession(config, log, filter, payload);
+                        }
+                    });
+                    if (!posted) log.close();
+                } catch (IOException | ParseException | RuntimeException e) {
+                    Log.e(TAG, "Failed to recover " + journal + "! " + e.toString());
+                }
+            }
+        }
+
+        private void resumeSession(Bundle config, SegmentedLogWriter log, CaptureFilter filter,
+                                   PayloadPolicy payload) {
+            // A session started while the journal was recovered takes precedence
+            if (LOGGING) {
+                closeRecovered(log);
+                return;
+            }
+            if (WORKER != null) WORKER.finish();
+            try {
+                startSession(config, log, filter, payload);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to resume session! " + e.toString());
+                closeRecovered(log);
+            }
+        }
+
+        private void closeRecovered(SegmentedLogWriter log) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close recovered log! " + e.toString());
+            }
+        }
+
+        private CaptureFilter compileFilter(Bundle config) {
+            if (config == null || config.getStringArray(CONFIG_FILTERS) == null) return null;
+            return CaptureFilter.compile(config.getStringArray(CONFIG_FILTERS));
+        }
+
+        private PayloadPolicy compilePayloadPolicy(Bundle config) {
+            if (config == null || config.getStringArray(CONFIG_PAYLOAD) == null) return null;
+            return PayloadPolicy.compile(config.getStringArray(CONFIG_PAYLOAD));
+        }
+
+        private void startSession(Bundle config, SegmentedLogWriter log, CaptureFilter filter,
+                                  PayloadPolicy payload) {
+            int capacity = DEFAULT_QUEUE_CAPACITY;
+            OverflowPolicy policy = DEFAULT_OVERFLOW_POLICY;
+            int maxBlockMillis = DEFAULT_MAX_BLOCK_MILLIS;
+            // Leave a core for the handler and the writer
+            int captureThreads = Math.max(1, Math.min(MAX_CAPTURE_THREADS,
+                    Runtime.getRuntime().availableProcessors() - 2));
+            if (config != null) {
+                captureThreads = Math.max(1, Math.min(MAX_CAPTURE_THREADS,
+                        config.getInt(CONFIG_CAPTURE_THREADS, captureThreads)));
+                capacity = config.getInt(CONFIG_QUEUE_CAPACITY, capacity);
+                policy = OverflowPolicy.parse(config.getString(CONFIG_OVERFLOW_POLICY), policy);
+                maxBlockMillis = config.getInt(CONFIG_MAX_BLOCK_MILLIS, maxBlockMillis);
+            }
+            FILTER = filter;
+            PAYLOAD = payload;
+            WORKER = new CaptureWorker(Math.max(1, capacity), policy, maxBlockMillis, log,
+                    captureThreads);
+            WORKER.start();
             LOGGING = true;
-            LOG_COUNT = 0;
+        }
+
+        /**
+         * Starts a new session of AICS segments in external storage. Records are streamed to the
+         * current segment as they are logged.
+         *
+         * @param recovery If not null, the session is resumed from this journal instead.
+         */
+        private SegmentedLogWriter createLog(Bundle config, SegmentJournal.Recovery recovery)
+                throws IOException {
+            short major = 0;
+            byte minor = 0;
+            byte patch = 0;
             try {
                 String[] version = android.os.Build.VERSION.RELEASE.split(".");
                 switch (version.length) {
                     case 1:
-                        LOG = new AICSFile(Short.parseShort(version[0]), (byte) 0, (byte) 0);
+                        major = Short.parseShort(version[0]);
                         break;
                     case 2:
-                        LOG = new AICSFile(Short.parseShort(version[0]),
-                                Byte.parseByte(version[1]), (byte) 1);
+                        major = Short.parseShort(version[0]);
+                        minor = Byte.parseByte(version[1]);
+                        patch = (byte) 1;
                         break;
                     case 3:
-                        LOG = new AICSFile(Short.parseShort(version[0]),
-                                Byte.parseByte(version[1]),
-                                Byte.parseByte(version[2]));
-                        break;
-                    default:
-                        LOG = new AICSFile((short) 0, (byte) 0, (byte) 0);
+                        major = Short.parseShort(version[0]);
+                        minor = Byte.parseByte(version[1]);
+                        patch = Byte.parseByte(version[2]);
                         break;
                 }
             } catch (Exception e) {
                 Log.w(TAG, "Failed to get OS version.");
-                LOG = new AICSFile((short) 0, (byte) 0, (byte) 0);
+                major = 0;
+                minor = 0;
+                patch = 0;
+            }
+            RotationPolicy policy = new RotationPolicy()
+                    .setMaxBytes(DEFAULT_ROTATE_BYTES)
+                    .setMaxAgeMillis(DEFAULT_ROTATE_MILLIS);
+            LogFormat format = DEFAULT_FORMAT;
+            boolean indexed = true;
+            boolean journaled = false;
+            boolean deduplicated = false;
+            JournalPolicy journalPolicy = new JournalPolicy()
+                    .setMaxBatchRecords(DEFAULT_JOURNAL_BATCH)
+                    .setMaxDelayMillis(DEFAULT_JOURNAL_MILLIS);
+            if (config != null) {
+                format = LogFormat.parse(config.getString(CONFIG_FORMAT), format);
+                indexed = config.getBoolean(CONFIG_INDEX, indexed);
+                journaled = config.getBoolean(CONFIG_JOURNAL, journaled);
+                deduplicated = config.getBoolean(CONFIG_DEDUP_PAYLOADS, deduplicated);
+                journalPolicy.setMaxBatchRecords(config.getInt(CONFIG_JOURNAL_BATCH,
+                        journalPolicy.getMaxBatchRecords()))
+                        .setMaxDelayMillis(config.getInt(CONFIG_JOURNAL_MILLIS,
+                                (int) journalPolicy.getMaxDelayMillis()));
+                policy.setMaxBytes(config.getLong(CONFIG_ROTATE_BYTES, policy.getMaxBytes()))
+                        .setMaxRecords(config.getInt(CONFIG_ROTATE_RECORDS, 0))
+                        .setMaxAgeMillis(config.getLong(CONFIG_ROTATE_MILLIS,
+                                policy.getMaxAgeMillis()))
+                        .setMaxSegments(config.getInt(CONFIG_MAX_SEGMENTS, 0))
+                        .setMaxTotalBytes(config.getLong(CONFIG_MAX_TOTAL_BYTES, 0));
+            }
+            File newFolder = logDirectory();
+            if (!newFolder.exists()) newFolder.mkdir();
+            SegmentedLogWriter log;
+            if (recovery != null) {
+                log = SegmentedLogWriter.resume(newFolder, recovery, major, minor, patch, format,
+                        policy, indexed, journalPolicy);
+            } else {
+                log = new SegmentedLogWriter(newFolder, Long.toString(System.currentTimeMillis()),
+                        major, minor, patch, format, policy, indexed);
+                if (journaled) {
+                    try {
+                        log.enableJournal(journalPolicy, marshallConfig(config));
+                    } catch (IOException e) {
+                        log.close();
+                        throw e;
+                    }
+                }
+            }
+            if (deduplicated) log.setDeduplicator(new PayloadDeduplicator());
+            return log;
+        }
+
+        private File logDirectory() {
+            return new File(Environment.getExternalStorageDirectory(), "AICS");
+        }
+
+        /** Flattens the session's configuration into its journal, to resume it after a crash. */
+        private byte[] marshallConfig(Bundle config) {
+            Parcel parcel = Parcel.obtain();
+            try {
+                parcel.writeBundle(config);
+                return parcel.marshall();
+            } finally {
+                parcel.recycle();
+            }
+        }
+
+        private Bundle unmarshallConfig(byte[] bytes) {
+            Parcel parcel = Parcel.obtain();
+            try {
+                parcel.unmarshall(bytes, 0, bytes.length);
+                parcel.setDataPosition(0);
+                return parcel.readBundle(LoggingService.class.getClassLoader());
+            } finally {
+                parcel.recycle();
             }
         }
 
         private void logIntent(Message msg) {
+            long start = System.nanoTime();
+            long elapsed = SystemClock.elapsedRealtimeNanos();
 
-            // Log intent
-            Bundle data = msg.getData();
-            if (data != null && LOGGING && LOG != null) {
-                Intent intent = data.getParcelable("intent");
-                if (intent == null) {
-                    Log.w(TAG, "Failed to log data, no intent!");
-                    return;
-                }
-                switch (data.getInt("intentType", -1)) {
-                    case TYPE_ACTIVITY:
-                        try {
-                            String receiver = null;
-                            int receiverUid = 0;
-                            if (intent.getComponent() != null) {
-                                receiver = intent.getComponent().toShortString();
-                                if (PM != null) {
-                                    receiverUid = PM.getApplicationInfo(intent.getComponent()
-                                            .getPackageName(), 0).uid;
-                                }
-                            }
-                            byte[] clipData = {};
-                            if (intent.getClipData() != null) {
-                                try {
-                                    Parcel clipDataParcel = Parcel.obtain();
-                                    intent.getClipData().writeToParcel(clipDataParcel, 0);
-                                    clipData = clipDataParcel.marshall();
-                                } catch (Exception e) {
-                                    Log.w(TAG, "Skipping activity clip data.");
-                                }
-                            }
-                            byte[] extras = {};
-                            if (intent.getExtras() != null) {
-                                try {
-                                    Parcel extrasParcel = Parcel.obtain();
-                                    intent.getExtras().writeToParcel(extrasParcel, 0);
-                                    extras = extrasParcel.marshall();
-                                } catch (Exception e) {
-                                    Log.w(TAG, "Skipping activity extras.");
-                                }
-                            }
-                            String categories = "";
-                            if (intent.getCategories() != null) {
-                                Iterator<String> iterator = intent.getCategories().iterator();
-                                while (iterator.hasNext())
-                                    categories += iterator.next() + ";";
-                            }
-                            ActivityIntentHeader head = (ActivityIntentHeader)
-                                    new ActivityIntentHeader()
-                                    .setCallerComponent(data.getString("callingPackage"))
-                                    .setReceiverComponent(receiver)
-                                    .setRequestCode(data.getInt("requestCode"))
-                                    .setStartFlags(data.getInt("startFlags"))
-                                    .setUserID(data.getInt("userId"))
-                                    .setTimestamp((int) System.currentTimeMillis() / 1000)
-                                    .setOffset((short) (System.currentTimeMillis() % 1000))
-                                    .setCallerUID(data.getInt("callerUid", 0))
-                                    .setCallerPID(data.getInt("callerPid", 0))
-                                    .setReceiverUID(receiverUid);
-                            IntentData intentData = new IntentData()
-                                    .setAction(intent.getAction())
-                                    .setData(intent.getDataString())
-                                    .setFlags(intent.getFlags())
-                                    .setType(intent.getType())
-                                    .setCategory(categories)
-                                    .setClipData(clipData)
-                                    .setExtras(extras);
-                            head.setIntentData(intentData);
-                            LOG.appendIntent(head);
-                            LOG_COUNT++;
-                        } catch (Exception e) {
-                            Log.w(TAG, "Failed to log activity intent: " + e.toString());
-                        }
-                        break;
-                    case TYPE_BROADCAST:
-                        try {
-                            String receiver = null;
-                            int receiverUid = 0;
-                            if (intent.getComponent() != null) {
-                                receiver = intent.getComponent().toShortString();
-                                if (PM != null) {
-                                    receiverUid = PM.getApplicationInfo(intent.getComponent()
-                                            .getPackageName(), 0).uid;
-                                }
-                            }
-                            byte[] clipData = {};
-                            if (intent.getClipData() != null) {
-                                try {
-                                    Parcel clipDataParcel = Parcel.obtain();
-                                    intent.getClipData().writeToParcel(clipDataParcel, 0);
-                                    clipData = clipDataParcel.marshall();
-                                } catch (Exception e) {
-                                    Log.w(TAG, "Skipping broadcast clip data.");
-                                }
-                            }
-                            byte[] extras = {};
-                            if (intent.getExtras() != null) {
-                                try {
-                                    Parcel extrasParcel = Parcel.obtain();
-                                    intent.getExtras().writeToParcel(extrasParcel, 0);
-                                    extras = extrasParcel.marshall();
-                                } catch (Exception e) {
-                                    Log.w(TAG, "Skipping broadcast extras.");
-                                }
-                            }
-                            String categories = "";
-                            if (intent.getCategories() != null) {
-                                Iterator<String> iterator = intent.getCategories().iterator();
-                                while (iterator.hasNext())
-                                    categories += iterator.next() + ";";
-                            }
-                            BroadcastIntentHeader head = (BroadcastIntentHeader)
-                                    new BroadcastIntentHeader()
-                                            .setReceiverComponent(receiver)
-                                            .setRequestCode(data.getInt("requestCode"))
-                                            .setRequiredPermission(data.getString("requiredPermission"))
-                                            .setUserID(data.getInt("userId"))
-                                            .setTimestamp((int) System.currentTimeMillis() / 1000)
-                                            .setOffset((short) (System.currentTimeMillis() % 1000))
-                                            .setReceiverUID(receiverUid);
-                            IntentData intentData = new IntentData()
-                                    .setAction(intent.getAction())
-                                    .setData(intent.getDataString())
-                                    .setFlags(intent.getFlags())
-                                    .setType(intent.getType())
-                                    .setCategory(categories)
-                                    .setClipData(clipData)
-                                    .setExtras(extras);
-                            head.setIntentData(intentData);
-                            LOG.appendIntent(head);
-                            LOG_COUNT++;
-                        } catch (Exception e) {
-                            Log.w(TAG, "Failed to log broadcast intent: " + e.toString());
-                        }
-                        break;
-                    case TYPE_SERVICE:
-                        try {
-                            String receiver = null;
-                            int receiverUid = 0;
-                            if (intent.getComponent() != null) {
-                                receiver = intent.getComponent().toShortString();
-                                if (PM != null) {
-                                    receiverUid = PM.getApplicationInfo(intent.getComponent()
-                                            .getPackageName(), 0).uid;
-                                }
-                            }
-                            byte[] clipData = {};
-                            if (intent.getClipData() != null) {
-                                try {
-                                    Parcel clipDataParcel = Parcel.obtain();
-                                    intent.getClipData().writeToParcel(clipDataParcel, 0);
-                                    clipData = clipDataParcel.marshall();
-                                } catch (Exception e) {
-                                    Log.w(TAG, "Skipping service clip data.");
-                                }
-                            }
-                            byte[] extras = {};
-                            if (intent.getExtras() != null) {
-                                try {
-                                    Parcel extrasParcel = Parcel.obtain();
-                                    intent.getExtras().writeToParcel(extrasParcel, 0);
-                                    extras = extrasParcel.marshall();
-                                } catch (Exception e) {
-                                    Log.w(TAG, "Skipping service extras.");
-                                }
-                            }
-                            String categories = "";
-                            if (intent.getCategories() != null) {
-                                Iterator<String> iterator = intent.getCategories().iterator();
-                                while (iterator.hasNext())
-                                    categories += iterator.next() + ";";
-                            }
-                            ServiceIntentHeader head = (ServiceIntentHeader)
-                                    new ServiceIntentHeader()
-                                            .setAction(data.getString("IFW_SERVICE_ACTION"))
-                                            .setCallerComponent(data.getString("callingPackage"))
-                                            .setFlags(data.getInt("flags"))
-                                            .setReceiverComponent(receiver)
-                                            .setUserID(data.getInt("userId"))
-                                            .setTimestamp((int) System.currentTimeMillis() / 1000)
-                                            .setOffset((short) (System.currentTimeMillis() % 1000))
-                                            .setCallerUID(data.getInt("callerUid", 0))
-                                            .setCallerPID(data.getInt("callerPid", 0))
-                                            .setReceiverUID(receiverUid);
-                            IntentData intentData = new IntentData()
-                                    .setAction(intent.getAction())
-                                    .setData(intent.getDataString())
-                                    .setFlags(intent.getFlags())
-                                    .setType(intent.getType())
-                                    .setCategory(categories)
-                                    .setClipData(clipData)
-                                    .setExtras(extras);
-                            head.setIntentData(intentData);
-                            LOG.appendIntent(head);
-                            LOG_COUNT++;
-                        } catch (Exception e) {
-                            Log.w(TAG, "Failed to log service intent: " + e.toString());
-                        }
-                        break;
+            // Allow intent. The message is still being dispatched, a sender in this process would
+            // be handed it back while it is in use.
+            if (msg.replyTo != null) {
+                try {
+                    msg.replyTo.send(Message.obtain(msg));
+                } catch (RemoteException e) {
+                    Log.w(TAG, "Failed to send response to IEM.");
                 }
             }
 
-            // Allow intent
+            captureIntent(msg.getData(), start, elapsed);
+        }
+
+        /**
+         * Allows a whole batch with one reply, then captures its intents in order. The clock is
+         * read once, the capture clock keeps the batch's times apart.
+         */
+        private void logIntentBatch(Message msg) {
+            long elapsed = SystemClock.elapsedRealtimeNanos();
+            Bundle data = msg.getData();
+            ArrayList<Bundle> intents = data == null
+                    ? null : data.<Bundle>getParcelableArrayList(BATCH_INTENTS);
+            int count = intents == null ? 0 : intents.size();
+
+            // Allow intents
             if (msg.replyTo != null) {
                 try {
-                    msg.replyTo.send(msg);
+                    msg.replyTo.send(Message.obtain(null, CHECK_INTENT_BATCH, count, msg.arg2));
                 } catch (RemoteException e) {
                     Log.w(TAG, "Failed to send response to IEM.");
                 }
             }
+
+            if (count > 0) captureBatch(intents, 0, elapsed);
         }
 
-        private void saveLog() {
-            Log.v(TAG, "Saving log.");
-            if (LOG != null) {
-                try {
-                    ByteBuffer output = LOG.toByteBuffer();
-                    File newFolder = new File(Environment.getExternalStorageDirectory(), "AICS");
-                    if (!newFolder.exists()) newFolder.mkdir();
-                    File file = new File(newFolder, System.currentTimeMillis() + ".aics");
-                    file.createNewFile();
-                    FileOutputStream fos = new FileOutputStream(file);
-                    fos.write(output.array());
-                    fos.flush();
-                    fos.close();
-                } catch (Exception e) {
-                    Log.e(TAG, "Failed to save log! " + e.toString());
+        /**
+         * Captures up to {@link #MAX_BATCH_SIZE} intents of a batch and posts the rest, so a
+         * caller ignoring the advertised size can't hold up the handler.
+         */
+        private void captureBatch(final ArrayList<Bundle> intents, int from, final long elapsed) {
+            final int to = Math.min(intents.size(), from + MAX_BATCH_SIZE);
+            for (int i = from; i < to; i++) {
+                captureIntent(intents.get(i), System.nanoTime(), elapsed);
+            }
+            if (to < intents.size()) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        captureBatch(intents, to, elapsed);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Hands an intent to the worker, everything expensive happens there.
+         *
+         * @param elapsedNanos {@link SystemClock#elapsedRealtimeNanos()} when the intent arrived.
+         */
+        private void captureIntent(Bundle data, long start, long elapsedNanos) {
+            CaptureWorker worker = WORKER;
+            CaptureFilter filter = FILTER;
+            if (data != null && LOGGING && worker != null) {
+                Intent intent = data.getParcelable("intent");
+                if (intent == null) {
+                    Log.w(TAG, "Failed to log data, no intent!");
+                } else if (filter == null || filter.accept(filterFields(intent, data), start)) {
+                    worker.enqueue(intent, data, elapsedNanos);
                 }
+                worker.mCaptureOverhead.record(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Fills the handler's scratch fields with what the capture filter checks. Nothing here
+         * marshals the intent or asks the package manager.
+         */
+        private IntentFields filterFields(Intent intent, Bundle data) {
+            IntentFields fields = mFilterFields.clear();
+            fields.intentType = data.getInt("intentType", -1);
+            fields.callerUid = data.getInt("callerUid", 0);
+            fields.callingPackage = data.getString("callingPackage");
+            fields.requiredPermission = data.getString("requiredPermission");
+            ComponentName component = intent.getComponent();
+            if (component != null) {
+                fields.receiverPackage = component.getPackageName();
+                fields.receiverClass = component.getClassName();
+            }
+            fields.action = intent.getAction();
+            return fields;
+        }
+
+        private void saveLog(Message msg) {
+            Log.v(TAG, "Saving log.");
+            SaveRequest request = new SaveRequest(msg.replyTo, msg.arg2);
+            CaptureWorker worker = WORKER;
+            if (worker == null) {
+                request.reply(SAVE_NOT_LOGGING, 0, null);
+            } else {
+                worker.requestSave(request);
+            }
+        }
+
+        private void sendCapabilities(Message msg) {
+            if (msg.replyTo == null) return;
+            try {
+                msg.replyTo.send(Message.obtain(null, GET_CAPABILITIES, CAPABILITY_BATCH,
+                        MAX_BATCH_SIZE));
+            } catch (RemoteException e) {
+                Log.w(TAG, "Failed to send response to IEM.");
             }
         }
 
@@ -362,13 +602,663 @@ public class LoggingService extends Service {
             if (msg.replyTo != null) {
                 try {
                     Message response = Message.obtain(null, GET_COUNT);
-                    response.arg1 = LOG_COUNT;
+                    response.arg1 = loggedCount();
+                    response.setData(buildStats());
                     msg.replyTo.send(response);
                 } catch (RemoteException e) {
                     Log.w(TAG, "Failed to send response to IEM.");
                 }
             }
         }
+
+        private void subscribe(Message msg) {
+            if (msg.replyTo == null) return;
+            unsubscribe(msg.replyTo);
+            long interval = msg.arg1 > 0
+                    ? Math.max(MIN_STATS_INTERVAL_MILLIS, msg.arg1) : DEFAULT_STATS_INTERVAL_MILLIS;
+            mSubscribers.add(new StatsSubscriber(msg.replyTo, interval));
+            schedulePublish();
+        }
+
+        private void unsubscribe(Messenger messenger) {
+            if (messenger == null) return;
+            for (Iterator<StatsSubscriber> it = mSubscribers.iterator(); it.hasNext();) {
+                if (it.next().messenger.equals(messenger)) it.remove();
+            }
+            schedulePublish();
+        }
+
+        /**
+         * Sends an update to every subscriber that is due. They all share one snapshot, and a
+         * subscriber that fell behind gets a single update rather than one per missed interval.
+         */
+        private void publishStats() {
+            long now = SystemClock.uptimeMillis();
+            Bundle stats = null;
+            for (Iterator<StatsSubscriber> it = mSubscribers.iterator(); it.hasNext();) {
+                StatsSubscriber subscriber = it.next();
+                if (subscriber.nextMillis > now) continue;
+                if (stats == null) stats = buildStats();
+                int logged = loggedCount();
+                // The count restarts with every session
+                if (logged < subscriber.lastCount) subscriber.lastCount = 0;
+                Bundle data = new Bundle(stats);
+                data.putDouble("intentsPerSecond", subscriber.lastMillis == 0 ? 0
+                        : (logged - subscriber.lastCount) * 1000.0
+                        / Math.max(1, now - subscriber.lastMillis));
+                Message update = Message.obtain(null, STATS);
+                update.arg1 = logged;
+                update.setData(data);
+                try {
+                    subscriber.messenger.send(update);
+                } catch (RemoteException e) {
+                    Log.w(TAG, "Dropping stats subscriber.");
+                    it.remove();
+                    continue;
+                }
+                subscriber.lastCount = logged;
+                subscriber.lastMillis = now;
+                subscriber.nextMillis = now + subscriber.intervalMillis;
+            }
+            schedulePublish();
+        }
+
+        private void schedulePublish() {
+            removeMessages(PUBLISH_STATS);
+            if (mSubscribers.isEmpty()) return;
+            long next = Long.MAX_VALUE;
+            for (StatsSubscriber subscriber : mSubscribers) {
+                next = Math.min(next, subscriber.nextMillis);
+            }
+            sendEmptyMessageDelayed(PUBLISH_STATS,
+                    Math.max(0, next - SystemClock.uptimeMillis()));
+        }
+    }
+
+    private final static class StatsSubscriber {
+        final Messenger messenger;
+        final long intervalMillis;
+        long nextMillis = 0;
+        long lastMillis = 0;
+        int lastCount = 0;
+
+        StatsSubscriber(Messenger messenger, long intervalMillis) {
+            this.messenger = messenger;
+            this.intervalMillis = intervalMillis;
+        }
+    }
+
+    /** Intents logged by the current session, or by the last one once it was stopped. */
+    private static int loggedCount() {
+        CaptureWorker worker = WORKER;
+        return worker == null ? 0 : (int) worker.mLogCount.sum();
+    }
+
+    /**
+     * Everything the service knows about the current session, as sent with GET_COUNT replies
+     * and stats updates.
+     */
+    private static Bundle buildStats() {
+        Bundle stats = new Bundle();
+        stats.putBoolean("logging", LOGGING);
+        CaptureWorker worker = WORKER;
+        stats.putInt("loggedCount", worker == null ? 0 : (int) worker.mLogCount.sum());
+        for (int type = 0; type < TYPE_NAMES.length; type++) {
+            stats.putLong(TYPE_NAMES[type] + "Count",
+                    worker == null ? 0 : worker.mTypeCounts[type].sum());
+        }
+        if (worker != null) {
+            stats.putInt("queueDepth", worker.mQueue.size());
+            stats.putLong("droppedOldest", worker.mQueue.getDroppedOldest());
+            stats.putLong("droppedNewest", worker.mQueue.getDroppedNewest());
+            stats.putLong("bytesWritten", worker.mBytesWritten);
+            stats.putInt("captureThreads", worker.getCaptureThreadCount());
+            stats.putLong("sequencesSkipped", worker.mBuffer.getSkipped());
+            stats.putLong("lateRecords", worker.mBuffer.getLate());
+            stats.putLong("timestampsBumped", worker.mClock.getBumped());
+            SegmentJournal journal = worker.mJournal;
+            if (journal != null) {
+                long commits = journal.getCommitCount();
+                stats.putLong("journalCommits", commits);
+                stats.putLong("journalRecords", journal.getCommittedRecords());
+                stats.putLong("meanJournalCommitNanos",
+                        commits == 0 ? 0 : journal.getSyncNanos() / commits);
+            }
+            PayloadDeduplicator deduplicator = worker.mDeduplicator;
+            if (deduplicator != null) {
+                stats.putLong("payloadsDeduplicated", deduplicator.getDeduplicated());
+                stats.putLong("dedupBytesSaved", deduplicator.getBytesSaved());
+            }
+        }
+        if (UID_CACHE != null) {
+            stats.putInt("uidCacheHits", UID_CACHE.hitCount());
+            stats.putInt("uidCacheMisses", UID_CACHE.missCount());
+        }
+        if (worker != null) {
+            LatencyHistogram overhead = worker.mCaptureOverhead;
+            stats.putLong("meanCaptureOverheadNanos", overhead.getMeanNanos());
+            stats.putLong("maxCaptureOverheadNanos", overhead.getMaxNanos());
+            stats.putLong("p50CaptureOverheadNanos", overhead.getPercentileNanos(0.5));
+            stats.putLong("p99CaptureOverheadNanos", overhead.getPercentileNanos(0.99));
+            LatencyHistogram latency = worker.mRecordLatency;
+            stats.putLong("p50RecordLatencyNanos", latency.getPercentileNanos(0.5));
+            stats.putLong("p99RecordLatencyNanos", latency.getPercentileNanos(0.99));
+            stats.putLong("maxRecordLatencyNanos", latency.getMaxNanos());
+        }
+        PayloadPolicy payload = PAYLOAD;
+        if (payload != null) {
+            stats.putLong("payloadsTruncated", payload.getTruncatedCount());
+            stats.putLong("payloadsHashed", payload.getHashedCount());
+            stats.putLong("payloadBytesSaved", payload.getBytesSaved());
+        }
+        CaptureFilter filter = FILTER;
+        if (filter != null) {
+            int rules = filter.getRuleCount();
+            String[] specs = new String[rules];
+            long[] matches = new long[rules];
+            long[] drops = new long[rules];
+            for (int i = 0; i < rules; i++) {
+                specs[i] = filter.getRule(i);
+                matches[i] = filter.getMatchCount(i);
+                drops[i] = filter.getDropCount(i);
+            }
+            stats.putStringArray("filterRules", specs);
+            stats.putLongArray("filterMatches", matches);
+            stats.putLongArray("filterDrops", drops);
+            stats.putLong("filterUnmatched", filter.getUnmatchedCount());
+        }
+        return stats;
+    }
+
+    /**
+     * A small copy of what IEM sent for one intent. Taken on the handler thread so the worker
+     * never has to touch the original message.
+     */
+    private final static class IntentSnapshot {
+        final Intent intent;
+        final int intentType;
+        final long captureNanos;
+        final String callingPackage;
+        final String requiredPermission;
+        final String serviceAction;
+        final int requestCode;
+        final int startFlags;
+        final int flags;
+        final int userId;
+        final int callerUid;
+        final int callerPid;
+        final long sequence;
+
+        IntentSnapshot(Intent intent, Bundle data, long captureNanos, long sequence) {
+            this.intent = intent;
+            this.captureNanos = captureNanos;
+            this.sequence = sequence;
+            intentType = data.getInt("intentType", -1);
+            callingPackage = data.getString("callingPackage");
+            requiredPermission = data.getString("requiredPermission");
+            serviceAction = data.getString("IFW_SERVICE_ACTION");
+            requestCode = data.getInt("requestCode");
+            startFlags = data.getInt("startFlags");
+            flags = data.getInt("flags");
+            userId = data.getInt("userId");
+            callerUid = data.getInt("callerUid", 0);
+            callerPid = data.getInt("callerPid", 0);
+        }
+    }
+
+    /**
+     * Builds and appends AICS records off the IEM critical path. {@link CaptureThread}s take
+     * intents from the queue and do the expensive part, marshalling extras and clip data and
+     * looking up UIDs, each into its own stripe of a {@link StripedCaptureBuffer}. This thread
+     * is the only writer: it takes the captured intents back in arrival order, builds their
+     * records and appends them. One worker serves one logging session and exits once it has
+     * been told to finish and everything queued has been logged.
+     *
+     * Sequences are handed out by the handler thread as intents are queued. When the queue
+     * evicts an intent, the handler publishes its sequence through a stripe of its own so the
+     * writer moves past it right away instead of waiting for it.
+     */
+    private final static class CaptureWorker extends Thread {
+
+        private final static long POLL_MILLIS = 250;
+        private final static int STRIPE_CAPACITY = 64;
+        private final static long MAX_GAP_MILLIS = 20;
+        private final static long GAP_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+        final CaptureQueue<IntentSnapshot> mQueue;
+        final StripedCaptureBuffer<IntentFields> mBuffer;
+        private final CaptureThread[] mCaptureThreads;
+        private final AtomicInteger mRunningCaptureThreads;
+        private final SegmentedLogWriter mLog;
+        private final CaptureRecordBuilder mBuilder = new CaptureRecordBuilder();
+        // Anchored to the wall clock once per session
+        final CaptureClock mClock = new CaptureClock(System.currentTimeMillis(),
+                SystemClock.elapsedRealtimeNanos());
+        private volatile boolean mFinishing = false;
+        private volatile boolean mParked = false;
+        // Only touched by the handler thread
+        private long mNextSequence = 0;
+        private final int mSkipStripe;
+        // Evicted sequences not handed to the writer yet, also only touched by the handler
+        private long mSkipFrom = 0;
+        private long mSkipTo = 0;
+        final SegmentJournal mJournal;
+        final PayloadDeduplicator mDeduplicator;
+        volatile long mBytesWritten = 0;
+        // The session's stats. Overhead is recorded by the handler, the rest by the writer.
+        final StripedCounter mLogCount = new StripedCounter();
+        final StripedCounter[] mTypeCounts = {
+                new StripedCounter(), new StripedCounter(), new StripedCounter()};
+        final LatencyHistogram mCaptureOverhead = new LatencyHistogram();
+        final LatencyHistogram mRecordLatency = new LatencyHistogram();
+        private final ConcurrentLinkedQueue<SaveRequest> mSaveRequests =
+                new ConcurrentLinkedQueue<>();
+        private final ExecutorService mSaveExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "IntentLogger-save");
+                    }
+                });
+        private volatile boolean mLogClosed = false;
+        private volatile String mCloseError = null;
+
+        CaptureWorker(int capacity, OverflowPolicy policy, long maxBlockMillis,
+                      SegmentedLogWriter log, int captureThreads) {
+            super("IntentLogger-writer");
+            mQueue = new CaptureQueue<>(capacity, policy, maxBlockMillis,
+                    new CaptureQueue.EvictionListener<IntentSnapshot>() {
+                        @Override
+                        public void onEvicted(IntentSnapshot snapshot) {
+                            skip(snapshot.sequence);
+                        }
+                    });
+            mLog = log;
+            mJournal = log.getJournal();
+            mDeduplicator = log.getDeduplicator();
+            // One stripe per capture thread and the handler's for evicted sequences
+            mSkipStripe = captureThreads;
+            mBuffer = new StripedCaptureBuffer<>(captureThreads + 1, STRIPE_CAPACITY,
+                    MAX_GAP_MILLIS,
+                    new StripedCaptureBuffer.Factory<IntentFields>() {
+                        @Override
+                        public IntentFields create() {
+                            return new IntentFields().clear();
+                        }
+                    });
+            mCaptureThreads = new CaptureThread[captureThreads];
+            for (int i = 0; i < captureThreads; i++) {
+                mCaptureThreads[i] = new CaptureThread(this, i);
+            }
+            mRunningCaptureThreads = new AtomicInteger(captureThreads);
+        }
+
+        @Override
+        public synchronized void start() {
+            super.start();
+            for (CaptureThread thread : mCaptureThreads) thread.start();
+        }
+
+        /** Queues an intent. Must only be called from the handler thread. */
+        void enqueue(Intent intent, Bundle data, long elapsedNanos) {
+            long captureNanos = mClock.stamp(elapsedNanos);
+            publishSkipped();
+            // A rejected intent gives its sequence number to the next one
+            if (mQueue.offer(new IntentSnapshot(intent, data, captureNanos, mNextSequence))) {
+                mNextSequence++;
+            }
+        }
+
+        /** Tells the writer not to wait for an evicted intent. Called on the handler thread. */
+        private void skip(long sequence) {
+            if (sequence != mSkipTo) {
+                // A range the writer had no room for is left to the gap timeout
+                publishSkipped();
+                mSkipFrom = sequence;
+            }
+            mSkipTo = sequence + 1;
+            publishSkipped();
+        }
+
+        private void publishSkipped() {
+            if (mSkipFrom == mSkipTo) return;
+            if (mBuffer.skip(mSkipStripe, mSkipFrom, mSkipTo)) {
+                mSkipFrom = mSkipTo;
+                wakeWriter();
+            }
+        }
+
+        /** Stops the worker after everything already queued has been logged. */
+        void finish() {
+            mFinishing = true;
+        }
+
+        /**
+         * Has everything logged so far written to the storage device. The writer pushes it to
+         * the OS when it gets to the request and the save thread waits for the sync, so neither
+         * the handler nor capture waits for storage.
+         */
+        void requestSave(SaveRequest request) {
+            mSaveRequests.add(request);
+            if (mLogClosed) {
+                answerSaves();
+            } else {
+                LockSupport.unpark(this);
+            }
+        }
+
+        int getCaptureThreadCount() {
+            return mCaptureThreads.length;
+        }
+
+        /** Called after a slot or a skipped range was published. */
+        void wakeWriter() {
+            if (mParked) LockSupport.unpark(this);
+        }
+
+        void captureThreadDone() {
+            mRunningCaptureThreads.decrementAndGet();
+            LockSupport.unpark(this);
+        }
+
+        @Override
+        public void run() {
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                if (!mSaveRequests.isEmpty()) startSave();
+                boolean drained = mRunningCaptureThreads.get() == 0;
+                IntentFields fields = mBuffer.poll(drained);
+                if (fields != null) {
+                    logRecord(fields);
+                    mBuffer.release();
+                    continue;
+                }
+                if (drained && mBuffer.isEmpty()) break;
+                long waitMillis = Math.min(POLL_MILLIS, commitJournalIfDue());
+                rotateIfDue();
+                mParked = true;
+                if (!mBuffer.isEmpty()) {
+                    // Waiting for a capture thread to publish an earlier intent
+                    LockSupport.parkNanos(this, GAP_PARK_NANOS);
+                } else if (mRunningCaptureThreads.get() > 0) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(waitMillis));
+                }
+                mParked = false;
+            }
+            synchronized (mLog) {
+                try {
+                    mLog.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to close log! " + e.toString());
+                    mCloseError = e.toString();
+                }
+                mBytesWritten = mLog.getBytesWritten();
+            }
+            // Closing synced the log, saves that come in from now on are done already
+            mLogClosed = true;
+            answerSaves();
+            mSaveExecutor.shutdown();
+        }
+
+        /** Writes out what was logged and leaves syncing it to the save thread. */
+        private void startSave() {
+            final List<SaveRequest> requests = new ArrayList<>();
+            SaveRequest request;
+            while ((request = mSaveRequests.poll()) != null) requests.add(request);
+            final FileSync sync;
+            final long bytes;
+            synchronized (mLog) {
+                try {
+                    sync = mLog.flushForSync();
+                    bytes = mLog.getBytesWritten();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to save log! " + e.toString());
+                    for (SaveRequest failed : requests) failed.reply(SAVE_FAILED, 0, e.toString());
+                    return;
+                }
+            }
+            mSaveExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    String error = null;
+                    try {
+                        sync.sync();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Failed to save log! " + e.toString());
+                        error = e.toString();
+                    }
+                    for (SaveRequest done : requests) {
+                        done.reply(error == null ? SAVE_OK : SAVE_FAILED, bytes, error);
+                    }
+                }
+            });
+        }
+
+        /** Answers saves requested after the writer's last look, the log is closed by then. */
+        private void answerSaves() {
+            String error = mCloseError;
+            SaveRequest request;
+            while ((request = mSaveRequests.poll()) != null) {
+                request.reply(error == null ? SAVE_OK : SAVE_FAILED, mBytesWritten, error);
+            }
+        }
+
+        /**
+         * Commits journaled records whose commit delay is up.
+         *
+         * @return Milliseconds until the next commit is due.
+         */
+        private long commitJournalIfDue() {
+            if (mJournal == null) return Long.MAX_VALUE;
+            synchronized (mLog) {
+                try {
+                    return mLog.commitJournalIfDue();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to commit journal! " + e.toString());
+                    return POLL_MILLIS;
+                }
+            }
+        }
+
+        /** Rolls over to a new segment by age while no intents arrive. */
+        private void rotateIfDue() {
+            synchronized (mLog) {
+                try {
+                    mLog.rotateIfDue();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to rotate log! " + e.toString());
+                }
+            }
+        }
+
+        private void append(IntentHeader head) throws IOException {
+            synchronized (mLog) {
+                mLog.append(head);
+                mBytesWritten = mLog.getBytesWritten();
+            }
+            mLogCount.increment();
+        }
+
+        /** Builds and appends the record of a captured intent, then clears the slot. */
+        private void logRecord(IntentFields fields) {
+            int type = fields.intentType;
+            if (type < TYPE_ACTIVITY || type > TYPE_SERVICE) return;
+            long start = System.nanoTime();
+            try {
+                append(mBuilder.build(fields));
+                mTypeCounts[type].increment();
+                mRecordLatency.record(System.nanoTime() - start);
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to log " + TYPE_NAMES[type] + " intent: " + e.toString());
+            } finally {
+                // Don't keep the intent's arrays alive while the slot waits for reuse
+                fields.clear();
+            }
+        }
+    }
+
+    /** Someone waiting for a SAVE_LOG to finish. */
+    private final static class SaveRequest {
+        private final Messenger mReplyTo;
+        private final int mToken;
+        private final long mStartNanos = System.nanoTime();
+
+        SaveRequest(Messenger replyTo, int token) {
+            mReplyTo = replyTo;
+            mToken = token;
+        }
+
+        void reply(int result, long bytes, String error) {
+            if (mReplyTo == null) return;
+            Message reply = Message.obtain(null, SAVE_LOG, result, mToken);
+            Bundle data = new Bundle();
+            data.putLong(SAVE_BYTES, bytes);
+            data.putLong(SAVE_MILLIS,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartNanos));
+            if (error != null) data.putString(SAVE_ERROR, error);
+            reply.setData(data);
+            try {
+                mReplyTo.send(reply);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Failed to send save result.");
+            }
+        }
+    }
+
+    /**
+     * Turns queued intents into {@link IntentFields} for the writer. Every capture thread owns
+     * a stripe of the worker's buffer and a scratch parcel, so they never contend with each
+     * other.
+     */
+    private final static class CaptureThread extends Thread {
+
+        private final static long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+        private final CaptureWorker mWorker;
+        private final int mStripe;
+        private final Parcel mParcel = Parcel.obtain();
+
+        CaptureThread(CaptureWorker worker, int stripe) {
+            super("IntentLogger-capture-" + stripe);
+            mWorker = worker;
+            mStripe = stripe;
+        }
+
+        @Override
+        public void run() {
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+                while (!mWorker.mFinishing || mWorker.mQueue.size() > 0) {
+                    IntentSnapshot snapshot;
+                    try {
+                        snapshot = mWorker.mQueue.poll(CaptureWorker.POLL_MILLIS,
+                                TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    if (snapshot == null) continue;
+                    IntentFields fields;
+                    while ((fields = mWorker.mBuffer.claim(mStripe)) == null) {
+                        // The writer is behind, wait for it to release a slot
+                        LockSupport.parkNanos(FULL_PARK_NANOS);
+                    }
+                    capture(snapshot, fields);
+                    mWorker.mBuffer.publish(mStripe, snapshot.sequence);
+                    mWorker.wakeWriter();
+                }
+            } finally {
+                mParcel.recycle();
+                mWorker.captureThreadDone();
+            }
+        }
+
+        /**
+         * Fills a slot with everything the record needs. A slot whose intent can't be captured
+         * is still published, with no type, so the writer doesn't wait for its sequence.
+         */
+        private void capture(IntentSnapshot snapshot, IntentFields fields) {
+            fields.clear();
+            if (snapshot.intentType < TYPE_ACTIVITY || snapshot.intentType > TYPE_SERVICE) return;
+            Intent intent = snapshot.intent;
+            try {
+                fields.intentType = snapshot.intentType;
+                fields.captureNanos = snapshot.captureNanos;
+                fields.callingPackage = snapshot.callingPackage;
+                fields.requiredPermission = snapshot.requiredPermission;
+                fields.serviceAction = snapshot.serviceAction;
+                fields.requestCode = snapshot.requestCode;
+                fields.startFlags = snapshot.startFlags;
+                fields.flags = snapshot.flags;
+                fields.userId = snapshot.userId;
+                fields.callerUid = snapshot.callerUid;
+                fields.callerPid = snapshot.callerPid;
+                ComponentName component = intent.getComponent();
+                if (component != null) {
+                    fields.receiverPackage = component.getPackageName();
+                    fields.receiverClass = component.getClassName();
+                    fields.receiverUid = UID_CACHE.getUid(component.getPackageName());
+                }
+                fields.action = intent.getAction();
+                fields.dataString = intent.getDataString();
+                fields.intentFlags = intent.getFlags();
+                fields.type = intent.getType();
+                fields.categories = intent.getCategories();
+                fields.clipData = marshall(intent.getClipData(), snapshot.intentType,
+                        "clip data");
+                fields.extras = marshall(intent.getExtras(), snapshot.intentType, "extras");
+                PayloadPolicy payload = PAYLOAD;
+                if (payload != null) {
+                    fields.clipData = payload.apply(PayloadPolicy.FIELD_CLIP_DATA, fields,
+                            fields.clipData);
+                    fields.extras = payload.apply(PayloadPolicy.FIELD_EXTRAS, fields,
+                            fields.extras);
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to log " + TYPE_NAMES[snapshot.intentType] + " intent: "
+                        + e.toString());
+                fields.clear();
+            }
+        }
+
+        /**
+         * Flattens a parcelable with the thread's scratch parcel. The returned array is the only
+         * allocation, the parcel itself is reused for every intent.
+         */
+        private byte[] marshall(Parcelable value, int intentType, String what) {
+            if (value == null) return CaptureRecordBuilder.EMPTY_BYTES;
+            try {
+                mParcel.setDataPosition(0);
+                mParcel.setDataSize(0);
+                value.writeToParcel(mParcel, 0);
+                return mParcel.marshall();
+            } catch (Exception e) {
+                Log.w(TAG, "Skipping " + TYPE_NAMES[intentType] + " " + what + ".");
+                return CaptureRecordBuilder.EMPTY_BYTES;
+            }
+        }
+    }
+
+    /**
+     * Prints the stats as sorted key=value lines, e.g. for
+     * {@code adb shell dumpsys activity service com.carteryagemann.intentlogger}.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        Bundle stats = buildStats();
+        for (String key : new TreeSet<>(stats.keySet())) {
+            Object value = stats.get(key);
+            if (value instanceof long[]) value = Arrays.toString((long[]) value);
+            if (value instanceof String[]) value = Arrays.toString((String[]) value);
+            writer.println(key + "=" + value);
+        }
+    }
+
+    /**
+     * The messenger {@link #onBind} hands out. Robolectric can't wrap it in a binder, so tests
+     * talk to it directly.
+     */
+    Messenger getMessenger() {
+        return mMessenger;
     }
 
     @Override
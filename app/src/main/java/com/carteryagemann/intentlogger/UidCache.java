@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.util.LruCache;
+
+/**
+ * Maps package names to UIDs so the PackageManager, and the binder call into system_server
+ * behind it, is only asked once per package. Entries are evicted least recently used first and
+ * dropped whenever their package is added, removed or replaced.
+ *
+ * Packages that don't exist are cached too and report a UID of 0.
+ */
+final class UidCache extends LruCache<String, Integer> {
+
+    private final static Integer NOT_FOUND = -1;
+
+    private final PackageManager mPackageManager;
+    private final BroadcastReceiver mPackageReceiver = new PackageReceiver();
+
+    UidCache(PackageManager packageManager, int maxSize) {
+        super(maxSize);
+        mPackageManager = packageManager;
+    }
+
+    /**
+     * @return The UID of the package or 0 if it isn't installed.
+     */
+    int getUid(String packageName) {
+        if (packageName == null) return 0;
+        Integer uid = get(packageName);
+        return uid == null || uid < 0 ? 0 : uid;
+    }
+
+    /** Starts listening for package changes. */
+    void register(Context context) {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        context.registerReceiver(mPackageReceiver, filter);
+    }
+
+    void unregister(Context context) {
+        context.unregisterReceiver(mPackageReceiver);
+    }
+
+    @Override
+    protected Integer create(String packageName) {
+        try {
+            return mPackageManager.getApplicationInfo(packageName, 0).uid;
+        } catch (PackageManager.NameNotFoundException e) {
+            return NOT_FOUND;
+        }
+    }
+
+    private final class PackageReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            if (data != null && data.getSchemeSpecificPart() != null) {
+                remove(data.getSchemeSpecificPart());
+            } else {
+                evictAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.intentlogger.capture;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out capture times in nanoseconds since the epoch. The wall clock is read once, when the
+ * clock is created, and every later time is that anchor plus how far a monotonic clock such as
+ * {@code SystemClock.elapsedRealtimeNanos()} has moved since. Times therefore never jump when
+ * the wall clock is set, and one clock read can stamp a whole batch of intents.
+ *
+ * Stamps are strictly increasing across all threads: a stamp that would not be later than the
+ * previous one is moved to one nanosecond after it. Records keep only whole milliseconds, so the
+ * nanoseconds only break ties while records are put in order.
+ */
+public final class CaptureClock {
+
+    private final static long NANOS_PER_MILLI = 1000000L;
+    private final static long NANOS_PER_SECOND = 1000000000L;
+
+    private final long mOffsetNanos;
+    private final AtomicLong mLast = new AtomicLong(Long.MIN_VALUE);
+    private final StripedCounter mBumped = new StripedCounter();
+
+    /**
+     * @param wallMillis The wall clock, e.g. {@link System#currentTimeMillis()}.
+     * @param elapsedNanos The monotonic clock read right after it.
+     */
+    public CaptureClock(long wallMillis, long elapsedNanos) {
+        mOffsetNanos = wallMillis * NANOS_PER_MILLI - elapsedNanos;
+    }
+
+    /**
+     * @param elapsedNanos A reading of the monotonic clock the anchor was taken with.
+     * @return The capture time in nanoseconds since the epoch, later than any stamp before it.
+     */
+    public long stamp(long elapsedNanos) {
+        long time = mOffsetNanos + elapsedNanos;
+        while (true) {
+            long last = mLast.get();
+            long next = time > last ? time : last + 1;
+            if (mLast.compareAndSet(last, next)) {
+                if (next != time) mBumped.increment();
+                return next;
+            }
+        }
+    }
+
+    /** Stamps moved forward to stay after the previous one. */
+    public long getBumped() {
+        return mBumped.sum();
+    }
+
+    /** The {@code TIMESTAMP} field of a record captured at the time, seconds since the epoch. */
+    public static int seconds(long nanos) {
+        return (int) (nanos / NANOS_PER_SECOND);
+    }
+
+    /** The {@code MILLI_OFFSET} field of a record captured at the time. */
+    public static short milliOffset(long nanos) {
+        return (short) (nanos / NANOS_PER_MILLI % 1000);
+    }
+
+    /** What records can't store, the nanoseconds past the millisecond. */
+    public static int subMilliNanos(long nanos) {
+        return (int) (nanos % NANOS_PER_MILLI);
+    }
+}
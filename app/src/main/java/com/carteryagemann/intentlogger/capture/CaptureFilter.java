@@ -0,0 +1,292 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.capture;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides which intents are worth logging before anything is marshalled. Rules are compiled once
+ * when logging starts and checked in order, the first rule that matches an intent decides:
+ *
+ * <pre>
+ *     exclude callerPackage=com.android.systemui
+ *     include type=broadcast action=android.intent.action.BATTERY_ sample=0.1
+ *     include receiver=com.example rate=50 burst=100
+ * </pre>
+ *
+ * A rule is {@code include} or {@code exclude} followed by conditions, all of which must hold:
+ * <ul>
+ *     <li>{@code type}: activity, broadcast or service.</li>
+ *     <li>{@code callerUid}, {@code callerPackage}: who sent the intent.</li>
+ *     <li>{@code receiver}: a package, or a component as {@code package/class} where the class
+ *     may start with a dot.</li>
+ *     <li>{@code action}: a prefix of the action.</li>
+ *     <li>{@code permission}: the required permission of a broadcast.</li>
+ * </ul>
+ * Include rules may also keep only a fraction of their intents with {@code sample}, and at most
+ * {@code rate} intents per second in bursts of up to {@code burst} (default {@code rate}).
+ * Intents no rule matches are logged unless the filter has include rules.
+ *
+ * <p>Intents are checked on a single thread. Other threads may read the counters at any time.
+ */
+public final class CaptureFilter {
+
+    private final static String[] TYPE_NAMES = {"activity", "broadcast", "service"};
+    private final static double UNIT = 1.0 / (1L << 53);
+
+    private final static class Rule {
+        final String spec;
+        boolean include;
+        int type = -1;
+        boolean hasCallerUid = false;
+        int callerUid;
+        String callerPackage;
+        String receiverPackage;
+        String receiverClass;
+        String actionPrefix;
+        String permission;
+        double sample = 1;
+        double rate = 0;
+        double burst = 0;
+
+        // Token bucket, only touched by the checking thread
+        double tokens;
+        long lastRefillNanos;
+        boolean refilled = false;
+
+        volatile long matched = 0;
+        volatile long dropped = 0;
+
+        Rule(String spec) {
+            this.spec = spec;
+        }
+
+        boolean matches(IntentFields fields) {
+            if (type >= 0 && fields.intentType != type) return false;
+            if (hasCallerUid && fields.callerUid != callerUid) return false;
+            if (callerPackage != null && !callerPackage.equals(fields.callingPackage)) {
+                return false;
+            }
+            if (receiverPackage != null) {
+                if (!receiverPackage.equals(fields.receiverPackage)) return false;
+                if (receiverClass != null && !receiverClass.equals(fields.receiverClass)) {
+                    return false;
+                }
+            }
+            if (actionPrefix != null
+                    && (fields.action == null || !fields.action.startsWith(actionPrefix))) {
+                return false;
+            }
+            return permission == null || permission.equals(fields.requiredPermission);
+        }
+
+        boolean takeToken(long nowNanos) {
+            if (rate <= 0) return true;
+            if (!refilled) {
+                tokens = burst;
+                refilled = true;
+            } else {
+                tokens = Math.min(burst, tokens + (nowNanos - lastRefillNanos) * rate / 1e9);
+            }
+            lastRefillNanos = nowNanos;
+            if (tokens < 1) return false;
+            tokens--;
+            return true;
+        }
+    }
+
+    private final Rule[] mRules;
+    private final boolean mDefaultAccept;
+    private long mRandom;
+    private volatile long mUnmatched = 0;
+
+    private CaptureFilter(Rule[] rules, long seed) {
+        mRules = rules;
+        boolean hasInclude = false;
+        for (Rule rule : rules) hasInclude |= rule.include;
+        mDefaultAccept = !hasInclude;
+        mRandom = seed == 0 ? 0x9E3779B97F4A7C15L : seed;
+    }
+
+    /**
+     * Compiles rules, see the class description for the syntax.
+     *
+     * @throws IllegalArgumentException If a rule is malformed.
+     */
+    public static CaptureFilter compile(String[] specs) {
+        return compile(specs, System.nanoTime());
+    }
+
+    static CaptureFilter compile(String[] specs, long seed) {
+        List<Rule> rules = new ArrayList<>();
+        if (specs != null) {
+            for (String spec : specs) {
+                if (spec != null && !spec.trim().isEmpty()) rules.add(parse(spec.trim()));
+            }
+        }
+        return new CaptureFilter(rules.toArray(new Rule[rules.size()]), seed);
+    }
+
+    private static Rule parse(String spec) {
+        String[] tokens = spec.split("\\s+");
+        Rule rule = new Rule(spec);
+        if (tokens[0].equals("include")) {
+            rule.include = true;
+        } else if (!tokens[0].equals("exclude")) {
+            throw new IllegalArgumentException("Rule must start with include or exclude: " + spec);
+        }
+        for (int i = 1; i < tokens.length; i++) {
+            int split = tokens[i].indexOf('=');
+            if (split <= 0 || split == tokens[i].length() - 1) {
+                throw new IllegalArgumentException("Expected key=value in rule: " + spec);
+            }
+            String key = tokens[i].substring(0, split);
+            String value = tokens[i].substring(split + 1);
+            try {
+                switch (key) {
+                    case "type":
+                        rule.type = parseType(value);
+                        break;
+                    case "callerUid":
+                        rule.hasCallerUid = true;
+                        rule.callerUid = Integer.parseInt(value);
+                        break;
+                    case "callerPackage":
+                        rule.callerPackage = value;
+                        break;
+                    case "receiver":
+                        int slash = value.indexOf('/');
+                        if (slash < 0) {
+                            rule.receiverPackage = value;
+                        } else {
+                            rule.receiverPackage = value.substring(0, slash);
+                            rule.receiverClass = value.substring(slash + 1);
+                            if (rule.receiverClass.startsWith(".")) {
+                                rule.receiverClass = rule.receiverPackage + rule.receiverClass;
+                            }
+                        }
+                        break;
+                    case "action":
+                        rule.actionPrefix = value;
+                        break;
+                    case "permission":
+                        rule.permission = value;
+                        break;
+                    case "sample":
+                        rule.sample = Double.parseDouble(value);
+                        if (!(rule.sample >= 0 && rule.sample <= 1)) {
+                            throw new IllegalArgumentException("Sample must be in [0, 1]: "
+                                    + spec);
+                        }
+                        break;
+                    case "rate":
+                        rule.rate = Double.parseDouble(value);
+                        if (!(rule.rate > 0)) {
+                            throw new IllegalArgumentException("Rate must be positive: " + spec);
+                        }
+                        break;
+                    case "burst":
+                        rule.burst = Double.parseDouble(value);
+                        if (!(rule.burst >= 1)) {
+                            throw new IllegalArgumentException("Burst must be at least 1: "
+                                    + spec);
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown key " + key + " in rule: "
+                                + spec);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad number in rule: " + spec);
+            }
+        }
+        if (!rule.include && (rule.sample < 1 || rule.rate > 0 || rule.burst > 0)) {
+            throw new IllegalArgumentException("Only include rules may sample or rate limit: "
+                    + spec);
+        }
+        if (rule.burst > 0 && rule.rate <= 0) {
+            throw new IllegalArgumentException("Burst needs a rate: " + spec);
+        }
+        if (rule.rate > 0 && rule.burst == 0) rule.burst = Math.max(1, rule.rate);
+        return rule;
+    }
+
+    private static int parseType(String value) {
+        for (int type = 0; type < TYPE_NAMES.length; type++) {
+            if (TYPE_NAMES[type].equals(value)) return type;
+        }
+        throw new IllegalArgumentException("Unknown intent type " + value);
+    }
+
+    /**
+     * Checks an intent. Only the type, caller, receiver, action and permission fields are read.
+     *
+     * @param nowNanos The current {@link System#nanoTime()}, used for rate limits.
+     * @return True if the intent should be logged.
+     */
+    public boolean accept(IntentFields fields, long nowNanos) {
+        for (Rule rule : mRules) {
+            if (!rule.matches(fields)) continue;
+            rule.matched++;
+            if (!rule.include) {
+                rule.dropped++;
+                return false;
+            }
+            if ((rule.sample < 1 && nextDouble() >= rule.sample) || !rule.takeToken(nowNanos)) {
+                rule.dropped++;
+                return false;
+            }
+            return true;
+        }
+        mUnmatched++;
+        return mDefaultAccept;
+    }
+
+    /** Xorshift, so sampling never allocates or contends on a shared generator. */
+    private double nextDouble() {
+        long x = mRandom;
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        mRandom = x;
+        return (x >>> 11) * UNIT;
+    }
+
+    public int getRuleCount() {
+        return mRules.length;
+    }
+
+    public String getRule(int rule) {
+        return mRules[rule].spec;
+    }
+
+    /** Intents the rule matched, whether or not they were logged. */
+    public long getMatchCount(int rule) {
+        return mRules[rule].matched;
+    }
+
+    /** Intents the rule matched and kept out of the log. */
+    public long getDropCount(int rule) {
+        return mRules[rule].dropped;
+    }
+
+    /** Intents no rule matched. */
+    public long getUnmatchedCount() {
+        return mUnmatched;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.capture;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded hand-off between the thread answering IEM and the thread writing records. What
+ * happens when the writer falls behind is decided by the queue's {@link OverflowPolicy}, and
+ * every discarded element is counted.
+ *
+ * <p>The queue is a ring without locks. Only one thread may offer, any number of threads may
+ * poll. Every slot remembers the position it is waiting for, so a consumer can only take an
+ * element once it was filled and the producer can only refill a slot once it was taken. Idle
+ * consumers and a blocked producer park until the other side wakes them.
+ */
+public final class CaptureQueue<E> {
+
+    /** Told about every element {@link OverflowPolicy#DROP_OLDEST} evicts. */
+    public interface EvictionListener<E> {
+        /** Called on the producer's thread, in the order the elements were queued. */
+        void onEvicted(E element);
+    }
+
+    private final Object[] mItems;
+    // Turn of a slot: 2p while it can be filled for position p, 2p + 1 once it was
+    private final AtomicLongArray mTurns;
+    private final int mCapacity;
+    private final OverflowPolicy mPolicy;
+    private final long mMaxBlockNanos;
+    private final EvictionListener<E> mListener;
+
+    // Next position to take, advanced by consumers and by evictions
+    private final AtomicLong mHead = new AtomicLong();
+    // Next position to fill, only written by the producer
+    private volatile long mTail = 0;
+    private final ConcurrentLinkedQueue<Thread> mWaiting = new ConcurrentLinkedQueue<>();
+    private volatile Thread mBlockedProducer = null;
+
+    private final AtomicLong mDroppedOldest = new AtomicLong();
+    private final AtomicLong mDroppedNewest = new AtomicLong();
+
+    /**
+     * Creates a queue that doesn't report evictions.
+     */
+    public CaptureQueue(int capacity, OverflowPolicy policy, long maxBlockMillis) {
+        this(capacity, policy, maxBlockMillis, null);
+    }
+
+    /**
+     * @param capacity Maximum number of queued elements.
+     * @param policy What to do when the queue is full.
+     * @param maxBlockMillis Longest time {@link OverflowPolicy#BLOCK} may stall the producer.
+     * @param listener Told about evicted elements, may be null.
+     */
+    public CaptureQueue(int capacity, OverflowPolicy policy, long maxBlockMillis,
+                        EvictionListener<E> listener) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive.");
+        if (policy == null) throw new IllegalArgumentException("Policy cannot be null.");
+        mItems = new Object[capacity];
+        mTurns = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) mTurns.set(i, 2L * i);
+        mCapacity = capacity;
+        mPolicy = policy;
+        mMaxBlockNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxBlockMillis));
+        mListener = listener;
+    }
+
+    /**
+     * Adds an element according to the overflow policy. Must only be called from the
+     * producer's thread.
+     *
+     * @return True if the element was queued, false if it was discarded.
+     */
+    public boolean offer(E element) {
+        long tail = mTail;
+        int index = index(tail);
+        if (mTurns.get(index) != 2 * tail && !makeRoom(tail, index)) return false;
+        mItems[index] = element;
+        mTurns.set(index, 2 * tail + 1);
+        mTail = tail + 1;
+        wakeConsumer();
+        return true;
+    }
+
+    /**
+     * Retrieves the next element, waiting up to the given time for one to arrive.
+     *
+     * @return The next element or null if the wait timed out.
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E element = take();
+        if (element == null && timeout > 0) {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            Thread current = Thread.currentThread();
+            while (true) {
+                // Registered before looking again, so an offer from now on wakes this thread
+                mWaiting.add(current);
+                element = take();
+                long wait = deadline - System.nanoTime();
+                if (element == null && wait > 0) LockSupport.parkNanos(this, wait);
+                mWaiting.remove(current);
+                if (element != null) break;
+                if (Thread.interrupted()) throw new InterruptedException();
+                if (deadline - System.nanoTime() <= 0) {
+                    element = take();
+                    break;
+                }
+            }
+        }
+        // An offer may have woken this thread for an element another consumer took
+        if (element != null && size() > 0) wakeConsumer();
+        return element;
+    }
+
+    public int size() {
+        long size = mTail - mHead.get();
+        return (int) Math.max(0, Math.min(mCapacity, size));
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    /** Number of queued elements evicted by {@link OverflowPolicy#DROP_OLDEST}. */
+    public long getDroppedOldest() {
+        return mDroppedOldest.get();
+    }
+
+    /** Number of new elements rejected by {@link OverflowPolicy#DROP_NEWEST} or a timed out block. */
+    public long getDroppedNewest() {
+        return mDroppedNewest.get();
+    }
+
+    public long getDropped() {
+        return mDroppedOldest.get() + mDroppedNewest.get();
+    }
+
+    private int index(long position) {
+        return (int) (position % mCapacity);
+    }
+
+    /** Takes the element at the head, or returns null if the queue is empty. */
+    @SuppressWarnings("unchecked")
+    private E take() {
+        while (true) {
+            long head = mHead.get();
+            int index = index(head);
+            long turn = mTurns.get(index);
+            if (turn < 2 * head + 1) return null;
+            // Otherwise someone else took the head first
+            if (turn == 2 * head + 1 && mHead.compareAndSet(head, head + 1)) {
+                E element = (E) mItems[index];
+                mItems[index] = null;
+                mTurns.set(index, 2 * (head + mCapacity));
+                Thread producer = mBlockedProducer;
+                if (producer != null) LockSupport.unpark(producer);
+                return element;
+            }
+        }
+    }
+
+    /**
+     * Frees the slot of the given tail position according to the overflow policy.
+     *
+     * @return False if the new element has to be discarded.
+     */
+    private boolean makeRoom(long tail, int index) {
+        switch (mPolicy) {
+            case DROP_OLDEST:
+                while (mTurns.get(index) != 2 * tail) {
+                    if (tail - mHead.get() < mCapacity) {
+                        // A consumer took the slot and is about to free it
+                        Thread.yield();
+                        continue;
+                    }
+                    E evicted = take();
+                    if (evicted == null) continue;
+                    mDroppedOldest.incrementAndGet();
+                    if (mListener != null) mListener.onEvicted(evicted);
+                }
+                return true;
+            case BLOCK:
+                long deadline = System.nanoTime() + mMaxBlockNanos;
+                mBlockedProducer = Thread.currentThread();
+                try {
+                    // Looked at again after registering, so a take from now on wakes the producer
+                    while (mTurns.get(index) != 2 * tail) {
+                        long wait = deadline - System.nanoTime();
+                        if (wait <= 0 || Thread.currentThread().isInterrupted()) break;
+                        LockSupport.parkNanos(this, wait);
+                    }
+                } finally {
+                    mBlockedProducer = null;
+                }
+                if (mTurns.get(index) == 2 * tail) return true;
+                mDroppedNewest.incrementAndGet();
+                return false;
+            default:
+                mDroppedNewest.incrementAndGet();
+                return false;
+        }
+    }
+
+    private void wakeConsumer() {
+        Thread waiting = mWaiting.poll();
+        if (waiting != null) LockSupport.unpark(waiting);
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.capture;
+
+import com.carteryagemann.AICS.ActivityIntentHeader;
+import com.carteryagemann.AICS.BroadcastIntentHeader;
+import com.carteryagemann.AICS.IntentData;
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.AICS.ServiceIntentHeader;
+
+import java.util.Collection;
+
+/**
+ * Reusable scratch objects for turning captured intents into AICS records without producing
+ * garbage. There is one header per intent type and one {@link IntentData}, all handed out again
+ * for every record, so a record must be fully written by its sink before the next one is begun.
+ * Strings that repeat from intent to intent, such as component names and category lists, are
+ * assembled in a reused builder and looked up in a small cache so the same String instance is
+ * returned instead of a new copy.
+ *
+ * Builders are not thread safe, each capture thread needs its own.
+ */
+public final class CaptureRecordBuilder {
+
+    /** Shared stand-in for missing clip data and extras. Never write into it. */
+    public final static byte[] EMPTY_BYTES = new byte[0];
+
+    private final static int DEFAULT_CACHE_SIZE = 256;
+
+    private final ActivityIntentHeader mActivity = new ActivityIntentHeader();
+    private final BroadcastIntentHeader mBroadcast = new BroadcastIntentHeader();
+    private final ServiceIntentHeader mService = new ServiceIntentHeader();
+    private final IntentData mData = new IntentData();
+    private final StringBuilder mScratch = new StringBuilder(128);
+    private final String[] mCache;
+    private final int mCacheMask;
+    private int mCacheHits = 0;
+    private int mCacheMisses = 0;
+
+    public CaptureRecordBuilder() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param cacheSize Number of strings kept for reuse, rounded up to a power of two.
+     */
+    public CaptureRecordBuilder(int cacheSize) {
+        int size = Integer.highestOneBit(Math.max(1, cacheSize - 1)) << 1;
+        mCache = new String[size];
+        mCacheMask = size - 1;
+    }
+
+    /**
+     * Returns the header for an intent type with every field cleared and the shared
+     * {@link IntentData} attached, or null if the type is unknown.
+     */
+    public IntentHeader begin(int intentType) {
+        IntentHeader head;
+        switch (intentType) {
+            case IntentHeader.TYPE_ACTIVITY:
+                head = mActivity.setRequestCode(0)
+                        .setStartFlags(0)
+                        .setReceiverComponent(null)
+                        .setCallerComponent(null);
+                break;
+            case IntentHeader.TYPE_BROADCAST:
+                head = mBroadcast.setRequestCode(0)
+                        .setFlags(0)
+                        .setReceiverComponent(null)
+                        .setCallerComponent(null)
+                        .setRequiredPermission(null);
+                break;
+            case IntentHeader.TYPE_SERVICE:
+                head = mService.setFlags(0)
+                        .setReceiverComponent(null)
+                        .setCallerComponent(null)
+                        .setAction(null);
+                break;
+            default:
+                return null;
+        }
+        mData.setFlags(0)
+                .setAction(null)
+                .setData(null)
+                .setCategory(null)
+                .setType(null)
+                .setClipData(EMPTY_BYTES)
+                .setExtras(EMPTY_BYTES);
+        return head.setTimestamp(0)
+                .setOffset((short) 0)
+                .setCallerUID(0)
+                .setCallerPID(0)
+                .setReceiverUID(0)
+                .setReceiverPID(0)
+                .setUserID(0)
+                .setIntentData(mData);
+    }
+
+    /**
+     * Builds the record for a captured intent. Broadcast records carry no caller fields since
+     * IEM doesn't report them for broadcasts.
+     *
+     * @return The reused header for the intent's type, or null if the type is unknown.
+     */
+    public IntentHeader build(IntentFields fields) {
+        IntentHeader head = begin(fields.intentType);
+        if (head == null) return null;
+        String receiver = null;
+        if (fields.receiverPackage != null && fields.receiverClass != null) {
+            receiver = shortComponentName(fields.receiverPackage, fields.receiverClass);
+        }
+        switch (fields.intentType) {
+            case IntentHeader.TYPE_ACTIVITY:
+                mActivity.setCallerComponent(fields.callingPackage)
+                        .setReceiverComponent(receiver)
+                        .setRequestCode(fields.requestCode)
+                        .setStartFlags(fields.startFlags);
+                head.setCallerUID(fields.callerUid).setCallerPID(fields.callerPid);
+                break;
+            case IntentHeader.TYPE_BROADCAST:
+                mBroadcast.setReceiverComponent(receiver)
+                        .setRequestCode(fields.requestCode)
+                        .setRequiredPermission(fields.requiredPermission);
+                break;
+            default:
+                mService.setAction(fields.serviceAction)
+                        .setCallerComponent(fields.callingPackage)
+                        .setFlags(fields.flags)
+                        .setReceiverComponent(receiver);
+                head.setCallerUID(fields.callerUid).setCallerPID(fields.callerPid);
+                break;
+        }
+        head.setUserID(fields.userId)
+                .setTimestamp(CaptureClock.seconds(fields.captureNanos))
+                .setOffset(CaptureClock.milliOffset(fields.captureNanos))
+                .setReceiverUID(fields.receiverUid);
+        mData.setAction(fields.action)
+                .setData(fields.dataString)
+                .setFlags(fields.intentFlags)
+                .setType(fields.type)
+                .setCategory(joinCategories(fields.categories))
+                .setClipData(fields.clipData == null ? EMPTY_BYTES : fields.clipData)
+                .setExtras(fields.extras == null ? EMPTY_BYTES : fields.extras);
+        // Headers cache the size of their data when it is attached, the library relies on it
+        return head.setIntentData(mData);
+    }
+
+    /**
+     * The {@link IntentData} attached by {@link #begin(int)}. Attach it again once it is filled
+     * in if the header is going to be serialized by the AICS library, which uses the size cached
+     * when the data was attached.
+     */
+    public IntentData data() {
+        return mData;
+    }
+
+    /**
+     * Joins categories the way AICS stores them, each one followed by a semicolon.
+     *
+     * @return An empty string if there are no categories.
+     */
+    public String joinCategories(Collection<String> categories) {
+        if (categories == null || categories.isEmpty()) return "";
+        StringBuilder builder = scratch();
+        for (String category : categories) builder.append(category).append(';');
+        return intern(builder);
+    }
+
+    /**
+     * Same as {@link android.content.ComponentName#toShortString()}, {@code {package/class}}
+     * with the package prefix of the class abbreviated to a dot.
+     */
+    public String shortComponentName(String packageName, String className) {
+        StringBuilder builder = scratch().append('{').append(packageName).append('/');
+        int length = packageName.length();
+        if (className.startsWith(packageName) && className.length() > length
+                && className.charAt(length) == '.') {
+            builder.append(className, length, className.length());
+        } else {
+            builder.append(className);
+        }
+        return intern(builder.append('}'));
+    }
+
+    /**
+     * Returns a cached String equal to the characters, creating and caching one on a miss.
+     */
+    public String intern(CharSequence chars) {
+        int hash = 0;
+        for (int i = 0, n = chars.length(); i < n; i++) hash = 31 * hash + chars.charAt(i);
+        int slot = (hash ^ (hash >>> 16)) & mCacheMask;
+        String cached = mCache[slot];
+        if (cached != null && cached.contentEquals(chars)) {
+            mCacheHits++;
+            return cached;
+        }
+        mCacheMisses++;
+        String value = chars.toString();
+        mCache[slot] = value;
+        return value;
+    }
+
+    public int getCacheHits() {
+        return mCacheHits;
+    }
+
+    public int getCacheMisses() {
+        return mCacheMisses;
+    }
+
+    private StringBuilder scratch() {
+        mScratch.setLength(0);
+        return mScratch;
+    }
+}
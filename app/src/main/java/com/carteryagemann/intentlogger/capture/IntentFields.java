@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.capture;
+
+import java.util.Collection;
+
+/**
+ * The parts of a captured intent that end up in an AICS record, as plain values so records can
+ * be built without Android classes. One instance is filled and reused for every intent.
+ */
+public final class IntentFields {
+
+    // What IEM reported about the delivery
+    public int intentType;
+    /** Nanoseconds since the epoch, see {@link CaptureClock}. */
+    public long captureNanos;
+    public String callingPackage;
+    public String requiredPermission;
+    public String serviceAction;
+    public int requestCode;
+    public int startFlags;
+    public int flags;
+    public int userId;
+    public int callerUid;
+    public int callerPid;
+
+    // Taken from the intent itself
+    public String receiverPackage;
+    public String receiverClass;
+    public int receiverUid;
+    public String action;
+    public String dataString;
+    public int intentFlags;
+    public String type;
+    public Collection<String> categories;
+    public byte[] clipData;
+    public byte[] extras;
+
+    /** Resets every field so nothing leaks from the previous intent. */
+    public IntentFields clear() {
+        intentType = -1;
+        captureNanos = 0;
+        callingPackage = null;
+        requiredPermission = null;
+        serviceAction = null;
+        requestCode = 0;
+        startFlags = 0;
+        flags = 0;
+        userId = 0;
+        callerUid = 0;
+        callerPid = 0;
+        receiverPackage = null;
+        receiverClass = null;
+        receiverUid = 0;
+        action = null;
+        dataString = null;
+        intentFlags = 0;
+        type = null;
+        categories = null;
+        clipData = null;
+        extras = null;
+        return this;
+    }
+}
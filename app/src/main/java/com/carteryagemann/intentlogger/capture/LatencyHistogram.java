@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.capture;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count, mean, maximum and percentiles of a latency measured on a single thread. Other threads
+ * may read the values at any time.
+ *
+ * <p>Values below 16 ns get their own bucket, larger ones fall in one of eight buckets per power
+ * of two, so percentiles are at most 12.5% too high and recording never allocates.
+ */
+public final class LatencyHistogram {
+
+    private final static int LINEAR_BUCKETS = 16;
+    private final static int SUB_BUCKET_BITS = 3;
+    private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private final static int BUCKET_COUNT = LINEAR_BUCKETS + (63 - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private volatile long mCount = 0;
+    private volatile long mTotalNanos = 0;
+    private volatile long mMaxNanos = 0;
+
+    static int bucketOf(long nanos) {
+        if (nanos < LINEAR_BUCKETS) return (int) Math.max(0, nanos);
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    /** The largest value that falls in a bucket. */
+    static long highestIn(int bucket) {
+        if (bucket < LINEAR_BUCKETS) return bucket;
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (SUB_BUCKETS + sub) * width + width - 1;
+    }
+
+    /** Records one sample. Must only be called from the measuring thread. */
+    public void record(long nanos) {
+        int bucket = bucketOf(nanos);
+        mBuckets.lazySet(bucket, mBuckets.get(bucket) + 1);
+        mCount++;
+        mTotalNanos += nanos;
+        if (nanos > mMaxNanos) mMaxNanos = nanos;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) mBuckets.set(i, 0);
+        mCount = 0;
+        mTotalNanos = 0;
+        mMaxNanos = 0;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getMeanNanos() {
+        long count = mCount;
+        return count == 0 ? 0 : mTotalNanos / count;
+    }
+
+    public long getMaxNanos() {
+        return mMaxNanos;
+    }
+
+    /**
+     * The latency below which a fraction of the samples fall, rounded up to its bucket.
+     *
+     * @param fraction Between 0 and 1, e.g. 0.99 for the 99th percentile.
+     */
+    public long getPercentileNanos(double fraction) {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mBuckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        long max = mMaxNanos;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(highestIn(i), max);
+        }
+        return max;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.capture;
+
+/**
+ * What a {@link CaptureQueue} does when an intent arrives and the queue is already full.
+ */
+public enum OverflowPolicy {
+
+    /** Evict the oldest queued intent to make room for the new one. */
+    DROP_OLDEST,
+
+    /** Discard the new intent and keep what is already queued. */
+    DROP_NEWEST,
+
+    /**
+     * Wait for the worker to make room, but never longer than the queue's block timeout.
+     * If the timeout expires the new intent is discarded as with {@link #DROP_NEWEST}.
+     */
+    BLOCK;
+
+    /**
+     * Parses a policy name such as "drop-oldest" or "BLOCK".
+     *
+     * @param name The policy name, may be null.
+     * @param fallback Returned if the name is null or unknown.
+     */
+    public static OverflowPolicy parse(String name, OverflowPolicy fallback) {
+        if (name == null) return fallback;
+        try {
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+}
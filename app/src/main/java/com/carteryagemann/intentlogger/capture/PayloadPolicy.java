@@ -0,0 +1,207 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.intentlogger.capture;
+
+import com.carteryagemann.intentlogger.storage.PayloadEncoding;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides how much of an intent's marshalled clip data and extras is stored. Rules are compiled
+ * once when logging starts and checked in order, the first rule that matches a payload decides:
+ *
+ * <pre>
+ *     full action=android.intent.action.SEND
+ *     truncate=4096 package=com.example
+ *     hash larger=65536
+ * </pre>
+ *
+ * A rule starts with its mode, {@code full}, {@code truncate=<bytes>} to keep the first bytes or
+ * {@code hash} to keep only a hash and the length, followed by conditions, all of which must hold:
+ * <ul>
+ *     <li>{@code field}: extras or clipData.</li>
+ *     <li>{@code action}: a prefix of the action.</li>
+ *     <li>{@code package}: the caller's or the receiver's package.</li>
+ *     <li>{@code larger}: payloads longer than this many bytes.</li>
+ * </ul>
+ * Payloads no rule matches are stored in full. See {@link PayloadEncoding} for how truncated and
+ * hashed payloads are stored.
+ *
+ * <p>Policies are immutable apart from their counters and may be shared by capture threads.
+ */
+public final class PayloadPolicy {
+
+    public final static int FIELD_EXTRAS    = 0;
+    public final static int FIELD_CLIP_DATA = 1;
+
+    private final static int MODE_FULL     = 0;
+    private final static int MODE_TRUNCATE = 1;
+    private final static int MODE_HASH     = 2;
+
+    private final static class Rule {
+        final String spec;
+        int mode;
+        int limit;
+        int field = -1;
+        String actionPrefix;
+        String packageName;
+        int larger = -1;
+
+        Rule(String spec) {
+            this.spec = spec;
+        }
+
+        boolean matches(int field, IntentFields fields, int length) {
+            if (this.field >= 0 && this.field != field) return false;
+            if (length <= larger) return false;
+            if (actionPrefix != null
+                    && (fields.action == null || !fields.action.startsWith(actionPrefix))) {
+                return false;
+            }
+            return packageName == null || packageName.equals(fields.callingPackage)
+                    || packageName.equals(fields.receiverPackage);
+        }
+    }
+
+    private final Rule[] mRules;
+    private final StripedCounter mTruncated = new StripedCounter();
+    private final StripedCounter mHashed = new StripedCounter();
+    private final StripedCounter mBytesSaved = new StripedCounter();
+
+    private PayloadPolicy(Rule[] rules) {
+        mRules = rules;
+    }
+
+    /**
+     * Compiles rules, see the class description for the syntax.
+     *
+     * @throws IllegalArgumentException If a rule is malformed.
+     */
+    public static PayloadPolicy compile(String[] specs) {
+        List<Rule> rules = new ArrayList<>();
+        if (specs != null) {
+            for (String spec : specs) {
+                if (spec != null && !spec.trim().isEmpty()) rules.add(parse(spec.trim()));
+            }
+        }
+        return new PayloadPolicy(rules.toArray(new Rule[rules.size()]));
+    }
+
+    private static Rule parse(String spec) {
+        String[] tokens = spec.split("\\s+");
+        Rule rule = new Rule(spec);
+        try {
+            if (tokens[0].equals("full")) {
+                rule.mode = MODE_FULL;
+            } else if (tokens[0].equals("hash")) {
+                rule.mode = MODE_HASH;
+            } else if (tokens[0].startsWith("truncate=")) {
+                rule.mode = MODE_TRUNCATE;
+                rule.limit = Integer.parseInt(tokens[0].substring("truncate=".length()));
+                if (rule.limit < 0) {
+                    throw new IllegalArgumentException("Truncate needs a size: " + spec);
+                }
+            } else {
+                throw new IllegalArgumentException("Rule must start with full, truncate=<bytes> "
+                        + "or hash: " + spec);
+            }
+            for (int i = 1; i < tokens.length; i++) {
+                int split = tokens[i].indexOf('=');
+                if (split <= 0 || split == tokens[i].length() - 1) {
+                    throw new IllegalArgumentException("Expected key=value in rule: " + spec);
+                }
+                String key = tokens[i].substring(0, split);
+                String value = tokens[i].substring(split + 1);
+                switch (key) {
+                    case "field":
+                        if (value.equals("extras")) {
+                            rule.field = FIELD_EXTRAS;
+                        } else if (value.equals("clipData")) {
+                            rule.field = FIELD_CLIP_DATA;
+                        } else {
+                            throw new IllegalArgumentException("Unknown field " + value
+                                    + " in rule: " + spec);
+                        }
+                        break;
+                    case "action":
+                        rule.actionPrefix = value;
+                        break;
+                    case "package":
+                        rule.packageName = value;
+                        break;
+                    case "larger":
+                        rule.larger = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown key " + key + " in rule: "
+                                + spec);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad number in rule: " + spec);
+        }
+        return rule;
+    }
+
+    /**
+     * Encodes a marshalled payload as the first matching rule says. Only the action and package
+     * fields of the intent are read.
+     *
+     * @param field {@link #FIELD_EXTRAS} or {@link #FIELD_CLIP_DATA}.
+     * @return The bytes to store, the payload itself if it is kept in full.
+     */
+    public byte[] apply(int field, IntentFields fields, byte[] payload) {
+        if (payload == null || payload.length == 0) return payload;
+        for (Rule rule : mRules) {
+            if (!rule.matches(field, fields, payload.length)) continue;
+            byte[] stored;
+            switch (rule.mode) {
+                case MODE_TRUNCATE:
+                    stored = PayloadEncoding.truncate(payload, rule.limit);
+                    if (stored == payload) return payload;
+                    mTruncated.increment();
+                    break;
+                case MODE_HASH:
+                    stored = PayloadEncoding.hashed(payload);
+                    mHashed.increment();
+                    break;
+                default:
+                    return payload;
+            }
+            mBytesSaved.add(payload.length - stored.length);
+            return stored;
+        }
+        return payload;
+    }
+
+    public int getRuleCount() {
+        return mRules.length;
+    }
+
+    public long getTruncatedCount() {
+        return mTruncated.sum();
+    }
+
+    public long getHashedCount() {
+        return mHashed.sum();
+    }
+
+    /** Bytes not stored because of truncation and hashing. */
+    public long getBytesSaved() {
+        return mBytesSaved.sum();
+    }
+}
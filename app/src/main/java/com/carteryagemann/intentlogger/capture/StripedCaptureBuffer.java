@@ -0,0 +1,227 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.capture;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands captured intents from several capture threads to one writer without locks. Every
+ * capture thread owns a stripe, a single-producer ring of preallocated slots that are filled in
+ * place, so nothing is allocated per intent. Each slot is published with the sequence number the
+ * intent got on arrival and the writer takes slots from the stripe heads in sequence order.
+ *
+ * <p>A stripe must only be filled by one thread, in increasing sequence order. Sequences a
+ * producer knows will never arrive, e.g. because the intent was evicted from the queue, are
+ * handed to the writer through {@link #skip(int, long, long)} so it moves past them right away.
+ * Other missing sequences are skipped once every stripe has something newer or after the gap
+ * has lasted {@code maxGapMillis}. A slot published after its sequence was skipped is still
+ * handed out, as late as it came.
+ */
+public final class StripedCaptureBuffer<T> {
+
+    /** Creates the objects slots are filled into. */
+    public interface Factory<T> {
+        T create();
+    }
+
+    private final static class Stripe {
+        final Object[] slots;
+        final long[] sequences;
+        // End of the skipped range, or -1 for a filled slot
+        final long[] skipEnds;
+        final int mask;
+        // Published slots, written by the producer
+        final AtomicLong tail = new AtomicLong();
+        // Released slots, written by the consumer
+        final AtomicLong head = new AtomicLong();
+
+        Stripe(int capacity, Factory<?> factory) {
+            slots = new Object[capacity];
+            sequences = new long[capacity];
+            skipEnds = new long[capacity];
+            mask = capacity - 1;
+            for (int i = 0; i < capacity; i++) slots[i] = factory.create();
+        }
+    }
+
+    private final Stripe[] mStripes;
+    private final long mMaxGapNanos;
+
+    // Consumer state
+    private long mNext = 0;
+    private long mGapSince = -1;
+    private int mTaken = -1;
+    private volatile long mSkipped = 0;
+    private volatile long mLate = 0;
+
+    /**
+     * @param stripes One per capture thread.
+     * @param stripeCapacity Slots per stripe, rounded up to a power of two.
+     * @param maxGapMillis Longest time the writer waits for a missing sequence.
+     */
+    public StripedCaptureBuffer(int stripes, int stripeCapacity, long maxGapMillis,
+                                Factory<T> factory) {
+        if (stripes < 1) throw new IllegalArgumentException("Need at least one stripe.");
+        int capacity = Integer.highestOneBit(Math.max(1, stripeCapacity - 1)) << 1;
+        mStripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) mStripes[i] = new Stripe(capacity, factory);
+        mMaxGapNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxGapMillis));
+    }
+
+    public int getStripeCount() {
+        return mStripes.length;
+    }
+
+    /**
+     * Returns the next free slot of a stripe to fill, or null if the stripe is full. Only the
+     * stripe's producer may call this.
+     */
+    @SuppressWarnings("unchecked")
+    public T claim(int stripe) {
+        Stripe s = mStripes[stripe];
+        long tail = s.tail.get();
+        if (tail - s.head.get() > s.mask) return null;
+        return (T) s.slots[(int) tail & s.mask];
+    }
+
+    /**
+     * Hands the slot returned by the last {@link #claim(int)} to the writer. This is a full
+     * volatile write, so a producer that checks afterwards whether the writer went to sleep
+     * can't miss it.
+     */
+    public void publish(int stripe, long sequence) {
+        Stripe s = mStripes[stripe];
+        long tail = s.tail.get();
+        s.sequences[(int) tail & s.mask] = sequence;
+        s.skipEnds[(int) tail & s.mask] = -1;
+        s.tail.set(tail + 1);
+    }
+
+    /**
+     * Tells the writer that the sequences from {@code from} up to, but not including, {@code to}
+     * will never be published. The range takes a slot of the stripe, so only the stripe's
+     * producer may call this and only in sequence order with its other slots.
+     *
+     * @return False if the stripe is full.
+     */
+    public boolean skip(int stripe, long from, long to) {
+        Stripe s = mStripes[stripe];
+        long tail = s.tail.get();
+        if (tail - s.head.get() > s.mask) return false;
+        s.sequences[(int) tail & s.mask] = from;
+        s.skipEnds[(int) tail & s.mask] = to;
+        s.tail.set(tail + 1);
+        return true;
+    }
+
+    /**
+     * Takes the published slot with the lowest sequence, if it may go next. The slot stays
+     * valid until {@link #release()}. Only the writer may call this.
+     *
+     * @param drain True once no more slots will be published, gaps are then skipped right away.
+     * @return The slot, or null if nothing may go yet.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll(boolean drain) {
+        if (mTaken >= 0) throw new IllegalStateException("Release the previous slot first.");
+        while (true) {
+            int best = choose(drain);
+            if (best < 0) return null;
+            Stripe s = mStripes[best];
+            long head = s.head.get();
+            long skipEnd = s.skipEnds[(int) head & s.mask];
+            if (skipEnd < 0) {
+                mTaken = best;
+                return (T) s.slots[(int) head & s.mask];
+            }
+            if (skipEnd > mNext) mNext = skipEnd;
+            s.head.lazySet(head + 1);
+        }
+    }
+
+    /**
+     * Picks the stripe whose head goes next and moves past the sequences before it.
+     *
+     * @return The stripe, or -1 if nothing may go yet.
+     */
+    private int choose(boolean drain) {
+        int best = -1;
+        long bestSequence = Long.MAX_VALUE;
+        boolean allReady = true;
+        for (int i = 0; i < mStripes.length; i++) {
+            Stripe s = mStripes[i];
+            long head = s.head.get();
+            if (head == s.tail.get()) {
+                allReady = false;
+                continue;
+            }
+            long sequence = s.sequences[(int) head & s.mask];
+            if (sequence < bestSequence) {
+                bestSequence = sequence;
+                best = i;
+            }
+        }
+        if (best < 0) return -1;
+        if (bestSequence > mNext && !allReady && !drain) {
+            // Someone may still be publishing the missing sequence
+            long now = System.nanoTime();
+            if (mGapSince < 0) mGapSince = now;
+            if (now - mGapSince < mMaxGapNanos) return -1;
+        }
+        mGapSince = -1;
+        Stripe s = mStripes[best];
+        // Skipped ranges only move the writer on, they are neither missing nor late
+        if (s.skipEnds[(int) s.head.get() & s.mask] >= 0) {
+            if (bestSequence > mNext) mSkipped += bestSequence - mNext;
+            return best;
+        }
+        if (bestSequence > mNext) mSkipped += bestSequence - mNext;
+        if (bestSequence < mNext) {
+            mLate++;
+        } else {
+            mNext = bestSequence + 1;
+        }
+        return best;
+    }
+
+    /** Gives the slot returned by the last {@link #poll(boolean)} back to its producer. */
+    public void release() {
+        if (mTaken < 0) return;
+        Stripe s = mStripes[mTaken];
+        s.head.lazySet(s.head.get() + 1);
+        mTaken = -1;
+    }
+
+    /** True if no stripe has a published slot. */
+    public boolean isEmpty() {
+        for (Stripe s : mStripes) {
+            if (s.head.get() != s.tail.get()) return false;
+        }
+        return true;
+    }
+
+    /** Sequences that never arrived. */
+    public long getSkipped() {
+        return mSkipped;
+    }
+
+    /** Slots handed out after their sequence had been skipped. */
+    public long getLate() {
+        return mLate;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.capture;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter many threads can bump without contending on one memory location, in the spirit of
+ * {@code LongAdder} which Android doesn't have. Each thread adds to one of several cells, picked
+ * by its ID, and readers sum the cells.
+ */
+public final class StripedCounter {
+
+    // Cells are eight longs apart so they don't share a cache line
+    private final static int SPACING = 8;
+    private final static int MAX_CELLS = 64;
+
+    private final AtomicLongArray mCells;
+    private final int mMask;
+
+    public StripedCounter() {
+        int cells = Math.min(MAX_CELLS,
+                Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1);
+        mMask = cells - 1;
+        mCells = new AtomicLongArray(cells * SPACING);
+    }
+
+    public void add(long value) {
+        mCells.getAndAdd(((int) Thread.currentThread().getId() & mMask) * SPACING, value);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    /** The total, which may miss additions made while it is summed. */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i <= mMask; i++) sum += mCells.get(i * SPACING);
+        return sum;
+    }
+
+    /** Sets the counter to zero. Additions made meanwhile may be lost. */
+    public void reset() {
+        for (int i = 0; i <= mMask; i++) mCells.set(i * SPACING, 0);
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.storage;
+
+import com.carteryagemann.AICS.ActivityIntentHeader;
+import com.carteryagemann.AICS.BroadcastIntentHeader;
+import com.carteryagemann.AICS.IntentData;
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.AICS.ServiceIntentHeader;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+
+/**
+ * Encodes AICS file headers and records exactly the way {@link com.carteryagemann.AICS.AICSFile}
+ * does, but into a caller supplied buffer so records can be written one at a time.
+ */
+public final class AICSFormat {
+
+    public final static int MAGIC_NUMBER = 0xA1B2C3D4;
+    public final static short FORMAT_MAJOR_VERSION = 0;
+
+    /** The record layout understood by the AICS library. */
+    public final static short FORMAT_MINOR_VERSION = 1;
+
+    /** Records refer to an interned string table, see {@link DictionaryAICSWriter}. */
+    public final static short FORMAT_MINOR_DICTIONARY = 2;
+
+    /** Standard records in DEFLATE compressed blocks, see {@link CompressedAICSWriter}. */
+    public final static short FORMAT_MINOR_COMPRESSED = 3;
+
+    /** Standard fields as varints with delta coded times, see {@link CompactAICSWriter}. */
+    public final static short FORMAT_MINOR_COMPACT = 4;
+
+    /** Size of the file header in bytes. */
+    public final static int FILE_HEADER_SIZE = 12;
+
+    /** Size of the fixed part of an {@link IntentData} record in bytes. */
+    public final static int INTENT_DATA_FIXED_SIZE = 28;
+
+    /** Size of the fixed part of each header type in bytes, indexed by intent type. */
+    private final static int[] HEADER_FIXED_SIZE = {52, 52, 48};
+
+    /** The fields of an AICS file header. */
+    public static class FileHeader {
+        public final short formatMinor;
+        public final short androidMajor;
+        public final byte androidMinor;
+        public final byte androidPatch;
+
+        public FileHeader(short formatMinor, short androidMajor, byte androidMinor,
+                          byte androidPatch) {
+            this.formatMinor = formatMinor;
+            this.androidMajor = androidMajor;
+            this.androidMinor = androidMinor;
+            this.androidPatch = androidPatch;
+        }
+    }
+
+    /**
+     * Thrown by {@link #readRecord(ByteBuffer)} when a record runs past the end of the buffer,
+     * e.g. the torn tail of a file that was still being written.
+     */
+    public static class TruncatedRecordException extends ParseException {
+        private final static long serialVersionUID = 1L;
+
+        public TruncatedRecordException(int errorOffset) {
+            super("Record is truncated.", errorOffset);
+        }
+    }
+
+    private AICSFormat() {}
+
+    public static void writeFileHeader(ByteBuffer out, short androidMajor, byte androidMinor,
+                                       byte androidPatch) {
+        writeFileHeader(out, FORMAT_MINOR_VERSION, androidMajor, androidMinor, androidPatch);
+    }
+
+    public static void writeFileHeader(ByteBuffer out, short formatMinor, short androidMajor,
+                                       byte androidMinor, byte androidPatch) {
+        out.putInt(MAGIC_NUMBER)
+                .putShort(FORMAT_MAJOR_VERSION)
+                .putShort(formatMinor)
+                .putShort(androidMajor)
+                .put(androidMinor)
+                .put(androidPatch);
+    }
+
+    /**
+     * Reads a file header of any minor format version.
+     *
+     * @throws ParseException If the magic number or major version don't match.
+     */
+    public static FileHeader readFileHeader(ByteBuffer in) throws ParseException {
+        try {
+            if (in.getInt() != MAGIC_NUMBER) {
+                throw new ParseException("Failed to read magic number. File is either corrupt or "
+                        + "in little endian order (currently not implemented).", in.position());
+            }
+            short major = in.getShort();
+            short minor = in.getShort();
+            if (major != FORMAT_MAJOR_VERSION) {
+                throw new ParseException("File's format version " + major + "." + minor
+                        + " is not supported.", in.position());
+            }
+            return new FileHeader(minor, in.getShort(), in.get(), in.get());
+        } catch (BufferUnderflowException e) {
+            throw new ParseException("File is too short for an AICS header.", in.position());
+        }
+    }
+
+    /**
+     * Reads one standard record with the AICS library, leaving the buffer after it.
+     *
+     * @throws TruncatedRecordException If the record needs more bytes than the buffer has
+     *                                  left. The buffer is left at the start of the record.
+     * @throws ParseException If the record is of an unknown type.
+     */
+    public static IntentHeader readRecord(ByteBuffer in) throws ParseException {
+        int start = in.position();
+        try {
+            switch (IntentHeader.parseIntentType(in)) {
+                case IntentHeader.TYPE_ACTIVITY:
+                    return new ActivityIntentHeader(in);
+                case IntentHeader.TYPE_BROADCAST:
+                    return new BroadcastIntentHeader(in);
+                case IntentHeader.TYPE_SERVICE:
+                    return new ServiceIntentHeader(in);
+                default:
+                    throw new ParseException("Unknown intent type.", in.position());
+            }
+        } catch (BufferUnderflowException e) {
+            in.position(start);
+            throw new TruncatedRecordException(start);
+        }
+    }
+
+    /** Size of the fixed part of a header of the given type. */
+    public static int headerFixedSize(int intentType) {
+        return HEADER_FIXED_SIZE[intentType];
+    }
+
+    /**
+     * Number of bytes {@link #writeRecord(IntentHeader, ByteBuffer)} will produce for a header
+     * and its intent data.
+     */
+    public static int recordSize(IntentHeader head) {
+        IntentData data = head.getIntentData();
+        if (data == null) throw new IllegalArgumentException("Header has no intent data!");
+        int size = headerFixedSize(head.getIntentType()) + dataSize(data);
+        switch (head.getIntentType()) {
+            case IntentHeader.TYPE_ACTIVITY:
+                ActivityIntentHeader activity = (ActivityIntentHeader) head;
+                return size + length(activity.getReceiverComponent())
+                        + length(activity.getCallerComponent())
+                        + length(activity.getOptions());
+            case IntentHeader.TYPE_BROADCAST:
+                BroadcastIntentHeader broadcast = (BroadcastIntentHeader) head;
+                return size + length(broadcast.getReceiverComponent())
+                        + length(broadcast.getCallerComponent())
+                        + length(broadcast.getRequiredPermission());
+            case IntentHeader.TYPE_SERVICE:
+                ServiceIntentHeader service = (ServiceIntentHeader) head;
+                return size + length(service.getReceiverComponent())
+                        + length(service.getCallerComponent())
+                        + length(service.getAction());
+            default:
+                throw new IllegalArgumentException("Unknown intent type " + head.getIntentType());
+        }
+    }
+
+    /**
+     * Writes a header followed by its intent data. The buffer must have at least
+     * {@link #recordSize(IntentHeader)} bytes remaining.
+     *
+     * @throws IllegalArgumentException If the header has no intent data or a string is not plain
+     *                                  ASCII. AICS stores the character count as the field size,
+     *                                  so anything else couldn't be read back.
+     */
+    public static void writeRecord(IntentHeader head, ByteBuffer out) {
+        IntentData data = head.getIntentData();
+        out.putInt(head.getTimestamp())
+                .putShort(head.getOffset())
+                .putShort(head.getIntentType())
+                .putInt(head.getCallerUID())
+                .putInt(head.getCallerPID())
+                .putInt(head.getReceiverUID())
+                .putInt(head.getReceiverPID())
+                .putInt(head.getUserID());
+        switch (head.getIntentType()) {
+            case IntentHeader.TYPE_ACTIVITY:
+                ActivityIntentHeader activity = (ActivityIntentHeader) head;
+                out.putInt(activity.getRequestCode())
+                        .putInt(activity.getStartFlags())
+                        .putInt(length(activity.getReceiverComponent()))
+                        .putInt(length(activity.getCallerComponent()))
+                        .putInt(length(activity.getOptions()))
+                        .putInt(dataSize(data));
+                putString(out, activity.getReceiverComponent());
+                putString(out, activity.getCallerComponent());
+                putBytes(out, activity.getOptions());
+                break;
+            case IntentHeader.TYPE_BROADCAST:
+                BroadcastIntentHeader broadcast = (BroadcastIntentHeader) head;
+                out.putInt(broadcast.getRequestCode())
+                        .putInt(broadcast.getFlags())
+                        .putInt(length(broadcast.getReceiverComponent()))
+                        .putInt(length(broadcast.getCallerComponent()))
+                        .putInt(length(broadcast.getRequiredPermission()))
+                        .putInt(dataSize(data));
+                putString(out, broadcast.getReceiverComponent());
+                putString(out, broadcast.getCallerComponent());
+                putString(out, broadcast.getRequiredPermission());
+                break;
+            case IntentHeader.TYPE_SERVICE:
+                ServiceIntentHeader service = (ServiceIntentHeader) head;
+                out.putInt(service.getFlags())
+                        .putInt(length(service.getReceiverComponent()))
+                        .putInt(length(service.getCallerComponent()))
+                        .putInt(length(service.getAction()))
+                        .putInt(dataSize(data));
+                putString(out, service.getReceiverComponent());
+                putString(out, service.getCallerComponent());
+                putString(out, service.getAction());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown intent type " + head.getIntentType());
+        }
+        writeIntentData(data, out);
+    }
+
+    private static void writeIntentData(IntentData data, ByteBuffer out) {
+        out.putInt(data.getFlags())
+                .putInt(length(data.getAction()))
+                .putInt(length(data.getData()))
+                .putInt(length(data.getCategory()))
+                .putInt(length(data.getType()))
+                .putInt(length(data.getClipData()))
+                .putInt(length(data.getExtras()));
+        putString(out, data.getAction());
+        putString(out, data.getData());
+        putString(out, data.getCategory());
+        putString(out, data.getType());
+        putBytes(out, data.getClipData());
+        putBytes(out, data.getExtras());
+    }
+
+    private static int dataSize(IntentData data) {
+        return data.getSize();
+    }
+
+    static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    static int length(byte[] value) {
+        return value == null ? 0 : value.length;
+    }
+
+    static void putString(ByteBuffer out, String value) {
+        if (value == null) return;
+        for (int i = 0, n = value.length(); i < n; i++) {
+            char c = value.charAt(i);
+            if (c > 0x7F) throw new IllegalArgumentException("String is not ASCII: " + value);
+            out.put((byte) c);
+        }
+    }
+
+    static void putBytes(ByteBuffer out, byte[] value) {
+        if (value != null) out.put(value);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.storage;
+
+import com.carteryagemann.AICS.IntentHeader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes an AICS file one record at a time. The file header is written once when the writer is
+ * created and every appended record is encoded straight into a reused direct buffer that is
+ * drained to the channel whenever it fills up. Memory use therefore doesn't depend on how many
+ * records are logged, and the bytes on disk are the same as those produced by
+ * {@link com.carteryagemann.AICS.AICSFile#toByteBuffer()} for the same records.
+ *
+ * Writers are not thread safe.
+ */
+public class AICSStreamWriter extends BufferedRecordWriter {
+
+    /**
+     * Creates (or truncates) a file and writes the AICS file header to it.
+     */
+    public static AICSStreamWriter create(File file, short androidMajor, byte androidMinor,
+                                          byte androidPatch) throws IOException {
+        FileChannel channel = new FileOutputStream(file).getChannel();
+        return new AICSStreamWriter(channel, androidMajor, androidMinor, androidPatch,
+                DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param channel Channel positioned where the file should start. The writer takes ownership
+     *                of it and closes it in {@link #close()}.
+     * @param bufferSize Initial size of the direct buffer. It grows if a single record is larger.
+     */
+    public AICSStreamWriter(FileChannel channel, short androidMajor, byte androidMinor,
+                            byte androidPatch, int bufferSize) throws IOException {
+        super(channel, bufferSize);
+        AICSFormat.writeFileHeader(reserve(AICSFormat.FILE_HEADER_SIZE), androidMajor,
+                androidMinor, androidPatch);
+        addBytesWritten(AICSFormat.FILE_HEADER_SIZE);
+    }
+
+    @Override
+    protected int maxRecordSize(IntentHeader head) {
+        return AICSFormat.recordSize(head);
+    }
+
+    @Override
+    protected void writeRecord(IntentHeader head, ByteBuffer out) {
+        AICSFormat.writeRecord(head, out);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.storage;
+
+import com.carteryagemann.AICS.IntentHeader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Base for sinks that encode records into a reused direct buffer and drain it to a file channel
+ * whenever it fills up. Subclasses only decide how a record is laid out.
+ */
+public abstract class BufferedRecordWriter implements RecordSink {
+
+    public final static int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel mChannel;
+    private ByteBuffer mBuffer;
+    private long mBytesWritten = 0;
+    private int mRecordCount = 0;
+    private boolean mClosed = false;
+
+    /**
+     * @param channel Channel positioned where the file should start. The writer takes ownership
+     *                of it and closes it in {@link #close()}.
+     * @param bufferSize Initial size of the direct buffer. It grows if a single record is larger.
+     */
+    protected BufferedRecordWriter(FileChannel channel, int bufferSize) {
+        mChannel = channel;
+        mBuffer = ByteBuffer.allocateDirect(Math.max(bufferSize, AICSFormat.FILE_HEADER_SIZE));
+    }
+
+    /**
+     * Upper bound of the bytes {@link #writeRecord(IntentHeader, ByteBuffer)} will produce.
+     *
+     * @throws IllegalArgumentException If the record can't be encoded.
+     */
+    protected abstract int maxRecordSize(IntentHeader head);
+
+    /**
+     * Encodes one record. If this throws, the buffer is rewound and
+     * {@link #discardRecord()} is called so the subclass can undo any state it changed.
+     */
+    protected abstract void writeRecord(IntentHeader head, ByteBuffer out);
+
+    /** Called after {@link #writeRecord(IntentHeader, ByteBuffer)} failed. */
+    protected void discardRecord() {}
+
+    /**
+     * Returns the write buffer with at least the requested number of bytes remaining, draining
+     * or growing it as needed.
+     */
+    protected final ByteBuffer reserve(int bytes) throws IOException {
+        if (bytes > mBuffer.remaining()) {
+            drain();
+            if (bytes > mBuffer.capacity()) {
+                int capacity = mBuffer.capacity();
+                while (capacity < bytes) capacity <<= 1;
+                mBuffer = ByteBuffer.allocateDirect(capacity);
+            }
+        }
+        return mBuffer;
+    }
+
+    /** Accounts for bytes written directly into the buffer outside of records, e.g. headers. */
+    protected final void addBytesWritten(long bytes) {
+        mBytesWritten += bytes;
+    }
+
+    /**
+     * Encodes a record into the write buffer. A record that can't be encoded leaves the file
+     * untouched.
+     */
+    @Override
+    public void append(IntentHeader head) throws IOException {
+        if (mClosed) throw new IOException("Writer is closed.");
+        ByteBuffer out = reserve(maxRecordSize(head));
+        int start = out.position();
+        try {
+            writeRecord(head, out);
+        } catch (RuntimeException e) {
+            out.position(start);
+            discardRecord();
+            throw e;
+        }
+        mBytesWritten += out.position() - start;
+        mRecordCount++;
+    }
+
+    @Override
+    public void flush(boolean force) throws IOException {
+        if (mClosed) return;
+        drain();
+        if (force) mChannel.force(false);
+    }
+
+    @Override
+    public FileSync flushForSync() throws IOException {
+        if (mClosed) return FileSync.NONE;
+        drain();
+        return new FileSync(mChannel);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) return;
+        try {
+            flush(true);
+        } finally {
+            mClosed = true;
+            mChannel.close();
+        }
+    }
+
+    /** Bytes in the file once everything appended so far has been flushed. */
+    @Override
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    @Override
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    private void drain() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) mChannel.write(mBuffer);
+        mBuffer.clear();
+    }
+}
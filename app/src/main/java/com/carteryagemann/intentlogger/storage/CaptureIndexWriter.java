@@ -0,0 +1,297 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.storage;
+
+import com.carteryagemann.AICS.ActivityIntentHeader;
+import com.carteryagemann.AICS.BroadcastIntentHeader;
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.AICS.ServiceIntentHeader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collects the searchable fields of the records appended to one standard AICS segment and writes
+ * them as an index sidecar, {@code <segment>.aidx}, so analysis can find records by time, UID,
+ * action or receiver component without scanning the segment.
+ *
+ * The sidecar is big endian:
+ * <pre>
+ *   int    {@link #MAGIC}
+ *   short  {@link #VERSION}
+ *   short  0
+ *   int    record count n
+ *   long[n]          file offset of every record, by record number
+ *   n x (long, int)  capture time in epoch millis and record number, sorted by time
+ *   int    string count, then for each string an int length and UTF-8 bytes, sorted
+ *   five sections in the order type, caller UID, receiver UID, action, receiver component:
+ *     int  key count, then for each key in ascending order
+ *          int key, int m, int[m] record numbers in ascending order
+ * </pre>
+ * Keys of the action and component sections are positions in the string table. Records without
+ * an action or receiver component are not listed in those sections.
+ */
+public class CaptureIndexWriter {
+
+    public final static String EXTENSION = ".aidx";
+    public final static int MAGIC = 0x41494458;
+    public final static short VERSION = 1;
+
+    public final static int SECTION_TYPE = 0;
+    public final static int SECTION_CALLER_UID = 1;
+    public final static int SECTION_RECEIVER_UID = 2;
+    public final static int SECTION_ACTION = 3;
+    public final static int SECTION_COMPONENT = 4;
+    public final static int SECTION_COUNT = 5;
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static int INITIAL_CAPACITY = 1024;
+
+    private long[] mOffsets = new long[INITIAL_CAPACITY];
+    private long[] mTimes = new long[INITIAL_CAPACITY];
+    private int[][] mKeys = new int[SECTION_COUNT][INITIAL_CAPACITY];
+    private int mCount = 0;
+
+    // Strings get provisional IDs in the order they appear, they are sorted when written
+    private final HashMap<String, Integer> mStrings = new HashMap<>();
+
+    // Sidecars written so far and the newest one renamed into place, which may happen on the
+    // thread running a sync
+    private long mWritten = 0;
+    private final Object mRenameLock = new Object();
+    private long mRenamed = 0;
+
+    /** Sidecar file of a segment. */
+    public static File sidecarFor(File segment) {
+        String name = segment.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(segment.getParentFile(),
+                (dot < 0 ? name : name.substring(0, dot)) + EXTENSION);
+    }
+
+    /**
+     * Records where the next record of the segment starts. Records must be added in the order
+     * they were appended to the segment.
+     */
+    public void add(long offset, IntentHeader head) {
+        if (mCount == mOffsets.length) grow();
+        String component;
+        switch (head.getIntentType()) {
+            case IntentHeader.TYPE_ACTIVITY:
+                component = ((ActivityIntentHeader) head).getReceiverComponent();
+                break;
+            case IntentHeader.TYPE_BROADCAST:
+                component = ((BroadcastIntentHeader) head).getReceiverComponent();
+                break;
+            default:
+                component = ((ServiceIntentHeader) head).getReceiverComponent();
+                break;
+        }
+        mOffsets[mCount] = offset;
+        mTimes[mCount] = head.getTimestamp() * 1000L + head.getOffset();
+        mKeys[SECTION_TYPE][mCount] = head.getIntentType();
+        mKeys[SECTION_CALLER_UID][mCount] = head.getCallerUID();
+        mKeys[SECTION_RECEIVER_UID][mCount] = head.getReceiverUID();
+        mKeys[SECTION_ACTION][mCount] = stringId(head.getIntentData().getAction());
+        mKeys[SECTION_COMPONENT][mCount] = stringId(component);
+        mCount++;
+    }
+
+    public int getRecordCount() {
+        return mCount;
+    }
+
+    /** Forgets every record, for reuse with the next segment. */
+    public void clear() {
+        mCount = 0;
+        mStrings.clear();
+    }
+
+    /** Writes the sidecar to a temporary file and renames it over the old one. */
+    public void write(File file) throws IOException {
+        writeForSync(file).sync();
+    }
+
+    /**
+     * Writes the sidecar to a temporary file without forcing it to storage. The returned sync
+     * does that and then renames it over the old sidecar, so readers keep seeing the old one
+     * until the new one is durable. A sync that runs after a later write was renamed only
+     * deletes its temporary file.
+     */
+    public FileSync writeForSync(final File file) throws IOException {
+        // Sort the strings and translate provisional IDs into table positions
+        String[] strings = new String[mStrings.size()];
+        for (Map.Entry<String, Integer> entry : mStrings.entrySet()) {
+            strings[entry.getValue()] = entry.getKey();
+        }
+        String[] sorted = strings.clone();
+        Arrays.sort(sorted);
+        int[] position = new int[strings.length];
+        for (int i = 0; i < strings.length; i++) {
+            position[i] = Arrays.binarySearch(sorted, strings[i]);
+        }
+
+        final long generation = ++mWritten;
+        final File temp = new File(file.getPath() + "." + generation + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(0);
+            out.writeInt(mCount);
+            for (int i = 0; i < mCount; i++) out.writeLong(mOffsets[i]);
+            for (int record : sortedByTime()) {
+                out.writeLong(mTimes[record]);
+                out.writeInt(record);
+            }
+            out.writeInt(sorted.length);
+            for (String value : sorted) {
+                byte[] bytes = value.getBytes(UTF8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            for (int section = 0; section < SECTION_COUNT; section++) {
+                boolean isString = section == SECTION_ACTION || section == SECTION_COMPONENT;
+                writeSection(out, mKeys[section], isString ? position : null);
+            }
+            out.flush();
+        } finally {
+            stream.close();
+        }
+        return new FileSync(null) {
+            @Override
+            public void sync() throws IOException {
+                replace(temp, file, generation);
+            }
+        };
+    }
+
+    /**
+     * Forces a written sidecar to storage and renames it into place. A segment's last sidecar
+     * is written after every earlier one of it, and before any of the next segment, so
+     * comparing generations keeps an older sidecar from replacing a newer one.
+     */
+    private void replace(File temp, File file, long generation) throws IOException {
+        RandomAccessFile written = new RandomAccessFile(temp, "rw");
+        try {
+            written.getFD().sync();
+        } finally {
+            written.close();
+        }
+        synchronized (mRenameLock) {
+            if (generation < mRenamed) {
+                temp.delete();
+                return;
+            }
+            if (!temp.renameTo(file)) throw new IOException("Failed to replace " + file);
+            mRenamed = generation;
+        }
+    }
+
+    /**
+     * Writes the posting lists of one section. Each record becomes a long holding its key in the
+     * high and its record number in the low half, so one sort groups records by key and orders
+     * them within each key.
+     *
+     * @param position Maps string IDs to table positions, null for sections of plain ints.
+     */
+    private void writeSection(DataOutputStream out, int[] keys, int[] position)
+            throws IOException {
+        long[] entries = new long[mCount];
+        int count = 0;
+        for (int i = 0; i < mCount; i++) {
+            int key = keys[i];
+            if (position != null) {
+                if (key < 0) continue;
+                key = position[key];
+            }
+            // Flipping the sign bit keeps negative keys in order when compared unsigned
+            entries[count++] = ((long) (key ^ Integer.MIN_VALUE) << 32) | i;
+        }
+        Arrays.sort(entries, 0, count);
+        int keyCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || (entries[i] >>> 32) != (entries[i - 1] >>> 32)) keyCount++;
+        }
+        out.writeInt(keyCount);
+        int start = 0;
+        while (start < count) {
+            long key = entries[start] >>> 32;
+            int end = start;
+            while (end < count && entries[end] >>> 32 == key) end++;
+            out.writeInt((int) key ^ Integer.MIN_VALUE);
+            out.writeInt(end - start);
+            for (int i = start; i < end; i++) out.writeInt((int) entries[i]);
+            start = end;
+        }
+    }
+
+    /** Record numbers ordered by capture time, ties by record number. */
+    private int[] sortedByTime() {
+        int[] records = new int[mCount];
+        boolean sorted = true;
+        for (int i = 0; i < mCount; i++) {
+            records[i] = i;
+            if (i > 0 && mTimes[i] < mTimes[i - 1]) sorted = false;
+        }
+        if (!sorted) mergeSort(records, new int[mCount], 0, mCount);
+        return records;
+    }
+
+    private void mergeSort(int[] records, int[] scratch, int from, int to) {
+        if (to - from < 2) return;
+        int middle = (from + to) >>> 1;
+        mergeSort(records, scratch, from, middle);
+        mergeSort(records, scratch, middle, to);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || left < middle && mTimes[records[left]] <= mTimes[records[right]]) {
+                scratch[i] = records[left++];
+            } else {
+                scratch[i] = records[right++];
+            }
+        }
+        System.arraycopy(scratch, from, records, from, to - from);
+    }
+
+    private int stringId(String value) {
+        if (value == null || value.isEmpty()) return -1;
+        Integer id = mStrings.get(value);
+        if (id == null) {
+            id = mStrings.size();
+            mStrings.put(value, id);
+        }
+        return id;
+    }
+
+    private void grow() {
+        int capacity = mOffsets.length * 2;
+        mOffsets = Arrays.copyOf(mOffsets, capacity);
+        mTimes = Arrays.copyOf(mTimes, capacity);
+        for (int i = 0; i < SECTION_COUNT; i++) mKeys[i] = Arrays.copyOf(mKeys[i], capacity);
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.intentlogger.storage;
+
+import com.carteryagemann.AICS.AICSFile;
+import com.carteryagemann.AICS.ActivityIntentHeader;
+import com.carteryagemann.AICS.BroadcastIntentHeader;
+import com.carteryagemann.AICS.IntentData;
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.AICS.ServiceIntentHeader;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * Reads files written by {@link CompactAICSWriter} back into the AICS library's objects.
+ *
+ * Records are decoded straight from a byte array: a heap buffer's backing array, or for direct
+ * and mapped buffers a window the file is copied into a chunk at a time. Per byte reads through
+ * the buffer cost more than the varints save otherwise.
+ */
+public class CompactAICSReader {
+
+    private final static Charset ASCII = Charset.forName("US-ASCII");
+    private final static int WINDOW_SIZE = 64 * 1024;
+
+    private final ByteBuffer mBuffer;
+    private final AICSFormat.FileHeader mHeader;
+    private final boolean mWindowed;
+    private byte[] mBytes;
+    private int mPosition;
+    private int mLimit;
+    /** Offset in the file of {@code mBytes[0]}. */
+    private long mBase;
+    private long mPreviousMillis = 0;
+    private String[] mPrevious = new String[CompactAICSWriter.STRING_FIELDS];
+    private String[] mCurrent = new String[CompactAICSWriter.STRING_FIELDS];
+
+    /**
+     * Reads everything in a buffer into an {@link AICSFile}.
+     */
+    public static AICSFile readFromBuffer(ByteBuffer buffer) throws ParseException {
+        CompactAICSReader reader = new CompactAICSReader(buffer);
+        AICSFormat.FileHeader header = reader.getFileHeader();
+        AICSFile file = new AICSFile(header.androidMajor, header.androidMinor,
+                header.androidPatch);
+        IntentHeader head;
+        while ((head = reader.next()) != null) file.appendIntent(head);
+        return file;
+    }
+
+    /**
+     * @param buffer Buffer positioned at the start of the file header.
+     * @throws ParseException If the buffer doesn't start with a compact AICS header.
+     */
+    public CompactAICSReader(ByteBuffer buffer) throws ParseException {
+        mBuffer = buffer;
+        mHeader = AICSFormat.readFileHeader(buffer);
+        if (mHeader.formatMinor != AICSFormat.FORMAT_MINOR_COMPACT) {
+            throw new ParseException("Not a compact AICS file (format version "
+                    + AICSFormat.FORMAT_MAJOR_VERSION + "." + mHeader.formatMinor + ").", 0);
+        }
+        mWindowed = !buffer.hasArray();
+        if (mWindowed) {
+            mBytes = new byte[Math.min(WINDOW_SIZE, buffer.remaining())];
+            mBase = buffer.position();
+        } else {
+            mBytes = buffer.array();
+            mPosition = buffer.arrayOffset() + buffer.position();
+            mLimit = buffer.arrayOffset() + buffer.limit();
+            mBase = -buffer.arrayOffset();
+        }
+    }
+
+    public AICSFormat.FileHeader getFileHeader() {
+        return mHeader;
+    }
+
+    /**
+     * @return The next record or null at the end of the file.
+     * @throws ParseException If the file is truncated or corrupt. The reader is left at the
+     *                        start of the bad record, so a file that is still being written can
+     *                        be read again once the record is complete.
+     */
+    public IntentHeader next() throws ParseException {
+        if (mPosition == mLimit && !refill()) return null;
+        int start = mPosition;
+        while (true) {
+            try {
+                return readRecord();
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                mPosition = start;
+                if (!refill()) {
+                    throw new ParseException("File is truncated or corrupt.",
+                            (int) (mBase + start));
+                }
+                start = mPosition;
+            }
+        }
+    }
+
+    /**
+     * Moves the unread part of the window to its start and copies in more of the file, growing
+     * the window if a single record doesn't fit.
+     *
+     * @return False if there was nothing left to copy.
+     */
+    private boolean refill() {
+        if (!mWindowed || !mBuffer.hasRemaining()) return false;
+        int kept = mLimit - mPosition;
+        if (kept == mBytes.length) {
+            mBytes = Arrays.copyOfRange(mBytes, mPosition, mPosition + 2 * mBytes.length);
+        } else {
+            System.arraycopy(mBytes, mPosition, mBytes, 0, kept);
+        }
+        mBase += mPosition;
+        mPosition = 0;
+        int count = Math.min(mBytes.length - kept, mBuffer.remaining());
+        mBuffer.get(mBytes, kept, count);
+        mLimit = kept + count;
+        return true;
+    }
+
+    private IntentHeader readRecord() throws ParseException {
+        int type = getByte();
+        long millis = mPreviousMillis + getSignedLong();
+        long seconds = millis / 1000;
+        long remainder = millis % 1000;
+        if (remainder < 0) {
+            seconds--;
+            remainder += 1000;
+        }
+        System.arraycopy(mPrevious, 0, mCurrent, 0, CompactAICSWriter.STRING_FIELDS);
+        int callerUid = getSignedInt();
+        int callerPid = getSignedInt();
+        int receiverUid = getSignedInt();
+        int receiverPid = getSignedInt();
+        int userId = getSignedInt();
+        IntentHeader head;
+        switch (type) {
+            case IntentHeader.TYPE_ACTIVITY:
+                head = new ActivityIntentHeader()
+                        .setRequestCode(getSignedInt())
+                        .setStartFlags(getUnsignedInt())
+                        .setReceiverComponent(getString(CompactAICSWriter.FIELD_RECEIVER))
+                        .setCallerComponent(getString(CompactAICSWriter.FIELD_CALLER))
+                        .setOptions(getBlob());
+                break;
+            case IntentHeader.TYPE_BROADCAST:
+                head = new BroadcastIntentHeader()
+                        .setRequestCode(getSignedInt())
+                        .setFlags(getUnsignedInt())
+                        .setReceiverComponent(getString(CompactAICSWriter.FIELD_RECEIVER))
+                        .setCallerComponent(getString(CompactAICSWriter.FIELD_CALLER))
+                        .setRequiredPermission(getString(CompactAICSWriter.FIELD_EXTRA));
+                break;
+            case IntentHeader.TYPE_SERVICE:
+                head = new ServiceIntentHeader()
+                        .setFlags(getUnsignedInt())
+                        .setReceiverComponent(getString(CompactAICSWriter.FIELD_RECEIVER))
+                        .setCallerComponent(getString(CompactAICSWriter.FIELD_CALLER))
+                        .setAction(getString(CompactAICSWriter.FIELD_EXTRA));
+                break;
+            default:
+                throw new ParseException("Unknown intent type " + type,
+                        (int) (mBase + mPosition));
+        }
+        IntentData data = new IntentData()
+                .setFlags(getUnsignedInt())
+                .setAction(getString(CompactAICSWriter.FIELD_ACTION))
+                .setData(getString(CompactAICSWriter.FIELD_DATA))
+                .setCategory(getString(CompactAICSWriter.FIELD_CATEGORY))
+                .setType(getString(CompactAICSWriter.FIELD_TYPE))
+                .setClipData(getBlob())
+                .setExtras(getBlob());
+        head.setTimestamp((int) seconds)
+                .setOffset((short) remainder)
+                .setCallerUID(callerUid)
+                .setCallerPID(callerPid)
+                .setReceiverUID(receiverUid)
+                .setReceiverPID(receiverPid)
+                .setUserID(userId)
+                .setIntentData(data);
+        mPreviousMillis = millis;
+        String[] previous = mPrevious;
+        mPrevious = mCurrent;
+        mCurrent = previous;
+        return head;
+    }
+
+    private int getByte() {
+        if (mPosition == mLimit) throw new BufferUnderflowException();
+        return mBytes[mPosition++];
+    }
+
+    /** Same as {@link Varint#getUnsignedInt(ByteBuffer)}. */
+    private int getUnsignedInt() {
+        int b = getByte();
+        if (b >= 0) return b;
+        int value = b & 0x7F;
+        for (int shift = 7; shift < 35; shift += 7) {
+            b = getByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IllegalArgumentException("Malformed varint.");
+    }
+
+    private int getSignedInt() {
+        int value = getUnsignedInt();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long getSignedLong() {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = getByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return (value >>> 1) ^ -(value & 1);
+        }
+        throw new IllegalArgumentException("Malformed varint.");
+    }
+
+    private String getString(int field) {
+        int code = getUnsignedInt();
+        if (code == CompactAICSWriter.STRING_REPEAT) return mCurrent[field];
+        String value = null;
+        if (code != CompactAICSWriter.STRING_NULL) {
+            int length = checkLength(code - CompactAICSWriter.STRING_LENGTH_BIAS);
+            value = new String(mBytes, mPosition, length, ASCII);
+            mPosition += length;
+        }
+        mCurrent[field] = value;
+        return value;
+    }
+
+    private byte[] getBlob() {
+        int length = checkLength(getUnsignedInt());
+        byte[] bytes = new byte[length];
+        System.arraycopy(mBytes, mPosition, bytes, 0, length);
+        mPosition += length;
+        return bytes;
+    }
+
+    private int checkLength(int length) {
+        if (length < 0 || length > mLimit - mPosition) throw new BufferUnderflowException();
+        return length;
+    }
+}
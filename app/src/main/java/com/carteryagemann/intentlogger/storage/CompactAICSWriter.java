@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.intentlogger.storage;
+
+import com.carteryagemann.AICS.ActivityIntentHeader;
+import com.carteryagemann.AICS.BroadcastIntentHeader;
+import com.carteryagemann.AICS.IntentData;
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.AICS.ServiceIntentHeader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the compact AICS variant (minor format version 4). It has the same fields in the same
+ * order as a standard record, but most of them are small or barely change from record to record,
+ * so they are written as varints or as a difference to the previous record:
+ * <ul>
+ *     <li>A record starts with a byte holding the intent type. The time follows as a signed
+ *     varint of the milliseconds since the previous record's time, where a record's time is
+ *     {@code timestamp * 1000 + offset} and the first record counts from zero.</li>
+ *     <li>UIDs, PIDs, the user ID and the request code are signed varints, flags are unsigned
+ *     varints.</li>
+ *     <li>Strings are an unsigned varint, {@link #STRING_NULL} for null,
+ *     {@link #STRING_REPEAT} for the value the same string field of the previous record had, or
+ *     the length plus {@link #STRING_LENGTH_BIAS} followed by the ASCII bytes. The receiver and
+ *     caller, the permission or service action, and the action, data, category and type each
+ *     count as one field.</li>
+ *     <li>Options, clip data and extras are a varint length and the bytes.</li>
+ *     <li>The size of the intent data is dropped.</li>
+ * </ul>
+ * Records depend on the one before, so a file is read front to back with
+ * {@link CompactAICSReader}.
+ *
+ * Writers are not thread safe.
+ */
+public class CompactAICSWriter extends BufferedRecordWriter {
+
+    public final static int STRING_NULL = 0;
+    public final static int STRING_REPEAT = 1;
+    public final static int STRING_LENGTH_BIAS = 2;
+
+    /** Number of string fields whose previous value is remembered. */
+    final static int STRING_FIELDS = 7;
+    final static int FIELD_RECEIVER = 0;
+    final static int FIELD_CALLER = 1;
+    final static int FIELD_EXTRA = 2;
+    final static int FIELD_ACTION = 3;
+    final static int FIELD_DATA = 4;
+    final static int FIELD_CATEGORY = 5;
+    final static int FIELD_TYPE = 6;
+
+    /**
+     * Bytes a record can need on top of its standard AICS size. A varint is at most one byte
+     * longer than the int it replaces, and the time is a varint of a long.
+     */
+    private final static int RECORD_SLACK = 24 + Varint.MAX_LONG_SIZE;
+
+    private long mPreviousMillis = 0;
+    private String[] mPrevious = new String[STRING_FIELDS];
+    private String[] mCurrent = new String[STRING_FIELDS];
+
+    /**
+     * Creates (or truncates) a file and writes the AICS file header to it.
+     */
+    public static CompactAICSWriter create(File file, short androidMajor, byte androidMinor,
+                                           byte androidPatch) throws IOException {
+        FileChannel channel = new FileOutputStream(file).getChannel();
+        return new CompactAICSWriter(channel, androidMajor, androidMinor, androidPatch,
+                DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param channel Channel positioned where the file should start. The writer takes ownership
+     *                of it and closes it in {@link #close()}.
+     * @param bufferSize Initial size of the direct buffer. It grows if a single record is larger.
+     */
+    public CompactAICSWriter(FileChannel channel, short androidMajor, byte androidMinor,
+                             byte androidPatch, int bufferSize) throws IOException {
+        super(channel, bufferSize);
+        AICSFormat.writeFileHeader(reserve(AICSFormat.FILE_HEADER_SIZE),
+                AICSFormat.FORMAT_MINOR_COMPACT, androidMajor, androidMinor, androidPatch);
+        addBytesWritten(AICSFormat.FILE_HEADER_SIZE);
+    }
+
+    @Override
+    protected int maxRecordSize(IntentHeader head) {
+        return AICSFormat.recordSize(head) + RECORD_SLACK;
+    }
+
+    @Override
+    protected void writeRecord(IntentHeader head, ByteBuffer out) {
+        IntentData data = head.getIntentData();
+        int type = head.getIntentType();
+        if (type < IntentHeader.TYPE_ACTIVITY || type > IntentHeader.TYPE_SERVICE) {
+            throw new IllegalArgumentException("Unknown intent type " + type);
+        }
+        // The AICS library keeps offsets within 0 to 999, so the time splits back unambiguously
+        long millis = head.getTimestamp() * 1000L + head.getOffset();
+        out.put((byte) type);
+        Varint.putSignedLong(out, millis - mPreviousMillis);
+        System.arraycopy(mPrevious, 0, mCurrent, 0, STRING_FIELDS);
+        Varint.putSignedInt(out, head.getCallerUID());
+        Varint.putSignedInt(out, head.getCallerPID());
+        Varint.putSignedInt(out, head.getReceiverUID());
+        Varint.putSignedInt(out, head.getReceiverPID());
+        Varint.putSignedInt(out, head.getUserID());
+        switch (type) {
+            case IntentHeader.TYPE_ACTIVITY:
+                ActivityIntentHeader activity = (ActivityIntentHeader) head;
+                Varint.putSignedInt(out, activity.getRequestCode());
+                Varint.putUnsignedInt(out, activity.getStartFlags());
+                putString(out, FIELD_RECEIVER, activity.getReceiverComponent());
+                putString(out, FIELD_CALLER, activity.getCallerComponent());
+                putBlob(out, activity.getOptions());
+                break;
+            case IntentHeader.TYPE_BROADCAST:
+                BroadcastIntentHeader broadcast = (BroadcastIntentHeader) head;
+                Varint.putSignedInt(out, broadcast.getRequestCode());
+                Varint.putUnsignedInt(out, broadcast.getFlags());
+                putString(out, FIELD_RECEIVER, broadcast.getReceiverComponent());
+                putString(out, FIELD_CALLER, broadcast.getCallerComponent());
+                putString(out, FIELD_EXTRA, broadcast.getRequiredPermission());
+                break;
+            default:
+                ServiceIntentHeader service = (ServiceIntentHeader) head;
+                Varint.putUnsignedInt(out, service.getFlags());
+                putString(out, FIELD_RECEIVER, service.getReceiverComponent());
+                putString(out, FIELD_CALLER, service.getCallerComponent());
+                putString(out, FIELD_EXTRA, service.getAction());
+                break;
+        }
+        Varint.putUnsignedInt(out, data.getFlags());
+        putString(out, FIELD_ACTION, data.getAction());
+        putString(out, FIELD_DATA, data.getData());
+        putString(out, FIELD_CATEGORY, data.getCategory());
+        putString(out, FIELD_TYPE, data.getType());
+        putBlob(out, data.getClipData());
+        putBlob(out, data.getExtras());
+        // Only once nothing can fail, a rejected record must not move the base
+        mPreviousMillis = millis;
+        String[] previous = mPrevious;
+        mPrevious = mCurrent;
+        mCurrent = previous;
+    }
+
+    private void putString(ByteBuffer out, int field, String value) {
+        if (value == null) {
+            out.put((byte) STRING_NULL);
+        } else if (value.equals(mCurrent[field])) {
+            out.put((byte) STRING_REPEAT);
+        } else {
+            Varint.putUnsignedInt(out, value.length() + STRING_LENGTH_BIAS);
+            AICSFormat.putString(out, value);
+        }
+        mCurrent[field] = value;
+    }
+
+    private static void putBlob(ByteBuffer out, byte[] value) {
+        Varint.putUnsignedInt(out, AICSFormat.length(value));
+        AICSFormat.putBytes(out, value);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.storage;
+
+import com.carteryagemann.AICS.AICSFile;
+import com.carteryagemann.AICS.IntentHeader;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads files written by {@link CompressedAICSWriter}. Opening a file only walks the block
+ * headers; records are inflated block by block on request.
+ */
+public class CompressedAICSReader {
+
+    /** Where a block is and what it covers, taken from its header. */
+    public static class Block {
+        public final int recordCount;
+        public final long firstMillis;
+        public final long lastMillis;
+        public final int uncompressedSize;
+        public final int compressedSize;
+        /** Position of the compressed bytes in the file. */
+        public final int dataOffset;
+
+        Block(int recordCount, long firstMillis, long lastMillis, int uncompressedSize,
+              int compressedSize, int dataOffset) {
+            this.recordCount = recordCount;
+            this.firstMillis = firstMillis;
+            this.lastMillis = lastMillis;
+            this.uncompressedSize = uncompressedSize;
+            this.compressedSize = compressedSize;
+            this.dataOffset = dataOffset;
+        }
+
+        /** True if any record of the block may fall between the two times, inclusive. */
+        public boolean overlaps(long fromMillis, long toMillis) {
+            return firstMillis <= toMillis && lastMillis >= fromMillis;
+        }
+    }
+
+    private final ByteBuffer mBuffer;
+    private final AICSFormat.FileHeader mHeader;
+    private final List<Block> mBlocks = new ArrayList<>();
+    private final Inflater mInflater = new Inflater();
+
+    /**
+     * Reads everything in a buffer into an {@link AICSFile}.
+     */
+    public static AICSFile readFromBuffer(ByteBuffer buffer) throws ParseException {
+        CompressedAICSReader reader = new CompressedAICSReader(buffer);
+        AICSFormat.FileHeader header = reader.getFileHeader();
+        AICSFile file = new AICSFile(header.androidMajor, header.androidMinor,
+                header.androidPatch);
+        try {
+            for (Block block : reader.getBlocks()) {
+                for (IntentHeader head : reader.readBlock(block)) file.appendIntent(head);
+            }
+        } finally {
+            reader.close();
+        }
+        return file;
+    }
+
+    /**
+     * @param buffer Buffer positioned at the start of the file header.
+     * @throws ParseException If the header or a block header is invalid.
+     */
+    public CompressedAICSReader(ByteBuffer buffer) throws ParseException {
+        mBuffer = buffer.slice();
+        mHeader = AICSFormat.readFileHeader(mBuffer);
+        if (mHeader.formatMinor != AICSFormat.FORMAT_MINOR_COMPRESSED) {
+            throw new ParseException("Not a compressed AICS file (format version "
+                    + AICSFormat.FORMAT_MAJOR_VERSION + "." + mHeader.formatMinor + ").", 0);
+        }
+        try {
+            while (mBuffer.hasRemaining()) {
+                int recordCount = mBuffer.getInt();
+                long firstMillis = mBuffer.getLong();
+                long lastMillis = mBuffer.getLong();
+                int uncompressedSize = mBuffer.getInt();
+                int compressedSize = mBuffer.getInt();
+                if (recordCount < 0 || uncompressedSize < 0 || compressedSize < 0
+                        || compressedSize > mBuffer.remaining()) {
+                    throw new ParseException("Corrupt block header.", mBuffer.position());
+                }
+                mBlocks.add(new Block(recordCount, firstMillis, lastMillis, uncompressedSize,
+                        compressedSize, mBuffer.position()));
+                mBuffer.position(mBuffer.position() + compressedSize);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new ParseException("File ends inside a block header.", mBuffer.position());
+        }
+    }
+
+    public AICSFormat.FileHeader getFileHeader() {
+        return mHeader;
+    }
+
+    public List<Block> getBlocks() {
+        return Collections.unmodifiableList(mBlocks);
+    }
+
+    /** Total number of records in the file. */
+    public int getRecordCount() {
+        int count = 0;
+        for (Block block : mBlocks) count += block.recordCount;
+        return count;
+    }
+
+    /**
+     * Inflates one block and parses its records.
+     *
+     * @throws ParseException If the block doesn't inflate to the size and record count its
+     *                        header promises.
+     */
+    public List<IntentHeader> readBlock(Block block) throws ParseException {
+        byte[] compressed = new byte[block.compressedSize];
+        ByteBuffer source = mBuffer.duplicate();
+        source.position(block.dataOffset);
+        source.get(compressed);
+        byte[] records = new byte[block.uncompressedSize];
+        mInflater.reset();
+        mInflater.setInput(compressed);
+        try {
+            int inflated = 0;
+            while (inflated < records.length && !mInflater.finished()) {
+                int count = mInflater.inflate(records, inflated, records.length - inflated);
+                if (count == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) break;
+                inflated += count;
+            }
+            if (inflated != records.length) {
+                throw new ParseException("Block is shorter than its header says.",
+                        block.dataOffset);
+            }
+        } catch (DataFormatException e) {
+            throw new ParseException("Block is corrupt: " + e.getMessage(), block.dataOffset);
+        }
+        ByteBuffer in = ByteBuffer.wrap(records);
+        List<IntentHeader> heads = new ArrayList<>(block.recordCount);
+        while (in.hasRemaining()) heads.add(AICSFormat.readRecord(in));
+        if (heads.size() != block.recordCount) {
+            throw new ParseException("Block holds " + heads.size() + " records, header says "
+                    + block.recordCount + ".", block.dataOffset);
+        }
+        return heads;
+    }
+
+    /**
+     * Reads the records whose time falls between the two times, inclusive, inflating only the
+     * blocks that can hold such records.
+     */
+    public List<IntentHeader> readRange(long fromMillis, long toMillis) throws ParseException {
+        List<IntentHeader> heads = new ArrayList<>();
+        for (Block block : mBlocks) {
+            if (!block.overlaps(fromMillis, toMillis)) continue;
+            for (IntentHeader head : readBlock(block)) {
+                long time = head.getTimestamp() * 1000L + head.getOffset();
+                if (time >= fromMillis && time <= toMillis) heads.add(head);
+            }
+        }
+        return heads;
+    }
+
+    /** Releases the inflater's native memory. */
+    public void close() {
+        mInflater.end();
+    }
+}
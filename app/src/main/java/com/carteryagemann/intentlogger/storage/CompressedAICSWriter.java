@@ -0,0 +1,239 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.storage;
+
+import com.carteryagemann.AICS.IntentHeader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the compressed AICS variant (minor format version 3). Standard AICS records are
+ * collected into blocks of about {@link #DEFAULT_BLOCK_SIZE} bytes and every block is compressed
+ * on its own with DEFLATE, so a reader can skip straight to the blocks covering the time it is
+ * interested in and inflate only those.
+ *
+ * After the 12 byte file header the file is a sequence of blocks:
+ * <pre>
+ *   int   record count
+ *   long  time of the first record (epoch millis)
+ *   long  time of the last record (epoch millis)
+ *   int   uncompressed size
+ *   int   compressed size
+ *   byte[compressed size] zlib stream of standard AICS records
+ * </pre>
+ * A block ends whenever the next record doesn't fit and on every {@link #flush(boolean)}.
+ * {@link CompressedAICSReader} reads the blocks back.
+ *
+ * Writers are not thread safe.
+ */
+public class CompressedAICSWriter implements RecordSink {
+
+    public final static int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    /** Size of a block header in bytes. */
+    public final static int BLOCK_HEADER_SIZE = 28;
+
+    private final FileChannel mChannel;
+    private final Deflater mDeflater;
+    private final ByteBuffer mHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+    private final ByteBuffer mBlock;
+    private byte[] mCompressed;
+
+    private int mBlockRecords = 0;
+    private long mBlockFirstMillis = 0;
+    private long mBlockLastMillis = 0;
+
+    private long mBytesWritten = 0;
+    private int mRecordCount = 0;
+    private int mBlockCount = 0;
+    private boolean mClosed = false;
+
+    /**
+     * Creates (or truncates) a file and writes the AICS file header to it.
+     */
+    public static CompressedAICSWriter create(File file, short androidMajor, byte androidMinor,
+                                              byte androidPatch) throws IOException {
+        FileChannel channel = new FileOutputStream(file).getChannel();
+        return new CompressedAICSWriter(channel, androidMajor, androidMinor, androidPatch,
+                DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param channel Channel positioned where the file should start. The writer takes ownership
+     *                of it and closes it in {@link #close()}.
+     * @param blockSize Uncompressed bytes collected before a block is compressed. A record larger
+     *                  than this gets a block of its own.
+     * @param level DEFLATE level, 0-9 or {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    public CompressedAICSWriter(FileChannel channel, short androidMajor, byte androidMinor,
+                                byte androidPatch, int blockSize, int level) throws IOException {
+        mChannel = channel;
+        mDeflater = new Deflater(level);
+        mBlock = ByteBuffer.allocate(Math.max(blockSize, AICSFormat.FILE_HEADER_SIZE));
+        mCompressed = new byte[mBlock.capacity() + 64];
+        ByteBuffer header = ByteBuffer.allocate(AICSFormat.FILE_HEADER_SIZE);
+        AICSFormat.writeFileHeader(header, AICSFormat.FORMAT_MINOR_COMPRESSED, androidMajor,
+                androidMinor, androidPatch);
+        header.flip();
+        write(header);
+    }
+
+    /**
+     * Encodes a record into the current block. A record that can't be encoded leaves the file
+     * untouched.
+     */
+    @Override
+    public void append(IntentHeader head) throws IOException {
+        if (mClosed) throw new IOException("Writer is closed.");
+        int size = AICSFormat.recordSize(head);
+        if (size > mBlock.remaining()) {
+            writeBlock();
+            if (size > mBlock.capacity()) {
+                appendOversized(head, size);
+                return;
+            }
+        }
+        int start = mBlock.position();
+        try {
+            AICSFormat.writeRecord(head, mBlock);
+        } catch (RuntimeException e) {
+            mBlock.position(start);
+            throw e;
+        }
+        long time = head.getTimestamp() * 1000L + head.getOffset();
+        if (mBlockRecords == 0) {
+            mBlockFirstMillis = time;
+            mBlockLastMillis = time;
+        } else {
+            if (time < mBlockFirstMillis) mBlockFirstMillis = time;
+            if (time > mBlockLastMillis) mBlockLastMillis = time;
+        }
+        mBlockRecords++;
+        mRecordCount++;
+    }
+
+    /** Compresses and writes the current block, even if it isn't full. */
+    @Override
+    public void flush(boolean force) throws IOException {
+        if (mClosed) return;
+        writeBlock();
+        if (force) mChannel.force(false);
+    }
+
+    @Override
+    public FileSync flushForSync() throws IOException {
+        if (mClosed) return FileSync.NONE;
+        writeBlock();
+        return new FileSync(mChannel);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) return;
+        try {
+            flush(true);
+        } finally {
+            mClosed = true;
+            mDeflater.end();
+            mChannel.close();
+        }
+    }
+
+    /**
+     * Bytes in the file, plus the uncompressed size of the block still being collected. The
+     * value is exact once the writer has been flushed.
+     */
+    @Override
+    public long getBytesWritten() {
+        int pending = mBlock.position();
+        return mBytesWritten + (pending == 0 ? 0 : BLOCK_HEADER_SIZE + pending);
+    }
+
+    @Override
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /** Number of blocks written so far. */
+    public int getBlockCount() {
+        return mBlockCount;
+    }
+
+    /**
+     * Writes a record larger than a block as a block of its own. Its buffers are dropped again
+     * so one large record doesn't keep the writer at its size.
+     */
+    private void appendOversized(IntentHeader head, int size) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(size);
+        AICSFormat.writeRecord(head, block);
+        long time = head.getTimestamp() * 1000L + head.getOffset();
+        writeBlock(block, new byte[size + 64], 1, time, time);
+        mRecordCount++;
+    }
+
+    private void writeBlock() throws IOException {
+        if (mBlockRecords == 0) return;
+        mCompressed = writeBlock(mBlock, mCompressed, mBlockRecords, mBlockFirstMillis,
+                mBlockLastMillis);
+        mBlock.clear();
+        mBlockRecords = 0;
+    }
+
+    /**
+     * Compresses the records in a buffer and writes them as a block.
+     *
+     * @param compressed Space for the compressed records, replaced by a larger array if needed.
+     * @return The array the compressed records ended up in.
+     */
+    private byte[] writeBlock(ByteBuffer block, byte[] compressed, int records, long firstMillis,
+                              long lastMillis) throws IOException {
+        int size = block.position();
+        mDeflater.reset();
+        mDeflater.setInput(block.array(), block.arrayOffset(), size);
+        mDeflater.finish();
+        int length = 0;
+        while (!mDeflater.finished()) {
+            if (length == compressed.length) {
+                byte[] larger = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, larger, 0, length);
+                compressed = larger;
+            }
+            length += mDeflater.deflate(compressed, length, compressed.length - length);
+        }
+        mHeader.clear();
+        mHeader.putInt(records)
+                .putLong(firstMillis)
+                .putLong(lastMillis)
+                .putInt(size)
+                .putInt(length)
+                .flip();
+        write(mHeader);
+        write(ByteBuffer.wrap(compressed, 0, length));
+        mBlockCount++;
+        return compressed;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        mBytesWritten += buffer.remaining();
+        while (buffer.hasRemaining()) mChannel.write(buffer);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.storage;
+
+import com.carteryagemann.AICS.AICSFile;
+import com.carteryagemann.AICS.ActivityIntentHeader;
+import com.carteryagemann.AICS.BroadcastIntentHeader;
+import com.carteryagemann.AICS.IntentData;
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.AICS.ServiceIntentHeader;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+
+/**
+ * Reads files written by {@link DictionaryAICSWriter} back into the AICS library's objects.
+ */
+public class DictionaryAICSReader {
+
+    private final static Charset ASCII = Charset.forName("US-ASCII");
+
+    private final ByteBuffer mBuffer;
+    private final AICSFormat.FileHeader mHeader;
+    private final ArrayList<String> mDictionary = new ArrayList<>();
+
+    /**
+     * Reads everything in a buffer into an {@link AICSFile}.
+     */
+    public static AICSFile readFromBuffer(ByteBuffer buffer) throws ParseException {
+        DictionaryAICSReader reader = new DictionaryAICSReader(buffer);
+        AICSFormat.FileHeader header = reader.getFileHeader();
+        AICSFile file = new AICSFile(header.androidMajor, header.androidMinor,
+                header.androidPatch);
+        IntentHeader head;
+        while ((head = reader.next()) != null) file.appendIntent(head);
+        return file;
+    }
+
+    /**
+     * @param buffer Buffer positioned at the start of the file header.
+     * @throws ParseException If the buffer doesn't start with a dictionary AICS header.
+     */
+    public DictionaryAICSReader(ByteBuffer buffer) throws ParseException {
+        mBuffer = buffer;
+        mHeader = AICSFormat.readFileHeader(buffer);
+        if (mHeader.formatMinor != AICSFormat.FORMAT_MINOR_DICTIONARY) {
+            throw new ParseException("Not a dictionary AICS file (format version "
+                    + AICSFormat.FORMAT_MAJOR_VERSION + "." + mHeader.formatMinor + ").", 0);
+        }
+    }
+
+    public AICSFormat.FileHeader getFileHeader() {
+        return mHeader;
+    }
+
+    /**
+     * @return The next record or null at the end of the file.
+     * @throws ParseException If the file is truncated or corrupt.
+     */
+    public IntentHeader next() throws ParseException {
+        try {
+            while (mBuffer.hasRemaining()) {
+                byte tag = mBuffer.get();
+                if (tag == DictionaryAICSWriter.TAG_STRING) {
+                    mDictionary.add(getAscii(Varint.getUnsignedInt(mBuffer)));
+                } else if (tag == DictionaryAICSWriter.TAG_RECORD) {
+                    return readRecord();
+                } else {
+                    throw new ParseException("Unknown entry tag " + tag,
+                            mBuffer.position() - 1);
+                }
+            }
+            return null;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new ParseException("File is truncated or corrupt.", mBuffer.position());
+        }
+    }
+
+    private IntentHeader readRecord() throws ParseException {
+        int timestamp = mBuffer.getInt();
+        short offset = mBuffer.getShort();
+        short type = mBuffer.getShort();
+        int callerUid = mBuffer.getInt();
+        int callerPid = mBuffer.getInt();
+        int receiverUid = mBuffer.getInt();
+        int receiverPid = mBuffer.getInt();
+        int userId = mBuffer.getInt();
+        IntentHeader head;
+        switch (type) {
+            case IntentHeader.TYPE_ACTIVITY:
+                head = new ActivityIntentHeader()
+                        .setRequestCode(mBuffer.getInt())
+                        .setStartFlags(mBuffer.getInt())
+                        .setReceiverComponent(getRef())
+                        .setCallerComponent(getRef())
+                        .setOptions(getBlob());
+                break;
+            case IntentHeader.TYPE_BROADCAST:
+                head = new BroadcastIntentHeader()
+                        .setRequestCode(mBuffer.getInt())
+                        .setFlags(mBuffer.getInt())
+                        .setReceiverComponent(getRef())
+                        .setCallerComponent(getRef())
+                        .setRequiredPermission(getRef());
+                break;
+            case IntentHeader.TYPE_SERVICE:
+                head = new ServiceIntentHeader()
+                        .setFlags(mBuffer.getInt())
+                        .setReceiverComponent(getRef())
+                        .setCallerComponent(getRef())
+                        .setAction(getRef());
+                break;
+            default:
+                throw new ParseException("Unknown intent type " + type, mBuffer.position());
+        }
+        IntentData data = new IntentData()
+                .setFlags(mBuffer.getInt())
+                .setAction(getRef())
+                .setData(getRef())
+                .setCategory(getRef())
+                .setType(getRef())
+                .setClipData(getBlob())
+                .setExtras(getBlob());
+        head.setTimestamp(timestamp)
+                .setOffset(offset)
+                .setCallerUID(callerUid)
+                .setCallerPID(callerPid)
+                .setReceiverUID(receiverUid)
+                .setReceiverPID(receiverPid)
+                .setUserID(userId)
+                .setIntentData(data);
+        return head;
+    }
+
+    private String getRef() throws ParseException {
+        int ref = Varint.getUnsignedInt(mBuffer);
+        if (ref == 0) return null;
+        if ((ref & 1) == 1) return getAscii(ref >>> 1);
+        int id = ref >>> 1;
+        if (id > mDictionary.size()) {
+            throw new ParseException("Unknown string ID " + id, mBuffer.position());
+        }
+        return mDictionary.get(id - 1);
+    }
+
+    private byte[] getBlob() {
+        byte[] bytes = new byte[checkLength(Varint.getUnsignedInt(mBuffer))];
+        mBuffer.get(bytes);
+        return bytes;
+    }
+
+    private String getAscii(int length) {
+        byte[] bytes = new byte[checkLength(length)];
+        mBuffer.get(bytes);
+        return new String(bytes, ASCII);
+    }
+
+    private int checkLength(int length) {
+        if (length < 0 || length > mBuffer.remaining()) throw new BufferUnderflowException();
+        return length;
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.storage;
+
+import com.carteryagemann.AICS.ActivityIntentHeader;
+import com.carteryagemann.AICS.BroadcastIntentHeader;
+import com.carteryagemann.AICS.IntentData;
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.AICS.ServiceIntentHeader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Writes the compact AICS variant (minor format version 2). Component names, actions, types,
+ * categories and permissions repeat in nearly every record, so each distinct string is written
+ * once as a dictionary entry and records refer to it by a varint ID. Data URIs are mostly unique
+ * and are always written inline.
+ *
+ * After the usual 12 byte file header the file is a sequence of entries, each starting with a
+ * tag byte:
+ * <ul>
+ *     <li>{@link #TAG_STRING}: varint length, ASCII bytes. Entries get IDs 1, 2, 3... in the
+ *     order they appear.</li>
+ *     <li>{@link #TAG_RECORD}: the same fields as a standard AICS record in the same order, with
+ *     every size field dropped. Strings are written as a varint reference, {@code 0} for null,
+ *     {@code id << 1} for a dictionary entry or {@code (length << 1) | 1} followed by the bytes.
+ *     Options, clip data and extras are a varint length followed by the bytes.</li>
+ * </ul>
+ * A record's dictionary entries always come before it, so a file can be read front to back.
+ * {@link DictionaryAICSReader} expands it back into the AICS library's objects.
+ *
+ * Writers are not thread safe.
+ */
+public class DictionaryAICSWriter extends BufferedRecordWriter {
+
+    public final static byte TAG_STRING = 1;
+    public final static byte TAG_RECORD = 2;
+
+    /** Once the dictionary holds this many strings, new strings are written inline. */
+    public final static int MAX_ENTRIES = 1 << 16;
+
+    /** Longest string that is added to the dictionary. */
+    public final static int MAX_ENTRY_LENGTH = 1024;
+
+    /**
+     * Bytes a record can need on top of its standard AICS size: the tag byte plus, for each of
+     * the at most eight strings, an entry tag, an entry length and a reference.
+     */
+    private final static int RECORD_SLACK = 1 + 8 * (1 + 2 * Varint.MAX_INT_SIZE);
+
+    private final HashMap<String, Integer> mDictionary = new HashMap<>();
+    private int mNextId = 1;
+    private int mRecordFirstId = 1;
+
+    /**
+     * Creates (or truncates) a file and writes the AICS file header to it.
+     */
+    public static DictionaryAICSWriter create(File file, short androidMajor, byte androidMinor,
+                                              byte androidPatch) throws IOException {
+        FileChannel channel = new FileOutputStream(file).getChannel();
+        return new DictionaryAICSWriter(channel, androidMajor, androidMinor, androidPatch,
+                DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param channel Channel positioned where the file should start. The writer takes ownership
+     *                of it and closes it in {@link #close()}.
+     * @param bufferSize Initial size of the direct buffer. It grows if a single record is larger.
+     */
+    public DictionaryAICSWriter(FileChannel channel, short androidMajor, byte androidMinor,
+                                byte androidPatch, int bufferSize) throws IOException {
+        super(channel, bufferSize);
+        AICSFormat.writeFileHeader(reserve(AICSFormat.FILE_HEADER_SIZE),
+                AICSFormat.FORMAT_MINOR_DICTIONARY, androidMajor, androidMinor, androidPatch);
+        addBytesWritten(AICSFormat.FILE_HEADER_SIZE);
+    }
+
+    /** Number of strings in the dictionary. */
+    public int getDictionarySize() {
+        return mDictionary.size();
+    }
+
+    @Override
+    protected int maxRecordSize(IntentHeader head) {
+        return AICSFormat.recordSize(head) + RECORD_SLACK;
+    }
+
+    @Override
+    protected void writeRecord(IntentHeader head, ByteBuffer out) {
+        mRecordFirstId = mNextId;
+        IntentData data = head.getIntentData();
+
+        // Dictionary entries first so the reader knows every ID by the time it reaches the record.
+        switch (head.getIntentType()) {
+            case IntentHeader.TYPE_ACTIVITY:
+                ActivityIntentHeader activity = (ActivityIntentHeader) head;
+                intern(out, activity.getReceiverComponent());
+                intern(out, activity.getCallerComponent());
+                break;
+            case IntentHeader.TYPE_BROADCAST:
+                BroadcastIntentHeader broadcast = (BroadcastIntentHeader) head;
+                intern(out, broadcast.getReceiverComponent());
+                intern(out, broadcast.getCallerComponent());
+                intern(out, broadcast.getRequiredPermission());
+                break;
+            case IntentHeader.TYPE_SERVICE:
+                ServiceIntentHeader service = (ServiceIntentHeader) head;
+                intern(out, service.getReceiverComponent());
+                intern(out, service.getCallerComponent());
+                intern(out, service.getAction());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown intent type " + head.getIntentType());
+        }
+        intern(out, data.getAction());
+        intern(out, data.getCategory());
+        intern(out, data.getType());
+
+        out.put(TAG_RECORD)
+                .putInt(head.getTimestamp())
+                .putShort(head.getOffset())
+                .putShort(head.getIntentType())
+                .putInt(head.getCallerUID())
+                .putInt(head.getCallerPID())
+                .putInt(head.getReceiverUID())
+                .putInt(head.getReceiverPID())
+                .putInt(head.getUserID());
+        switch (head.getIntentType()) {
+            case IntentHeader.TYPE_ACTIVITY:
+                ActivityIntentHeader activity = (ActivityIntentHeader) head;
+                out.putInt(activity.getRequestCode()).putInt(activity.getStartFlags());
+                putRef(out, activity.getReceiverComponent());
+                putRef(out, activity.getCallerComponent());
+                putBlob(out, activity.getOptions());
+                break;
+            case IntentHeader.TYPE_BROADCAST:
+                BroadcastIntentHeader broadcast = (BroadcastIntentHeader) head;
+                out.putInt(broadcast.getRequestCode()).putInt(broadcast.getFlags());
+                putRef(out, broadcast.getReceiverComponent());
+                putRef(out, broadcast.getCallerComponent());
+                putRef(out, broadcast.getRequiredPermission());
+                break;
+            default:
+                ServiceIntentHeader service = (ServiceIntentHeader) head;
+                out.putInt(service.getFlags());
+                putRef(out, service.getReceiverComponent());
+                putRef(out, service.getCallerComponent());
+                putRef(out, service.getAction());
+                break;
+        }
+        out.putInt(data.getFlags());
+        putRef(out, data.getAction());
+        putInline(out, data.getData());
+        putRef(out, data.getCategory());
+        putRef(out, data.getType());
+        putBlob(out, data.getClipData());
+        putBlob(out, data.getExtras());
+    }
+
+    /** Forgets the entries of a record that failed to encode, the buffer has been rewound. */
+    @Override
+    protected void discardRecord() {
+        if (mNextId == mRecordFirstId) return;
+        Iterator<Integer> ids = mDictionary.values().iterator();
+        while (ids.hasNext()) {
+            if (ids.next() >= mRecordFirstId) ids.remove();
+        }
+        mNextId = mRecordFirstId;
+    }
+
+    private void intern(ByteBuffer out, String value) {
+        if (value == null || value.length() > MAX_ENTRY_LENGTH || mNextId > MAX_ENTRIES
+                || mDictionary.containsKey(value)) return;
+        out.put(TAG_STRING);
+        Varint.putUnsignedInt(out, value.length());
+        AICSFormat.putString(out, value);
+        mDictionary.put(value, mNextId++);
+    }
+
+    private void putRef(ByteBuffer out, String value) {
+        Integer id = value == null ? null : mDictionary.get(value);
+        if (id == null) {
+            putInline(out, value);
+        } else {
+            Varint.putUnsignedInt(out, id << 1);
+        }
+    }
+
+    private static void putInline(ByteBuffer out, String value) {
+        if (value == null) {
+            out.put((byte) 0);
+        } else {
+            Varint.putUnsignedInt(out, (value.length() << 1) | 1);
+            AICSFormat.putString(out, value);
+        }
+    }
+
+    private static void putBlob(ByteBuffer out, byte[] value) {
+        Varint.putUnsignedInt(out, AICSFormat.length(value));
+        AICSFormat.putBytes(out, value);
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.intentlogger.storage;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Syncs data a sink already wrote to its file, see {@link RecordSink#flushForSync()}. The sync
+ * can run on another thread while the sink keeps appending, it then covers at least everything
+ * written before it was handed out.
+ */
+public class FileSync {
+
+    /** For sinks with nothing left to sync. */
+    public final static FileSync NONE = new FileSync(null);
+
+    private final FileChannel mChannel;
+
+    public FileSync(FileChannel channel) {
+        mChannel = channel;
+    }
+
+    public void sync() throws IOException {
+        if (mChannel == null) return;
+        try {
+            mChannel.force(false);
+        } catch (ClosedChannelException e) {
+            // The sink was closed meanwhile, which syncs the file before releasing it
+        }
+    }
+
+    /** A sync that runs this one and then {@code next}. */
+    public FileSync then(final FileSync next) {
+        if (next == NONE) return this;
+        final FileSync first = this;
+        return new FileSync(null) {
+            @Override
+            public void sync() throws IOException {
+                first.sync();
+                next.sync();
+            }
+        };
+    }
+}
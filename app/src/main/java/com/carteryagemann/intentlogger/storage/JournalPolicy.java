@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.storage;
+
+/**
+ * When a {@link SegmentJournal} syncs appended records to the storage device. Records are
+ * committed as a group once enough of them are waiting or the oldest has waited long enough,
+ * whichever comes first. Larger groups cost fewer syncs but lose more records in a crash.
+ */
+public class JournalPolicy {
+
+    private int mMaxBatchRecords = 1;
+    private long mMaxDelayMillis = 0;
+
+    /** Commit once this many records are waiting. 1 syncs every record. */
+    public JournalPolicy setMaxBatchRecords(int maxBatchRecords) {
+        mMaxBatchRecords = Math.max(1, maxBatchRecords);
+        return this;
+    }
+
+    /** Commit once the oldest waiting record has waited this long. */
+    public JournalPolicy setMaxDelayMillis(long maxDelayMillis) {
+        mMaxDelayMillis = Math.max(0, maxDelayMillis);
+        return this;
+    }
+
+    public int getMaxBatchRecords() {
+        return mMaxBatchRecords;
+    }
+
+    public long getMaxDelayMillis() {
+        return mMaxDelayMillis;
+    }
+}
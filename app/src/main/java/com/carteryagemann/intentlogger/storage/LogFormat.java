@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * The on-disk layouts a log can be written in. Every layout uses the AICS file header and the
+ * {@code .aics} extension, the minor format version in the header tells them apart.
+ */
+public enum LogFormat {
+
+    /** Standard AICS records, readable by {@link com.carteryagemann.AICS.AICSFile}. */
+    STANDARD(AICSFormat.FORMAT_MINOR_VERSION) {
+        @Override
+        public RecordSink create(File file, short androidMajor, byte androidMinor,
+                                 byte androidPatch) throws IOException {
+            return AICSStreamWriter.create(file, androidMajor, androidMinor, androidPatch);
+        }
+    },
+
+    /** Strings interned in a dictionary, see {@link DictionaryAICSWriter}. */
+    DICTIONARY(AICSFormat.FORMAT_MINOR_DICTIONARY) {
+        @Override
+        public RecordSink create(File file, short androidMajor, byte androidMinor,
+                                 byte androidPatch) throws IOException {
+            return DictionaryAICSWriter.create(file, androidMajor, androidMinor, androidPatch);
+        }
+    },
+
+    /** Standard records in DEFLATE compressed blocks, see {@link CompressedAICSWriter}. */
+    COMPRESSED(AICSFormat.FORMAT_MINOR_COMPRESSED) {
+        @Override
+        public RecordSink create(File file, short androidMajor, byte androidMinor,
+                                 byte androidPatch) throws IOException {
+            return CompressedAICSWriter.create(file, androidMajor, androidMinor, androidPatch);
+        }
+    },
+
+    /** Standard fields as varints with delta coded times, see {@link CompactAICSWriter}. */
+    COMPACT(AICSFormat.FORMAT_MINOR_COMPACT) {
+        @Override
+        public RecordSink create(File file, short androidMajor, byte androidMinor,
+                                 byte androidPatch) throws IOException {
+            return CompactAICSWriter.create(file, androidMajor, androidMinor, androidPatch);
+        }
+    };
+
+    public final short minorVersion;
+
+    LogFormat(short minorVersion) {
+        this.minorVersion = minorVersion;
+    }
+
+    /** Creates (or truncates) a file and writes the file header to it. */
+    public abstract RecordSink create(File file, short androidMajor, byte androidMinor,
+                                      byte androidPatch) throws IOException;
+
+    /** The format with the given minor version, or null if there is none. */
+    public static LogFormat forMinorVersion(short minorVersion) {
+        for (LogFormat format : values()) {
+            if (format.minorVersion == minorVersion) return format;
+        }
+        return null;
+    }
+
+    /**
+     * Parses a format name such as "dictionary" or "STANDARD".
+     *
+     * @param name The format name, may be null.
+     * @param fallback Returned if the name is null or unknown.
+     */
+    public static LogFormat parse(String name, LogFormat fallback) {
+        if (name == null) return fallback;
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.US));
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+}
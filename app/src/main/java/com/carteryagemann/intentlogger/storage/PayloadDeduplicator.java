@@ -0,0 +1,220 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.intentlogger.storage;
+
+import com.carteryagemann.AICS.IntentData;
+import com.carteryagemann.AICS.IntentHeader;
+
+import java.util.Arrays;
+
+/**
+ * Replaces clip data and extras that already appeared in the current segment with a
+ * {@link PayloadEncoding#reference}. Payloads are remembered in a fixed size table, a newer
+ * payload taking the slot of an older one, and a match is only taken once its bytes equal the
+ * remembered payload, so a hash collision can't put one intent's payload in place of another.
+ * The remembered payloads are kept up to a byte budget, so memory use doesn't grow with the
+ * segment. Clear it whenever a new segment begins, references never cross segments.
+ *
+ * {@link #apply} only stages its changes to the table. Call {@link #commit()} once the record
+ * has been written, or {@link #discard()} if it was rejected, so that a later record never
+ * refers to one that isn't in the segment.
+ *
+ * Not thread safe.
+ */
+public final class PayloadDeduplicator {
+
+    public final static int DEFAULT_TABLE_SIZE = 1024;
+    public final static int DEFAULT_MIN_BYTES = 64;
+    public final static long DEFAULT_MAX_RETAINED_BYTES = 4 * 1024 * 1024;
+
+    private final static class Table {
+        final long[] hashes;
+        final byte[][] payloads;
+        final int[] records;
+        final int mask;
+
+        // Staged by apply, written by commit
+        int pendingSlot = -1;
+        long pendingHash;
+        byte[] pendingPayload;
+        int pendingRecord;
+
+        Table(int size) {
+            hashes = new long[size];
+            payloads = new byte[size][];
+            records = new int[size];
+            mask = size - 1;
+            clear();
+        }
+
+        void clear() {
+            for (int i = 0; i <= mask; i++) {
+                records[i] = -1;
+                payloads[i] = null;
+            }
+            pendingSlot = -1;
+            pendingPayload = null;
+        }
+    }
+
+    private final Table mExtras;
+    private final Table mClipData;
+    private final int mMinBytes;
+    private final long mMaxRetainedBytes;
+    private long mRetainedBytes = 0;
+
+    // The staged record, restored by discard
+    private IntentHeader mPendingHead = null;
+    private byte[] mPendingExtras;
+    private byte[] mPendingClipData;
+    private int mPendingDeduplicated = 0;
+    private long mPendingBytesSaved = 0;
+
+    // Written by the appending thread, read by anyone
+    private volatile long mDeduplicated = 0;
+    private volatile long mBytesSaved = 0;
+
+    public PayloadDeduplicator() {
+        this(DEFAULT_TABLE_SIZE, DEFAULT_MIN_BYTES);
+    }
+
+    public PayloadDeduplicator(int tableSize, int minBytes) {
+        this(tableSize, minBytes, DEFAULT_MAX_RETAINED_BYTES);
+    }
+
+    /**
+     * @param tableSize Payloads remembered per field, rounded up to a power of two.
+     * @param minBytes Smaller payloads are always stored, a reference wouldn't save anything.
+     * @param maxRetainedBytes Payloads that would take the remembered bytes over this are
+     *                         stored but not remembered.
+     */
+    public PayloadDeduplicator(int tableSize, int minBytes, long maxRetainedBytes) {
+        int size = Integer.highestOneBit(Math.max(1, tableSize - 1)) << 1;
+        mExtras = new Table(size);
+        mClipData = new Table(size);
+        mMinBytes = minBytes;
+        mMaxRetainedBytes = maxRetainedBytes;
+    }
+
+    /**
+     * Swaps repeated payloads of a record for references. The header's data is changed in
+     * place and its payloads are remembered by reference, so they must not be changed after.
+     * A change staged by an earlier call that wasn't committed is discarded.
+     *
+     * @param record Number of the record within the segment.
+     */
+    public void apply(IntentHeader head, int record) {
+        discard();
+        IntentData data = head.getIntentData();
+        if (data == null) return;
+        byte[] extras = data.getExtras();
+        byte[] clipData = data.getClipData();
+        mPendingHead = head;
+        mPendingExtras = extras;
+        mPendingClipData = clipData;
+        byte[] newExtras = deduplicate(mExtras, extras, record);
+        byte[] newClipData = deduplicate(mClipData, clipData, record);
+        if (newExtras == extras && newClipData == clipData) return;
+        data.setExtras(newExtras).setClipData(newClipData);
+        // Headers cache the size of their data when it is attached
+        head.setIntentData(data);
+    }
+
+    /** Remembers the payloads of the record staged by {@link #apply}, it has been written. */
+    public void commit() {
+        commit(mExtras);
+        commit(mClipData);
+        mDeduplicated += mPendingDeduplicated;
+        mBytesSaved += mPendingBytesSaved;
+        mPendingHead = null;
+        mPendingDeduplicated = 0;
+        mPendingBytesSaved = 0;
+    }
+
+    /**
+     * Forgets what {@link #apply} staged and gives the record back its original payloads, it
+     * was rejected.
+     */
+    public void discard() {
+        mExtras.pendingSlot = -1;
+        mExtras.pendingPayload = null;
+        mClipData.pendingSlot = -1;
+        mClipData.pendingPayload = null;
+        if (mPendingHead != null && mPendingDeduplicated > 0) {
+            IntentData data = mPendingHead.getIntentData();
+            data.setExtras(mPendingExtras).setClipData(mPendingClipData);
+            mPendingHead.setIntentData(data);
+        }
+        mPendingHead = null;
+        mPendingDeduplicated = 0;
+        mPendingBytesSaved = 0;
+    }
+
+    /** Forgets every payload, call it when a new segment begins. */
+    public void clear() {
+        discard();
+        mExtras.clear();
+        mClipData.clear();
+        mRetainedBytes = 0;
+    }
+
+    public long getDeduplicated() {
+        return mDeduplicated;
+    }
+
+    public long getBytesSaved() {
+        return mBytesSaved;
+    }
+
+    private byte[] deduplicate(Table table, byte[] payload, int record) {
+        if (payload == null || payload.length < mMinBytes
+                || PayloadEncoding.kind(payload) != PayloadEncoding.KIND_FULL) {
+            return payload;
+        }
+        long hash = PayloadEncoding.hash(payload);
+        int slot = (int) (hash ^ (hash >>> 32)) & table.mask;
+        byte[] known = table.payloads[slot];
+        if (table.records[slot] >= 0 && table.hashes[slot] == hash
+                && Arrays.equals(known, payload)) {
+            byte[] reference = PayloadEncoding.reference(hash, payload.length,
+                    table.records[slot]);
+            mPendingDeduplicated++;
+            mPendingBytesSaved += payload.length - reference.length;
+            return reference;
+        }
+        table.pendingSlot = slot;
+        table.pendingHash = hash;
+        table.pendingPayload = payload;
+        table.pendingRecord = record;
+        return payload;
+    }
+
+    private void commit(Table table) {
+        int slot = table.pendingSlot;
+        if (slot < 0) return;
+        byte[] payload = table.pendingPayload;
+        byte[] known = table.payloads[slot];
+        long retained = mRetainedBytes - (known == null ? 0 : known.length) + payload.length;
+        if (retained <= mMaxRetainedBytes) {
+            table.hashes[slot] = table.pendingHash;
+            table.payloads[slot] = payload;
+            table.records[slot] = table.pendingRecord;
+            mRetainedBytes = retained;
+        }
+        table.pendingSlot = -1;
+        table.pendingPayload = null;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.intentlogger.storage;
+
+/**
+ * Stand-ins for clip data and extras that weren't stored in full. AICS treats both fields as
+ * opaque bytes, so a stand-in takes their place and starts with a magic number no marshalled
+ * parcel begins with, since a parcel starts with its length. Every stand-in carries the length
+ * and {@link #hash} of the original payload:
+ *
+ * <pre>
+ *     int  magic "AIPL"
+ *     byte kind
+ *     int  original length
+ *     long hash of the original
+ *     ...  the first bytes of the original (truncated) or a record number (reference)
+ * </pre>
+ *
+ * A reference points at an earlier record of the same segment, counted from 0, whose same field
+ * holds the payload in full.
+ */
+public final class PayloadEncoding {
+
+    /** The payload as it was marshalled. */
+    public final static int KIND_FULL      = 0;
+    public final static int KIND_TRUNCATED = 1;
+    public final static int KIND_HASHED    = 2;
+    public final static int KIND_REFERENCE = 3;
+
+    private final static int MAGIC = 0x4149504C;
+    private final static int HEADER_BYTES = 17;
+
+    private final static long PRIME_1 = 0x9E3779B185EBCA87L;
+    private final static long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+    private final static long PRIME_3 = 0x165667B19E3779F9L;
+    private final static long PRIME_4 = 0x85EBCA77C2B2AE63L;
+    private final static long PRIME_5 = 0x27D4EB2F165667C5L;
+
+    private PayloadEncoding() {}
+
+    /**
+     * Keeps the first bytes of a payload.
+     *
+     * @return The payload itself if truncating it wouldn't make it smaller.
+     */
+    public static byte[] truncate(byte[] payload, int limit) {
+        if (payload.length <= limit + HEADER_BYTES) return payload;
+        byte[] encoded = header(KIND_TRUNCATED, payload.length, hash(payload), limit);
+        System.arraycopy(payload, 0, encoded, HEADER_BYTES, limit);
+        return encoded;
+    }
+
+    /** Keeps only the length and hash of a payload. */
+    public static byte[] hashed(byte[] payload) {
+        return header(KIND_HASHED, payload.length, hash(payload), 0);
+    }
+
+    /** Refers to the record of the segment holding an identical payload. */
+    public static byte[] reference(long hash, int length, int record) {
+        byte[] encoded = header(KIND_REFERENCE, length, hash, 4);
+        putInt(encoded, HEADER_BYTES, record);
+        return encoded;
+    }
+
+    /** How a stored payload was encoded, {@link #KIND_FULL} for anything but a stand-in. */
+    public static int kind(byte[] stored) {
+        if (stored == null || stored.length < HEADER_BYTES || getInt(stored, 0) != MAGIC) {
+            return KIND_FULL;
+        }
+        int kind = stored[4];
+        return kind >= KIND_TRUNCATED && kind <= KIND_REFERENCE ? kind : KIND_FULL;
+    }
+
+    /** Length of the payload before it was encoded. */
+    public static int originalLength(byte[] stored) {
+        return kind(stored) == KIND_FULL ? stored.length : getInt(stored, 5);
+    }
+
+    /** Hash of the payload before it was encoded. */
+    public static long originalHash(byte[] stored) {
+        return kind(stored) == KIND_FULL ? hash(stored) : getLong(stored, 9);
+    }
+
+    /** The record a reference points at. */
+    public static int referencedRecord(byte[] stored) {
+        if (kind(stored) != KIND_REFERENCE) throw new IllegalArgumentException("Not a reference.");
+        return getInt(stored, HEADER_BYTES);
+    }
+
+    /**
+     * The stored bytes of the original payload: all of them, the kept prefix of a truncated
+     * payload, or null for hashes and references.
+     */
+    public static byte[] content(byte[] stored) {
+        switch (kind(stored)) {
+            case KIND_FULL:
+                return stored;
+            case KIND_TRUNCATED:
+                byte[] prefix = new byte[stored.length - HEADER_BYTES];
+                System.arraycopy(stored, HEADER_BYTES, prefix, 0, prefix.length);
+                return prefix;
+            default:
+                return null;
+        }
+    }
+
+    public static long hash(byte[] bytes) {
+        return hash(bytes, 0, bytes.length);
+    }
+
+    /**
+     * A fast 64 bit hash in the style of xxHash, taking eight bytes per step. Good enough to
+     * tell payloads apart, not meant to resist deliberate collisions.
+     */
+    public static long hash(byte[] bytes, int offset, int length) {
+        long hash = PRIME_5 + length;
+        int i = offset;
+        int end = offset + length;
+        for (; i + 8 <= end; i += 8) {
+            long k = (bytes[i] & 0xFFL)
+                    | (bytes[i + 1] & 0xFFL) << 8
+                    | (bytes[i + 2] & 0xFFL) << 16
+                    | (bytes[i + 3] & 0xFFL) << 24
+                    | (bytes[i + 4] & 0xFFL) << 32
+                    | (bytes[i + 5] & 0xFFL) << 40
+                    | (bytes[i + 6] & 0xFFL) << 48
+                    | (bytes[i + 7] & 0xFFL) << 56;
+            hash ^= Long.rotateLeft(k * PRIME_2, 31) * PRIME_1;
+            hash = Long.rotateLeft(hash, 27) * PRIME_1 + PRIME_4;
+        }
+        for (; i < end; i++) {
+            hash ^= (bytes[i] & 0xFFL) * PRIME_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME_1;
+        }
+        hash ^= hash >>> 33;
+        hash *= PRIME_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME_3;
+        return hash ^ (hash >>> 32);
+    }
+
+    private static byte[] header(int kind, int length, long hash, int extra) {
+        byte[] encoded = new byte[HEADER_BYTES + extra];
+        putInt(encoded, 0, MAGIC);
+        encoded[4] = (byte) kind;
+        putInt(encoded, 5, length);
+        putInt(encoded, 9, (int) (hash >>> 32));
+        putInt(encoded, 13, (int) hash);
+        return encoded;
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8 | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        return (long) getInt(bytes, offset) << 32 | (getInt(bytes, offset + 4) & 0xFFFFFFFFL);
+    }
+}
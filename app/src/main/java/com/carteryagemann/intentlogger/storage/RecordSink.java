@@ -0,0 +1,52 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.storage;
+
+import com.carteryagemann.AICS.IntentHeader;
+
+import java.io.IOException;
+
+/**
+ * Destination for captured records. Sinks are not thread safe.
+ */
+public interface RecordSink {
+
+    /** Adds a record. A record that can't be encoded must leave the sink unchanged. */
+    void append(IntentHeader head) throws IOException;
+
+    /**
+     * Writes buffered records out.
+     *
+     * @param force Also ask the OS to sync the written data to the storage device.
+     */
+    void flush(boolean force) throws IOException;
+
+    /**
+     * Writes buffered records out like {@code flush(false)} and leaves the slow part, syncing
+     * them to the storage device, to the caller. The returned sync may run on another thread.
+     */
+    FileSync flushForSync() throws IOException;
+
+    /** Flushes, syncs and releases the sink. Calling close more than once has no effect. */
+    void close() throws IOException;
+
+    /** Bytes written, including anything still buffered. */
+    long getBytesWritten();
+
+    /** Records appended so far. */
+    int getRecordCount();
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.storage;
+
+/**
+ * When a {@link SegmentedLogWriter} starts a new segment and how many old segments it keeps.
+ * A limit of zero disables that limit.
+ */
+public class RotationPolicy {
+
+    private long mMaxBytes = 0;
+    private int mMaxRecords = 0;
+    private long mMaxAgeMillis = 0;
+    private int mMaxSegments = 0;
+    private long mMaxTotalBytes = 0;
+
+    /** Start a new segment once the current one holds this many bytes. */
+    public RotationPolicy setMaxBytes(long maxBytes) {
+        mMaxBytes = Math.max(0, maxBytes);
+        return this;
+    }
+
+    /** Start a new segment once the current one holds this many records. */
+    public RotationPolicy setMaxRecords(int maxRecords) {
+        mMaxRecords = Math.max(0, maxRecords);
+        return this;
+    }
+
+    /** Start a new segment once the current one has been open this long. */
+    public RotationPolicy setMaxAgeMillis(long maxAgeMillis) {
+        mMaxAgeMillis = Math.max(0, maxAgeMillis);
+        return this;
+    }
+
+    /** Delete the oldest segments so that no more than this many exist. */
+    public RotationPolicy setMaxSegments(int maxSegments) {
+        mMaxSegments = Math.max(0, maxSegments);
+        return this;
+    }
+
+    /** Delete the oldest segments so that all segments together stay under this size. */
+    public RotationPolicy setMaxTotalBytes(long maxTotalBytes) {
+        mMaxTotalBytes = Math.max(0, maxTotalBytes);
+        return this;
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public int getMaxRecords() {
+        return mMaxRecords;
+    }
+
+    public long getMaxAgeMillis() {
+        return mMaxAgeMillis;
+    }
+
+    public int getMaxSegments() {
+        return mMaxSegments;
+    }
+
+    public long getMaxTotalBytes() {
+        return mMaxTotalBytes;
+    }
+
+    /**
+     * @param bytes Bytes in the current segment.
+     * @param records Records in the current segment.
+     * @param ageMillis Time the current segment has been open.
+     */
+    public boolean shouldRotate(long bytes, int records, long ageMillis) {
+        if (records == 0) return false;
+        return (mMaxBytes > 0 && bytes >= mMaxBytes)
+                || (mMaxRecords > 0 && records >= mMaxRecords)
+                || (mMaxAgeMillis > 0 && ageMillis >= mMaxAgeMillis);
+    }
+}
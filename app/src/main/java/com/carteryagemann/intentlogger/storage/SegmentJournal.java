@@ -0,0 +1,328 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.storage;
+
+import com.carteryagemann.AICS.IntentHeader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead journal of the records in the segment a {@link SegmentedLogWriter} is writing.
+ * Records are appended before they go to the segment, and withdrawn again if the segment rejects
+ * them, so whatever the journal committed can be replayed if the process dies before the segment
+ * is finished:
+ *
+ * <pre>
+ * int      magic
+ * short    version
+ * short    reserved
+ * int      sequence of the segment the records belong to
+ * int      metadata length
+ * byte[]   metadata, opaque to the journal
+ * frames:
+ *   int    record length
+ *   int    CRC-32 of the record
+ *   byte[] standard AICS record
+ * </pre>
+ *
+ * Once a segment is finished the journal is cut back to its header, and it is deleted when the
+ * session is closed. Journals are not thread safe.
+ */
+public class SegmentJournal implements Closeable {
+
+    public final static String EXTENSION = ".journal";
+    public final static int MAGIC = 0x41494A4C;
+    public final static short VERSION = 1;
+
+    private final static int SEQUENCE_OFFSET = 8;
+    private final static int FIXED_HEADER_SIZE = 16;
+    private final static int FRAME_HEADER_SIZE = 8;
+    private final static int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+    /** What a journal held when it was recovered. */
+    public static class Recovery {
+        public final String session;
+        public final int sequence;
+        public final byte[] meta;
+        public final List<IntentHeader> records;
+        /** Bytes of torn or corrupt frames cut off the end of the journal. */
+        public final long discardedBytes;
+
+        Recovery(String session, int sequence, byte[] meta, List<IntentHeader> records,
+                 long discardedBytes) {
+            this.session = session;
+            this.sequence = sequence;
+            this.meta = meta;
+            this.records = Collections.unmodifiableList(records);
+            this.discardedBytes = discardedBytes;
+        }
+    }
+
+    private final File mFile;
+    private final FileChannel mChannel;
+    private final JournalPolicy mPolicy;
+    private final int mHeaderSize;
+    private final CRC32 mCrc = new CRC32();
+
+    // Frames waiting for the next commit
+    private ByteBuffer mBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private int mPending = 0;
+    private long mFirstPendingMillis = 0;
+    // Start of the last frame while it can be withdrawn, otherwise -1
+    private int mLastFrame = -1;
+    private boolean mClosed = false;
+
+    private volatile long mCommitCount = 0;
+    private volatile long mCommittedRecords = 0;
+    private volatile long mSyncNanos = 0;
+
+    /**
+     * Creates (or truncates) a journal and syncs its header.
+     *
+     * @param sequence Sequence number of the segment the next records go to.
+     * @param meta Whatever the owner needs to resume the session, returned by
+     *             {@link #recover(File)}.
+     */
+    public SegmentJournal(File file, int sequence, byte[] meta, JournalPolicy policy)
+            throws IOException {
+        mFile = file;
+        mPolicy = policy;
+        mHeaderSize = FIXED_HEADER_SIZE + meta.length;
+        mChannel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(mHeaderSize);
+            header.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putInt(sequence)
+                    .putInt(meta.length).put(meta).flip();
+            mChannel.truncate(0);
+            while (header.hasRemaining()) mChannel.write(header);
+            mChannel.force(true);
+        } catch (IOException e) {
+            mChannel.close();
+            throw e;
+        }
+    }
+
+    /** The journal a session's writer keeps next to its segments. */
+    public static File fileFor(File directory, String session) {
+        return new File(directory, session + EXTENSION);
+    }
+
+    /**
+     * Frames a record. It is durable once the journal commits, which happens here if the batch
+     * is full.
+     *
+     * @param nowMillis The current time, for the commit delay.
+     */
+    public void append(IntentHeader head, long nowMillis) throws IOException {
+        frame(head, nowMillis);
+        commitIfFull();
+    }
+
+    /**
+     * Frames a record without committing, so it can still be withdrawn if the segment rejects
+     * it.
+     */
+    void frame(IntentHeader head, long nowMillis) throws IOException {
+        if (mClosed) throw new IOException("Journal is closed.");
+        int size = FRAME_HEADER_SIZE + AICSFormat.recordSize(head);
+        if (size > mBuffer.remaining()) {
+            int capacity = mBuffer.capacity();
+            while (capacity - mBuffer.position() < size) capacity <<= 1;
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            mBuffer.flip();
+            grown.put(mBuffer);
+            mBuffer = grown;
+        }
+        int start = mBuffer.position();
+        mBuffer.position(start + FRAME_HEADER_SIZE);
+        try {
+            AICSFormat.writeRecord(head, mBuffer);
+        } catch (RuntimeException e) {
+            mBuffer.position(start);
+            throw e;
+        }
+        int length = mBuffer.position() - start - FRAME_HEADER_SIZE;
+        mCrc.reset();
+        mCrc.update(mBuffer.array(), start + FRAME_HEADER_SIZE, length);
+        mBuffer.putInt(start, length);
+        mBuffer.putInt(start + 4, (int) mCrc.getValue());
+        if (mPending++ == 0) mFirstPendingMillis = nowMillis;
+        mLastFrame = start;
+    }
+
+    /** Drops the record framed last. Only possible until the journal commits. */
+    void withdraw() {
+        if (mLastFrame < 0) throw new IllegalStateException("No record to withdraw.");
+        mBuffer.position(mLastFrame);
+        mLastFrame = -1;
+        mPending--;
+    }
+
+    /** Commits if the batch is full. */
+    void commitIfFull() throws IOException {
+        if (mPending >= mPolicy.getMaxBatchRecords()) commit();
+    }
+
+    /**
+     * Commits if the oldest waiting record has waited long enough.
+     *
+     * @return Milliseconds until a commit is due, or {@link Long#MAX_VALUE} if nothing waits.
+     */
+    public long commitIfDue(long nowMillis) throws IOException {
+        if (mPending == 0) return Long.MAX_VALUE;
+        long due = mFirstPendingMillis + mPolicy.getMaxDelayMillis() - nowMillis;
+        if (due > 0) return due;
+        commit();
+        return Long.MAX_VALUE;
+    }
+
+    /** Writes and syncs every waiting record. */
+    public void commit() throws IOException {
+        if (mClosed || mPending == 0) return;
+        long start = System.nanoTime();
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) mChannel.write(mBuffer);
+        mBuffer.clear();
+        mChannel.force(false);
+        mSyncNanos += System.nanoTime() - start;
+        mCommittedRecords += mPending;
+        mCommitCount++;
+        mPending = 0;
+        mLastFrame = -1;
+    }
+
+    /**
+     * Drops every record because the segment they belong to is finished and synced, and points
+     * the journal at the next segment.
+     */
+    public void checkpoint(int sequence) throws IOException {
+        if (mClosed) throw new IOException("Journal is closed.");
+        mBuffer.clear();
+        mPending = 0;
+        mLastFrame = -1;
+        mChannel.truncate(mHeaderSize);
+        ByteBuffer value = ByteBuffer.allocate(4).putInt(sequence);
+        value.flip();
+        while (value.hasRemaining()) {
+            mChannel.write(value, SEQUENCE_OFFSET + value.position());
+        }
+        mChannel.position(mHeaderSize);
+        mChannel.force(false);
+    }
+
+    /**
+     * Closes and deletes the journal. Only call this once everything it protects is in finished
+     * segments.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        mChannel.close();
+        if (!mFile.delete()) throw new IOException("Failed to delete " + mFile);
+    }
+
+    /** Commits so far, each one a sync. */
+    public long getCommitCount() {
+        return mCommitCount;
+    }
+
+    public long getCommittedRecords() {
+        return mCommittedRecords;
+    }
+
+    /** Time spent writing and syncing commits. */
+    public long getSyncNanos() {
+        return mSyncNanos;
+    }
+
+    /**
+     * Reads the records a journal committed and cuts off a torn or corrupt tail, so the file
+     * ends after its last good frame.
+     *
+     * @throws ParseException If the file isn't a journal.
+     */
+    public static Recovery recover(File file) throws IOException, ParseException {
+        String name = file.getName();
+        String session = name.endsWith(EXTENSION)
+                ? name.substring(0, name.length() - EXTENSION.length()) : name;
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = access.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new ParseException("Journal is too large.", 0);
+            ByteBuffer in = ByteBuffer.allocate((int) size);
+            while (in.hasRemaining() && channel.read(in) >= 0) {}
+            in.flip();
+            if (in.remaining() < FIXED_HEADER_SIZE || in.getInt() != MAGIC) {
+                throw new ParseException("Not a journal.", 0);
+            }
+            short version = in.getShort();
+            if (version != VERSION) {
+                throw new ParseException("Journal version " + version + " is not supported.", 4);
+            }
+            in.getShort();
+            int sequence = in.getInt();
+            int metaLength = in.getInt();
+            if (metaLength < 0 || metaLength > in.remaining()) {
+                throw new ParseException("Journal header is truncated.", in.position());
+            }
+            byte[] meta = new byte[metaLength];
+            in.get(meta);
+
+            List<IntentHeader> records = new ArrayList<>();
+            CRC32 crc = new CRC32();
+            int good = in.position();
+            while (in.remaining() >= FRAME_HEADER_SIZE) {
+                int length = in.getInt();
+                int checksum = in.getInt();
+                if (length <= 0 || length > in.remaining()) break;
+                crc.reset();
+                crc.update(in.array(), in.position(), length);
+                if ((int) crc.getValue() != checksum) break;
+                byte[] record = new byte[length];
+                in.get(record);
+                ByteBuffer frame = ByteBuffer.wrap(record);
+                try {
+                    IntentHeader head = AICSFormat.readRecord(frame);
+                    if (frame.hasRemaining()) break;
+                    records.add(head);
+                } catch (ParseException | RuntimeException e) {
+                    break;
+                }
+                good = in.position();
+            }
+            if (good < size) {
+                channel.truncate(good);
+                channel.force(false);
+            }
+            return new Recovery(session, sequence, meta, records, size - good);
+        } finally {
+            access.close();
+        }
+    }
+}
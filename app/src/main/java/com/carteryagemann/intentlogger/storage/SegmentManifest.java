@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.storage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Lists the segments of one logging session. The manifest is a small text file with one line
+ * per finished segment:
+ *
+ * <pre>
+ * # file    first    last    records    bytes
+ * 1455000000000-0000.aics    1455000000123    1455003600000    51234    33554432
+ * </pre>
+ *
+ * Fields are tab separated. The first and last columns are the earliest and latest record times
+ * in milliseconds since the epoch, so analysis tools can open only the segments covering the time
+ * window they need.
+ */
+public class SegmentManifest {
+
+    public final static String EXTENSION = ".manifest";
+
+    private final static Charset ASCII = Charset.forName("US-ASCII");
+    private final static String HEADER = "# file\tfirst\tlast\trecords\tbytes";
+
+    /** One finished segment. */
+    public static class Entry {
+        public final String fileName;
+        public final long firstMillis;
+        public final long lastMillis;
+        public final int recordCount;
+        public final long bytes;
+
+        public Entry(String fileName, long firstMillis, long lastMillis, int recordCount,
+                     long bytes) {
+            this.fileName = fileName;
+            this.firstMillis = firstMillis;
+            this.lastMillis = lastMillis;
+            this.recordCount = recordCount;
+            this.bytes = bytes;
+        }
+
+        /** True if any record in the segment may fall in [fromMillis, toMillis]. */
+        public boolean overlaps(long fromMillis, long toMillis) {
+            return recordCount > 0 && firstMillis <= toMillis && lastMillis >= fromMillis;
+        }
+    }
+
+    private final File mFile;
+    private final List<Entry> mEntries = new ArrayList<>();
+
+    public SegmentManifest(File file) {
+        mFile = file;
+    }
+
+    /** Reads an existing manifest. */
+    public static SegmentManifest read(File file) throws IOException {
+        SegmentManifest manifest = new SegmentManifest(file);
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), ASCII));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] fields = line.split("\t");
+                if (fields.length < 5) throw new IOException("Malformed manifest line: " + line);
+                try {
+                    manifest.mEntries.add(new Entry(fields[0], Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]), Integer.parseInt(fields[3]),
+                            Long.parseLong(fields[4])));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed manifest line: " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return manifest;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(mEntries);
+    }
+
+    /** Segments that may contain records in [fromMillis, toMillis]. */
+    public List<Entry> findOverlapping(long fromMillis, long toMillis) {
+        List<Entry> result = new ArrayList<>();
+        for (Entry entry : mEntries) {
+            if (entry.overlaps(fromMillis, toMillis)) result.add(entry);
+        }
+        return result;
+    }
+
+    void add(Entry entry) {
+        mEntries.add(entry);
+    }
+
+    Entry removeOldest() {
+        return mEntries.remove(0);
+    }
+
+    int size() {
+        return mEntries.size();
+    }
+
+    long totalBytes() {
+        long total = 0;
+        for (Entry entry : mEntries) total += entry.bytes;
+        return total;
+    }
+
+    /** Writes the manifest to a temporary file and renames it over the old one. */
+    void write() throws IOException {
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            Writer writer = new OutputStreamWriter(stream, ASCII);
+            writer.write(HEADER);
+            writer.write('\n');
+            for (Entry entry : mEntries) {
+                writer.write(entry.fileName + '\t' + entry.firstMillis + '\t' + entry.lastMillis
+                        + '\t' + entry.recordCount + '\t' + entry.bytes + '\n');
+            }
+            writer.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (!temp.renameTo(mFile)) throw new IOException("Failed to replace " + mFile);
+    }
+}
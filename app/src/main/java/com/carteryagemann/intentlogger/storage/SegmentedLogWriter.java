@@ -0,0 +1,342 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.storage;
+
+import com.carteryagemann.AICS.IntentHeader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Splits one logging session into a series of segment files named
+ * {@code <session>-<sequence>.aics}. A new segment is started whenever the {@link RotationPolicy}
+ * says so, each finished segment is recorded in the session's {@link SegmentManifest}, and the
+ * oldest segments are deleted once the retention limits are exceeded.
+ *
+ * With a {@link SegmentJournal} enabled the records of the current segment can be replayed by
+ * {@link #resume} after the process dies.
+ */
+public class SegmentedLogWriter implements RecordSink {
+
+    public final static String EXTENSION = ".aics";
+
+    private final File mDirectory;
+    private final String mSession;
+    private final short mAndroidMajor;
+    private final byte mAndroidMinor;
+    private final byte mAndroidPatch;
+    private final LogFormat mFormat;
+    private final RotationPolicy mPolicy;
+    private final SegmentManifest mManifest;
+    private final CaptureIndexWriter mIndex;
+
+    private SegmentJournal mJournal = null;
+    private PayloadDeduplicator mDeduplicator = null;
+    private RecordSink mSegment = null;
+    private String mSegmentName = null;
+    private int mSequence = 0;
+    private long mSegmentOpened = 0;
+    private long mFirstMillis = Long.MAX_VALUE;
+    private long mLastMillis = Long.MIN_VALUE;
+
+    private long mClosedBytes = 0;
+    private int mRecordCount = 0;
+    private boolean mClosed = false;
+
+    /**
+     * Creates a writer that doesn't index its segments.
+     */
+    public SegmentedLogWriter(File directory, String session, short androidMajor,
+                              byte androidMinor, byte androidPatch, LogFormat format,
+                              RotationPolicy policy) throws IOException {
+        this(directory, session, androidMajor, androidMinor, androidPatch, format, policy, false);
+    }
+
+    /**
+     * @param directory Where segments and the manifest are written.
+     * @param session Prefix shared by every file of this session.
+     * @param format Layout of the segment files.
+     * @param indexed Write a {@link CaptureIndexWriter} sidecar next to every segment. Only
+     *                standard segments can be indexed, the flag is ignored for other formats.
+     */
+    public SegmentedLogWriter(File directory, String session, short androidMajor,
+                              byte androidMinor, byte androidPatch, LogFormat format,
+                              RotationPolicy policy, boolean indexed) throws IOException {
+        this(directory, session, androidMajor, androidMinor, androidPatch, format, policy, indexed,
+                new SegmentManifest(new File(directory, session + SegmentManifest.EXTENSION)), 0);
+    }
+
+    private SegmentedLogWriter(File directory, String session, short androidMajor,
+                               byte androidMinor, byte androidPatch, LogFormat format,
+                               RotationPolicy policy, boolean indexed, SegmentManifest manifest,
+                               int sequence) throws IOException {
+        mDirectory = directory;
+        mSession = session;
+        mAndroidMajor = androidMajor;
+        mAndroidMinor = androidMinor;
+        mAndroidPatch = androidPatch;
+        mFormat = format;
+        mPolicy = policy;
+        mManifest = manifest;
+        mIndex = indexed && format == LogFormat.STANDARD ? new CaptureIndexWriter() : null;
+        for (SegmentManifest.Entry entry : manifest.getEntries()) {
+            mClosedBytes += entry.bytes;
+            mRecordCount += entry.recordCount;
+        }
+        mSequence = sequence;
+        openSegment();
+    }
+
+    /**
+     * Reopens a session from its recovered journal. The segment the journal covered is written
+     * again from the journal's records, so records that reached that segment but weren't
+     * committed to the journal are lost. Numbering continues after it and the session keeps
+     * journaling with the same metadata.
+     */
+    public static SegmentedLogWriter resume(File directory, SegmentJournal.Recovery recovery,
+                                            short androidMajor, byte androidMinor,
+                                            byte androidPatch, LogFormat format,
+                                            RotationPolicy policy, boolean indexed,
+                                            JournalPolicy journalPolicy) throws IOException {
+        File manifestFile = new File(directory, recovery.session + SegmentManifest.EXTENSION);
+        SegmentManifest manifest = manifestFile.exists()
+                ? SegmentManifest.read(manifestFile) : new SegmentManifest(manifestFile);
+        int sequence = recovery.sequence;
+        List<IntentHeader> records = recovery.records;
+        // Died after the segment was finished but before the journal was cut back
+        String covered = segmentName(recovery.session, sequence);
+        for (SegmentManifest.Entry entry : manifest.getEntries()) {
+            if (entry.fileName.equals(covered)) {
+                sequence++;
+                records = Collections.emptyList();
+                break;
+            }
+        }
+        SegmentedLogWriter writer = new SegmentedLogWriter(directory, recovery.session,
+                androidMajor, androidMinor, androidPatch, format, policy, indexed, manifest,
+                sequence);
+        writer.enableJournal(journalPolicy, recovery.meta);
+        for (IntentHeader head : records) writer.append(head);
+        writer.flush(true);
+        return writer;
+    }
+
+    /**
+     * Journals every record before it is written to a segment. Must be called before the first
+     * record is appended.
+     *
+     * @param meta Handed back in the {@link SegmentJournal.Recovery}, e.g. the session's
+     *             configuration.
+     */
+    public void enableJournal(JournalPolicy policy, byte[] meta) throws IOException {
+        if (mJournal != null) throw new IllegalStateException("Journal is already enabled.");
+        mJournal = new SegmentJournal(SegmentJournal.fileFor(mDirectory, mSession), mSequence - 1,
+                meta, policy);
+    }
+
+    /** The session's journal, or null if journaling is off. */
+    public SegmentJournal getJournal() {
+        return mJournal;
+    }
+
+    /**
+     * Stores clip data and extras repeated within a segment as references to their first record.
+     * Headers appended from then on have their data changed in place.
+     */
+    public void setDeduplicator(PayloadDeduplicator deduplicator) {
+        mDeduplicator = deduplicator;
+        if (deduplicator != null) deduplicator.clear();
+    }
+
+    /** The writer's deduplicator, or null if payloads are always stored. */
+    public PayloadDeduplicator getDeduplicator() {
+        return mDeduplicator;
+    }
+
+    /**
+     * Commits journaled records whose commit delay is up.
+     *
+     * @return Milliseconds until the next commit is due, or {@link Long#MAX_VALUE} if none is.
+     */
+    public long commitJournalIfDue() throws IOException {
+        if (mClosed || mJournal == null) return Long.MAX_VALUE;
+        return mJournal.commitIfDue(System.currentTimeMillis());
+    }
+
+    @Override
+    public void append(IntentHeader head) throws IOException {
+        if (mClosed) throw new IOException("Writer is closed.");
+        rotateIfDue();
+        if (mDeduplicator != null) mDeduplicator.apply(head, mSegment.getRecordCount());
+        long offset = mSegment.getBytesWritten();
+        boolean framed = false;
+        try {
+            if (mJournal != null) {
+                mJournal.frame(head, System.currentTimeMillis());
+                framed = true;
+            }
+            mSegment.append(head);
+        } catch (IOException | RuntimeException e) {
+            // A rejected record must neither be replayed nor referred to by the ones after it
+            if (framed) mJournal.withdraw();
+            if (mDeduplicator != null) mDeduplicator.discard();
+            throw e;
+        }
+        if (mDeduplicator != null) mDeduplicator.commit();
+        if (mIndex != null) mIndex.add(offset, head);
+        long time = head.getTimestamp() * 1000L + head.getOffset();
+        if (time < mFirstMillis) mFirstMillis = time;
+        if (time > mLastMillis) mLastMillis = time;
+        mRecordCount++;
+        if (mJournal != null) mJournal.commitIfFull();
+    }
+
+    /**
+     * Starts a new segment if the current one is due. Appending already does this, callers only
+     * need it to roll segments by age while no records arrive.
+     *
+     * @return True if a new segment was started.
+     */
+    public boolean rotateIfDue() throws IOException {
+        if (mClosed) return false;
+        if (!mPolicy.shouldRotate(mSegment.getBytesWritten(), mSegment.getRecordCount(),
+                System.currentTimeMillis() - mSegmentOpened)) return false;
+        rotate();
+        return true;
+    }
+
+    /** Finishes the current segment and starts the next one. */
+    public void rotate() throws IOException {
+        if (mClosed) throw new IOException("Writer is closed.");
+        closeSegment(true);
+        openSegment();
+    }
+
+    /**
+     * Flushes the current segment. A forced flush also commits the journal and brings the
+     * segment's index sidecar up to date, so a saved log can be queried right away.
+     */
+    @Override
+    public void flush(boolean force) throws IOException {
+        if (mClosed) return;
+        if (force && mJournal != null) mJournal.commit();
+        mSegment.flush(force);
+        if (force && mIndex != null) mIndex.write(segmentIndexFile());
+    }
+
+    /**
+     * Like a forced {@link #flush(boolean)}, except that the current segment and its index
+     * sidecar are only synced by the returned {@link FileSync}. The sidecar is written right
+     * away but replaces the old one once the segment is synced. The journal is still committed
+     * right away.
+     */
+    @Override
+    public FileSync flushForSync() throws IOException {
+        if (mClosed) return FileSync.NONE;
+        if (mJournal != null) mJournal.commit();
+        FileSync sync = mSegment.flushForSync();
+        if (mIndex != null) sync = sync.then(mIndex.writeForSync(segmentIndexFile()));
+        return sync;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        closeSegment(false);
+    }
+
+    /** Bytes written to every segment of the session, including deleted ones. */
+    @Override
+    public long getBytesWritten() {
+        return mClosed ? mClosedBytes : mClosedBytes + mSegment.getBytesWritten();
+    }
+
+    @Override
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /** Name of the segment currently being written. */
+    public String getSegmentName() {
+        return mSegmentName;
+    }
+
+    public SegmentManifest getManifest() {
+        return mManifest;
+    }
+
+    private File segmentIndexFile() {
+        return CaptureIndexWriter.sidecarFor(new File(mDirectory, mSegmentName));
+    }
+
+    private static String segmentName(String session, int sequence) {
+        return String.format(Locale.US, "%s-%04d%s", session, sequence, EXTENSION);
+    }
+
+    private void openSegment() throws IOException {
+        mSegmentName = segmentName(mSession, mSequence++);
+        mSegment = mFormat.create(new File(mDirectory, mSegmentName), mAndroidMajor,
+                mAndroidMinor, mAndroidPatch);
+        mSegmentOpened = System.currentTimeMillis();
+        mFirstMillis = Long.MAX_VALUE;
+        mLastMillis = Long.MIN_VALUE;
+        if (mDeduplicator != null) mDeduplicator.clear();
+    }
+
+    /**
+     * @param reopening True if another segment is opened right after this one, it then counts
+     *                  towards the segment limit.
+     */
+    private void closeSegment(boolean reopening) throws IOException {
+        mSegment.close();
+        mClosedBytes += mSegment.getBytesWritten();
+        if (mIndex != null) {
+            mIndex.write(segmentIndexFile());
+            mIndex.clear();
+        }
+        int records = mSegment.getRecordCount();
+        mManifest.add(new SegmentManifest.Entry(mSegmentName,
+                records == 0 ? 0 : mFirstMillis, records == 0 ? 0 : mLastMillis, records,
+                mSegment.getBytesWritten()));
+        enforceRetention(reopening ? 1 : 0);
+        mManifest.write();
+        if (mJournal != null) {
+            if (reopening) {
+                mJournal.checkpoint(mSequence);
+            } else {
+                mJournal.close();
+            }
+        }
+    }
+
+    private void enforceRetention(int reserved) {
+        int maxSegments = mPolicy.getMaxSegments();
+        long maxTotalBytes = mPolicy.getMaxTotalBytes();
+        while (mManifest.size() > 0
+                && ((maxSegments > 0 && mManifest.size() + reserved > maxSegments)
+                || (maxTotalBytes > 0 && mManifest.totalBytes() > maxTotalBytes))) {
+            SegmentManifest.Entry oldest = mManifest.removeOldest();
+            File segment = new File(mDirectory, oldest.fileName);
+            segment.delete();
+            CaptureIndexWriter.sidecarFor(segment).delete();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * LEB128 style variable length integers: seven bits per byte, low bits first, with the high bit
+ * set on every byte but the last. Signed values are zig-zag encoded first so small negative
+ * numbers stay short.
+ */
+public final class Varint {
+
+    /** Longest encoding of an int. */
+    public final static int MAX_INT_SIZE = 5;
+
+    /** Longest encoding of a long. */
+    public final static int MAX_LONG_SIZE = 10;
+
+    private Varint() {}
+
+    public static void putUnsignedInt(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    public static void putUnsignedLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    public static void putSignedInt(ByteBuffer out, int value) {
+        putUnsignedInt(out, (value << 1) ^ (value >> 31));
+    }
+
+    public static void putSignedLong(ByteBuffer out, long value) {
+        putUnsignedLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    public static int getUnsignedInt(ByteBuffer in) {
+        int b = in.get();
+        if (b >= 0) return b;
+        int value = b & 0x7F;
+        for (int shift = 7; shift < 35; shift += 7) {
+            b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IllegalArgumentException("Malformed varint.");
+    }
+
+    public static long getUnsignedLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IllegalArgumentException("Malformed varint.");
+    }
+
+    public static int getSignedInt(ByteBuffer in) {
+        int value = getUnsignedInt(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static long getSignedLong(ByteBuffer in) {
+        long value = getUnsignedLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /** Bytes needed to encode an unsigned int. */
+    public static int sizeOfUnsignedInt(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
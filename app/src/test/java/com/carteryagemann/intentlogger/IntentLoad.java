@@ -0,0 +1,244 @@
+package com.carteryagemann.intentlogger;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcel;
+
+import com.carteryagemann.AICS.AICSFile;
+import com.carteryagemann.AICS.ActivityIntentHeader;
+import com.carteryagemann.AICS.BroadcastIntentHeader;
+import com.carteryagemann.AICS.IntentData;
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.AICS.ServiceIntentHeader;
+import com.carteryagemann.intentlogger.storage.AICSFormat;
+import com.carteryagemann.intentlogger.storage.CompactAICSReader;
+import com.carteryagemann.intentlogger.storage.CompressedAICSReader;
+import com.carteryagemann.intentlogger.storage.DictionaryAICSReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Intent traffic for {@link LoadHarness}: the data bundles IEM sends with CHECK_INTENT and when
+ * to send each one. Everything is built up front so generating the load costs nothing while it
+ * is sent.
+ */
+final class IntentLoad {
+
+    private final static String[] BROADCAST_ACTIONS = {
+            Intent.ACTION_BATTERY_CHANGED,
+            Intent.ACTION_TIME_TICK,
+            "android.net.conn.CONNECTIVITY_CHANGE",
+            Intent.ACTION_SCREEN_ON};
+    private final static int PACKAGES = 16;
+
+    final List<Bundle> intents;
+    /** When to send each intent, in nanoseconds after the first. */
+    final long[] sendNanos;
+
+    private IntentLoad(List<Bundle> intents, long[] sendNanos) {
+        this.intents = intents;
+        this.sendNanos = sendNanos;
+    }
+
+    int size() {
+        return intents.size();
+    }
+
+    /**
+     * A broadcast storm: mostly broadcasts fanned out to a few receivers each, with some
+     * activity starts and service binds mixed in.
+     *
+     * @param perSecond Intents sent per second, or 0 to send them as fast as they are answered.
+     * @param extrasBytes Size of the byte array put in every intent's extras, 0 for none.
+     */
+    static IntentLoad storm(int count, double perSecond, int extrasBytes, long seed) {
+        Random random = new Random(seed);
+        byte[] payload = new byte[extrasBytes];
+        random.nextBytes(payload);
+        List<Bundle> intents = new ArrayList<>(count);
+        long[] sendNanos = new long[count];
+        for (int i = 0; i < count; i++) {
+            int app = random.nextInt(PACKAGES);
+            String packageName = "com.vendor" + app + ".app";
+            int pick = random.nextInt(20);
+            Intent intent;
+            Bundle data = new Bundle();
+            if (pick < 16) {
+                intent = new Intent(BROADCAST_ACTIONS[i / 8 % BROADCAST_ACTIONS.length]);
+                intent.setComponent(new ComponentName(packageName, packageName + ".Receiver"));
+                data.putInt("intentType", IntentHeader.TYPE_BROADCAST);
+                if (pick == 0) data.putString("requiredPermission", "android.permission.DUMP");
+            } else if (pick < 19) {
+                intent = new Intent(Intent.ACTION_VIEW, Uri.parse("content://contacts/" + i));
+                intent.addCategory(Intent.CATEGORY_DEFAULT);
+                intent.setComponent(new ComponentName(packageName, packageName + ".Main"));
+                intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                data.putInt("intentType", IntentHeader.TYPE_ACTIVITY);
+                data.putInt("requestCode", i);
+            } else {
+                intent = new Intent("com.vendor.app.SYNC");
+                intent.setComponent(new ComponentName(packageName, packageName + ".Sync"));
+                data.putInt("intentType", IntentHeader.TYPE_SERVICE);
+                data.putString("IFW_SERVICE_ACTION", "bind");
+                data.putInt("flags", 1);
+            }
+            if (extrasBytes > 0) intent.putExtra("payload", payload);
+            data.putParcelable("intent", intent);
+            data.putString("callingPackage", "com.vendor" + random.nextInt(PACKAGES) + ".app");
+            data.putInt("callerUid", 10000 + app);
+            data.putInt("callerPid", 2000 + app);
+            data.putInt("userId", 0);
+            intents.add(data);
+            sendNanos[i] = perSecond > 0 ? (long) (i * 1e9 / perSecond) : 0;
+        }
+        return new IntentLoad(intents, sendNanos);
+    }
+
+    /**
+     * Sends the records of a capture again, in order.
+     *
+     * @param speed How much faster than recorded to send them, e.g. 10 for ten times as fast,
+     *              or 0 to send them as fast as they are answered.
+     */
+    static IntentLoad replay(AICSFile capture, double speed) {
+        int count = capture.size();
+        List<Bundle> intents = new ArrayList<>(count);
+        long[] sendNanos = new long[count];
+        long firstMillis = 0;
+        for (int i = 0; i < count; i++) {
+            IntentHeader head = capture.getIntent(i);
+            intents.add(toData(head));
+            long millis = head.getTimestamp() * 1000L + head.getOffset();
+            if (i == 0) firstMillis = millis;
+            if (speed > 0) {
+                // Records logged out of order are sent right after the one before them
+                long nanos = (long) ((millis - firstMillis) * 1e6 / speed);
+                sendNanos[i] = i == 0 ? 0 : Math.max(sendNanos[i - 1], nanos);
+            }
+        }
+        return new IntentLoad(intents, sendNanos);
+    }
+
+    /**
+     * Reads a capture in any of the logger's formats.
+     */
+    static AICSFile readCapture(File file) throws IOException, ParseException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            AICSFormat.FileHeader header = AICSFormat.readFileHeader(buffer.duplicate());
+            switch (header.formatMinor) {
+                case AICSFormat.FORMAT_MINOR_VERSION:
+                    return AICSFile.readFromBuffer(buffer);
+                case AICSFormat.FORMAT_MINOR_DICTIONARY:
+                    return DictionaryAICSReader.readFromBuffer(buffer);
+                case AICSFormat.FORMAT_MINOR_COMPRESSED:
+                    return CompressedAICSReader.readFromBuffer(buffer);
+                case AICSFormat.FORMAT_MINOR_COMPACT:
+                    return CompactAICSReader.readFromBuffer(buffer);
+                default:
+                    throw new ParseException("Unknown AICS format version "
+                            + header.formatMinor + ".", 0);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Rebuilds what IEM would have sent for a record. Extras are unmarshalled back into a
+     * Bundle where possible, and otherwise replaced by a byte array of the same length so the
+     * service marshals about as much. Clip data and activity options aren't replayed.
+     */
+    private static Bundle toData(IntentHeader head) {
+        IntentData fields = head.getIntentData();
+        Intent intent = new Intent(fields.getAction());
+        Uri data = fields.getData() == null ? null : Uri.parse(fields.getData());
+        if (fields.getType() != null) {
+            intent.setDataAndType(data, fields.getType());
+        } else {
+            intent.setData(data);
+        }
+        if (fields.getCategory() != null) {
+            for (String category : fields.getCategory().split(";")) {
+                if (!category.isEmpty()) intent.addCategory(category);
+            }
+        }
+        intent.setFlags(fields.getFlags());
+        byte[] extras = fields.getExtras();
+        if (extras != null && extras.length > 0) {
+            Bundle bundle = unmarshallExtras(extras);
+            if (bundle != null) {
+                intent.replaceExtras(bundle);
+            } else {
+                intent.putExtra("payload", new byte[extras.length]);
+            }
+        }
+
+        Bundle message = new Bundle();
+        String receiver = null;
+        String caller = null;
+        switch (head.getIntentType()) {
+            case IntentHeader.TYPE_ACTIVITY:
+                ActivityIntentHeader activity = (ActivityIntentHeader) head;
+                receiver = activity.getReceiverComponent();
+                caller = activity.getCallerComponent();
+                message.putInt("requestCode", activity.getRequestCode());
+                message.putInt("startFlags", activity.getStartFlags());
+                break;
+            case IntentHeader.TYPE_BROADCAST:
+                BroadcastIntentHeader broadcast = (BroadcastIntentHeader) head;
+                receiver = broadcast.getReceiverComponent();
+                caller = broadcast.getCallerComponent();
+                message.putInt("requestCode", broadcast.getRequestCode());
+                message.putString("requiredPermission", broadcast.getRequiredPermission());
+                break;
+            case IntentHeader.TYPE_SERVICE:
+                ServiceIntentHeader service = (ServiceIntentHeader) head;
+                receiver = service.getReceiverComponent();
+                caller = service.getCallerComponent();
+                message.putInt("flags", service.getFlags());
+                message.putString("IFW_SERVICE_ACTION", service.getAction());
+                break;
+        }
+        if (receiver != null && receiver.startsWith("{") && receiver.endsWith("}")) {
+            intent.setComponent(ComponentName.unflattenFromString(
+                    receiver.substring(1, receiver.length() - 1)));
+        }
+        message.putParcelable("intent", intent);
+        message.putInt("intentType", head.getIntentType());
+        message.putString("callingPackage", caller);
+        message.putInt("callerUid", head.getCallerUID());
+        message.putInt("callerPid", head.getCallerPID());
+        message.putInt("userId", head.getUserID());
+        return message;
+    }
+
+    private static Bundle unmarshallExtras(byte[] bytes) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(bytes, 0, bytes.length);
+            parcel.setDataPosition(0);
+            Bundle bundle = parcel.readBundle(IntentLoad.class.getClassLoader());
+            // Unparcel now so bad bytes fail here rather than in the service
+            if (bundle != null) bundle.size();
+            return bundle;
+        } catch (RuntimeException e) {
+            // Truncated, hashed or deduplicated payloads, or classes this process doesn't have
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
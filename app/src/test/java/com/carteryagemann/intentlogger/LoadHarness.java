@@ -0,0 +1,235 @@
+package com.carteryagemann.intentlogger;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+
+import com.carteryagemann.intentlogger.capture.LatencyHistogram;
+
+import org.robolectric.Shadows;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a {@link LoggingService} through its messenger the way IEM does and measures what it
+ * costs: how long each CHECK_INTENT waits for its reply, how many intents are answered and
+ * logged per second, how much the heap grows and how many bytes the session writes.
+ *
+ * Replies are handled on the looper given to the constructor. Under Robolectric messages sent
+ * on the looper's own thread are delivered right away, so there the reply latency is the time
+ * the handler spends before it answers and the send rate is limited by everything the handler
+ * does. Replies sent from other threads, like SAVE_LOG's, wait in the looper's queue, so the
+ * harness idles the looper while it waits for them.
+ */
+final class LoadHarness {
+
+    private final static long POLL_MILLIS = 10;
+
+    /** What one run of a load measured. */
+    static final class Result {
+        final int sent;
+        final int answered;
+        final long logged;
+        final long dropped;
+        final long p50ReplyNanos;
+        final long p99ReplyNanos;
+        final long maxReplyNanos;
+        /** Intents answered per second while the load was sent. */
+        final double answeredPerSecond;
+        /** Intents logged per second from the first send until the last one was logged. */
+        final double loggedPerSecond;
+        final long heapGrowthBytes;
+        final long bytesWritten;
+
+        Result(int sent, int answered, long logged, long dropped, LatencyHistogram latency,
+               long sendNanos, long logNanos, long heapGrowthBytes, long bytesWritten) {
+            this.sent = sent;
+            this.answered = answered;
+            this.logged = logged;
+            this.dropped = dropped;
+            p50ReplyNanos = latency.getPercentileNanos(0.5);
+            p99ReplyNanos = latency.getPercentileNanos(0.99);
+            maxReplyNanos = latency.getMaxNanos();
+            answeredPerSecond = answered * 1e9 / Math.max(1, sendNanos);
+            loggedPerSecond = logged * 1e9 / Math.max(1, logNanos);
+            this.heapGrowthBytes = heapGrowthBytes;
+            this.bytesWritten = bytesWritten;
+        }
+
+        /** Key=value lines, like the service's dump. */
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "sent=%d%nanswered=%d%nlogged=%d%ndropped=%d%n"
+                            + "p50ReplyNanos=%d%np99ReplyNanos=%d%nmaxReplyNanos=%d%n"
+                            + "answeredPerSecond=%.0f%nloggedPerSecond=%.0f%n"
+                            + "heapGrowthBytes=%d%nbytesWritten=%d",
+                    sent, answered, logged, dropped, p50ReplyNanos, p99ReplyNanos,
+                    maxReplyNanos, answeredPerSecond, loggedPerSecond, heapGrowthBytes,
+                    bytesWritten);
+        }
+    }
+
+    private final Messenger mService;
+    private final Looper mReplyLooper;
+    private final Messenger mReplies;
+    private final Semaphore mAnswered = new Semaphore(0);
+    private final Semaphore mCounted = new Semaphore(0);
+    private final Semaphore mSaved = new Semaphore(0);
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private volatile long[] mSentNanos = new long[0];
+    private volatile Bundle mStats = null;
+    private volatile int mSaveResult = -1;
+
+    LoadHarness(Messenger service, Looper replyLooper) {
+        mService = service;
+        mReplyLooper = replyLooper;
+        mReplies = new Messenger(new Handler(replyLooper) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case LoggingService.CHECK_INTENT:
+                        mLatency.record(System.nanoTime() - mSentNanos[msg.arg2]);
+                        mAnswered.release();
+                        break;
+                    case LoggingService.GET_COUNT:
+                        mStats = msg.getData();
+                        mCounted.release();
+                        break;
+                    case LoggingService.SAVE_LOG:
+                        mSaveResult = msg.arg1;
+                        mSaved.release();
+                        break;
+                }
+            }
+        });
+    }
+
+    void startLogging(Bundle config) throws RemoteException {
+        Message msg = Message.obtain(null, LoggingService.START_LOGGING);
+        msg.setData(config);
+        mService.send(msg);
+    }
+
+    void stopLogging() throws RemoteException {
+        mService.send(Message.obtain(null, LoggingService.STOP_LOGGING));
+    }
+
+    /**
+     * Syncs the session to storage.
+     *
+     * @return The save result, e.g. {@link LoggingService#SAVE_OK}.
+     */
+    int save(long timeoutMillis) throws RemoteException, InterruptedException {
+        Message msg = Message.obtain(null, LoggingService.SAVE_LOG);
+        msg.replyTo = mReplies;
+        mService.send(msg);
+        if (!await(mSaved, 1, timeoutMillis)) {
+            throw new IllegalStateException("No SAVE_LOG reply.");
+        }
+        return mSaveResult;
+    }
+
+    /** The service's stats, as sent with GET_COUNT replies. */
+    Bundle stats(long timeoutMillis) throws RemoteException, InterruptedException {
+        Message msg = Message.obtain(null, LoggingService.GET_COUNT);
+        msg.replyTo = mReplies;
+        mService.send(msg);
+        if (!await(mCounted, 1, timeoutMillis)) {
+            throw new IllegalStateException("No GET_COUNT reply.");
+        }
+        return mStats;
+    }
+
+    /**
+     * Sends every intent of a load on its schedule, then waits until the service has answered
+     * all of them and logged or dropped everything it queued. Logging must already be started,
+     * and since the logged counts are the session's every run needs a session of its own.
+     */
+    Result run(IntentLoad load, long timeoutMillis) throws RemoteException, InterruptedException {
+        int count = load.size();
+        long[] sentNanos = new long[count];
+        mSentNanos = sentNanos;
+        mLatency.reset();
+        mAnswered.drainPermits();
+        long heapBefore = usedHeap();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            long due = start + load.sendNanos[i];
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+            Message msg = Message.obtain(null, LoggingService.CHECK_INTENT);
+            msg.arg2 = i;
+            msg.replyTo = mReplies;
+            msg.setData(load.intents.get(i));
+            sentNanos[i] = System.nanoTime();
+            mService.send(msg);
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        int answered = count;
+        if (!await(mAnswered, count, timeoutMillis)) {
+            answered = mAnswered.availablePermits();
+        }
+        long sendNanos = System.nanoTime() - start;
+
+        Bundle stats;
+        long logged;
+        long dropped;
+        while (true) {
+            stats = stats(timeoutMillis);
+            logged = stats.getInt("loggedCount");
+            dropped = stats.getLong("droppedOldest") + stats.getLong("droppedNewest");
+            if (logged + dropped >= answered || System.currentTimeMillis() > deadline) break;
+            Thread.sleep(POLL_MILLIS);
+        }
+        long logNanos = System.nanoTime() - start;
+        long heapGrowth = usedHeap() - heapBefore;
+        return new Result(count, answered, logged, dropped, mLatency, sendNanos, logNanos,
+                heapGrowth, stats.getLong("bytesWritten"));
+    }
+
+    /** Sends every intent of a load in one CHECK_INTENT_BATCH, whatever its size. */
+    void sendBatch(IntentLoad load) throws RemoteException {
+        Message msg = Message.obtain(null, LoggingService.CHECK_INTENT_BATCH);
+        Bundle data = new Bundle();
+        data.putParcelableArrayList(LoggingService.BATCH_INTENTS, new ArrayList<>(load.intents));
+        msg.setData(data);
+        mService.send(msg);
+    }
+
+    /** Polls the session's stats until it logged this many intents or the time is up. */
+    int awaitLogged(int count, long timeoutMillis)
+            throws RemoteException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        int logged;
+        while ((logged = stats(timeoutMillis).getInt("loggedCount")) < count
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(POLL_MILLIS);
+        }
+        return logged;
+    }
+
+    /** Waits for replies, running the ones queued for the reply looper if it is this thread's. */
+    private boolean await(Semaphore replies, int permits, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!replies.tryAcquire(permits, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (System.currentTimeMillis() > deadline) return false;
+            if (mReplyLooper == Looper.myLooper()) Shadows.shadowOf(mReplyLooper).idle();
+        }
+        return true;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
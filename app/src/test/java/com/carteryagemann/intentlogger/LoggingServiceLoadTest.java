@@ -0,0 +1,163 @@
+package com.carteryagemann.intentlogger;
+
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.Looper;
+
+import com.carteryagemann.AICS.AICSFile;
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.intentlogger.storage.SegmentedLogWriter;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.ServiceController;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Load tests that run {@link LoggingService} under Robolectric on a desktop JVM. The sizes can
+ * be changed with system properties, e.g.
+ *
+ * <pre>
+ *     ./gradlew :app:testDebugUnitTest --tests '*LoggingServiceLoadTest' \
+ *             -DloadTest.intents=200000 -DloadTest.rate=5000
+ * </pre>
+ *
+ * <ul>
+ *     <li>{@code loadTest.intents}, {@code loadTest.rate} (intents per second, 0 for as fast as
+ *     possible) and {@code loadTest.extras} (bytes) shape the broadcast storm.</li>
+ *     <li>{@code loadTest.capture} names a {@code .aics} file to replay at
+ *     {@code loadTest.speed} times its recorded rate.</li>
+ * </ul>
+ * Every run prints what {@link LoadHarness} measured.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class LoggingServiceLoadTest {
+
+    private final static long TIMEOUT_MILLIS = 120000;
+
+    private ServiceController<LoggingService> mController;
+    private LoadHarness mHarness;
+
+    @Before
+    public void setUp() {
+        mController = Robolectric.buildService(LoggingService.class).create();
+        mHarness = new LoadHarness(mController.get().getMessenger(), Looper.getMainLooper());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mHarness.stopLogging();
+        mController.destroy();
+        File[] files = logDirectory().listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+    }
+
+    private static File logDirectory() {
+        return new File(Environment.getExternalStorageDirectory(), "AICS");
+    }
+
+    /** A session that blocks rather than drops, so every intent that is sent is logged. */
+    private static Bundle losslessConfig(int intents) {
+        Bundle config = new Bundle();
+        config.putInt(LoggingService.CONFIG_QUEUE_CAPACITY, Math.max(1024, intents));
+        config.putString(LoggingService.CONFIG_OVERFLOW_POLICY, "block");
+        config.putInt(LoggingService.CONFIG_MAX_BLOCK_MILLIS, 1000);
+        return config;
+    }
+
+    private static List<File> segments(File directory) {
+        File[] files = directory.listFiles();
+        List<File> segments = new ArrayList<>();
+        if (files == null) return segments;
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.getName().endsWith(SegmentedLogWriter.EXTENSION)) segments.add(file);
+        }
+        return segments;
+    }
+
+    private LoadHarness.Result run(String name, IntentLoad load, Bundle config)
+            throws Exception {
+        mHarness.startLogging(config);
+        LoadHarness.Result result = mHarness.run(load, TIMEOUT_MILLIS);
+        System.out.println(name + ":\n" + result);
+        return result;
+    }
+
+    @Test
+    public void broadcastStorm_everyIntentIsAnsweredAndLogged() throws Exception {
+        int intents = Integer.getInteger("loadTest.intents", 20000);
+        double rate = Double.parseDouble(System.getProperty("loadTest.rate", "0"));
+        int extras = Integer.getInteger("loadTest.extras", 256);
+        LoadHarness.Result result = run("Broadcast storm",
+                IntentLoad.storm(intents, rate, extras, 1), losslessConfig(intents));
+        assertEquals(intents, result.answered);
+        assertEquals(0, result.dropped);
+        assertEquals(intents, result.logged);
+        assertTrue(result.bytesWritten > (long) intents * extras);
+    }
+
+    @Test
+    public void oversizedBatch_isLoggedInParts() throws Exception {
+        int intents = LoggingService.MAX_BATCH_SIZE * 2 + 10;
+        mHarness.startLogging(losslessConfig(intents));
+        mHarness.sendBatch(IntentLoad.storm(intents, 0, 64, 3));
+        assertEquals(intents, mHarness.awaitLogged(intents, TIMEOUT_MILLIS));
+    }
+
+    @Test
+    public void replay_logsTheSameIntentsAgain() throws Exception {
+        run("Recorded storm", IntentLoad.storm(500, 5000, 64, 2), losslessConfig(500));
+        assertEquals(LoggingService.SAVE_OK, mHarness.save(TIMEOUT_MILLIS));
+        List<File> recorded = segments(logDirectory());
+        assertEquals(1, recorded.size());
+        AICSFile capture = IntentLoad.readCapture(recorded.get(0));
+        assertEquals(500, capture.size());
+
+        LoadHarness.Result result = run("Replay", IntentLoad.replay(capture, 1),
+                losslessConfig(500));
+        assertEquals(500, result.logged);
+        assertEquals(LoggingService.SAVE_OK, mHarness.save(TIMEOUT_MILLIS));
+        List<File> replayed = segments(logDirectory());
+        replayed.removeAll(recorded);
+        assertEquals(1, replayed.size());
+        AICSFile again = IntentLoad.readCapture(replayed.get(0));
+        assertEquals(capture.size(), again.size());
+        for (int i = 0; i < capture.size(); i++) {
+            IntentHeader expected = capture.getIntent(i);
+            IntentHeader actual = again.getIntent(i);
+            assertEquals(expected.getIntentType(), actual.getIntentType());
+            assertEquals(expected.getCallerUID(), actual.getCallerUID());
+            assertEquals(expected.getUserID(), actual.getUserID());
+            assertEquals(expected.getIntentData().getAction(),
+                    actual.getIntentData().getAction());
+            assertEquals(expected.getIntentData().getData(), actual.getIntentData().getData());
+        }
+    }
+
+    @Test
+    public void replay_capturedFile() throws Exception {
+        String path = System.getProperty("loadTest.capture");
+        Assume.assumeTrue(path != null);
+        double speed = Double.parseDouble(System.getProperty("loadTest.speed", "1"));
+        AICSFile capture = IntentLoad.readCapture(new File(path));
+        LoadHarness.Result result = run("Replay of " + path,
+                IntentLoad.replay(capture, speed), losslessConfig(capture.size()));
+        assertEquals(capture.size(), result.answered);
+    }
+}
@@ -0,0 +1,64 @@
+package com.carteryagemann.intentlogger.capture;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CaptureClockTest {
+
+    @Test
+    public void stamp_followsTheElapsedClockFromTheAnchor() {
+        CaptureClock clock = new CaptureClock(1455000000123L, 5000000L);
+        assertEquals(1455000000123000000L, clock.stamp(5000000L));
+        assertEquals(1455000001123000007L, clock.stamp(1005000007L));
+        assertEquals(0, clock.getBumped());
+    }
+
+    @Test
+    public void stamp_neverRepeatsOrGoesBack() {
+        CaptureClock clock = new CaptureClock(1455000000000L, 0);
+        long first = clock.stamp(1000);
+        assertEquals(first + 1, clock.stamp(1000));
+        assertEquals(first + 2, clock.stamp(10));
+        assertEquals(2, clock.getBumped());
+    }
+
+    @Test
+    public void concurrentStamps_areUnique() throws Exception {
+        final CaptureClock clock = new CaptureClock(1455000000000L, 0);
+        final int perThread = 50000;
+        final long[][] stamps = new long[4][perThread];
+        Thread[] threads = new Thread[stamps.length];
+        for (int i = 0; i < threads.length; i++) {
+            final long[] mine = stamps[i];
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < perThread; n++) {
+                        mine[n] = clock.stamp(n / 100);
+                        // Each thread sees its own stamps strictly increase
+                        if (n > 0 && mine[n] <= mine[n - 1]) throw new AssertionError(n);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) thread.join();
+        long[] all = new long[stamps.length * perThread];
+        for (int i = 0; i < stamps.length; i++) {
+            System.arraycopy(stamps[i], 0, all, i * perThread, perThread);
+        }
+        Arrays.sort(all);
+        for (int i = 1; i < all.length; i++) assertTrue(all[i] > all[i - 1]);
+    }
+
+    @Test
+    public void recordFields_splitTheTime() {
+        long nanos = 1455000059999123456L;
+        assertEquals(1455000059, CaptureClock.seconds(nanos));
+        assertEquals(999, CaptureClock.milliOffset(nanos));
+        assertEquals(123456, CaptureClock.subMilliNanos(nanos));
+    }
+}
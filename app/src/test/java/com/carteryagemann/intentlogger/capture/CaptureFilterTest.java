@@ -0,0 +1,107 @@
+package com.carteryagemann.intentlogger.capture;
+
+import com.carteryagemann.AICS.IntentHeader;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CaptureFilterTest {
+
+    private static IntentFields intent(int type, String caller, String receiverPackage,
+                                       String receiverClass, String action) {
+        IntentFields fields = new IntentFields().clear();
+        fields.intentType = type;
+        fields.callingPackage = caller;
+        fields.callerUid = 10001;
+        fields.receiverPackage = receiverPackage;
+        fields.receiverClass = receiverClass;
+        fields.action = action;
+        return fields;
+    }
+
+    @Test
+    public void firstMatchingRuleDecides() {
+        CaptureFilter filter = CaptureFilter.compile(new String[]{
+                "exclude callerPackage=com.android.systemui",
+                "include receiver=com.example/.Main",
+                "include type=broadcast action=android.intent.action."}, 1);
+        assertFalse(filter.accept(intent(IntentHeader.TYPE_ACTIVITY, "com.android.systemui",
+                "com.example", "com.example.Main", null), 0));
+        assertTrue(filter.accept(intent(IntentHeader.TYPE_ACTIVITY, "com.other",
+                "com.example", "com.example.Main", null), 0));
+        assertTrue(filter.accept(intent(IntentHeader.TYPE_BROADCAST, null, null, null,
+                "android.intent.action.SCREEN_ON"), 0));
+        // Unmatched intents are dropped once there are include rules
+        assertFalse(filter.accept(intent(IntentHeader.TYPE_SERVICE, null, null, null,
+                "android.intent.action.SCREEN_ON"), 0));
+
+        assertEquals(1, filter.getMatchCount(0));
+        assertEquals(1, filter.getDropCount(0));
+        assertEquals(1, filter.getMatchCount(1));
+        assertEquals(0, filter.getDropCount(1));
+        assertEquals(1, filter.getMatchCount(2));
+        assertEquals(1, filter.getUnmatchedCount());
+    }
+
+    @Test
+    public void excludeOnly_acceptsEverythingElse() {
+        CaptureFilter filter = CaptureFilter.compile(new String[]{"exclude callerUid=10001"}, 1);
+        assertFalse(filter.accept(intent(IntentHeader.TYPE_ACTIVITY, null, null, null, null), 0));
+        IntentFields other = intent(IntentHeader.TYPE_ACTIVITY, null, null, null, null);
+        other.callerUid = 10002;
+        assertTrue(filter.accept(other, 0));
+        assertTrue(CaptureFilter.compile(new String[0]).accept(other, 0));
+    }
+
+    @Test
+    public void sample_keepsRoughlyTheRequestedFraction() {
+        CaptureFilter filter = CaptureFilter.compile(new String[]{"include sample=0.25"}, 42);
+        IntentFields fields = intent(IntentHeader.TYPE_BROADCAST, null, null, null, "a");
+        int kept = 0;
+        for (int i = 0; i < 10000; i++) if (filter.accept(fields, 0)) kept++;
+        assertTrue("kept " + kept, kept > 2200 && kept < 2800);
+        assertEquals(10000, filter.getMatchCount(0));
+        assertEquals(10000 - kept, filter.getDropCount(0));
+    }
+
+    @Test
+    public void rate_limitsWithTokenBucket() {
+        CaptureFilter filter = CaptureFilter.compile(new String[]{"include rate=10 burst=5"}, 1);
+        IntentFields fields = intent(IntentHeader.TYPE_BROADCAST, null, null, null, "a");
+        long now = TimeUnit.SECONDS.toNanos(100);
+        int kept = 0;
+        for (int i = 0; i < 20; i++) if (filter.accept(fields, now)) kept++;
+        assertEquals(5, kept);
+        // 10 per second refills one token every 100 ms
+        assertFalse(filter.accept(fields, now + TimeUnit.MILLISECONDS.toNanos(50)));
+        assertTrue(filter.accept(fields, now + TimeUnit.MILLISECONDS.toNanos(110)));
+        kept = 0;
+        for (int i = 0; i < 20; i++) {
+            if (filter.accept(fields, now + TimeUnit.SECONDS.toNanos(10))) kept++;
+        }
+        assertEquals(5, kept);
+    }
+
+    @Test
+    public void malformedRules_areRejected() {
+        String[][] bad = {
+                {"allow type=activity"},
+                {"include type=provider"},
+                {"include callerUid=abc"},
+                {"include sample=2"},
+                {"exclude rate=5"},
+                {"include burst=5"},
+                {"include colour=blue"},
+                {"include action="}};
+        for (String[] specs : bad) {
+            try {
+                CaptureFilter.compile(specs);
+                fail("Accepted " + specs[0]);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+}
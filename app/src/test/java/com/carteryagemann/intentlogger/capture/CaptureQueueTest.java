@@ -0,0 +1,115 @@
+package com.carteryagemann.intentlogger.capture;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.junit.Assert.*;
+
+public class CaptureQueueTest {
+
+    @Test
+    public void dropOldest_evictsHeadAndCounts() throws Exception {
+        CaptureQueue<Integer> queue = new CaptureQueue<>(2, OverflowPolicy.DROP_OLDEST, 0);
+        assertTrue(queue.offer(1));
+        assertTrue(queue.offer(2));
+        assertTrue(queue.offer(3));
+        assertEquals(1, queue.getDroppedOldest());
+        assertEquals(0, queue.getDroppedNewest());
+        assertEquals(Integer.valueOf(2), queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals(Integer.valueOf(3), queue.poll(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void dropOldest_reportsEvictionsInOrder() throws Exception {
+        final List<Integer> evicted = new ArrayList<>();
+        CaptureQueue<Integer> queue = new CaptureQueue<>(2, OverflowPolicy.DROP_OLDEST, 0,
+                new CaptureQueue.EvictionListener<Integer>() {
+                    @Override
+                    public void onEvicted(Integer element) {
+                        evicted.add(element);
+                    }
+                });
+        for (int i = 0; i < 5; i++) assertTrue(queue.offer(i));
+        assertEquals(3, evicted.size());
+        assertEquals(Integer.valueOf(0), evicted.get(0));
+        assertEquals(Integer.valueOf(2), evicted.get(2));
+        assertEquals(2, queue.size());
+        assertEquals(Integer.valueOf(3), queue.poll(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void poll_waitsForAnOffer() throws Exception {
+        final CaptureQueue<Integer> queue = new CaptureQueue<>(4, OverflowPolicy.BLOCK, 0);
+        assertNull(queue.poll(0, TimeUnit.MILLISECONDS));
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.offer(7);
+            }
+        }.start();
+        assertEquals(Integer.valueOf(7), queue.poll(10, TimeUnit.SECONDS));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void concurrentConsumers_takeEveryElementOnce() throws Exception {
+        final int count = 200000;
+        final CaptureQueue<Integer> queue = new CaptureQueue<>(16, OverflowPolicy.BLOCK, 60000);
+        final AtomicLongArray taken = new AtomicLongArray(count);
+        Thread[] consumers = new Thread[4];
+        for (int i = 0; i < consumers.length; i++) {
+            consumers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Integer element;
+                        while ((element = queue.poll(1, TimeUnit.SECONDS)) != null) {
+                            taken.incrementAndGet(element);
+                        }
+                    } catch (InterruptedException e) {
+                        // Done
+                    }
+                }
+            };
+            consumers[i].start();
+        }
+        for (int i = 0; i < count; i++) assertTrue(queue.offer(i));
+        for (Thread consumer : consumers) consumer.join();
+        for (int i = 0; i < count; i++) assertEquals(1, taken.get(i));
+        assertEquals(0, queue.getDropped());
+    }
+
+    @Test
+    public void dropNewest_rejectsAndCounts() throws Exception {
+        CaptureQueue<Integer> queue = new CaptureQueue<>(1, OverflowPolicy.DROP_NEWEST, 0);
+        assertTrue(queue.offer(1));
+        assertFalse(queue.offer(2));
+        assertEquals(1, queue.getDroppedNewest());
+        assertEquals(Integer.valueOf(1), queue.poll(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void block_givesUpAfterTimeout() throws Exception {
+        CaptureQueue<Integer> queue = new CaptureQueue<>(1, OverflowPolicy.BLOCK, 20);
+        assertTrue(queue.offer(1));
+        long start = System.nanoTime();
+        assertFalse(queue.offer(2));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(1, queue.getDroppedNewest());
+    }
+
+    @Test
+    public void parse_acceptsDashedNames() {
+        assertEquals(OverflowPolicy.DROP_NEWEST, OverflowPolicy.parse("drop-newest", null));
+        assertEquals(OverflowPolicy.BLOCK, OverflowPolicy.parse("bogus", OverflowPolicy.BLOCK));
+    }
+}
@@ -0,0 +1,178 @@
+package com.carteryagemann.intentlogger.capture;
+
+import com.carteryagemann.AICS.AICSFile;
+import com.carteryagemann.AICS.ActivityIntentHeader;
+import com.carteryagemann.AICS.BroadcastIntentHeader;
+import com.carteryagemann.AICS.IntentData;
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.AICS.ServiceIntentHeader;
+import com.carteryagemann.intentlogger.storage.AICSFormat;
+import com.carteryagemann.intentlogger.storage.AICSStreamWriter;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class CaptureRecordBuilderTest {
+
+    private static byte[] encode(IntentHeader head) {
+        ByteBuffer buffer = ByteBuffer.allocate(AICSFormat.recordSize(head));
+        AICSFormat.writeRecord(head, buffer);
+        return buffer.array();
+    }
+
+    private static IntentData freshData() {
+        return new IntentData().setClipData(CaptureRecordBuilder.EMPTY_BYTES)
+                .setExtras(CaptureRecordBuilder.EMPTY_BYTES);
+    }
+
+    @Test
+    public void begin_clearsEverySharedField() {
+        CaptureRecordBuilder builder = new CaptureRecordBuilder();
+        IntentHeader[] fresh = {
+                new ActivityIntentHeader().setIntentData(freshData()),
+                new BroadcastIntentHeader().setIntentData(freshData()),
+                new ServiceIntentHeader().setIntentData(freshData())};
+        for (int type = 0; type < fresh.length; type++) {
+            IntentHeader head = builder.begin(type);
+            head.setTimestamp(5).setOffset((short) 6).setCallerUID(7).setCallerPID(8)
+                    .setReceiverUID(9).setReceiverPID(10).setUserID(11);
+            builder.data().setAction("a").setData("d").setCategory("c;").setType("t")
+                    .setFlags(12).setExtras(new byte[3]);
+            assertSame(head, builder.begin(type));
+            assertArrayEquals(encode(fresh[type]), encode(head));
+        }
+        assertNull(builder.begin(3));
+    }
+
+    @Test
+    public void build_broadcastHasNoCaller() {
+        CaptureRecordBuilder builder = new CaptureRecordBuilder();
+        IntentFields fields = new IntentFields().clear();
+        fields.intentType = IntentHeader.TYPE_BROADCAST;
+        fields.callingPackage = "com.example.caller";
+        fields.callerUid = 10001;
+        fields.receiverPackage = "com.example";
+        fields.receiverClass = "com.example.Receiver";
+        fields.requiredPermission = "android.permission.INTERNET";
+        BroadcastIntentHeader head = (BroadcastIntentHeader) builder.build(fields);
+        assertNull(head.getCallerComponent());
+        assertEquals(0, head.getCallerUID());
+        assertEquals("{com.example/.Receiver}", head.getReceiverComponent());
+        assertEquals("android.permission.INTERNET", head.getRequiredPermission());
+        assertEquals("", head.getIntentData().getCategory());
+
+        fields.intentType = IntentHeader.TYPE_SERVICE;
+        ServiceIntentHeader service = (ServiceIntentHeader) builder.build(fields);
+        assertEquals("com.example.caller", service.getCallerComponent());
+        assertEquals(10001, service.getCallerUID());
+    }
+
+    @Test
+    public void build_isReadableByTheLibrary() throws Exception {
+        IntentFields fields = new IntentFields().clear();
+        fields.intentType = IntentHeader.TYPE_ACTIVITY;
+        fields.action = "android.intent.action.VIEW";
+        fields.extras = new byte[100];
+        AICSFile file = new AICSFile((short) 6, (byte) 0, (byte) 1);
+        file.appendIntent(new CaptureRecordBuilder().build(fields));
+        IntentHeader head = AICSFile.readFromBuffer(file.toByteBuffer()).getIntent(0);
+        assertEquals(100, head.getIntentData().getExtras().length);
+        assertEquals("android.intent.action.VIEW", head.getIntentData().getAction());
+    }
+
+    @Test
+    public void shortComponentName_matchesToShortString() {
+        CaptureRecordBuilder builder = new CaptureRecordBuilder();
+        assertEquals("{com.example/.Main}",
+                builder.shortComponentName("com.example", "com.example.Main"));
+        assertEquals("{com.example/com.other.Main}",
+                builder.shortComponentName("com.example", "com.other.Main"));
+        assertEquals("{com.example/com.examples.Main}",
+                builder.shortComponentName("com.example", "com.examples.Main"));
+    }
+
+    @Test
+    public void joinCategories_reusesStrings() {
+        CaptureRecordBuilder builder = new CaptureRecordBuilder();
+        Set<String> categories = new LinkedHashSet<>(Arrays.asList("a", "b"));
+        String first = builder.joinCategories(categories);
+        assertEquals("a;b;", first);
+        assertSame(first, builder.joinCategories(new LinkedHashSet<>(categories)));
+        assertEquals(1, builder.getCacheHits());
+        assertEquals("", builder.joinCategories(null));
+    }
+
+    @Test
+    public void steadyStateCapture_allocatesAlmostNothing() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        CaptureRecordBuilder builder = new CaptureRecordBuilder();
+        Set<String> categories = new LinkedHashSet<>(Arrays.asList(
+                "android.intent.category.DEFAULT", "android.intent.category.BROWSABLE"));
+        byte[] extras = new byte[96];
+        File file = File.createTempFile("allocation", ".aics");
+        try {
+            AICSStreamWriter writer = new AICSStreamWriter(
+                    new FileOutputStream(file).getChannel(), (short) 6, (byte) 0, (byte) 1,
+                    AICSStreamWriter.DEFAULT_BUFFER_SIZE);
+            int records = 20000;
+            capture(builder, writer, categories, extras, records);
+            long thread = Thread.currentThread().getId();
+            long before = threads.getThreadAllocatedBytes(thread);
+            capture(builder, writer, categories, extras, records);
+            long allocated = threads.getThreadAllocatedBytes(thread) - before;
+            writer.close();
+            // Iterating the category set is the one allocation left, about 32 bytes
+            assertTrue("Allocated " + allocated + " bytes for " + records + " records",
+                    allocated / records < 48);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void build_keepsSecondsOfCurrentTimes() {
+        IntentFields fields = new IntentFields().clear();
+        fields.intentType = IntentHeader.TYPE_BROADCAST;
+        fields.captureNanos = 1455000059999123456L;
+        IntentHeader head = new CaptureRecordBuilder().build(fields);
+        assertEquals(1455000059, head.getTimestamp());
+        assertEquals(999, head.getOffset());
+    }
+
+    private static void capture(CaptureRecordBuilder builder, AICSStreamWriter writer,
+                                Set<String> categories, byte[] extras, int records)
+            throws Exception {
+        IntentFields fields = new IntentFields();
+        for (int i = 0; i < records; i++) {
+            fields.clear();
+            fields.intentType = i % 3;
+            fields.captureNanos = (1455000000000L + i) * 1000000L;
+            fields.callingPackage = "com.example.caller";
+            fields.requiredPermission = "android.permission.INTERNET";
+            fields.serviceAction = "bind";
+            fields.requestCode = i;
+            fields.receiverPackage = "com.example";
+            fields.receiverClass = "com.example.Receiver";
+            fields.action = "android.intent.action.VIEW";
+            fields.intentFlags = i;
+            fields.categories = categories;
+            fields.extras = extras;
+            writer.append(builder.build(fields));
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.carteryagemann.intentlogger.capture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void buckets_coverEveryValueWithBoundedError() {
+        long[] values = {0, 1, 15, 16, 17, 31, 32, 1000, 123456789L, Long.MAX_VALUE / 3,
+                Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            long highest = LatencyHistogram.highestIn(bucket);
+            assertTrue(value + " above its bucket", value <= highest);
+            assertTrue(value + " below its bucket",
+                    bucket == 0 || value > LatencyHistogram.highestIn(bucket - 1));
+            assertTrue(value + " bucket too wide", highest - value <= value / 8);
+        }
+    }
+
+    @Test
+    public void percentiles_areWithinOneBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) histogram.record(i * 1000L);
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500, histogram.getMeanNanos());
+        assertEquals(1000000, histogram.getMaxNanos());
+
+        long p50 = histogram.getPercentileNanos(0.5);
+        assertTrue("p50 " + p50, p50 >= 500000 && p50 <= 500000 * 9 / 8);
+        long p99 = histogram.getPercentileNanos(0.99);
+        assertTrue("p99 " + p99, p99 >= 990000 && p99 <= 1000000);
+        assertEquals(1000000, histogram.getPercentileNanos(1));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileNanos(0.99));
+    }
+}
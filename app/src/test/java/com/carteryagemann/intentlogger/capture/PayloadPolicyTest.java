@@ -0,0 +1,90 @@
+package com.carteryagemann.intentlogger.capture;
+
+import com.carteryagemann.intentlogger.storage.PayloadEncoding;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class PayloadPolicyTest {
+
+    private static IntentFields intent(String action, String caller, String receiver) {
+        IntentFields fields = new IntentFields().clear();
+        fields.action = action;
+        fields.callingPackage = caller;
+        fields.receiverPackage = receiver;
+        return fields;
+    }
+
+    private static byte[] payload(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) bytes[i] = (byte) (i * 7);
+        return bytes;
+    }
+
+    @Test
+    public void firstMatchingRuleDecides() {
+        PayloadPolicy policy = PayloadPolicy.compile(new String[]{
+                "full action=android.intent.action.SEND",
+                "truncate=100 package=com.example",
+                "hash larger=1000"});
+        byte[] big = payload(5000);
+        assertSame(big, policy.apply(PayloadPolicy.FIELD_EXTRAS,
+                intent("android.intent.action.SEND_MULTIPLE", "com.example", null), big));
+
+        byte[] truncated = policy.apply(PayloadPolicy.FIELD_EXTRAS,
+                intent("android.intent.action.VIEW", null, "com.example"), big);
+        assertEquals(PayloadEncoding.KIND_TRUNCATED, PayloadEncoding.kind(truncated));
+        assertEquals(5000, PayloadEncoding.originalLength(truncated));
+        assertEquals(PayloadEncoding.hash(big), PayloadEncoding.originalHash(truncated));
+        assertArrayEquals(Arrays.copyOf(big, 100), PayloadEncoding.content(truncated));
+
+        byte[] hashed = policy.apply(PayloadPolicy.FIELD_CLIP_DATA,
+                intent("android.intent.action.VIEW", "com.other", null), big);
+        assertEquals(PayloadEncoding.KIND_HASHED, PayloadEncoding.kind(hashed));
+        assertEquals(5000, PayloadEncoding.originalLength(hashed));
+        assertNull(PayloadEncoding.content(hashed));
+
+        byte[] small = payload(500);
+        assertSame(small, policy.apply(PayloadPolicy.FIELD_EXTRAS,
+                intent("android.intent.action.VIEW", "com.other", null), small));
+
+        assertEquals(1, policy.getTruncatedCount());
+        assertEquals(1, policy.getHashedCount());
+        assertEquals(5000 - truncated.length + 5000 - hashed.length, policy.getBytesSaved());
+    }
+
+    @Test
+    public void fieldCondition_andShortPayloadsKeptInFull() {
+        PayloadPolicy policy = PayloadPolicy.compile(new String[]{"truncate=10 field=clipData"});
+        byte[] payload = payload(100);
+        IntentFields fields = intent(null, null, null);
+        assertSame(payload, policy.apply(PayloadPolicy.FIELD_EXTRAS, fields, payload));
+        assertEquals(PayloadEncoding.KIND_TRUNCATED, PayloadEncoding.kind(
+                policy.apply(PayloadPolicy.FIELD_CLIP_DATA, fields, payload)));
+        // A stand-in wouldn't be smaller
+        byte[] short_ = payload(20);
+        assertSame(short_, policy.apply(PayloadPolicy.FIELD_CLIP_DATA, fields, short_));
+        assertEquals(PayloadEncoding.KIND_FULL, PayloadEncoding.kind(payload));
+    }
+
+    @Test
+    public void malformedRules_areRejected() {
+        String[][] bad = {
+                {"keep"},
+                {"truncate=lots"},
+                {"hash field=options"},
+                {"hash size=10"},
+                {"full action"}};
+        for (String[] specs : bad) {
+            try {
+                PayloadPolicy.compile(specs);
+                fail("Accepted " + specs[0]);
+            } catch (IllegalArgumentException expected) {
+                // Expected
+            }
+        }
+    }
+}
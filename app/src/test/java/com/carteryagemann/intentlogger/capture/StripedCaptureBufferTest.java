@@ -0,0 +1,144 @@
+package com.carteryagemann.intentlogger.capture;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class StripedCaptureBufferTest {
+
+    private final static StripedCaptureBuffer.Factory<long[]> SLOTS =
+            new StripedCaptureBuffer.Factory<long[]>() {
+                @Override
+                public long[] create() {
+                    return new long[1];
+                }
+            };
+
+    private static void publish(StripedCaptureBuffer<long[]> buffer, int stripe, long sequence) {
+        long[] slot = buffer.claim(stripe);
+        assertNotNull(slot);
+        slot[0] = sequence;
+        buffer.publish(stripe, sequence);
+    }
+
+    private static long take(StripedCaptureBuffer<long[]> buffer, boolean drain) {
+        long[] slot = buffer.poll(drain);
+        assertNotNull(slot);
+        long value = slot[0];
+        buffer.release();
+        return value;
+    }
+
+    @Test
+    public void poll_mergesStripesInSequenceOrder() {
+        StripedCaptureBuffer<long[]> buffer = new StripedCaptureBuffer<>(2, 8, 1000, SLOTS);
+        publish(buffer, 1, 1);
+        // Sequence 0 is still being captured
+        assertNull(buffer.poll(false));
+        publish(buffer, 0, 0);
+        publish(buffer, 0, 2);
+        assertEquals(0, take(buffer, false));
+        assertEquals(1, take(buffer, false));
+        assertEquals(2, take(buffer, false));
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.getSkipped());
+    }
+
+    @Test
+    public void claim_returnsNullWhenStripeIsFull() {
+        StripedCaptureBuffer<long[]> buffer = new StripedCaptureBuffer<>(1, 2, 0, SLOTS);
+        publish(buffer, 0, 0);
+        publish(buffer, 0, 1);
+        assertNull(buffer.claim(0));
+        assertEquals(0, take(buffer, false));
+        assertNotNull(buffer.claim(0));
+    }
+
+    @Test
+    public void gap_isSkippedOnceEveryStripeIsReady() {
+        StripedCaptureBuffer<long[]> buffer = new StripedCaptureBuffer<>(2, 8, 60000, SLOTS);
+        publish(buffer, 0, 2);
+        assertNull(buffer.poll(false));
+        publish(buffer, 1, 3);
+        // Neither stripe can still deliver 0 or 1
+        assertEquals(2, take(buffer, false));
+        assertEquals(2, buffer.getSkipped());
+        assertEquals(3, take(buffer, false));
+    }
+
+    @Test
+    public void gap_isSkippedAfterTimeoutOrDrain() throws Exception {
+        StripedCaptureBuffer<long[]> buffer = new StripedCaptureBuffer<>(2, 8, 20, SLOTS);
+        publish(buffer, 0, 1);
+        assertNull(buffer.poll(false));
+        Thread.sleep(30);
+        assertEquals(1, take(buffer, false));
+        publish(buffer, 0, 5);
+        assertEquals(5, take(buffer, true));
+        assertEquals(4, buffer.getSkipped());
+        // A skipped sequence that shows up anyway is still delivered
+        publish(buffer, 1, 3);
+        assertEquals(3, take(buffer, false));
+        assertEquals(1, buffer.getLate());
+    }
+
+    @Test
+    public void skippedRange_isPassedWithoutWaiting() {
+        StripedCaptureBuffer<long[]> buffer = new StripedCaptureBuffer<>(3, 8, 60000, SLOTS);
+        publish(buffer, 0, 0);
+        publish(buffer, 0, 4);
+        // Stripe 1 is idle, stripe 2 knows 1 to 3 won't come
+        assertTrue(buffer.skip(2, 1, 4));
+        assertEquals(0, take(buffer, false));
+        assertEquals(4, take(buffer, false));
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.getSkipped());
+        assertEquals(0, buffer.getLate());
+    }
+
+    @Test
+    public void concurrentProducers_deliverEverySequenceInOrder() throws Exception {
+        final int stripes = 4;
+        final int perStripe = 20000;
+        final StripedCaptureBuffer<long[]> buffer =
+                new StripedCaptureBuffer<>(stripes, 16, 60000, SLOTS);
+        final AtomicLong sequences = new AtomicLong();
+        final Object arrival = new Object();
+        final CountDownLatch done = new CountDownLatch(stripes);
+        for (int i = 0; i < stripes; i++) {
+            final int stripe = i;
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < perStripe; n++) {
+                        long[] slot;
+                        while ((slot = buffer.claim(stripe)) == null) Thread.yield();
+                        // Like the handler, hand out sequences in arrival order
+                        long sequence;
+                        synchronized (arrival) {
+                            sequence = sequences.getAndIncrement();
+                        }
+                        slot[0] = sequence;
+                        buffer.publish(stripe, sequence);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        long expected = 0;
+        while (expected < (long) stripes * perStripe) {
+            long[] slot = buffer.poll(done.getCount() == 0);
+            if (slot == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(expected++, slot[0]);
+            buffer.release();
+        }
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.getSkipped());
+    }
+}
@@ -0,0 +1,28 @@
+package com.carteryagemann.intentlogger.capture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StripedCounterTest {
+
+    @Test
+    public void concurrentIncrements_addUp() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < 100000; n++) counter.increment();
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) thread.join();
+        counter.add(-5);
+        assertEquals(800000 - 5, counter.sum());
+        counter.reset();
+        assertEquals(0, counter.sum());
+    }
+}
@@ -0,0 +1,120 @@
+package com.carteryagemann.intentlogger.storage;
+
+import com.carteryagemann.AICS.AICSFile;
+import com.carteryagemann.AICS.ActivityIntentHeader;
+import com.carteryagemann.AICS.BroadcastIntentHeader;
+import com.carteryagemann.AICS.IntentData;
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.AICS.ServiceIntentHeader;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AICSStreamWriterTest {
+
+    static List<IntentHeader> sampleRecords(int count) {
+        List<IntentHeader> records = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            IntentData data = new IntentData()
+                    .setAction("android.intent.action.ACTION_" + (i % 7))
+                    .setData(i % 3 == 0 ? null : "content://contacts/" + i)
+                    .setFlags(i)
+                    .setType(i % 2 == 0 ? "text/plain" : null)
+                    .setCategory("android.intent.category.DEFAULT;")
+                    .setClipData(new byte[i % 5])
+                    .setExtras(new byte[(i * 31) % 200]);
+            IntentHeader head;
+            switch (i % 3) {
+                case 0:
+                    head = new ActivityIntentHeader()
+                            .setCallerComponent("com.example.caller")
+                            .setReceiverComponent("{com.example/com.example.Main" + i + "}")
+                            .setRequestCode(i)
+                            .setStartFlags(1)
+                            .setOptions(new byte[i % 4]);
+                    break;
+                case 1:
+                    head = new BroadcastIntentHeader()
+                            .setReceiverComponent(i % 2 == 0 ? null : "{com.example/.Receiver}")
+                            .setRequiredPermission("android.permission.INTERNET")
+                            .setFlags(7);
+                    break;
+                default:
+                    head = new ServiceIntentHeader()
+                            .setAction("bind")
+                            .setCallerComponent("com.example.caller")
+                            .setReceiverComponent("{com.example/.Service}")
+                            .setFlags(3);
+                    break;
+            }
+            head.setTimestamp(1455000000 + i)
+                    .setOffset((short) (i % 1000))
+                    .setCallerUID(10000 + i % 11)
+                    .setCallerPID(400 + i)
+                    .setReceiverUID(10050)
+                    .setUserID(0)
+                    .setIntentData(data);
+            records.add(head);
+        }
+        return records;
+    }
+
+    static byte[] referenceBytes(List<IntentHeader> records) {
+        AICSFile file = new AICSFile((short) 6, (byte) 0, (byte) 1);
+        for (IntentHeader head : records) file.appendIntent(head);
+        ByteBuffer buffer = file.toByteBuffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void streamedFile_matchesAICSFile() throws Exception {
+        List<IntentHeader> records = sampleRecords(500);
+        File file = File.createTempFile("stream", ".aics");
+        try {
+            // A tiny buffer forces both draining and growing
+            AICSStreamWriter writer = new AICSStreamWriter(
+                    new FileOutputStream(file).getChannel(), (short) 6, (byte) 0, (byte) 1, 64);
+            for (IntentHeader head : records) writer.append(head);
+            writer.close();
+            byte[] expected = referenceBytes(records);
+            assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+            assertEquals(expected.length, writer.getBytesWritten());
+            assertEquals(500, writer.getRecordCount());
+            assertEquals(500, AICSFile.readFromArray(expected).size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void rejectedRecord_leavesFileIntact() throws Exception {
+        List<IntentHeader> records = sampleRecords(2);
+        File file = File.createTempFile("stream", ".aics");
+        try {
+            AICSStreamWriter writer = AICSStreamWriter.create(file, (short) 6, (byte) 0, (byte) 1);
+            writer.append(records.get(0));
+            IntentHeader bad = new BroadcastIntentHeader().setRequiredPermission("perm\u00e9")
+                    .setIntentData(new IntentData());
+            try {
+                writer.append(bad);
+                fail("Non-ASCII string accepted.");
+            } catch (IllegalArgumentException expected) {
+            }
+            writer.append(records.get(1));
+            writer.close();
+            assertArrayEquals(referenceBytes(records), Files.readAllBytes(file.toPath()));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.carteryagemann.intentlogger.storage;
+
+import com.carteryagemann.AICS.AICSFile;
+import com.carteryagemann.AICS.BroadcastIntentHeader;
+import com.carteryagemann.AICS.IntentData;
+import com.carteryagemann.AICS.IntentHeader;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CompactAICSWriterTest {
+
+    private static byte[] toBytes(AICSFile file) {
+        ByteBuffer buffer = file.toByteBuffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] write(List<IntentHeader> records) throws Exception {
+        File file = File.createTempFile("compact", ".aics");
+        try {
+            RecordSink writer = LogFormat.COMPACT.create(file, (short) 6, (byte) 0, (byte) 1);
+            for (IntentHeader head : records) writer.append(head);
+            writer.close();
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            assertEquals(bytes.length, writer.getBytesWritten());
+            return bytes;
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void roundTrip_matchesAICSFile() throws Exception {
+        List<IntentHeader> records = AICSStreamWriterTest.sampleRecords(500);
+        File file = File.createTempFile("compact", ".aics");
+        try {
+            // A tiny buffer forces both draining and growing
+            CompactAICSWriter writer = new CompactAICSWriter(
+                    new FileOutputStream(file).getChannel(), (short) 6, (byte) 0, (byte) 1, 64);
+            for (IntentHeader head : records) writer.append(head);
+            writer.close();
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            assertEquals(bytes.length, writer.getBytesWritten());
+
+            byte[] expected = AICSStreamWriterTest.referenceBytes(records);
+            assertArrayEquals(expected, toBytes(CompactAICSReader.readFromBuffer(
+                    ByteBuffer.wrap(bytes))));
+            // Mapped files aren't backed by an array
+            ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+            direct.put(bytes).flip();
+            assertArrayEquals(expected, toBytes(CompactAICSReader.readFromBuffer(direct)));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void timesFarApart_roundTrip() throws Exception {
+        List<IntentHeader> records = AICSStreamWriterTest.sampleRecords(5);
+        records.get(1).setTimestamp(-3).setOffset((short) 5);
+        records.get(2).setTimestamp(Integer.MAX_VALUE).setOffset((short) 999);
+        records.get(3).setTimestamp(Integer.MIN_VALUE).setOffset((short) 0);
+        records.get(4).setTimestamp(0).setOffset((short) 1);
+        AICSFile expanded = CompactAICSReader.readFromBuffer(ByteBuffer.wrap(write(records)));
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals(records.get(i).getTimestamp(), expanded.getIntent(i).getTimestamp());
+            assertEquals(records.get(i).getOffset(), expanded.getIntent(i).getOffset());
+        }
+    }
+
+    @Test
+    public void smallRecords_areAboutHalfTheStandardSize() throws Exception {
+        String[] actions = {
+                "android.intent.action.BATTERY_CHANGED",
+                "android.intent.action.TIME_TICK",
+                "android.net.conn.CONNECTIVITY_CHANGE"};
+        List<IntentHeader> records = new ArrayList<>();
+        for (int i = 0; i < 1200; i++) {
+            // Each broadcast goes out to a few receivers in a row
+            records.add(new BroadcastIntentHeader()
+                    .setReceiverComponent("{com.vendor" + (i % 4) + ".app/.SystemReceiver}")
+                    .setFlags(0x10)
+                    .setTimestamp(1455000000 + i / 20)
+                    .setOffset((short) (i * 50 % 1000))
+                    .setCallerUID(1000)
+                    .setCallerPID(812)
+                    .setReceiverUID(10024 + i % 4)
+                    .setReceiverPID(1455 + i % 4)
+                    .setIntentData(new IntentData()
+                            .setAction(actions[i / 4 % actions.length])
+                            .setClipData(new byte[0])
+                            .setExtras(new byte[0])));
+        }
+        long standard = AICSStreamWriterTest.referenceBytes(records).length;
+        long compact = write(records).length;
+        assertTrue(compact + " of " + standard, compact * 100 < standard * 55);
+
+        // Without any repeated strings only the numbers and sizes shrink
+        List<IntentHeader> varied = AICSStreamWriterTest.sampleRecords(500);
+        standard = AICSStreamWriterTest.referenceBytes(varied).length;
+        compact = write(varied).length;
+        assertTrue(compact + " of " + standard, compact * 100 < standard * 90);
+    }
+
+    @Test
+    public void rejectedRecord_keepsTimeBase() throws Exception {
+        List<IntentHeader> records = AICSStreamWriterTest.sampleRecords(2);
+        File file = File.createTempFile("compact", ".aics");
+        try {
+            CompactAICSWriter writer = CompactAICSWriter.create(file, (short) 6, (byte) 0,
+                    (byte) 1);
+            writer.append(records.get(0));
+            IntentHeader bad = new BroadcastIntentHeader()
+                    .setRequiredPermission("perm\u00e9")
+                    .setTimestamp(5)
+                    .setIntentData(new IntentData());
+            try {
+                writer.append(bad);
+                fail("Non-ASCII string accepted.");
+            } catch (IllegalArgumentException expected) {
+            }
+            writer.append(records.get(1));
+            writer.close();
+
+            AICSFile expanded = CompactAICSReader.readFromBuffer(
+                    ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+            assertArrayEquals(AICSStreamWriterTest.referenceBytes(records), toBytes(expanded));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void truncatedFile_isRejectedAtTheTornRecord() throws Exception {
+        byte[] bytes = write(AICSStreamWriterTest.sampleRecords(3));
+        CompactAICSReader reader = new CompactAICSReader(
+                ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length - 5)));
+        assertNotNull(reader.next());
+        assertNotNull(reader.next());
+        try {
+            reader.next();
+            fail("Read a torn record.");
+        } catch (ParseException expected) {
+        }
+    }
+
+    @Test
+    public void directBuffer_readsRecordsLargerThanTheWindow() throws Exception {
+        List<IntentHeader> records = AICSStreamWriterTest.sampleRecords(40);
+        byte[] extras = new byte[150 * 1024];
+        for (int i = 0; i < extras.length; i++) extras[i] = (byte) i;
+        records.get(7).getIntentData().setExtras(extras);
+        records.get(7).setIntentData(records.get(7).getIntentData());
+        byte[] bytes = write(records);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        assertArrayEquals(AICSStreamWriterTest.referenceBytes(records),
+                toBytes(CompactAICSReader.readFromBuffer(direct)));
+
+        ByteBuffer torn = ByteBuffer.allocateDirect(bytes.length - 5);
+        torn.put(bytes, 0, bytes.length - 5).flip();
+        CompactAICSReader reader = new CompactAICSReader(torn);
+        for (int i = 0; i < records.size() - 1; i++) assertNotNull(reader.next());
+        try {
+            reader.next();
+            fail("Read a torn record.");
+        } catch (ParseException expected) {
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.carteryagemann.intentlogger.storage;
+
+import com.carteryagemann.AICS.AICSFile;
+import com.carteryagemann.AICS.IntentHeader;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+public class CompressedAICSWriterTest {
+
+    private static byte[] write(List<IntentHeader> records, int blockSize) throws Exception {
+        File file = File.createTempFile("compressed", ".aics");
+        try {
+            CompressedAICSWriter writer = new CompressedAICSWriter(
+                    new FileOutputStream(file).getChannel(), (short) 6, (byte) 0, (byte) 1,
+                    blockSize, Deflater.DEFAULT_COMPRESSION);
+            for (IntentHeader head : records) writer.append(head);
+            writer.close();
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            assertEquals(bytes.length, writer.getBytesWritten());
+            return bytes;
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void roundTrip_matchesAICSFile() throws Exception {
+        List<IntentHeader> records = AICSStreamWriterTest.sampleRecords(500);
+        byte[] bytes = write(records, 4096);
+        byte[] expected = AICSStreamWriterTest.referenceBytes(records);
+        assertTrue(bytes.length < expected.length);
+
+        AICSFile file = CompressedAICSReader.readFromBuffer(ByteBuffer.wrap(bytes));
+        ByteBuffer buffer = file.toByteBuffer();
+        byte[] actual = new byte[buffer.remaining()];
+        buffer.get(actual);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void blockHeaders_describeTheirRecords() throws Exception {
+        List<IntentHeader> records = AICSStreamWriterTest.sampleRecords(500);
+        CompressedAICSReader reader =
+                new CompressedAICSReader(ByteBuffer.wrap(write(records, 4096)));
+        List<CompressedAICSReader.Block> blocks = reader.getBlocks();
+        assertTrue(blocks.size() > 1);
+        assertEquals(500, reader.getRecordCount());
+
+        int index = 0;
+        for (CompressedAICSReader.Block block : blocks) {
+            IntentHeader first = records.get(index);
+            assertEquals(first.getTimestamp() * 1000L + first.getOffset(), block.firstMillis);
+            index += block.recordCount;
+            IntentHeader last = records.get(index - 1);
+            assertEquals(last.getTimestamp() * 1000L + last.getOffset(), block.lastMillis);
+        }
+
+        // Records 100-109 of the sample are one second and one milli apart
+        long from = 1455000100L * 1000 + 100;
+        long to = 1455000109L * 1000 + 109;
+        List<IntentHeader> range = reader.readRange(from, to);
+        assertEquals(10, range.size());
+        assertEquals(1455000100, range.get(0).getTimestamp());
+        reader.close();
+    }
+
+    @Test
+    public void oversizedRecord_getsBlockOfItsOwn() throws Exception {
+        List<IntentHeader> records = AICSStreamWriterTest.sampleRecords(100);
+        IntentHeader large = records.get(50);
+        large.setIntentData(large.getIntentData().setExtras(new byte[5000]));
+        CompressedAICSReader reader =
+                new CompressedAICSReader(ByteBuffer.wrap(write(records, 1024)));
+        assertEquals(100, reader.getRecordCount());
+
+        int index = 0;
+        for (CompressedAICSReader.Block block : reader.getBlocks()) {
+            if (index == 50) {
+                assertEquals(1, block.recordCount);
+                assertEquals(AICSFormat.recordSize(large), block.uncompressedSize);
+            } else {
+                // The blocks after it still keep to the configured size
+                assertTrue(block.uncompressedSize <= 1024);
+            }
+            index += block.recordCount;
+        }
+        List<IntentHeader> all = reader.readRange(Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(5000, all.get(50).getIntentData().getExtras().length);
+        reader.close();
+    }
+
+    @Test(expected = ParseException.class)
+    public void corruptBlock_isRejected() throws Exception {
+        byte[] bytes = write(AICSStreamWriterTest.sampleRecords(50), 4096);
+        int data = AICSFormat.FILE_HEADER_SIZE + CompressedAICSWriter.BLOCK_HEADER_SIZE;
+        for (int i = data + 2; i < data + 12; i++) bytes[i] ^= 0x5A;
+        CompressedAICSReader.readFromBuffer(ByteBuffer.wrap(bytes));
+    }
+}
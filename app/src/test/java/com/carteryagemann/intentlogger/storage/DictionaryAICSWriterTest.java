@@ -0,0 +1,111 @@
+package com.carteryagemann.intentlogger.storage;
+
+import com.carteryagemann.AICS.AICSFile;
+import com.carteryagemann.AICS.BroadcastIntentHeader;
+import com.carteryagemann.AICS.IntentData;
+import com.carteryagemann.AICS.IntentHeader;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DictionaryAICSWriterTest {
+
+    private static byte[] toBytes(AICSFile file) {
+        ByteBuffer buffer = file.toByteBuffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void roundTrip_matchesAICSFile() throws Exception {
+        List<IntentHeader> records = AICSStreamWriterTest.sampleRecords(500);
+        File file = File.createTempFile("dictionary", ".aics");
+        try {
+            // A tiny buffer forces both draining and growing
+            DictionaryAICSWriter writer = new DictionaryAICSWriter(
+                    new FileOutputStream(file).getChannel(), (short) 6, (byte) 0, (byte) 1, 64);
+            for (IntentHeader head : records) writer.append(head);
+            writer.close();
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            assertEquals(bytes.length, writer.getBytesWritten());
+
+            AICSFile expanded = DictionaryAICSReader.readFromBuffer(ByteBuffer.wrap(bytes));
+            assertEquals(500, expanded.size());
+            byte[] expected = AICSStreamWriterTest.referenceBytes(records);
+            assertArrayEquals(expected, toBytes(expanded));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void repeatedStrings_areSmallerThanStandard() throws Exception {
+        List<IntentHeader> records = new ArrayList<>();
+        for (IntentHeader head : AICSStreamWriterTest.sampleRecords(500)) {
+            // Payload bytes aren't deduplicated, leave them out to compare only the strings
+            records.add(head.setIntentData(head.getIntentData().setExtras(new byte[0])
+                    .setClipData(new byte[0])));
+        }
+        File file = File.createTempFile("dictionary", ".aics");
+        try {
+            RecordSink writer = LogFormat.DICTIONARY.create(file, (short) 6, (byte) 0, (byte) 1);
+            for (IntentHeader head : records) writer.append(head);
+            writer.close();
+            long standard = AICSStreamWriterTest.referenceBytes(records).length;
+            assertTrue(writer.getBytesWritten() * 2 < standard);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void rejectedRecord_isForgotten() throws Exception {
+        List<IntentHeader> records = AICSStreamWriterTest.sampleRecords(2);
+        File file = File.createTempFile("dictionary", ".aics");
+        try {
+            DictionaryAICSWriter writer = DictionaryAICSWriter.create(file, (short) 6, (byte) 0,
+                    (byte) 1);
+            writer.append(records.get(0));
+            int entries = writer.getDictionarySize();
+            IntentHeader bad = new BroadcastIntentHeader()
+                    .setReceiverComponent("{com.example/.Other}")
+                    .setRequiredPermission("perm\u00e9")
+                    .setIntentData(new IntentData());
+            try {
+                writer.append(bad);
+                fail("Non-ASCII string accepted.");
+            } catch (IllegalArgumentException expected) {
+            }
+            assertEquals(entries, writer.getDictionarySize());
+            writer.append(records.get(1));
+            writer.close();
+
+            AICSFile expanded = DictionaryAICSReader.readFromBuffer(
+                    ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+            assertArrayEquals(AICSStreamWriterTest.referenceBytes(records), toBytes(expanded));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void varint_roundTrips() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        int[] values = {0, 1, 127, 128, 300, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+        for (int value : values) Varint.putSignedInt(buffer, value);
+        Varint.putUnsignedLong(buffer, Long.MAX_VALUE);
+        buffer.flip();
+        for (int value : values) assertEquals(value, Varint.getSignedInt(buffer));
+        assertEquals(Long.MAX_VALUE, Varint.getUnsignedLong(buffer));
+        assertFalse(buffer.hasRemaining());
+    }
+}
@@ -0,0 +1,148 @@
+package com.carteryagemann.intentlogger.storage;
+
+import com.carteryagemann.AICS.AICSFile;
+import com.carteryagemann.AICS.IntentHeader;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PayloadDeduplicatorTest {
+
+    private static byte[] payload(int length, int seed) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) bytes[i] = (byte) (i * 31 + seed);
+        return bytes;
+    }
+
+    @Test
+    public void repeatedPayloads_becomeReferencesToFirstRecord() throws Exception {
+        List<IntentHeader> records = AICSStreamWriterTest.sampleRecords(4);
+        byte[] shared = payload(500, 1);
+        for (IntentHeader head : records) {
+            head.setIntentData(head.getIntentData().setExtras(shared.clone())
+                    .setClipData(payload(10, 2)));
+        }
+        records.get(2).setIntentData(records.get(2).getIntentData().setExtras(payload(500, 3)));
+        PayloadDeduplicator deduplicator = new PayloadDeduplicator();
+        for (int i = 0; i < records.size(); i++) {
+            deduplicator.apply(records.get(i), i);
+            deduplicator.commit();
+        }
+
+        assertArrayEquals(shared, records.get(0).getIntentData().getExtras());
+        byte[] reference = records.get(1).getIntentData().getExtras();
+        assertEquals(PayloadEncoding.KIND_REFERENCE, PayloadEncoding.kind(reference));
+        assertEquals(0, PayloadEncoding.referencedRecord(reference));
+        assertEquals(500, PayloadEncoding.originalLength(reference));
+        assertEquals(PayloadEncoding.hash(shared), PayloadEncoding.originalHash(reference));
+        assertEquals(PayloadEncoding.KIND_FULL,
+                PayloadEncoding.kind(records.get(2).getIntentData().getExtras()));
+        assertEquals(0, PayloadEncoding.referencedRecord(
+                records.get(3).getIntentData().getExtras()));
+        // Below the minimum size
+        assertEquals(10, records.get(3).getIntentData().getClipData().length);
+        assertEquals(2, deduplicator.getDeduplicated());
+        assertEquals(2 * (500 - reference.length), deduplicator.getBytesSaved());
+        // The header must report the new size to be serialized
+        AICSFile aics = new AICSFile((short) 6, (byte) 0, (byte) 1);
+        aics.appendIntent(records.get(1));
+        assertArrayEquals(reference, AICSFile.readFromBuffer(aics.toByteBuffer()).getIntent(0)
+                .getIntentData().getExtras());
+
+        deduplicator.clear();
+        IntentHeader next = AICSStreamWriterTest.sampleRecords(1).get(0);
+        next.setIntentData(next.getIntentData().setExtras(shared.clone()));
+        deduplicator.apply(next, 0);
+        deduplicator.commit();
+        assertEquals(PayloadEncoding.KIND_FULL,
+                PayloadEncoding.kind(next.getIntentData().getExtras()));
+    }
+
+    @Test
+    public void discardedRecord_isNeverReferenced() {
+        List<IntentHeader> records = AICSStreamWriterTest.sampleRecords(3);
+        byte[] shared = payload(300, 4);
+        for (IntentHeader head : records) {
+            head.setIntentData(head.getIntentData().setExtras(shared.clone()));
+        }
+        PayloadDeduplicator deduplicator = new PayloadDeduplicator();
+        // Record 0 is rejected by the sink, record 1 takes its place in the segment
+        deduplicator.apply(records.get(0), 0);
+        deduplicator.discard();
+        deduplicator.apply(records.get(1), 0);
+        deduplicator.commit();
+        deduplicator.apply(records.get(2), 1);
+        deduplicator.commit();
+
+        assertArrayEquals(shared, records.get(1).getIntentData().getExtras());
+        assertEquals(0, PayloadEncoding.referencedRecord(
+                records.get(2).getIntentData().getExtras()));
+        assertEquals(1, deduplicator.getDeduplicated());
+    }
+
+    @Test
+    public void discard_restoresOriginalPayloads() {
+        List<IntentHeader> records = AICSStreamWriterTest.sampleRecords(2);
+        byte[] shared = payload(300, 5);
+        for (IntentHeader head : records) {
+            head.setIntentData(head.getIntentData().setExtras(shared.clone()));
+        }
+        PayloadDeduplicator deduplicator = new PayloadDeduplicator();
+        deduplicator.apply(records.get(0), 0);
+        deduplicator.commit();
+        deduplicator.apply(records.get(1), 1);
+        deduplicator.discard();
+        assertArrayEquals(shared, records.get(1).getIntentData().getExtras());
+        assertEquals(shared.length, records.get(1).getIntentData().getExtras().length);
+        assertEquals(0, deduplicator.getDeduplicated());
+        assertEquals(0, deduplicator.getBytesSaved());
+    }
+
+    @Test
+    public void sameHashDifferentBytes_isStoredInFull() throws Exception {
+        // A table of one slot puts every payload in the same slot, as a hash collision would
+        List<IntentHeader> records = AICSStreamWriterTest.sampleRecords(3);
+        records.get(0).setIntentData(records.get(0).getIntentData().setExtras(payload(300, 6)));
+        records.get(1).setIntentData(records.get(1).getIntentData().setExtras(payload(300, 7)));
+        records.get(2).setIntentData(records.get(2).getIntentData().setExtras(payload(300, 7)));
+        PayloadDeduplicator deduplicator = new PayloadDeduplicator(1, 64);
+        for (int i = 0; i < records.size(); i++) {
+            deduplicator.apply(records.get(i), i);
+            deduplicator.commit();
+        }
+        assertArrayEquals(payload(300, 7), records.get(1).getIntentData().getExtras());
+        assertEquals(1, PayloadEncoding.referencedRecord(
+                records.get(2).getIntentData().getExtras()));
+    }
+
+    @Test
+    public void retainedBytes_areCapped() {
+        List<IntentHeader> records = AICSStreamWriterTest.sampleRecords(2);
+        for (IntentHeader head : records) {
+            head.setIntentData(head.getIntentData().setExtras(payload(300, 8)));
+        }
+        PayloadDeduplicator deduplicator = new PayloadDeduplicator(16, 64, 200);
+        for (int i = 0; i < records.size(); i++) {
+            deduplicator.apply(records.get(i), i);
+            deduplicator.commit();
+        }
+        assertEquals(PayloadEncoding.KIND_FULL,
+                PayloadEncoding.kind(records.get(1).getIntentData().getExtras()));
+    }
+
+    @Test
+    public void hash_dependsOnEveryByte() {
+        byte[] bytes = payload(37, 0);
+        long hash = PayloadEncoding.hash(bytes);
+        assertEquals(hash, PayloadEncoding.hash(bytes.clone()));
+        for (int i = 0; i < bytes.length; i++) {
+            byte[] changed = bytes.clone();
+            changed[i] ^= 1;
+            assertNotEquals(hash, PayloadEncoding.hash(changed));
+        }
+        assertNotEquals(PayloadEncoding.hash(new byte[8]), PayloadEncoding.hash(new byte[9]));
+    }
+}
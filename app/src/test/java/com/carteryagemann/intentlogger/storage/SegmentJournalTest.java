@@ -0,0 +1,153 @@
+package com.carteryagemann.intentlogger.storage;
+
+import com.carteryagemann.AICS.AICSFile;
+import com.carteryagemann.AICS.IntentHeader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SegmentJournalTest {
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = Files.createTempDirectory("journal").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        mDirectory.delete();
+    }
+
+    private static void assertSameRecord(IntentHeader expected, IntentHeader actual) {
+        assertEquals(expected.getIntentType(), actual.getIntentType());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getCallerPID(), actual.getCallerPID());
+        assertEquals(expected.getIntentData().getAction(), actual.getIntentData().getAction());
+    }
+
+    @Test
+    public void recover_returnsCommittedRecordsAndCutsTornTail() throws Exception {
+        List<IntentHeader> records = AICSStreamWriterTest.sampleRecords(10);
+        File file = SegmentJournal.fileFor(mDirectory, "1");
+        SegmentJournal journal = new SegmentJournal(file, 3, new byte[]{7, 8},
+                new JournalPolicy().setMaxBatchRecords(4));
+        for (IntentHeader head : records) journal.append(head, 0);
+        // Two records are still waiting for their batch
+        assertEquals(2, journal.getCommitCount());
+        assertEquals(8, journal.getCommittedRecords());
+        long committed = file.length();
+
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        access.seek(committed);
+        access.write(new byte[]{0, 0, 1, 0, 1, 2, 3});
+        access.close();
+
+        SegmentJournal.Recovery recovery = SegmentJournal.recover(file);
+        assertEquals("1", recovery.session);
+        assertEquals(3, recovery.sequence);
+        assertArrayEquals(new byte[]{7, 8}, recovery.meta);
+        assertEquals(8, recovery.records.size());
+        for (int i = 0; i < 8; i++) assertSameRecord(records.get(i), recovery.records.get(i));
+        assertEquals(7, recovery.discardedBytes);
+        assertEquals(committed, file.length());
+    }
+
+    @Test
+    public void recover_stopsAtCorruptFrame() throws Exception {
+        List<IntentHeader> records = AICSStreamWriterTest.sampleRecords(6);
+        File file = SegmentJournal.fileFor(mDirectory, "2");
+        SegmentJournal journal = new SegmentJournal(file, 0, new byte[0], new JournalPolicy());
+        long[] ends = new long[records.size()];
+        for (int i = 0; i < records.size(); i++) {
+            journal.append(records.get(i), 0);
+            ends[i] = file.length();
+        }
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        access.seek(ends[3] - 1);
+        int last = access.read();
+        access.seek(ends[3] - 1);
+        access.write(last ^ 0xFF);
+        access.close();
+
+        SegmentJournal.Recovery recovery = SegmentJournal.recover(file);
+        assertEquals(3, recovery.records.size());
+        assertEquals(ends[2], file.length());
+    }
+
+    @Test
+    public void withdraw_dropsRecordTheSegmentRejected() throws Exception {
+        List<IntentHeader> records = AICSStreamWriterTest.sampleRecords(3);
+        File file = SegmentJournal.fileFor(mDirectory, "5");
+        SegmentJournal journal = new SegmentJournal(file, 0, new byte[0],
+                new JournalPolicy().setMaxBatchRecords(2));
+        journal.append(records.get(0), 0);
+        journal.frame(records.get(1), 0);
+        journal.withdraw();
+        journal.append(records.get(2), 0);
+        // The withdrawn record doesn't count towards the batch
+        assertEquals(1, journal.getCommitCount());
+
+        SegmentJournal.Recovery recovery = SegmentJournal.recover(file);
+        assertEquals(2, recovery.records.size());
+        assertSameRecord(records.get(0), recovery.records.get(0));
+        assertSameRecord(records.get(2), recovery.records.get(1));
+    }
+
+    @Test
+    public void commitIfDue_waitsForDelay() throws Exception {
+        SegmentJournal journal = new SegmentJournal(SegmentJournal.fileFor(mDirectory, "3"), 0,
+                new byte[0], new JournalPolicy().setMaxBatchRecords(100).setMaxDelayMillis(50));
+        assertEquals(Long.MAX_VALUE, journal.commitIfDue(1000));
+        journal.append(AICSStreamWriterTest.sampleRecords(1).get(0), 1000);
+        assertEquals(30, journal.commitIfDue(1020));
+        assertEquals(0, journal.getCommitCount());
+        assertEquals(Long.MAX_VALUE, journal.commitIfDue(1050));
+        assertEquals(1, journal.getCommitCount());
+        journal.close();
+        assertFalse(SegmentJournal.fileFor(mDirectory, "3").exists());
+    }
+
+    @Test
+    public void resume_replaysTheUnfinishedSegment() throws Exception {
+        List<IntentHeader> records = AICSStreamWriterTest.sampleRecords(25);
+        SegmentedLogWriter writer = new SegmentedLogWriter(mDirectory, "600", (short) 6,
+                (byte) 0, (byte) 1, LogFormat.STANDARD, new RotationPolicy().setMaxRecords(10));
+        writer.enableJournal(new JournalPolicy(), new byte[]{42});
+        for (IntentHeader head : records) writer.append(head);
+        // The process dies here, the third segment was never finished
+
+        SegmentJournal.Recovery recovery =
+                SegmentJournal.recover(SegmentJournal.fileFor(mDirectory, "600"));
+        assertEquals(2, recovery.sequence);
+        assertEquals(5, recovery.records.size());
+        SegmentedLogWriter resumed = SegmentedLogWriter.resume(mDirectory, recovery, (short) 6,
+                (byte) 0, (byte) 1, LogFormat.STANDARD, new RotationPolicy().setMaxRecords(10),
+                false, new JournalPolicy());
+        assertEquals("600-0002.aics", resumed.getSegmentName());
+        assertEquals(25, resumed.getRecordCount());
+        for (IntentHeader head : AICSStreamWriterTest.sampleRecords(3)) resumed.append(head);
+        resumed.close();
+        assertFalse(SegmentJournal.fileFor(mDirectory, "600").exists());
+
+        List<SegmentManifest.Entry> entries =
+                SegmentManifest.read(new File(mDirectory, "600.manifest")).getEntries();
+        assertEquals(3, entries.size());
+        assertEquals(8, entries.get(2).recordCount);
+        AICSFile last = AICSFile.readFromArray(
+                Files.readAllBytes(new File(mDirectory, "600-0002.aics").toPath()));
+        assertEquals(8, last.size());
+        for (int i = 0; i < 5; i++) assertSameRecord(records.get(20 + i), last.getIntent(i));
+    }
+}
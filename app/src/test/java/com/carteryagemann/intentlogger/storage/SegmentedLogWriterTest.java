@@ -0,0 +1,250 @@
+package com.carteryagemann.intentlogger.storage;
+
+import com.carteryagemann.AICS.AICSFile;
+import com.carteryagemann.AICS.BroadcastIntentHeader;
+import com.carteryagemann.AICS.IntentData;
+import com.carteryagemann.AICS.IntentHeader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SegmentedLogWriterTest {
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = Files.createTempDirectory("segments").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        mDirectory.delete();
+    }
+
+    @Test
+    public void rotatesByRecordCount_andWritesManifest() throws Exception {
+        List<IntentHeader> records = AICSStreamWriterTest.sampleRecords(25);
+        SegmentedLogWriter writer = new SegmentedLogWriter(mDirectory, "100", (short) 6,
+                (byte) 0, (byte) 1, LogFormat.STANDARD, new RotationPolicy().setMaxRecords(10));
+        for (IntentHeader head : records) writer.append(head);
+        writer.close();
+
+        SegmentManifest manifest = SegmentManifest.read(new File(mDirectory, "100.manifest"));
+        List<SegmentManifest.Entry> entries = manifest.getEntries();
+        assertEquals(3, entries.size());
+        assertEquals("100-0000.aics", entries.get(0).fileName);
+        assertEquals(10, entries.get(0).recordCount);
+        assertEquals(5, entries.get(2).recordCount);
+        assertEquals(1455000010L * 1000 + 10, entries.get(1).firstMillis);
+        assertEquals(1455000019L * 1000 + 19, entries.get(1).lastMillis);
+
+        long total = 0;
+        for (SegmentManifest.Entry entry : entries) {
+            byte[] bytes = Files.readAllBytes(new File(mDirectory, entry.fileName).toPath());
+            assertEquals(entry.bytes, bytes.length);
+            assertEquals(entry.recordCount, AICSFile.readFromArray(bytes).size());
+            total += bytes.length;
+        }
+        assertEquals(total, writer.getBytesWritten());
+        assertEquals(25, writer.getRecordCount());
+        assertEquals(1, manifest.findOverlapping(1455000021L * 1000, 1455000030L * 1000).size());
+    }
+
+    @Test
+    public void flushForSync_writesRecordsBeforeTheSyncRuns() throws Exception {
+        for (LogFormat format : new LogFormat[]{LogFormat.STANDARD, LogFormat.COMPRESSED}) {
+            String session = "700" + format.ordinal();
+            SegmentedLogWriter writer = new SegmentedLogWriter(mDirectory, session, (short) 6,
+                    (byte) 0, (byte) 1, format, new RotationPolicy(), true);
+            for (IntentHeader head : AICSStreamWriterTest.sampleRecords(12)) writer.append(head);
+            FileSync sync = writer.flushForSync();
+            File segment = new File(mDirectory, writer.getSegmentName());
+            assertEquals(writer.getBytesWritten(), segment.length());
+            sync.sync();
+            for (IntentHeader head : AICSStreamWriterTest.sampleRecords(3)) writer.append(head);
+            FileSync late = writer.flushForSync();
+            writer.close();
+            // Closing already synced the segment
+            late.sync();
+            assertEquals(writer.getBytesWritten(), segment.length());
+            assertSame(FileSync.NONE, writer.flushForSync());
+        }
+    }
+
+    private static int sidecarRecordCount(File segment) throws Exception {
+        ByteBuffer index = ByteBuffer.wrap(
+                Files.readAllBytes(CaptureIndexWriter.sidecarFor(segment).toPath()));
+        assertEquals(CaptureIndexWriter.MAGIC, index.getInt());
+        index.getInt();
+        return index.getInt();
+    }
+
+    @Test
+    public void flushForSync_replacesSidecarWhenTheSyncRuns() throws Exception {
+        SegmentedLogWriter writer = new SegmentedLogWriter(mDirectory, "710", (short) 6,
+                (byte) 0, (byte) 1, LogFormat.STANDARD, new RotationPolicy(), true);
+        File segment = new File(mDirectory, writer.getSegmentName());
+        for (IntentHeader head : AICSStreamWriterTest.sampleRecords(5)) writer.append(head);
+        FileSync first = writer.flushForSync();
+        assertFalse(CaptureIndexWriter.sidecarFor(segment).exists());
+        for (IntentHeader head : AICSStreamWriterTest.sampleRecords(4)) writer.append(head);
+        FileSync second = writer.flushForSync();
+        second.sync();
+        assertEquals(9, sidecarRecordCount(segment));
+        // Running late, the older sidecar must not replace the newer one
+        first.sync();
+        assertEquals(9, sidecarRecordCount(segment));
+        writer.close();
+        assertEquals(9, sidecarRecordCount(segment));
+        for (File file : mDirectory.listFiles()) assertFalse(file.getName().endsWith(".tmp"));
+    }
+
+    @Test
+    public void deduplicator_neverReferencesAnotherSegment() throws Exception {
+        SegmentedLogWriter writer = new SegmentedLogWriter(mDirectory, "500", (short) 6,
+                (byte) 0, (byte) 1, LogFormat.STANDARD, new RotationPolicy().setMaxRecords(3));
+        writer.setDeduplicator(new PayloadDeduplicator());
+        byte[] extras = new byte[300];
+        for (IntentHeader head : AICSStreamWriterTest.sampleRecords(6)) {
+            head.setIntentData(head.getIntentData().setExtras(extras.clone()));
+            writer.append(head);
+        }
+        writer.close();
+        assertEquals(4, writer.getDeduplicator().getDeduplicated());
+
+        for (String name : new String[]{"500-0000.aics", "500-0001.aics"}) {
+            AICSFile segment = AICSFile.readFromArray(
+                    Files.readAllBytes(new File(mDirectory, name).toPath()));
+            assertEquals(300, segment.getIntent(0).getIntentData().getExtras().length);
+            for (int i = 1; i < 3; i++) {
+                byte[] stored = segment.getIntent(i).getIntentData().getExtras();
+                assertEquals(0, PayloadEncoding.referencedRecord(stored));
+            }
+        }
+    }
+
+    @Test
+    public void deduplicator_skipsRejectedRecords() throws Exception {
+        SegmentedLogWriter writer = new SegmentedLogWriter(mDirectory, "600", (short) 6,
+                (byte) 0, (byte) 1, LogFormat.STANDARD, new RotationPolicy());
+        writer.setDeduplicator(new PayloadDeduplicator());
+        IntentHeader first = AICSStreamWriterTest.sampleRecords(1).get(0);
+        first.setIntentData(first.getIntentData().setExtras(new byte[300]));
+        writer.append(first);
+        IntentHeader rejected = new BroadcastIntentHeader()
+                .setRequiredPermission("perm\u00e9")
+                .setTimestamp(5)
+                .setIntentData(new IntentData().setExtras(new byte[200]));
+        try {
+            writer.append(rejected);
+            fail("Non-ASCII string accepted.");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(200, rejected.getIntentData().getExtras().length);
+        IntentHeader full = AICSStreamWriterTest.sampleRecords(1).get(0);
+        full.setIntentData(full.getIntentData().setExtras(new byte[200]));
+        writer.append(full);
+        IntentHeader duplicate = AICSStreamWriterTest.sampleRecords(1).get(0);
+        duplicate.setIntentData(duplicate.getIntentData().setExtras(new byte[200]));
+        writer.append(duplicate);
+        writer.close();
+
+        AICSFile segment = AICSFile.readFromArray(
+                Files.readAllBytes(new File(mDirectory, "600-0000.aics").toPath()));
+        assertEquals(3, segment.size());
+        assertEquals(200, segment.getIntent(1).getIntentData().getExtras().length);
+        assertEquals(1, PayloadEncoding.referencedRecord(
+                segment.getIntent(2).getIntentData().getExtras()));
+    }
+
+    @Test
+    public void compressedSegments_recordExactSizes() throws Exception {
+        SegmentedLogWriter writer = new SegmentedLogWriter(mDirectory, "400", (short) 6,
+                (byte) 0, (byte) 1, LogFormat.COMPRESSED, new RotationPolicy().setMaxRecords(10));
+        for (IntentHeader head : AICSStreamWriterTest.sampleRecords(25)) writer.append(head);
+        writer.close();
+
+        long total = 0;
+        for (SegmentManifest.Entry entry :
+                SegmentManifest.read(new File(mDirectory, "400.manifest")).getEntries()) {
+            byte[] bytes = Files.readAllBytes(new File(mDirectory, entry.fileName).toPath());
+            assertEquals(entry.bytes, bytes.length);
+            assertEquals(entry.recordCount,
+                    CompressedAICSReader.readFromBuffer(ByteBuffer.wrap(bytes)).size());
+            total += bytes.length;
+        }
+        assertEquals(total, writer.getBytesWritten());
+    }
+
+    @Test
+    public void indexedSegments_writeSidecarsWithRecordOffsets() throws Exception {
+        List<IntentHeader> records = AICSStreamWriterTest.sampleRecords(25);
+        SegmentedLogWriter writer = new SegmentedLogWriter(mDirectory, "500", (short) 6,
+                (byte) 0, (byte) 1, LogFormat.STANDARD,
+                new RotationPolicy().setMaxRecords(10).setMaxSegments(2), true);
+        for (IntentHeader head : records) writer.append(head);
+        writer.close();
+
+        assertFalse(new File(mDirectory, "500-0000.aidx").exists());
+        for (SegmentManifest.Entry entry :
+                SegmentManifest.read(new File(mDirectory, "500.manifest")).getEntries()) {
+            File segment = new File(mDirectory, entry.fileName);
+            ByteBuffer index = ByteBuffer.wrap(
+                    Files.readAllBytes(CaptureIndexWriter.sidecarFor(segment).toPath()));
+            assertEquals(CaptureIndexWriter.MAGIC, index.getInt());
+            assertEquals(CaptureIndexWriter.VERSION, index.getShort());
+            index.getShort();
+            assertEquals(entry.recordCount, index.getInt());
+
+            ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(segment.toPath()));
+            for (int i = 0; i < entry.recordCount; i++) {
+                bytes.position((int) index.getLong());
+                assertNotNull(AICSFormat.readRecord(bytes));
+            }
+            assertFalse(bytes.hasRemaining());
+        }
+    }
+
+    @Test
+    public void retention_deletesOldestSegments() throws Exception {
+        List<IntentHeader> records = AICSStreamWriterTest.sampleRecords(50);
+        SegmentedLogWriter writer = new SegmentedLogWriter(mDirectory, "200", (short) 6,
+                (byte) 0, (byte) 1, LogFormat.STANDARD,
+                new RotationPolicy().setMaxRecords(10).setMaxSegments(2));
+        for (IntentHeader head : records) writer.append(head);
+        writer.close();
+
+        List<SegmentManifest.Entry> entries =
+                SegmentManifest.read(new File(mDirectory, "200.manifest")).getEntries();
+        assertEquals(2, entries.size());
+        assertEquals("200-0003.aics", entries.get(0).fileName);
+        assertEquals("200-0004.aics", entries.get(1).fileName);
+        assertFalse(new File(mDirectory, "200-0002.aics").exists());
+        assertEquals(3, mDirectory.listFiles().length);
+    }
+
+    @Test
+    public void rotatesByAge_withoutNewRecords() throws Exception {
+        SegmentedLogWriter writer = new SegmentedLogWriter(mDirectory, "300", (short) 6,
+                (byte) 0, (byte) 1, LogFormat.STANDARD, new RotationPolicy().setMaxAgeMillis(1));
+        writer.append(AICSStreamWriterTest.sampleRecords(1).get(0));
+        Thread.sleep(5);
+        assertTrue(writer.rotateIfDue());
+        assertEquals("300-0001.aics", writer.getSegmentName());
+        // An empty segment is never rotated
+        Thread.sleep(5);
+        assertFalse(writer.rotateIfDue());
+        writer.close();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.benchmark;
+
+import com.carteryagemann.AICS.AICSFile;
+import com.carteryagemann.AICS.IntentHeader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The in-memory AICS library path the service used before records were streamed: building an
+ * {@link AICSFile}, serializing it and parsing it back. Each operation covers all
+ * {@link IntentMix#SIZE} intents of the mix.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AICSFileBenchmark {
+
+    private List<IntentHeader> mRecords;
+    private AICSFile mFile;
+    private ByteBuffer mSerialized;
+
+    @Setup
+    public void setUp(IntentMix mix) {
+        mRecords = mix.records();
+        mFile = new AICSFile((short) 6, (byte) 0, (byte) 1);
+        for (IntentHeader head : mRecords) mFile.appendIntent(head);
+        mSerialized = mFile.toByteBuffer();
+    }
+
+    @Benchmark
+    public AICSFile appendIntent() {
+        AICSFile file = new AICSFile((short) 6, (byte) 0, (byte) 1);
+        for (IntentHeader head : mRecords) file.appendIntent(head);
+        return file;
+    }
+
+    @Benchmark
+    public ByteBuffer toByteBuffer() {
+        return mFile.toByteBuffer();
+    }
+
+    @Benchmark
+    public AICSFile readFromBuffer() throws ParseException {
+        return AICSFile.readFromBuffer(mSerialized.duplicate());
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.benchmark;
+
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.intentlogger.capture.CaptureRecordBuilder;
+import com.carteryagemann.intentlogger.storage.AICSFormat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The capture worker's per-intent work without a device: turning the fields of a captured
+ * intent into an AICS record, and encoding that record the way the log writers do. Each
+ * operation handles one intent of the mix.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CaptureBenchmark {
+
+    private CaptureRecordBuilder mBuilder;
+    private ByteBuffer mBuffer;
+    private int mNext = 0;
+
+    @Setup
+    public void setUp(IntentMix mix) {
+        mBuilder = new CaptureRecordBuilder();
+        mBuffer = ByteBuffer.allocateDirect(1024 * 1024);
+    }
+
+    @Benchmark
+    public IntentHeader buildRecord(IntentMix mix) {
+        return mBuilder.build(mix.fields(mNext++));
+    }
+
+    @Benchmark
+    public ByteBuffer buildAndEncode(IntentMix mix) {
+        IntentHeader head = mBuilder.build(mix.fields(mNext++));
+        mBuffer.clear();
+        AICSFormat.writeRecord(head, mBuffer);
+        return mBuffer;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.intentlogger.benchmark;
+
+import com.carteryagemann.AICS.AICSFile;
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.intentlogger.analysis.ColumnarCapture;
+import com.carteryagemann.intentlogger.analysis.ColumnarFormat.Column;
+import com.carteryagemann.intentlogger.analysis.ColumnarWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.text.ParseException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answers the same two questions from a standard AICS capture and from its columnar export, both
+ * held in memory: how many intents a receiver got with a given action, and how many fall into a
+ * time window. The AICS side has to parse every record, the columnar side reads only the columns
+ * the question needs. Each operation scans all {@link IntentMix#SIZE} intents of the mix.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ColumnarBenchmark {
+
+    private ByteBuffer mAics;
+    private ByteBuffer mColumnar;
+    private int mReceiverUid;
+    private String mAction;
+    private int mFromSeconds;
+    private int mToSeconds;
+
+    @Setup
+    public void setUp(IntentMix mix) throws IOException {
+        List<IntentHeader> records = mix.records();
+        AICSFile file = new AICSFile((short) 6, (byte) 0, (byte) 1);
+        for (IntentHeader head : records) file.appendIntent(head);
+        mAics = file.toByteBuffer();
+
+        File temp = File.createTempFile("columnar", ".aicc");
+        try {
+            ColumnarWriter writer = new ColumnarWriter(temp);
+            for (IntentHeader head : records) writer.append(head);
+            writer.close();
+            try (RandomAccessFile in = new RandomAccessFile(temp, "r")) {
+                byte[] bytes = new byte[(int) in.length()];
+                in.readFully(bytes);
+                mColumnar = ByteBuffer.wrap(bytes);
+            }
+        } finally {
+            temp.delete();
+        }
+
+        IntentHeader probe = records.get(records.size() / 2);
+        mReceiverUid = probe.getReceiverUID();
+        mAction = probe.getIntentData().getAction();
+        mFromSeconds = records.get(records.size() / 4).getTimestamp();
+        mToSeconds = records.get(records.size() / 2).getTimestamp();
+    }
+
+    @Benchmark
+    public int aicsFilter() throws ParseException {
+        AICSFile file = AICSFile.readFromBuffer(mAics.duplicate());
+        int matches = 0;
+        for (int i = 0, n = file.size(); i < n; i++) {
+            IntentHeader head = file.getIntent(i);
+            if (head.getReceiverUID() == mReceiverUid
+                    && mAction.equals(head.getIntentData().getAction())) matches++;
+        }
+        return matches;
+    }
+
+    @Benchmark
+    public int columnarFilter() throws ParseException, IOException {
+        ColumnarCapture capture = new ColumnarCapture(mColumnar.duplicate());
+        ColumnarCapture.StringColumn actions = capture.stringColumn(Column.ACTION);
+        int action = actions.codeOf(mAction);
+        if (action == ColumnarCapture.StringColumn.ABSENT) return 0;
+        IntBuffer uids = capture.intColumn(Column.RECEIVER_UID);
+        IntBuffer codes = actions.codes();
+        int matches = 0;
+        for (int i = 0, n = capture.size(); i < n; i++) {
+            if (uids.get(i) == mReceiverUid && codes.get(i) == action) matches++;
+        }
+        return matches;
+    }
+
+    @Benchmark
+    public int aicsTimeRange() throws ParseException {
+        AICSFile file = AICSFile.readFromBuffer(mAics.duplicate());
+        int matches = 0;
+        for (int i = 0, n = file.size(); i < n; i++) {
+            int timestamp = file.getIntent(i).getTimestamp();
+            if (timestamp >= mFromSeconds && timestamp <= mToSeconds) matches++;
+        }
+        return matches;
+    }
+
+    @Benchmark
+    public int columnarTimeRange() throws ParseException, IOException {
+        ColumnarCapture capture = new ColumnarCapture(mColumnar.duplicate());
+        IntBuffer timestamps = capture.intColumn(Column.TIMESTAMP);
+        int matches = 0;
+        for (int i = 0, n = capture.size(); i < n; i++) {
+            int timestamp = timestamps.get(i);
+            if (timestamp >= mFromSeconds && timestamp <= mToSeconds) matches++;
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.intentlogger.benchmark;
+
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.intentlogger.storage.AICSFormat;
+import com.carteryagemann.intentlogger.storage.CompactAICSReader;
+import com.carteryagemann.intentlogger.storage.LogFormat;
+import com.carteryagemann.intentlogger.storage.RecordSink;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding every record of a standard file and of a compact file holding the same
+ * {@link IntentMix#SIZE} intents, both in memory. The standard side uses the AICS library's
+ * {@code ByteBuffer} constructors through {@link AICSFormat#readRecord(ByteBuffer)}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompactFormatBenchmark {
+
+    private ByteBuffer mStandard;
+    private ByteBuffer mCompact;
+
+    @Setup
+    public void setUp(IntentMix mix) throws IOException {
+        mStandard = write(mix, LogFormat.STANDARD);
+        mCompact = write(mix, LogFormat.COMPACT);
+    }
+
+    private static ByteBuffer write(IntentMix mix, LogFormat format) throws IOException {
+        File temp = File.createTempFile("compact", ".aics");
+        try {
+            RecordSink sink = format.create(temp, (short) 6, (byte) 0, (byte) 1);
+            for (IntentHeader head : mix.records()) sink.append(head);
+            sink.close();
+            try (RandomAccessFile in = new RandomAccessFile(temp, "r")) {
+                byte[] bytes = new byte[(int) in.length()];
+                in.readFully(bytes);
+                return ByteBuffer.wrap(bytes);
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    @Benchmark
+    public void readStandard(Blackhole blackhole) throws ParseException {
+        ByteBuffer buffer = mStandard.duplicate();
+        buffer.position(AICSFormat.FILE_HEADER_SIZE);
+        while (buffer.hasRemaining()) blackhole.consume(AICSFormat.readRecord(buffer));
+    }
+
+    @Benchmark
+    public void readCompact(Blackhole blackhole) throws ParseException {
+        CompactAICSReader reader = new CompactAICSReader(mCompact.duplicate());
+        IntentHeader head;
+        while ((head = reader.next()) != null) blackhole.consume(head);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.benchmark;
+
+import com.carteryagemann.AICS.ActivityIntentHeader;
+import com.carteryagemann.AICS.BroadcastIntentHeader;
+import com.carteryagemann.AICS.IntentData;
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.AICS.ServiceIntentHeader;
+import com.carteryagemann.intentlogger.storage.AICSFormat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing a single record of each intent type, once through the AICS library's own
+ * {@code toByteBuffer()} and once through {@link AICSFormat} into a reused buffer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeaderSerializationBenchmark {
+
+    /** The library only exposes per-record serialization to subclasses. */
+    private static class Activity extends ActivityIntentHeader {
+        ByteBuffer serialize() {
+            return toByteBuffer();
+        }
+    }
+
+    private static class Broadcast extends BroadcastIntentHeader {
+        ByteBuffer serialize() {
+            return toByteBuffer();
+        }
+    }
+
+    private static class Service extends ServiceIntentHeader {
+        ByteBuffer serialize() {
+            return toByteBuffer();
+        }
+    }
+
+    @Param({"0", "512", "8192"})
+    public int extrasBytes;
+
+    private Activity mActivity;
+    private Broadcast mBroadcast;
+    private Service mService;
+    private ByteBuffer mBuffer;
+
+    @Setup
+    public void setUp() {
+        mActivity = new Activity();
+        mActivity.setCallerComponent("com.example.caller")
+                .setReceiverComponent("{com.example.app/.ui.MainActivity}")
+                .setRequestCode(-1)
+                .setStartFlags(0)
+                .setOptions(new byte[0]);
+        mBroadcast = new Broadcast();
+        mBroadcast.setReceiverComponent("{com.example.app/.sync.SyncReceiver}")
+                .setRequiredPermission("android.permission.RECEIVE_BOOT_COMPLETED");
+        mService = new Service();
+        mService.setCallerComponent("com.example.caller")
+                .setReceiverComponent("{com.example.app/.sync.SyncService}")
+                .setAction("bind");
+        for (IntentHeader head : new IntentHeader[]{mActivity, mBroadcast, mService}) {
+            head.setTimestamp(1455000000)
+                    .setOffset((short) 123)
+                    .setCallerUID(10042)
+                    .setCallerPID(4242)
+                    .setReceiverUID(10050)
+                    .setUserID(0)
+                    .setIntentData(new IntentData()
+                            .setAction("android.intent.action.VIEW")
+                            .setData("content://com.android.contacts/contacts/12")
+                            .setCategory("android.intent.category.DEFAULT;")
+                            .setClipData(new byte[0])
+                            .setExtras(new byte[extrasBytes]));
+        }
+        mBuffer = ByteBuffer.allocateDirect(AICSFormat.recordSize(mActivity) + 1024);
+    }
+
+    @Benchmark
+    public ByteBuffer activityToByteBuffer() {
+        return mActivity.serialize();
+    }
+
+    @Benchmark
+    public ByteBuffer broadcastToByteBuffer() {
+        return mBroadcast.serialize();
+    }
+
+    @Benchmark
+    public ByteBuffer serviceToByteBuffer() {
+        return mService.serialize();
+    }
+
+    @Benchmark
+    public ByteBuffer activityWriteRecord() {
+        return write(mActivity);
+    }
+
+    @Benchmark
+    public ByteBuffer broadcastWriteRecord() {
+        return write(mBroadcast);
+    }
+
+    @Benchmark
+    public ByteBuffer serviceWriteRecord() {
+        return write(mService);
+    }
+
+    private ByteBuffer write(IntentHeader head) {
+        mBuffer.clear();
+        AICSFormat.writeRecord(head, mBuffer);
+        return mBuffer;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.benchmark;
+
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.intentlogger.capture.CaptureRecordBuilder;
+import com.carteryagemann.intentlogger.capture.IntentFields;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A reproducible stream of synthetic intents shaped like what IEM reports on a busy device:
+ * mostly broadcasts, a limited set of components that repeat, a few categories and extras of
+ * varying size around the configured mean.
+ */
+@State(Scope.Benchmark)
+public class IntentMix {
+
+    public final static int SIZE = 1024;
+
+    private final static String[] CATEGORIES = {
+            "android.intent.category.DEFAULT",
+            "android.intent.category.BROWSABLE",
+            "android.intent.category.LAUNCHER",
+            "android.intent.category.HOME",
+            "android.intent.category.ALTERNATIVE"};
+
+    private final static String[] ACTIONS = {
+            "android.intent.action.VIEW",
+            "android.intent.action.MAIN",
+            "android.intent.action.BATTERY_CHANGED",
+            "android.intent.action.SCREEN_ON",
+            "android.intent.action.TIME_TICK",
+            "android.net.conn.CONNECTIVITY_CHANGE",
+            "com.google.android.c2dm.intent.RECEIVE"};
+
+    /** Mean size of the marshalled extras, in bytes. */
+    @Param({"0", "512", "8192"})
+    public int extrasBytes;
+
+    /** Categories per intent. */
+    @Param({"0", "1", "3"})
+    public int categoryCount;
+
+    /** Length of the receiver's package plus class name. */
+    @Param({"32", "128"})
+    public int componentLength;
+
+    private IntentFields[] mFields;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        String[][] components = new String[32][];
+        for (int i = 0; i < components.length; i++) {
+            String packageName = pad("com.vendor" + i + ".app", componentLength / 3);
+            String className = pad(packageName + ".Component" + i,
+                    componentLength - packageName.length());
+            components[i] = new String[]{packageName, className};
+        }
+        mFields = new IntentFields[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            IntentFields fields = new IntentFields().clear();
+            int roll = random.nextInt(10);
+            fields.intentType = roll < 6 ? IntentHeader.TYPE_BROADCAST
+                    : roll < 9 ? IntentHeader.TYPE_ACTIVITY : IntentHeader.TYPE_SERVICE;
+            fields.captureNanos = (1455000000000L + i * 37L) * 1000000L;
+            String[] component = components[random.nextInt(components.length)];
+            fields.receiverPackage = component[0];
+            fields.receiverClass = component[1];
+            fields.receiverUid = 10000 + random.nextInt(200);
+            fields.callingPackage = components[random.nextInt(components.length)][0];
+            fields.callerUid = 10000 + random.nextInt(200);
+            fields.callerPid = 1000 + random.nextInt(30000);
+            fields.requiredPermission = random.nextBoolean() ? null
+                    : "android.permission.RECEIVE_BOOT_COMPLETED";
+            fields.serviceAction = random.nextBoolean() ? "bind" : "start";
+            fields.requestCode = random.nextInt(100);
+            fields.startFlags = random.nextInt(4);
+            fields.flags = random.nextInt(4);
+            fields.action = ACTIONS[random.nextInt(ACTIONS.length)];
+            fields.dataString = random.nextInt(3) == 0
+                    ? "content://com.android.contacts/contacts/" + random.nextInt(5000) : null;
+            fields.intentFlags = random.nextInt() & 0x1FFFFFFF;
+            fields.type = random.nextInt(4) == 0 ? "text/plain" : null;
+            List<String> categories = new ArrayList<>(Arrays.asList(CATEGORIES));
+            Collections.shuffle(categories, random);
+            fields.categories = categories.subList(0, Math.min(categoryCount, CATEGORIES.length));
+            fields.clipData = random.nextInt(20) == 0 ? bytes(random, 64) : null;
+            fields.extras = extrasBytes == 0 ? null
+                    : bytes(random, extrasBytes / 2 + random.nextInt(extrasBytes + 1));
+            mFields[i] = fields;
+        }
+    }
+
+    /** The i-th intent, wrapping around. */
+    public IntentFields fields(int i) {
+        return mFields[i & (SIZE - 1)];
+    }
+
+    /**
+     * Builds independent AICS objects for every intent, for benchmarks that keep records around.
+     */
+    public List<IntentHeader> records() {
+        List<IntentHeader> records = new ArrayList<>(SIZE);
+        // Each builder reuses its objects, so every record needs its own
+        for (IntentFields fields : mFields) records.add(new CaptureRecordBuilder(1).build(fields));
+        return records;
+    }
+
+    private static String pad(String value, int length) {
+        StringBuilder builder = new StringBuilder(value);
+        while (builder.length() < length) builder.append('x');
+        return builder.toString();
+    }
+
+    private static byte[] bytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.carteryagemann.intentlogger.benchmark;
+
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.intentlogger.storage.JournalPolicy;
+import com.carteryagemann.intentlogger.storage.LogFormat;
+import com.carteryagemann.intentlogger.storage.RotationPolicy;
+import com.carteryagemann.intentlogger.storage.SegmentedLogWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the write-ahead journal costs: appending to a session on the local disk with journaling
+ * off ({@code batch} 0) or committing every {@code batch} records. Each operation appends one
+ * intent of the mix. Run it on the storage you care about, syncs are only as slow as the device.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JournalBenchmark {
+
+    @Param({"0", "1", "16", "256"})
+    public int batch;
+
+    private File mDirectory;
+    private SegmentedLogWriter mLog;
+    private List<IntentHeader> mRecords;
+    private int mNext = 0;
+
+    @Setup
+    public void setUp(IntentMix mix) throws IOException {
+        mRecords = mix.records();
+        mDirectory = Files.createTempDirectory("journal-benchmark").toFile();
+        // Keep the disk footprint bounded however long the benchmark runs
+        mLog = new SegmentedLogWriter(mDirectory, "benchmark", (short) 6, (byte) 0, (byte) 1,
+                LogFormat.STANDARD,
+                new RotationPolicy().setMaxBytes(8 * 1024 * 1024).setMaxSegments(2));
+        if (batch > 0) {
+            mLog.enableJournal(new JournalPolicy().setMaxBatchRecords(batch)
+                    .setMaxDelayMillis(Long.MAX_VALUE / 2), new byte[0]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mLog.close();
+        File[] files = mDirectory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        mDirectory.delete();
+    }
+
+    @Benchmark
+    public int append() throws IOException {
+        mLog.append(mRecords.get(mNext++ & (IntentMix.SIZE - 1)));
+        return mLog.getRecordCount();
+    }
+}
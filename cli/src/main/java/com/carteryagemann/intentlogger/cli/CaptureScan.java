@@ -0,0 +1,284 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.intentlogger.cli;
+
+import com.carteryagemann.AICS.ActivityIntentHeader;
+import com.carteryagemann.AICS.BroadcastIntentHeader;
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.AICS.ServiceIntentHeader;
+import com.carteryagemann.intentlogger.analysis.MappedAICSReader;
+import com.carteryagemann.intentlogger.analysis.RecordView;
+import com.carteryagemann.intentlogger.storage.AICSFormat;
+import com.carteryagemann.intentlogger.storage.CompactAICSReader;
+import com.carteryagemann.intentlogger.storage.CompressedAICSReader;
+import com.carteryagemann.intentlogger.storage.DictionaryAICSReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Aggregates many capture files on a {@link ForkJoinPool}. Every file is a task, and standard
+ * files are split further into tasks of {@link #BLOCK_RECORDS} records that walk their part of
+ * one shared {@link MappedAICSReader}, so a single large capture still keeps every core busy.
+ * Compressed files get a task per DEFLATE block. Dictionary and compact files can only be decoded
+ * from the start and are read whole by one task.
+ *
+ * Each task fills its own {@link CaptureStats} and results are merged on the way back up. A
+ * file that can't be read is recorded as an error and doesn't stop the scan.
+ */
+public final class CaptureScan {
+
+    public final static int BLOCK_RECORDS = 1 << 16;
+
+    private final static String EXTENSION = ".aics";
+
+    private CaptureScan() {}
+
+    /**
+     * Finds capture files. Directories are searched recursively for {@code .aics} files, other
+     * paths are taken as they are.
+     */
+    public static List<File> findCaptures(List<File> paths) throws IOException {
+        List<File> files = new ArrayList<>();
+        for (File path : paths) {
+            if (!path.isDirectory()) {
+                files.add(path);
+                continue;
+            }
+            try (Stream<Path> walk = Files.walk(path.toPath())) {
+                files.addAll(walk.filter(Files::isRegularFile)
+                        .filter(file -> file.getFileName().toString().endsWith(EXTENSION))
+                        .sorted()
+                        .map(Path::toFile)
+                        .collect(Collectors.toList()));
+            }
+        }
+        return files;
+    }
+
+    public static CaptureStats scan(List<File> files, ForkJoinPool pool, long bucketMillis) {
+        return scan(files, pool, bucketMillis, BLOCK_RECORDS);
+    }
+
+    static CaptureStats scan(List<File> files, ForkJoinPool pool, long bucketMillis,
+                             int blockRecords) {
+        return pool.invoke(new FilesTask(files, bucketMillis, blockRecords));
+    }
+
+    private final static class FilesTask extends RecursiveTask<CaptureStats> {
+        private final static long serialVersionUID = 1L;
+
+        private final List<File> mFiles;
+        private final long mBucketMillis;
+        private final int mBlockRecords;
+
+        FilesTask(List<File> files, long bucketMillis, int blockRecords) {
+            mFiles = files;
+            mBucketMillis = bucketMillis;
+            mBlockRecords = blockRecords;
+        }
+
+        @Override
+        protected CaptureStats compute() {
+            List<FileTask> tasks = new ArrayList<>(mFiles.size());
+            for (File file : mFiles) tasks.add(new FileTask(file, mBucketMillis, mBlockRecords));
+            return mergeAll(invokeAll(tasks), mBucketMillis);
+        }
+    }
+
+    private final static class FileTask extends RecursiveTask<CaptureStats> {
+        private final static long serialVersionUID = 1L;
+
+        private final File mFile;
+        private final long mBucketMillis;
+        private final int mBlockRecords;
+
+        FileTask(File file, long bucketMillis, int blockRecords) {
+            mFile = file;
+            mBucketMillis = bucketMillis;
+            mBlockRecords = blockRecords;
+        }
+
+        @Override
+        protected CaptureStats compute() {
+            CaptureStats stats;
+            try (FileChannel channel = FileChannel.open(mFile.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(AICSFormat.FILE_HEADER_SIZE);
+                while (header.hasRemaining() && channel.read(header, header.position()) > 0) {}
+                header.flip();
+                switch (AICSFormat.readFileHeader(header).formatMinor) {
+                    case AICSFormat.FORMAT_MINOR_VERSION:
+                        stats = scanStandard();
+                        break;
+                    case AICSFormat.FORMAT_MINOR_COMPRESSED:
+                        stats = scanCompressed(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                channel.size()));
+                        break;
+                    case AICSFormat.FORMAT_MINOR_DICTIONARY: {
+                        stats = new CaptureStats(mBucketMillis);
+                        DictionaryAICSReader reader = new DictionaryAICSReader(
+                                channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                        IntentHeader head;
+                        while ((head = reader.next()) != null) add(stats, head);
+                        break;
+                    }
+                    case AICSFormat.FORMAT_MINOR_COMPACT: {
+                        stats = new CaptureStats(mBucketMillis);
+                        CompactAICSReader reader = new CompactAICSReader(
+                                channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                        IntentHeader head;
+                        while ((head = reader.next()) != null) add(stats, head);
+                        break;
+                    }
+                    default:
+                        throw new ParseException("Unknown format.", 0);
+                }
+            } catch (IOException | ParseException | RuntimeException e) {
+                stats = new CaptureStats(mBucketMillis);
+                stats.addError(mFile + ": " + e);
+            }
+            stats.addFile();
+            return stats;
+        }
+
+        private CaptureStats scanStandard() throws IOException, ParseException {
+            try (MappedAICSReader reader = MappedAICSReader.open(mFile)) {
+                List<RangeTask> tasks = new ArrayList<>();
+                for (long from = 0; from < reader.size(); from += mBlockRecords) {
+                    tasks.add(new RangeTask(reader, from,
+                            Math.min(reader.size(), from + mBlockRecords), mBucketMillis));
+                }
+                CaptureStats stats = mergeAll(invokeAll(tasks), mBucketMillis);
+                if (reader.isTruncated()) stats.addError(mFile + ": ends inside a record");
+                return stats;
+            }
+        }
+
+        private CaptureStats scanCompressed(MappedByteBuffer buffer) throws ParseException {
+            List<CompressedAICSReader.Block> blocks =
+                    new CompressedAICSReader(buffer.duplicate()).getBlocks();
+            List<BlockTask> tasks = new ArrayList<>(blocks.size());
+            for (CompressedAICSReader.Block block : blocks) {
+                tasks.add(new BlockTask(buffer, block, mFile, mBucketMillis));
+            }
+            return mergeAll(invokeAll(tasks), mBucketMillis);
+        }
+    }
+
+    private final static class RangeTask extends RecursiveTask<CaptureStats> {
+        private final static long serialVersionUID = 1L;
+
+        private final MappedAICSReader mReader;
+        private final long mFrom;
+        private final long mTo;
+        private final long mBucketMillis;
+
+        RangeTask(MappedAICSReader reader, long from, long to, long bucketMillis) {
+            mReader = reader;
+            mFrom = from;
+            mTo = to;
+            mBucketMillis = bucketMillis;
+        }
+
+        @Override
+        protected CaptureStats compute() {
+            CaptureStats stats = new CaptureStats(mBucketMillis);
+            mReader.forEach(mFrom, mTo, view -> add(stats, view));
+            return stats;
+        }
+    }
+
+    private final static class BlockTask extends RecursiveTask<CaptureStats> {
+        private final static long serialVersionUID = 1L;
+
+        private final ByteBuffer mBuffer;
+        private final CompressedAICSReader.Block mBlock;
+        private final File mFile;
+        private final long mBucketMillis;
+
+        BlockTask(ByteBuffer buffer, CompressedAICSReader.Block block, File file,
+                  long bucketMillis) {
+            mBuffer = buffer;
+            mBlock = block;
+            mFile = file;
+            mBucketMillis = bucketMillis;
+        }
+
+        @Override
+        protected CaptureStats compute() {
+            CaptureStats stats = new CaptureStats(mBucketMillis);
+            // Readers hold an inflater, so every task needs its own
+            CompressedAICSReader reader = null;
+            try {
+                reader = new CompressedAICSReader(mBuffer.duplicate());
+                for (IntentHeader head : reader.readBlock(mBlock)) add(stats, head);
+            } catch (ParseException | RuntimeException e) {
+                stats.addError(mFile + ": block at byte " + mBlock.dataOffset + ": " + e);
+            } finally {
+                if (reader != null) reader.close();
+            }
+            return stats;
+        }
+    }
+
+    private static CaptureStats mergeAll(
+            Collection<? extends RecursiveTask<CaptureStats>> tasks, long bucketMillis) {
+        CaptureStats stats = new CaptureStats(bucketMillis);
+        for (RecursiveTask<CaptureStats> task : tasks) stats.merge(task.join());
+        return stats;
+    }
+
+    private static void add(CaptureStats stats, RecordView view) {
+        stats.add(view.getTimeMillis(), view.getIntentType(), view.getAction(),
+                view.getCallerUid(), view.getCallerComponent(), view.getReceiverUid(),
+                view.getReceiverComponent());
+    }
+
+    private static void add(CaptureStats stats, IntentHeader head) {
+        String caller = null;
+        String receiver = null;
+        switch (head.getIntentType()) {
+            case IntentHeader.TYPE_ACTIVITY:
+                caller = ((ActivityIntentHeader) head).getCallerComponent();
+                receiver = ((ActivityIntentHeader) head).getReceiverComponent();
+                break;
+            case IntentHeader.TYPE_BROADCAST:
+                receiver = ((BroadcastIntentHeader) head).getReceiverComponent();
+                break;
+            case IntentHeader.TYPE_SERVICE:
+                caller = ((ServiceIntentHeader) head).getCallerComponent();
+                receiver = ((ServiceIntentHeader) head).getReceiverComponent();
+                break;
+        }
+        stats.add(head.getTimestamp() * 1000L + head.getOffset(), head.getIntentType(),
+                head.getIntentData() == null ? null : head.getIntentData().getAction(),
+                head.getCallerUID(), caller, head.getReceiverUID(), receiver);
+    }
+}
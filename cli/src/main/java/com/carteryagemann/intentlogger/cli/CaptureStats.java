@@ -0,0 +1,254 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.intentlogger.cli;
+
+import com.carteryagemann.AICS.IntentHeader;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts gathered from some of the records of a capture. Every scan task fills its own instance
+ * without any locking and the results are combined with {@link #merge} as the tasks finish, so
+ * the totals don't depend on how the work was split.
+ *
+ * Callers and receivers are identified by component where the record has one, and by UID
+ * otherwise, e.g. for broadcasts, which carry no caller.
+ */
+public final class CaptureStats {
+
+    private final static String[] TYPE_NAMES = {"activity", "broadcast", "service"};
+
+    /** A key and how often it was seen. */
+    public final static class Count<K> {
+        public final K key;
+        public final long count;
+
+        Count(K key, long count) {
+            this.key = key;
+            this.count = count;
+        }
+    }
+
+    /** A caller and a receiver that intents went between. */
+    public final static class Edge {
+        public final String caller;
+        public final String receiver;
+
+        Edge(String caller, String receiver) {
+            this.caller = caller;
+            this.receiver = receiver;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Edge)) return false;
+            Edge edge = (Edge) other;
+            return caller.equals(edge.caller) && receiver.equals(edge.receiver);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * caller.hashCode() + receiver.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return caller + " -> " + receiver;
+        }
+    }
+
+    private final long mBucketMillis;
+    private long mFiles = 0;
+    private long mRecords = 0;
+    private final List<String> mErrors = new ArrayList<>();
+    private long mFirstMillis = Long.MAX_VALUE;
+    private long mLastMillis = Long.MIN_VALUE;
+    private final long[] mTypes = new long[TYPE_NAMES.length];
+    private final Map<String, long[]> mActions = new HashMap<>();
+    private final Map<Edge, long[]> mEdges = new HashMap<>();
+    // Intents sent and received per UID
+    private final Map<Integer, long[]> mUids = new HashMap<>();
+    private final TreeMap<Long, long[]> mHistogram = new TreeMap<>();
+
+    /**
+     * @param bucketMillis Width of the time histogram's buckets.
+     */
+    public CaptureStats(long bucketMillis) {
+        if (bucketMillis <= 0) throw new IllegalArgumentException("Bucket must be positive.");
+        mBucketMillis = bucketMillis;
+    }
+
+    /**
+     * Counts one record.
+     *
+     * @param caller The caller's component, or null if the record has none.
+     * @param receiver The receiver's component, or null if the record has none.
+     */
+    public void add(long timeMillis, int intentType, String action, int callerUid, String caller,
+                    int receiverUid, String receiver) {
+        mRecords++;
+        if (timeMillis < mFirstMillis) mFirstMillis = timeMillis;
+        if (timeMillis > mLastMillis) mLastMillis = timeMillis;
+        if (intentType >= IntentHeader.TYPE_ACTIVITY && intentType <= IntentHeader.TYPE_SERVICE) {
+            mTypes[intentType]++;
+        }
+        increment(mActions, action == null ? "" : action, 1, 0);
+        increment(mEdges, new Edge(party(caller, callerUid), party(receiver, receiverUid)), 1, 0);
+        increment(mUids, callerUid, 2, 0);
+        increment(mUids, receiverUid, 2, 1);
+        increment(mHistogram, Math.floorDiv(timeMillis, mBucketMillis) * mBucketMillis, 1, 0);
+    }
+
+    void addFile() {
+        mFiles++;
+    }
+
+    void addError(String error) {
+        mErrors.add(error);
+    }
+
+    /** Adds another partial result to this one. */
+    public CaptureStats merge(CaptureStats other) {
+        if (other.mBucketMillis != mBucketMillis) {
+            throw new IllegalArgumentException("Histograms have different buckets.");
+        }
+        mFiles += other.mFiles;
+        mRecords += other.mRecords;
+        mErrors.addAll(other.mErrors);
+        mFirstMillis = Math.min(mFirstMillis, other.mFirstMillis);
+        mLastMillis = Math.max(mLastMillis, other.mLastMillis);
+        for (int i = 0; i < mTypes.length; i++) mTypes[i] += other.mTypes[i];
+        mergeCounts(mActions, other.mActions);
+        mergeCounts(mEdges, other.mEdges);
+        mergeCounts(mUids, other.mUids);
+        mergeCounts(mHistogram, other.mHistogram);
+        return this;
+    }
+
+    public long getBucketMillis() {
+        return mBucketMillis;
+    }
+
+    public long getFileCount() {
+        return mFiles;
+    }
+
+    public long getRecordCount() {
+        return mRecords;
+    }
+
+    /** Files or parts of files that couldn't be read, with the reason. */
+    public List<String> getErrors() {
+        return mErrors;
+    }
+
+    /** Time of the earliest record, or 0 if there are none. */
+    public long getFirstMillis() {
+        return mRecords == 0 ? 0 : mFirstMillis;
+    }
+
+    /** Time of the latest record, or 0 if there are none. */
+    public long getLastMillis() {
+        return mRecords == 0 ? 0 : mLastMillis;
+    }
+
+    public long getTypeCount(int intentType) {
+        return mTypes[intentType];
+    }
+
+    public static String typeName(int intentType) {
+        return TYPE_NAMES[intentType];
+    }
+
+    /** The most common actions, most common first. Records without an action count as "". */
+    public List<Count<String>> topActions(int limit) {
+        return top(mActions, 0, limit);
+    }
+
+    /** The most common caller to receiver pairs, most common first. */
+    public List<Count<Edge>> topEdges(int limit) {
+        return top(mEdges, 0, limit);
+    }
+
+    /** Intents sent per UID, most active first. */
+    public List<Count<Integer>> topSenders(int limit) {
+        return top(mUids, 0, limit);
+    }
+
+    /** Intents received by a UID. */
+    public long getReceivedCount(int uid) {
+        long[] counts = mUids.get(uid);
+        return counts == null ? 0 : counts[1];
+    }
+
+    /**
+     * Intents per second over the whole time the capture covers, at least one second.
+     */
+    public double rate(long count) {
+        long span = getLastMillis() - getFirstMillis();
+        return count * 1000.0 / Math.max(1000, span);
+    }
+
+    /** Records per bucket, keyed by the bucket's start, in time order. Empty buckets are skipped. */
+    public List<Count<Long>> histogram() {
+        List<Count<Long>> buckets = new ArrayList<>(mHistogram.size());
+        for (Map.Entry<Long, long[]> entry : mHistogram.entrySet()) {
+            buckets.add(new Count<>(entry.getKey(), entry.getValue()[0]));
+        }
+        return buckets;
+    }
+
+    private static String party(String component, int uid) {
+        return component == null || component.isEmpty() ? "uid:" + uid : component;
+    }
+
+    private static <K> void increment(Map<K, long[]> counts, K key, int width, int slot) {
+        long[] count = counts.get(key);
+        if (count == null) {
+            count = new long[width];
+            counts.put(key, count);
+        }
+        count[slot]++;
+    }
+
+    private static <K> void mergeCounts(Map<K, long[]> into, Map<K, long[]> from) {
+        for (Map.Entry<K, long[]> entry : from.entrySet()) {
+            long[] count = into.get(entry.getKey());
+            if (count == null) {
+                into.put(entry.getKey(), entry.getValue().clone());
+            } else {
+                for (int i = 0; i < count.length; i++) count[i] += entry.getValue()[i];
+            }
+        }
+    }
+
+    /** Sorted by count, then by key so that ties come out the same on every run. */
+    private static <K> List<Count<K>> top(Map<K, long[]> counts, int slot, int limit) {
+        List<Count<K>> all = new ArrayList<>(counts.size());
+        for (Map.Entry<K, long[]> entry : counts.entrySet()) {
+            long count = entry.getValue()[slot];
+            if (count > 0) all.add(new Count<>(entry.getKey(), count));
+        }
+        all.sort(Comparator.<Count<K>>comparingLong(count -> -count.count)
+                .thenComparing(count -> count.key.toString()));
+        return limit >= 0 && all.size() > limit ? new ArrayList<>(all.subList(0, limit)) : all;
+    }
+}
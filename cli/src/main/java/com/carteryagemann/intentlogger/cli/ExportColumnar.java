@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.intentlogger.cli;
+
+import com.carteryagemann.intentlogger.analysis.ColumnarFormat;
+import com.carteryagemann.intentlogger.analysis.ColumnarWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line entry point that joins captures into one columnar file:
+ *
+ * <pre>
+ *     export-columnar --out FILE.aicc FILE_OR_DIRECTORY...
+ * </pre>
+ *
+ * Directories are searched the same way {@link IntentStats} does, and the files are exported in
+ * name order.
+ */
+public final class ExportColumnar {
+
+    private final static String USAGE = "Usage: export-columnar --out FILE"
+            + ColumnarFormat.EXTENSION + " FILE_OR_DIRECTORY...";
+
+    private ExportColumnar() {}
+
+    public static void main(String[] args) {
+        try {
+            System.exit(run(args));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        } catch (IOException | ParseException e) {
+            System.err.println("Failed: " + e);
+            System.exit(1);
+        }
+    }
+
+    static int run(String[] args) throws IOException, ParseException {
+        File out = null;
+        List<File> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                paths.add(new File(arg));
+                continue;
+            }
+            if (i + 1 == args.length) throw new IllegalArgumentException(arg + " needs a value.");
+            if (!arg.equals("--out")) throw new IllegalArgumentException("Unknown option " + arg);
+            out = new File(args[++i]);
+        }
+        if (paths.isEmpty()) throw new IllegalArgumentException("No captures given.");
+        if (out == null) throw new IllegalArgumentException("No --out given.");
+
+        List<File> files = CaptureScan.findCaptures(paths);
+        int rows = ColumnarWriter.convert(files, out);
+        System.err.println("Exported " + rows + " records from " + files.size() + " files.");
+        return 0;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.intentlogger.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Command line entry point:
+ *
+ * <pre>
+ *     intent-stats [--top N] [--bucket SECONDS] [--threads N] [--format json|csv] [--out PATH]
+ *                  FILE_OR_DIRECTORY...
+ * </pre>
+ *
+ * JSON goes to {@code --out} or standard output. CSV needs {@code --out}, the directory the
+ * tables are written to.
+ */
+public final class IntentStats {
+
+    private final static String USAGE = "Usage: intent-stats [--top N] [--bucket SECONDS] "
+            + "[--threads N] [--format json|csv] [--out PATH] FILE_OR_DIRECTORY...";
+
+    private IntentStats() {}
+
+    public static void main(String[] args) {
+        try {
+            System.exit(run(args));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        } catch (IOException e) {
+            System.err.println("Failed: " + e);
+            System.exit(1);
+        }
+    }
+
+    /** @return The exit status, 1 if any file couldn't be read. */
+    static int run(String[] args) throws IOException {
+        int top = 20;
+        long bucketMillis = 60000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String format = "json";
+        File out = null;
+        List<File> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                paths.add(new File(arg));
+                continue;
+            }
+            if (i + 1 == args.length) throw new IllegalArgumentException(arg + " needs a value.");
+            String value = args[++i];
+            try {
+                switch (arg) {
+                    case "--top":
+                        top = Integer.parseInt(value);
+                        break;
+                    case "--bucket":
+                        bucketMillis = Math.round(Double.parseDouble(value) * 1000);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    case "--format":
+                        format = value;
+                        break;
+                    case "--out":
+                        out = new File(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad number for " + arg + ": " + value);
+            }
+        }
+        if (paths.isEmpty()) throw new IllegalArgumentException("No captures given.");
+        if (bucketMillis <= 0) throw new IllegalArgumentException("Bucket must be positive.");
+        if (threads <= 0) throw new IllegalArgumentException("Threads must be positive.");
+        if (!format.equals("json") && !format.equals("csv")) {
+            throw new IllegalArgumentException("Unknown format " + format);
+        }
+        if (format.equals("csv") && out == null) {
+            throw new IllegalArgumentException("CSV needs --out.");
+        }
+
+        List<File> files = CaptureScan.findCaptures(paths);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        CaptureStats stats;
+        try {
+            stats = CaptureScan.scan(files, pool, bucketMillis);
+        } finally {
+            pool.shutdown();
+        }
+        ReportWriter report = new ReportWriter(stats, top);
+        if (format.equals("csv")) {
+            report.writeCsv(out);
+        } else if (out != null) {
+            try (Writer writer = Files.newBufferedWriter(out.toPath(), StandardCharsets.UTF_8)) {
+                report.writeJson(writer);
+            }
+        } else {
+            report.writeJson(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        }
+        for (String error : stats.getErrors()) System.err.println(error);
+        return stats.getErrors().isEmpty() ? 0 : 1;
+    }
+}
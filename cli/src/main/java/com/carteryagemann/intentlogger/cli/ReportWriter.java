@@ -0,0 +1,202 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.intentlogger.cli;
+
+import com.carteryagemann.AICS.IntentHeader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes {@link CaptureStats} as one JSON document or as a directory of CSV tables:
+ * {@code summary.csv}, {@code actions.csv}, {@code edges.csv}, {@code uids.csv} and
+ * {@code histogram.csv}. Rates are intents per second over the time the capture covers.
+ */
+public final class ReportWriter {
+
+    private final CaptureStats mStats;
+    private final int mTop;
+
+    /**
+     * @param top How many actions, edges and UIDs to list, negative for all of them.
+     */
+    public ReportWriter(CaptureStats stats, int top) {
+        mStats = stats;
+        mTop = top;
+    }
+
+    public void writeJson(Writer writer) {
+        PrintWriter out = new PrintWriter(writer);
+        out.println("{");
+        out.printf(Locale.US, "  \"files\": %d,%n", mStats.getFileCount());
+        out.printf(Locale.US, "  \"records\": %d,%n", mStats.getRecordCount());
+        out.printf(Locale.US, "  \"firstMillis\": %d,%n", mStats.getFirstMillis());
+        out.printf(Locale.US, "  \"lastMillis\": %d,%n", mStats.getLastMillis());
+        out.print("  \"types\": {");
+        for (int type = IntentHeader.TYPE_ACTIVITY; type <= IntentHeader.TYPE_SERVICE; type++) {
+            out.printf(Locale.US, "%s\"%s\": %d", type == 0 ? "" : ", ",
+                    CaptureStats.typeName(type), mStats.getTypeCount(type));
+        }
+        out.println("},");
+
+        out.println("  \"actions\": [");
+        List<CaptureStats.Count<String>> actions = mStats.topActions(mTop);
+        for (int i = 0; i < actions.size(); i++) {
+            CaptureStats.Count<String> action = actions.get(i);
+            out.printf(Locale.US, "    {\"action\": %s, \"count\": %d}%s%n", json(action.key),
+                    action.count, separator(i, actions));
+        }
+        out.println("  ],");
+
+        out.println("  \"edges\": [");
+        List<CaptureStats.Count<CaptureStats.Edge>> edges = mStats.topEdges(mTop);
+        for (int i = 0; i < edges.size(); i++) {
+            CaptureStats.Count<CaptureStats.Edge> edge = edges.get(i);
+            out.printf(Locale.US, "    {\"caller\": %s, \"receiver\": %s, \"count\": %d}%s%n",
+                    json(edge.key.caller), json(edge.key.receiver), edge.count,
+                    separator(i, edges));
+        }
+        out.println("  ],");
+
+        out.println("  \"uids\": [");
+        List<CaptureStats.Count<Integer>> uids = mStats.topSenders(mTop);
+        for (int i = 0; i < uids.size(); i++) {
+            CaptureStats.Count<Integer> uid = uids.get(i);
+            out.printf(Locale.US, "    {\"uid\": %d, \"sent\": %d, \"received\": %d, "
+                            + "\"sentPerSecond\": %.6f}%s%n", uid.key, uid.count,
+                    mStats.getReceivedCount(uid.key), mStats.rate(uid.count),
+                    separator(i, uids));
+        }
+        out.println("  ],");
+
+        out.printf(Locale.US, "  \"bucketMillis\": %d,%n", mStats.getBucketMillis());
+        out.println("  \"histogram\": [");
+        List<CaptureStats.Count<Long>> buckets = mStats.histogram();
+        for (int i = 0; i < buckets.size(); i++) {
+            CaptureStats.Count<Long> bucket = buckets.get(i);
+            out.printf(Locale.US, "    {\"startMillis\": %d, \"count\": %d}%s%n", bucket.key,
+                    bucket.count, separator(i, buckets));
+        }
+        out.println("  ],");
+
+        out.println("  \"errors\": [");
+        List<String> errors = mStats.getErrors();
+        for (int i = 0; i < errors.size(); i++) {
+            out.printf(Locale.US, "    %s%s%n", json(errors.get(i)), separator(i, errors));
+        }
+        out.println("  ]");
+        out.println("}");
+        out.flush();
+    }
+
+    /** Writes the CSV tables into a directory, creating it if needed. */
+    public void writeCsv(File directory) throws IOException {
+        Files.createDirectories(directory.toPath());
+        try (PrintWriter out = csv(directory, "summary.csv")) {
+            out.println("key,value");
+            out.printf(Locale.US, "files,%d%n", mStats.getFileCount());
+            out.printf(Locale.US, "records,%d%n", mStats.getRecordCount());
+            out.printf(Locale.US, "firstMillis,%d%n", mStats.getFirstMillis());
+            out.printf(Locale.US, "lastMillis,%d%n", mStats.getLastMillis());
+            for (int type = IntentHeader.TYPE_ACTIVITY; type <= IntentHeader.TYPE_SERVICE;
+                 type++) {
+                out.printf(Locale.US, "%s,%d%n", CaptureStats.typeName(type),
+                        mStats.getTypeCount(type));
+            }
+            out.printf(Locale.US, "errors,%d%n", mStats.getErrors().size());
+        }
+        try (PrintWriter out = csv(directory, "actions.csv")) {
+            out.println("action,count");
+            for (CaptureStats.Count<String> action : mStats.topActions(mTop)) {
+                out.printf(Locale.US, "%s,%d%n", csv(action.key), action.count);
+            }
+        }
+        try (PrintWriter out = csv(directory, "edges.csv")) {
+            out.println("caller,receiver,count");
+            for (CaptureStats.Count<CaptureStats.Edge> edge : mStats.topEdges(mTop)) {
+                out.printf(Locale.US, "%s,%s,%d%n", csv(edge.key.caller), csv(edge.key.receiver),
+                        edge.count);
+            }
+        }
+        try (PrintWriter out = csv(directory, "uids.csv")) {
+            out.println("uid,sent,received,sentPerSecond");
+            for (CaptureStats.Count<Integer> uid : mStats.topSenders(mTop)) {
+                out.printf(Locale.US, "%d,%d,%d,%.6f%n", uid.key, uid.count,
+                        mStats.getReceivedCount(uid.key), mStats.rate(uid.count));
+            }
+        }
+        try (PrintWriter out = csv(directory, "histogram.csv")) {
+            out.println("startMillis,count");
+            for (CaptureStats.Count<Long> bucket : mStats.histogram()) {
+                out.printf(Locale.US, "%d,%d%n", bucket.key, bucket.count);
+            }
+        }
+    }
+
+    private static PrintWriter csv(File directory, String name) throws IOException {
+        return new PrintWriter(Files.newBufferedWriter(new File(directory, name).toPath(),
+                StandardCharsets.UTF_8));
+    }
+
+    private static String separator(int index, List<?> list) {
+        return index == list.size() - 1 ? "" : ",";
+    }
+
+    static String json(String value) {
+        StringBuilder builder = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format(Locale.US, "\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+    static String csv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0
+                && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,142 @@
+package com.carteryagemann.intentlogger.cli;
+
+import com.carteryagemann.AICS.ActivityIntentHeader;
+import com.carteryagemann.AICS.BroadcastIntentHeader;
+import com.carteryagemann.AICS.IntentData;
+import com.carteryagemann.AICS.IntentHeader;
+import com.carteryagemann.intentlogger.storage.LogFormat;
+import com.carteryagemann.intentlogger.storage.RecordSink;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class CaptureScanTest {
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = Files.createTempDirectory("captures").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.walk(mDirectory.toPath()).sorted((a, b) -> b.compareTo(a))
+                .forEach(path -> path.toFile().delete());
+    }
+
+    /** Record i is sent at second i, every third one is an activity from com.example. */
+    private static IntentHeader record(int i) {
+        IntentData data = new IntentData()
+                .setAction("android.intent.action." + (i % 5 == 0 ? "VIEW" : "BATTERY_CHANGED"))
+                .setClipData(new byte[0])
+                .setExtras(new byte[0]);
+        IntentHeader head;
+        if (i % 3 == 0) {
+            head = new ActivityIntentHeader()
+                    .setCallerComponent("com.example")
+                    .setReceiverComponent("{com.other/.Main}");
+        } else {
+            head = new BroadcastIntentHeader();
+        }
+        return head.setTimestamp(1455000000 + i)
+                .setCallerUID(i % 3 == 0 ? 10001 : 1000)
+                .setReceiverUID(10002)
+                .setIntentData(data);
+    }
+
+    private File write(String name, LogFormat format, int from, int to) throws Exception {
+        File file = new File(mDirectory, name);
+        RecordSink sink = format.create(file, (short) 6, (byte) 0, (byte) 1);
+        for (int i = from; i < to; i++) sink.append(record(i));
+        sink.close();
+        return file;
+    }
+
+    @Test
+    public void everyFormat_aggregatesLikeOneSequentialPass() throws Exception {
+        write("0.aics", LogFormat.STANDARD, 0, 1000);
+        write("1.aics", LogFormat.COMPRESSED, 1000, 2000);
+        new File(mDirectory, "sub").mkdir();
+        write("sub/2.aics", LogFormat.DICTIONARY, 2000, 3000);
+        List<File> files = CaptureScan.findCaptures(Arrays.asList(mDirectory));
+        assertEquals(3, files.size());
+
+        CaptureStats stats = CaptureScan.scan(files, new ForkJoinPool(4), 60000, 100);
+        CaptureStats expected = new CaptureStats(60000);
+        for (int i = 0; i < 3000; i++) {
+            IntentHeader head = record(i);
+            boolean activity = i % 3 == 0;
+            expected.add(head.getTimestamp() * 1000L, head.getIntentType(),
+                    head.getIntentData().getAction(), head.getCallerUID(),
+                    activity ? "com.example" : null, 10002,
+                    activity ? "{com.other/.Main}" : null);
+        }
+
+        assertTrue(stats.getErrors().isEmpty());
+        assertEquals(3, stats.getFileCount());
+        assertEquals(3000, stats.getRecordCount());
+        assertEquals(1000, stats.getTypeCount(IntentHeader.TYPE_ACTIVITY));
+        assertEquals(1455000000000L, stats.getFirstMillis());
+        assertEquals(1455002999000L, stats.getLastMillis());
+
+        List<CaptureStats.Count<String>> actions = stats.topActions(1);
+        assertEquals(1, actions.size());
+        assertEquals("android.intent.action.BATTERY_CHANGED", actions.get(0).key);
+        assertEquals(2400, actions.get(0).count);
+
+        List<CaptureStats.Count<CaptureStats.Edge>> edges = stats.topEdges(-1);
+        assertEquals(2, edges.size());
+        assertEquals("uid:1000", edges.get(0).key.caller);
+        assertEquals("uid:10002", edges.get(0).key.receiver);
+        assertEquals(2000, edges.get(0).count);
+        assertEquals("com.example", edges.get(1).key.caller);
+
+        assertEquals(10001, (int) stats.topSenders(-1).get(1).key);
+        assertEquals(3000, stats.getReceivedCount(10002));
+        assertEquals(1000 / 2999.0, stats.rate(1000), 1e-9);
+
+        List<CaptureStats.Count<Long>> histogram = stats.histogram();
+        assertEquals(expected.histogram().size(), histogram.size());
+        for (int i = 0; i < histogram.size(); i++) {
+            assertEquals(expected.histogram().get(i).key, histogram.get(i).key);
+            assertEquals(expected.histogram().get(i).count, histogram.get(i).count);
+        }
+    }
+
+    @Test
+    public void unreadableFile_isReportedAndSkipped() throws Exception {
+        write("0.aics", LogFormat.STANDARD, 0, 10);
+        Files.write(new File(mDirectory, "bad.aics").toPath(), new byte[]{1, 2, 3});
+        CaptureStats stats = CaptureScan.scan(CaptureScan.findCaptures(Arrays.asList(mDirectory)),
+                new ForkJoinPool(2), 1000);
+        assertEquals(2, stats.getFileCount());
+        assertEquals(10, stats.getRecordCount());
+        assertEquals(1, stats.getErrors().size());
+        assertTrue(stats.getErrors().get(0).contains("bad.aics"));
+    }
+
+    @Test
+    public void json_escapesAndListsEveryTable() {
+        CaptureStats stats = new CaptureStats(1000);
+        stats.add(1500, IntentHeader.TYPE_SERVICE, "say \"hi\"", 5, null, 6, "{a/.B}");
+        StringWriter json = new StringWriter();
+        new ReportWriter(stats, 10).writeJson(json);
+        String text = json.toString();
+        assertTrue(text.contains("\"action\": \"say \\\"hi\\\"\""));
+        assertTrue(text.contains("{\"caller\": \"uid:5\", \"receiver\": \"{a/.B}\", \"count\": 1}"));
+        assertTrue(text.contains("{\"startMillis\": 1000, \"count\": 1}"));
+        assertTrue(text.contains("\"service\": 1"));
+        assertEquals("\"a,b\"", ReportWriter.csv("a,b"));
+    }
+}